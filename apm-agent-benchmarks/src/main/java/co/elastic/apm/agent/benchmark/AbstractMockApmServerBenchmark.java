@@ -86,7 +86,7 @@ public class AbstractMockApmServerBenchmark extends AbstractBenchmark {
                     .add("capture_headers", "false")
 //                     .add("profiling_inferred_spans", "true")
 //                     .add("profiling_interval", "10s")
-                    .add("classes_excluded_from_instrumentation", "java.*,com.sun.*,sun.*")
+                    .add("classes_excluded_from_instrumentation", getClassesExcludedFromInstrumentation())
                     .add("server_url", "http://localhost:" + port))
                 .optionProviders(ServiceLoader.load(ConfigurationOptionProvider.class))
                 .build())
@@ -95,6 +95,10 @@ public class AbstractMockApmServerBenchmark extends AbstractBenchmark {
 
     }
 
+    protected String getClassesExcludedFromInstrumentation() {
+        return "java.*,com.sun.*,sun.*";
+    }
+
     @TearDown
     public void tearDown() throws ExecutionException, InterruptedException {
         Thread.sleep(1000);
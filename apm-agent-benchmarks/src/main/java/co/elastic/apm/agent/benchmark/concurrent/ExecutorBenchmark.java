@@ -0,0 +1,116 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark.concurrent;
+
+import co.elastic.apm.agent.benchmark.AbstractMockApmServerBenchmark;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.RunnerException;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of submitting tasks to an executor and waiting for them to run while a transaction is active,
+ * so that the context is propagated to the tasks.
+ * <p>
+ * Lambdas are wrapped by the agent and carry their context in a field,
+ * tasks of other classes are mapped to their context in a weak map.
+ * </p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class ExecutorBenchmark extends AbstractMockApmServerBenchmark {
+
+    @Param({"ThreadPoolExecutor", "ForkJoinPool"})
+    public String executorType;
+
+    private ExecutorService executor;
+    private Transaction transaction;
+
+    public static void main(String[] args) throws RunnerException {
+        run(ExecutorBenchmark.class);
+    }
+
+    public ExecutorBenchmark() {
+        super(true);
+    }
+
+    @Override
+    public void setUp(Blackhole blackhole) throws IOException {
+        super.setUp(blackhole);
+        if (executorType.equals("ForkJoinPool")) {
+            executor = new ForkJoinPool(1);
+        } else {
+            executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+        }
+        transaction = tracer.startRootTransaction(null).withName("transaction");
+    }
+
+    @Override
+    protected String getClassesExcludedFromInstrumentation() {
+        // the executors to instrument are in java.util.concurrent
+        return "com.sun.*,sun.*";
+    }
+
+    @Override
+    public void tearDown() throws ExecutionException, InterruptedException {
+        transaction.end();
+        executor.shutdown();
+        super.tearDown();
+    }
+
+    @Benchmark
+    public Object submitLambda() throws ExecutionException, InterruptedException {
+        transaction.activate();
+        try {
+            return executor.submit(() -> tracer.getActive()).get();
+        } finally {
+            transaction.deactivate();
+        }
+    }
+
+    @Benchmark
+    public Object submitRunnable() throws ExecutionException, InterruptedException {
+        transaction.activate();
+        try {
+            return executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    tracer.getActive();
+                }
+            }).get();
+        } finally {
+            transaction.deactivate();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark.metrics;
+
+import co.elastic.apm.agent.benchmark.AbstractBenchmark;
+import co.elastic.apm.agent.metrics.Labels;
+import co.elastic.apm.agent.metrics.MetricRegistry;
+import co.elastic.apm.agent.report.ReporterConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.runner.RunnerException;
+import org.stagemonitor.configuration.ConfigurationOptionProvider;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+
+import java.util.ServiceLoader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares updating a timer of the {@link MetricRegistry} by looking up the metric set of the labels
+ * to updating it via a cached metric set id, like it's done when reporting breakdown metrics.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MetricRegistryBenchmark extends AbstractBenchmark {
+
+    private final StringBuilder transactionName = new StringBuilder("GET /api/users/{id}");
+    private final Labels.Mutable labels = Labels.Mutable.of();
+    private MetricRegistry metricRegistry;
+    private int metricSetId;
+
+    public static void main(String[] args) throws RunnerException {
+        run(MetricRegistryBenchmark.class);
+    }
+
+    @Setup
+    public void setUp() {
+        ReporterConfiguration config = ConfigurationRegistry.builder()
+            .optionProviders(ServiceLoader.load(ConfigurationOptionProvider.class))
+            .build()
+            .getConfig(ReporterConfiguration.class);
+        metricRegistry = new MetricRegistry(config);
+        metricSetId = metricRegistry.getOrCreateMetricSetId(setLabels());
+    }
+
+    @Benchmark
+    public void updateTimerByLabels() {
+        metricRegistry.updateTimer("span.self_time", setLabels(), 42, 1);
+    }
+
+    @Benchmark
+    public void updateTimerByCachedId() {
+        Labels labels = setLabels();
+        if (!metricRegistry.getMetricSetLabels(metricSetId).equals(labels)) {
+            metricSetId = metricRegistry.getOrCreateMetricSetId(labels);
+        }
+        metricRegistry.updateTimer("span.self_time", metricSetId, 42, 1);
+    }
+
+    private Labels setLabels() {
+        labels.resetState();
+        return labels.serviceName("benchmark")
+            .transactionName(transactionName)
+            .transactionType("request")
+            .spanType("db")
+            .spanSubType("mysql");
+    }
+}
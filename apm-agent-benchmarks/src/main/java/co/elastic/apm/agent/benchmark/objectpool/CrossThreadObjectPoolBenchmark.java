@@ -0,0 +1,115 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark.objectpool;
+
+import co.elastic.apm.agent.benchmark.AbstractBenchmark;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.objectpool.Allocator;
+import co.elastic.apm.agent.objectpool.ObjectPool;
+import co.elastic.apm.agent.objectpool.impl.QueueBasedObjectPool;
+import co.elastic.apm.agent.objectpool.impl.StripedObjectPool;
+import org.jctools.queues.MpscArrayQueue;
+import org.jctools.queues.atomic.MpmcAtomicArrayQueue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.runner.RunnerException;
+
+import javax.annotation.Nullable;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the object pools when objects are created on application threads and recycled on a single other thread,
+ * the way the reporter thread recycles the transactions and spans it has sent.
+ * <p>
+ * The {@link co.elastic.apm.agent.objectpool.impl.ListBasedObjectPool} is not thread-safe and therefore only part of
+ * {@link ObjectPoolBenchmark}.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CrossThreadObjectPoolBenchmark extends AbstractBenchmark {
+
+    @Param({"queue", "striped"})
+    public String pool;
+
+    private ElasticApmTracer tracer;
+    private ObjectPool<Transaction> objectPool;
+    private Queue<Transaction> recycleQueue;
+
+    public static void main(String[] args) throws RunnerException {
+        run(CrossThreadObjectPoolBenchmark.class);
+    }
+
+    @Setup
+    public void setUp() {
+        tracer = new ElasticApmTracerBuilder().buildAndStart();
+        Allocator<Transaction> allocator = new Allocator<Transaction>() {
+            @Override
+            public Transaction createInstance() {
+                return new Transaction(tracer);
+            }
+        };
+        if ("striped".equals(pool)) {
+            objectPool = StripedObjectPool.ofRecyclable(new MpmcAtomicArrayQueue<Transaction>(512), StripedObjectPool.getDefaultStripes(), 16, allocator);
+        } else {
+            objectPool = QueueBasedObjectPool.ofRecyclable(new MpmcAtomicArrayQueue<Transaction>(512), true, allocator);
+        }
+        recycleQueue = new MpscArrayQueue<>(1024);
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.out.println("Objects created by " + pool + " pool: " + objectPool.getMisses() + ", discarded: " + objectPool.getGarbageCreated());
+        tracer.stop();
+    }
+
+    @Benchmark
+    @Group("createHereRecycleThere")
+    @GroupThreads(3)
+    public Transaction create() {
+        Transaction transaction = objectPool.createInstance();
+        if (!recycleQueue.offer(transaction)) {
+            // the recycling thread can't keep up
+            objectPool.recycle(transaction);
+        }
+        return transaction;
+    }
+
+    @Nullable
+    @Benchmark
+    @Group("createHereRecycleThere")
+    @GroupThreads(1)
+    public Transaction recycle() {
+        Transaction transaction = recycleQueue.poll();
+        if (transaction != null) {
+            objectPool.recycle(transaction);
+        }
+        return transaction;
+    }
+}
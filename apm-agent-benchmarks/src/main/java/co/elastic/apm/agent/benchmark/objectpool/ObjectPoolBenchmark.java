@@ -23,7 +23,9 @@ import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
 import co.elastic.apm.agent.impl.transaction.Transaction;
 import co.elastic.apm.agent.objectpool.ObjectPool;
+import co.elastic.apm.agent.objectpool.impl.ListBasedObjectPool;
 import co.elastic.apm.agent.objectpool.impl.QueueBasedObjectPool;
+import co.elastic.apm.agent.objectpool.impl.StripedObjectPool;
 import co.elastic.apm.agent.objectpool.impl.ThreadLocalObjectPool;
 import org.agrona.concurrent.ManyToManyConcurrentArrayQueue;
 import org.jctools.queues.MpmcArrayQueue;
@@ -50,6 +52,8 @@ public class ObjectPoolBenchmark extends AbstractBenchmark {
     private ObjectPool<Transaction> threadLocalObjectPool;
     private ObjectPool<Transaction> jctoolsQueueObjectPool;
     private ObjectPool<Transaction> jctoolsAtomicQueueObjectPool;
+    private ObjectPool<Transaction> stripedObjectPool;
+    private ObjectPool<Transaction> listBasedObjectPool;
 
     public static void main(String[] args) throws RunnerException {
         run(ObjectPoolBenchmark.class);
@@ -62,7 +66,9 @@ public class ObjectPoolBenchmark extends AbstractBenchmark {
         jctoolsQueueObjectPool = QueueBasedObjectPool.ofRecyclable(new MpmcArrayQueue<>(256), true, () -> new Transaction(tracer));
         jctoolsAtomicQueueObjectPool = QueueBasedObjectPool.ofRecyclable(new MpmcAtomicArrayQueue<>(256), true, () -> new Transaction(tracer));
         agronaQueueObjectPool = QueueBasedObjectPool.ofRecyclable(new ManyToManyConcurrentArrayQueue<>(256), true, () -> new Transaction(tracer));
+        stripedObjectPool = StripedObjectPool.ofRecyclable(new MpmcAtomicArrayQueue<>(256), StripedObjectPool.getDefaultStripes(), 16, () -> new Transaction(tracer));
         threadLocalObjectPool = new ThreadLocalObjectPool<>(64, true, () -> new Transaction(tracer));
+        listBasedObjectPool = ListBasedObjectPool.ofRecyclable(256, () -> new Transaction(tracer));
     }
 
     @TearDown
@@ -84,6 +90,41 @@ public class ObjectPoolBenchmark extends AbstractBenchmark {
         return transaction;
     }
 
+    @Benchmark
+    @Threads(8)
+    public Transaction testStripedObjectPool() {
+        Transaction transaction = stripedObjectPool.createInstance();
+        stripedObjectPool.recycle(transaction);
+        return transaction;
+    }
+
+    /**
+     * The list based pool is not thread-safe, so it's compared to the other pools with a single thread
+     */
+    @Benchmark
+    @Threads(1)
+    public Transaction testListBasedObjectPool() {
+        Transaction transaction = listBasedObjectPool.createInstance();
+        listBasedObjectPool.recycle(transaction);
+        return transaction;
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Transaction testStripedObjectPoolSingleThreaded() {
+        Transaction transaction = stripedObjectPool.createInstance();
+        stripedObjectPool.recycle(transaction);
+        return transaction;
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Transaction testJctoolsAtomicQueueObjectPoolSingleThreaded() {
+        Transaction transaction = jctoolsAtomicQueueObjectPool.createInstance();
+        jctoolsAtomicQueueObjectPool.recycle(transaction);
+        return transaction;
+    }
+
     //    @Benchmark
     @Threads(8)
     public Transaction testArgonaQueueObjectPool() {
@@ -0,0 +1,154 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark.report;
+
+import co.elastic.apm.agent.benchmark.AbstractBenchmark;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
+import co.elastic.apm.agent.impl.stacktrace.StacktraceConfiguration;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.report.compression.CompressionCodec;
+import co.elastic.apm.agent.report.compression.DeflateCodec;
+import co.elastic.apm.agent.report.compression.DirectByteArrayOutputStream;
+import co.elastic.apm.agent.report.compression.GzipCodec;
+import co.elastic.apm.agent.report.compression.IdentityCodec;
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.runner.RunnerException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Compares the throughput and compression ratio of the {@link CompressionCodec}s on ND-JSON payloads as the agent produces them.
+ * The {@link #testDeflaterOutputStream()} benchmark is the baseline of compressing through a {@link DeflaterOutputStream}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CompressionCodecBenchmark extends AbstractBenchmark {
+
+    private static final int PAYLOAD_SIZE = 768 * 1024;
+
+    @Param({"none", "deflate", "gzip"})
+    public String codecName;
+
+    @Param({"1", "6"})
+    public int level;
+
+    private ElasticApmTracer tracer;
+    private byte[] payload;
+    private CompressionCodec codec;
+    private Deflater deflater;
+    private DirectByteArrayOutputStream out;
+
+    public static void main(String[] args) throws RunnerException {
+        run(CompressionCodecBenchmark.class);
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        tracer = new ElasticApmTracerBuilder().buildAndStart();
+        payload = createPayload(tracer);
+        switch (codecName) {
+            case "deflate":
+                codec = new DeflateCodec(level);
+                break;
+            case "gzip":
+                codec = new GzipCodec(level);
+                break;
+            default:
+                codec = IdentityCodec.INSTANCE;
+        }
+        deflater = new Deflater(level);
+        out = new DirectByteArrayOutputStream(PAYLOAD_SIZE);
+        System.out.println(String.format("%s level %d: compressed %d bytes to %d bytes", codecName, level, payload.length, testCodec()));
+    }
+
+    @TearDown
+    public void tearDown() {
+        tracer.stop();
+    }
+
+    private static byte[] createPayload(ElasticApmTracer tracer) {
+        DslJsonSerializer serializer = new DslJsonSerializer(tracer.getConfig(StacktraceConfiguration.class),
+            tracer.getApmServerClient(), tracer.getMetaDataFuture());
+        StringBuilder ndJson = new StringBuilder(PAYLOAD_SIZE);
+        for (int i = 0; ndJson.length() < PAYLOAD_SIZE; i++) {
+            Transaction transaction = tracer.startRootTransaction(null)
+                .withName("GET /api/customers/{id}")
+                .withType("request");
+            transaction.getContext().getRequest()
+                .withMethod("GET")
+                .getUrl()
+                .withProtocol("http")
+                .withHostname("localhost")
+                .withPathname("/api/customers/" + i);
+            ndJson.append("{\"transaction\":").append(serializer.toJsonString(transaction)).append("}\n");
+            for (int j = 0; j < 10; j++) {
+                Span span = transaction.createSpan()
+                    .withName("SELECT FROM customers")
+                    .withType("db")
+                    .withSubtype("postgresql")
+                    .withAction("query");
+                span.getContext().getDb()
+                    .withType("sql")
+                    .withStatement("SELECT * FROM customers WHERE id = ? AND tenant = ?")
+                    .withInstance("customers");
+                ndJson.append("{\"span\":").append(serializer.toJsonString(span)).append("}\n");
+            }
+        }
+        return ndJson.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public int testCodec() throws IOException {
+        out.reset();
+        write(codec.compress(out));
+        return out.size();
+    }
+
+    @Benchmark
+    public int testDeflaterOutputStream() throws IOException {
+        out.reset();
+        deflater.reset();
+        write(new DeflaterOutputStream(out, deflater, true));
+        return out.size();
+    }
+
+    /**
+     * Writes the payload in chunks of the serializer's buffer size, just like the serializer does
+     */
+    private void write(OutputStream os) throws IOException {
+        for (int offset = 0; offset < payload.length; offset += DslJsonSerializer.BUFFER_SIZE) {
+            os.write(payload, offset, Math.min(DslJsonSerializer.BUFFER_SIZE, payload.length - offset));
+        }
+        os.close();
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark.report;
+
+import co.elastic.apm.agent.benchmark.AbstractBenchmark;
+import co.elastic.apm.agent.configuration.CoreConfiguration;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.metrics.MetricRegistry;
+import co.elastic.apm.agent.report.ApmServerReporter;
+import co.elastic.apm.agent.report.ReporterConfiguration;
+import co.elastic.apm.agent.report.ReportingEvent;
+import co.elastic.apm.agent.report.ReportingEventHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.runner.RunnerException;
+import org.stagemonitor.configuration.ConfigurationOptionProvider;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+import org.stagemonitor.configuration.source.SimpleSource;
+
+import java.util.ServiceLoader;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the throughput of {@link ApmServerReporter#report(Span)} with different numbers of producer threads,
+ * {@code queue_shards} and {@code reporter_wait_strategy}s.
+ * <p>
+ * The events are consumed by a handler that discards them, so that the benchmark measures the overhead of handing over events
+ * from the application threads to the reporter thread, which includes waiting for the reporter thread when the queue is full.
+ * </p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ReporterBenchmark extends AbstractBenchmark {
+
+    @Param({"1", "8"})
+    public int queueShards;
+
+    @Param({"sleeping", "blocking", "yielding"})
+    public String waitStrategy;
+
+    private ElasticApmTracer tracer;
+    private ApmServerReporter reporter;
+    private DiscardingEventHandler eventHandler;
+
+    public static void main(String[] args) throws RunnerException {
+        run(ReporterBenchmark.class);
+    }
+
+    @Setup
+    public void setUp() {
+        tracer = new ElasticApmTracerBuilder()
+            .configurationRegistry(ConfigurationRegistry.builder()
+                .addConfigSource(new SimpleSource()
+                    .add(CoreConfiguration.SERVICE_NAME, "benchmark")
+                    .add("queue_shards", Integer.toString(queueShards))
+                    .add("reporter_wait_strategy", waitStrategy))
+                .optionProviders(ServiceLoader.load(ConfigurationOptionProvider.class))
+                .build())
+            .buildAndStart();
+        eventHandler = new DiscardingEventHandler();
+        reporter = new ApmServerReporter(false, tracer.getConfig(ReporterConfiguration.class), eventHandler);
+        reporter.start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.out.println("Handled events: " + eventHandler.handled.get());
+        reporter.close();
+        tracer.stop();
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        private Span span;
+
+        @Setup(Level.Trial)
+        public void setUp(ReporterBenchmark benchmark) {
+            span = new Span(benchmark.tracer);
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void testReport1Thread(ThreadState state) {
+        reporter.report(state.span);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void testReport8Threads(ThreadState state) {
+        reporter.report(state.span);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void testReport64Threads(ThreadState state) {
+        reporter.report(state.span);
+    }
+
+    private static class DiscardingEventHandler implements ReportingEventHandler {
+
+        private final AtomicLong processed = new AtomicLong(-1);
+        private final AtomicLong handled = new AtomicLong();
+
+        @Override
+        public void onEvent(ReportingEvent event, long sequence, boolean endOfBatch) {
+            // not ending the event as that would recycle the span which is re-used by the benchmark
+            event.resetState();
+            handled.lazySet(handled.get() + 1);
+            processed.set(sequence);
+        }
+
+        @Override
+        public void init(ApmServerReporter reporter) {
+        }
+
+        @Override
+        public long getReported() {
+            return handled.get();
+        }
+
+        @Override
+        public long getDropped() {
+            return 0;
+        }
+
+        @Override
+        public boolean isProcessed(long sequence) {
+            return processed.get() >= sequence;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean isHealthy() {
+            return true;
+        }
+
+        @Override
+        public void bindTo(MetricRegistry metricRegistry) {
+        }
+    }
+}
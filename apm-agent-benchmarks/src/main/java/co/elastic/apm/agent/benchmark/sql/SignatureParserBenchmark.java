@@ -24,12 +24,15 @@ import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.BenchmarkMode;
 import org.openjdk.jmh.annotations.Mode;
 import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
 import org.openjdk.jmh.annotations.Scope;
 import org.openjdk.jmh.annotations.Setup;
 import org.openjdk.jmh.annotations.State;
 import org.openjdk.jmh.infra.Blackhole;
 import org.openjdk.jmh.runner.RunnerException;
 
+import java.util.Arrays;
+import java.util.Random;
 import java.util.concurrent.TimeUnit;
 
 @State(Scope.Thread)
@@ -37,8 +40,22 @@ import java.util.concurrent.TimeUnit;
 @OutputTimeUnit(TimeUnit.NANOSECONDS)
 public class SignatureParserBenchmark extends AbstractBenchmark {
 
+    private static final int QUERY_SEQUENCE_LENGTH = 1 << 16;
+
+    /**
+     * The number of distinct prepared statements an application executes
+     */
+    @Param({"100", "1000", "10000"})
+    public int workingSetSize;
+
     private SignatureParser signatureParser;
     private StringBuilder stringBuilder;
+    /**
+     * The queries in the order they are executed.
+     * Follows a Zipf distribution as a few statements are typically executed much more often than the rest.
+     */
+    private String[] querySequence;
+    private int queryIndex;
 
     public static void main(String[] args) throws RunnerException {
         run(SignatureParserBenchmark.class);
@@ -48,6 +65,23 @@ public class SignatureParserBenchmark extends AbstractBenchmark {
     public void setUp() {
         stringBuilder = new StringBuilder();
         signatureParser = new SignatureParser();
+        String[] workingSet = new String[workingSetSize];
+        for (int i = 0; i < workingSetSize; i++) {
+            workingSet[i] = "SELECT t.id, t.name, t.description, t.created_at FROM table_" + i + " t WHERE t.id = ? AND t.tenant_id = ?";
+        }
+        double[] cumulativeProbabilities = new double[workingSetSize];
+        double sum = 0;
+        for (int i = 0; i < workingSetSize; i++) {
+            sum += 1d / (i + 1);
+            cumulativeProbabilities[i] = sum;
+        }
+        Random random = new Random(42);
+        querySequence = new String[QUERY_SEQUENCE_LENGTH];
+        for (int i = 0; i < QUERY_SEQUENCE_LENGTH; i++) {
+            int index = Arrays.binarySearch(cumulativeProbabilities, random.nextDouble() * sum);
+            // the query string is not reused, like with ORMs which generate the query for each execution
+            querySequence[i] = new String(workingSet[index < 0 ? Math.min(-index - 1, workingSetSize - 1) : index].toCharArray());
+        }
     }
 
     @Benchmark
@@ -64,6 +98,13 @@ public class SignatureParserBenchmark extends AbstractBenchmark {
         return stringBuilder;
     }
 
+    @Benchmark
+    public StringBuilder parsePreparedStatementWorkingSet() {
+        stringBuilder.setLength(0);
+        signatureParser.querySignature(querySequence[queryIndex++ & (QUERY_SEQUENCE_LENGTH - 1)], stringBuilder, true);
+        return stringBuilder;
+    }
+
     @Benchmark
     public void consumeCpu() {
         // to get a feel for the jitter of this machine (most notable in higher percentiles)
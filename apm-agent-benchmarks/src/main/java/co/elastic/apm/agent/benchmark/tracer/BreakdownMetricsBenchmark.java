@@ -0,0 +1,94 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark.tracer;
+
+import co.elastic.apm.agent.benchmark.AbstractBenchmark;
+import co.elastic.apm.agent.configuration.CoreConfiguration;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.runner.RunnerException;
+import org.stagemonitor.configuration.ConfigurationOptionProvider;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+import org.stagemonitor.configuration.source.SimpleSource;
+
+import java.util.ServiceLoader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost per span of a transaction with many spans, with and without breakdown metrics.
+ * <p>
+ * The cost includes tracking the child durations of the transaction and accumulating the self-times of the spans,
+ * as well as a share of reporting them to the metric registry at the end of the transaction.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BreakdownMetricsBenchmark extends AbstractBenchmark {
+
+    private static final int SPANS_PER_TRANSACTION = 1000;
+    private static final String[] SUBTYPES = {"mysql", "postgresql", "redis", "elasticsearch"};
+
+    @Param({"true", "false"})
+    public boolean breakdownMetrics;
+
+    private ElasticApmTracer tracer;
+
+    public static void main(String[] args) throws RunnerException {
+        run(BreakdownMetricsBenchmark.class);
+    }
+
+    @Setup
+    public void setUp() {
+        tracer = new ElasticApmTracerBuilder()
+            .configurationRegistry(ConfigurationRegistry.builder()
+                .addConfigSource(new SimpleSource()
+                    .add(CoreConfiguration.SERVICE_NAME, "benchmark")
+                    .add("breakdown_metrics", Boolean.toString(breakdownMetrics))
+                    .add("transaction_max_spans", Integer.toString(SPANS_PER_TRANSACTION)))
+                .optionProviders(ServiceLoader.load(ConfigurationOptionProvider.class))
+                .build())
+            .reporter(new RecyclingReporter())
+            .buildAndStart();
+    }
+
+    @TearDown
+    public void tearDown() {
+        tracer.stop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SPANS_PER_TRANSACTION)
+    public Transaction transactionWithSpans() {
+        Transaction transaction = tracer.startRootTransaction(null).withName("benchmark").withType("request");
+        for (int i = 0; i < SPANS_PER_TRANSACTION; i++) {
+            transaction.createSpan().withType("db").withSubtype(SUBTYPES[i % SUBTYPES.length]).end();
+        }
+        transaction.end();
+        return transaction;
+    }
+}
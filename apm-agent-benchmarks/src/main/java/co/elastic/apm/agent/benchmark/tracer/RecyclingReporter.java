@@ -0,0 +1,81 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.benchmark.tracer;
+
+import co.elastic.apm.agent.impl.error.ErrorCapture;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.report.Reporter;
+import com.dslplatform.json.JsonWriter;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recycles ended spans and transactions right away instead of reporting them,
+ * so that benchmarks only measure the overhead on the application threads.
+ */
+class RecyclingReporter implements Reporter {
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void report(Transaction transaction) {
+        transaction.decrementReferences();
+    }
+
+    @Override
+    public void report(Span span) {
+        span.decrementReferences();
+    }
+
+    @Override
+    public void report(ErrorCapture error) {
+        error.recycle();
+    }
+
+    @Override
+    public void report(JsonWriter jsonWriter) {
+    }
+
+    @Override
+    public long getDropped() {
+        return 0;
+    }
+
+    @Override
+    public long getReported() {
+        return 0;
+    }
+
+    @Override
+    public boolean flush(long timeout, TimeUnit unit) {
+        return true;
+    }
+
+    @Override
+    public boolean flush() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl;
+
+import co.elastic.apm.agent.impl.transaction.AbstractSpan;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import org.ehcache.sizeof.SizeOf;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Measures the memory that's retained per thread while a transaction is active,
+ * like for a virtual thread that is parked while waiting for I/O.
+ * The transaction itself is not taken into account as it's shared.
+ */
+public class SizeOfActiveStack {
+
+    public static void main(String[] args) {
+        final SizeOf sizeOf = SizeOf.newInstance();
+        ElasticApmTracer tracer = new ElasticApmTracerBuilder().buildAndStart();
+        Transaction transaction = new Transaction(tracer);
+        final long sizeOfTransaction = sizeOf.deepSizeOf(transaction);
+
+        Deque<AbstractSpan<?>> deque = new ArrayDeque<AbstractSpan<?>>();
+        deque.push(transaction);
+        ActiveStack stack = new ActiveStack(true);
+        stack.push(transaction);
+
+        System.out.println("sizeof ArrayDeque with an active transaction: " + (sizeOf.deepSizeOf(deque) - sizeOfTransaction));
+        System.out.println("sizeof ActiveStack with an active transaction: " + (sizeOf.deepSizeOf(stack) - sizeOfTransaction));
+        System.out.println("sizeof ActiveStack of a thread without an active transaction: 0");
+        tracer.stop();
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.matcher;
+
+import co.elastic.apm.agent.benchmark.AbstractBenchmark;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.runner.RunnerException;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares matching a list of 50 {@link WildcardMatcher}s one after another with matching the compiled {@link WildcardMatcherSet}.
+ * <p>
+ * The patterns are a mix of prefix, suffix, infix and exact patterns, as they are common for
+ * {@code transaction_ignore_urls} and {@code sanitize_field_names}.
+ * The input either doesn't match any pattern, which is the common case and the worst case when matching one after another,
+ * or it matches the last pattern.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class WildcardMatcherSetBenchmark extends AbstractBenchmark {
+
+    private static final int PATTERNS = 50;
+
+    @Param({"/api/orders/12345/items", "/static/app/main.woff2"})
+    public String input;
+
+    private List<WildcardMatcher> matcherList;
+    private WildcardMatcherSet matcherSet;
+
+    public static void main(String[] args) throws RunnerException {
+        run(WildcardMatcherSetBenchmark.class);
+    }
+
+    @Setup
+    public void setUp() {
+        matcherList = new ArrayList<>();
+        for (int i = 0; i < PATTERNS - 1; i++) {
+            switch (i % 4) {
+                case 0:
+                    matcherList.add(WildcardMatcher.valueOf("/static" + i + "/*"));
+                    break;
+                case 1:
+                    matcherList.add(WildcardMatcher.valueOf("*.ext" + i));
+                    break;
+                case 2:
+                    matcherList.add(WildcardMatcher.valueOf("*secret" + i + "*"));
+                    break;
+                default:
+                    matcherList.add(WildcardMatcher.valueOf("/health" + i));
+                    break;
+            }
+        }
+        matcherList.add(WildcardMatcher.valueOf("*.woff2"));
+        matcherSet = WildcardMatcherSet.of(matcherList);
+    }
+
+    @Benchmark
+    @Nullable
+    public WildcardMatcher testList() {
+        return WildcardMatcher.anyMatch(matcherList, input);
+    }
+
+    @Benchmark
+    @Nullable
+    public WildcardMatcher testCompiledSet() {
+        return matcherSet.anyMatch(input);
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.benchmark.AbstractBenchmark;
+import co.elastic.apm.agent.configuration.CoreConfiguration;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
+import co.elastic.apm.agent.impl.metadata.MetaData;
+import co.elastic.apm.agent.impl.stacktrace.StacktraceConfiguration;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.metrics.MetricRegistry;
+import co.elastic.apm.agent.objectpool.Allocator;
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import co.elastic.apm.agent.report.serialize.PayloadSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.runner.RunnerException;
+import org.stagemonitor.configuration.ConfigurationOptionProvider;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+import org.stagemonitor.configuration.source.SimpleSource;
+
+import javax.annotation.Nullable;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ServiceLoader;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures the GC pressure of ending spans with and without the {@code off_heap_span_buffer_size}.
+ * <p>
+ * The reporter thread serializes the events to a stream that discards them, and is slowed down to simulate
+ * an APM Server that can't keep up, so that the queue is full most of the time.
+ * Run with {@code -prof gc} to compare the allocation rate and the GC time.
+ * At the end of each iteration, the heap that is in use after a full GC is printed,
+ * which includes the spans retained by the full queue.
+ * </p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SerializedSpanBufferBenchmark extends AbstractBenchmark {
+
+    private static final long REPORTER_DELAY_NANOS = TimeUnit.MICROSECONDS.toNanos(5);
+
+    @Param({"0b", "32mb"})
+    public String offHeapSpanBufferSize;
+
+    private ElasticApmTracer tracer;
+    private ApmServerReporter reporter;
+
+    public static void main(String[] args) throws RunnerException {
+        run(SerializedSpanBufferBenchmark.class);
+    }
+
+    @Setup
+    public void setUp() {
+        ConfigurationRegistry config = ConfigurationRegistry.builder()
+            .addConfigSource(new SimpleSource()
+                .add(CoreConfiguration.SERVICE_NAME, "benchmark")
+                .add("transaction_max_spans", Integer.toString(Integer.MAX_VALUE))
+                .add("off_heap_span_buffer_size", offHeapSpanBufferSize))
+            .optionProviders(ServiceLoader.load(ConfigurationOptionProvider.class))
+            .build();
+        ReporterConfiguration reporterConfiguration = config.getConfig(ReporterConfiguration.class);
+        final StacktraceConfiguration stacktraceConfiguration = config.getConfig(StacktraceConfiguration.class);
+        final ApmServerClient apmServerClient = new ApmServerClient(reporterConfiguration, config.getConfig(CoreConfiguration.class));
+        final Future<MetaData> metaData = MetaData.create(config, null);
+
+        SerializedSpanBuffer serializedSpanBuffer = null;
+        if (reporterConfiguration.getOffHeapSpanBufferSize() > 0) {
+            serializedSpanBuffer = new SerializedSpanBuffer(reporterConfiguration.getOffHeapSpanBufferSize(), 8, new Allocator<PayloadSerializer>() {
+                @Override
+                public PayloadSerializer createInstance() {
+                    return new DslJsonSerializer(stacktraceConfiguration, apmServerClient, metaData);
+                }
+            });
+        }
+        reporter = new ApmServerReporter(true, reporterConfiguration,
+            new SerializingEventHandler(new DslJsonSerializer(stacktraceConfiguration, apmServerClient, metaData)), serializedSpanBuffer);
+        tracer = new ElasticApmTracerBuilder()
+            .configurationRegistry(config)
+            .reporter(reporter)
+            .buildAndStart();
+    }
+
+    @TearDown(Level.Iteration)
+    public void printRetainedHeap() {
+        System.gc();
+        long usedHeap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        System.out.printf("%nHeap used after GC: %.2f MiB, dropped events: %d%n", usedHeap / 1024.0 / 1024.0, reporter.getDropped());
+    }
+
+    @TearDown
+    public void tearDown() {
+        tracer.stop();
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        private Transaction transaction;
+
+        @Setup(Level.Trial)
+        public void setUp(SerializedSpanBufferBenchmark benchmark) {
+            transaction = benchmark.tracer.startRootTransaction(null);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            transaction.end();
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Span testEndSpan(ThreadState state) {
+        Span span = state.transaction.createSpan()
+            .withName("SELECT FROM products")
+            .withType("db")
+            .withSubtype("postgresql")
+            .withAction("query");
+        span.getContext().getDb()
+            .withType("sql")
+            .withInstance("products")
+            .withStatement("SELECT id, name, description, price FROM products WHERE category = ? ORDER BY price LIMIT 100");
+        span.getContext().getDestination()
+            .withAddress("products-db.example.com")
+            .withPort(5432);
+        span.end();
+        return span;
+    }
+
+    private static class SerializingEventHandler implements ReportingEventHandler {
+
+        private final PayloadSerializer serializer;
+        private final AtomicLong processed = new AtomicLong(-1);
+        private final AtomicLong reported = new AtomicLong();
+
+        private SerializingEventHandler(PayloadSerializer serializer) {
+            this.serializer = serializer;
+            serializer.setOutputStream(new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                }
+            });
+        }
+
+        @Override
+        public void onEvent(ReportingEvent event, long sequence, boolean endOfBatch) {
+            @Nullable Span span = event.getSpan();
+            @Nullable SerializedSpanBuffer.Slot serializedSpan = event.getSerializedSpan();
+            if (span != null) {
+                serializer.serializeSpanNdJson(span);
+            } else if (serializedSpan != null) {
+                serializedSpan.writeTo(serializer);
+            }
+            // simulates an APM Server that can't keep up
+            LockSupport.parkNanos(REPORTER_DELAY_NANOS);
+            event.end();
+            event.resetState();
+            reported.lazySet(reported.get() + 1);
+            processed.set(sequence);
+        }
+
+        @Override
+        public void init(ApmServerReporter reporter) {
+        }
+
+        @Override
+        public long getReported() {
+            return reported.get();
+        }
+
+        @Override
+        public long getDropped() {
+            return 0;
+        }
+
+        @Override
+        public boolean isProcessed(long sequence) {
+            return processed.get() >= sequence;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean isHealthy() {
+            return true;
+        }
+
+        @Override
+        public void bindTo(MetricRegistry metricRegistry) {
+        }
+    }
+}
@@ -20,15 +20,30 @@ package co.elastic.apm.agent.bci;
 
 import co.elastic.apm.agent.bci.bytebuddy.MatcherTimer;
 import co.elastic.apm.agent.context.AbstractLifecycleListener;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.metrics.DoubleSupplier;
+import co.elastic.apm.agent.metrics.Labels;
 import co.elastic.apm.agent.sdk.logging.Logger;
 import co.elastic.apm.agent.sdk.logging.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.concurrent.TimeUnit;
 
 public class InstrumentationStatsLifecycleListener extends AbstractLifecycleListener {
     private static final Logger logger = LoggerFactory.getLogger(InstrumentationStatsLifecycleListener.class);
 
+    @Override
+    public void start(ElasticApmTracer tracer) {
+        final InstrumentationStats instrumentationStats = ElasticApmAgent.getInstrumentationStats();
+        tracer.getMetricRegistry().add("agent.instrumentation.matching.time", Labels.EMPTY, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return instrumentationStats.getTotalMatcherTime() / (double) TimeUnit.MILLISECONDS.toNanos(1);
+            }
+        });
+    }
+
     @Override
     public void stop() {
         InstrumentationStats instrumentationStats = ElasticApmAgent.getInstrumentationStats();
@@ -19,7 +19,6 @@
 package co.elastic.apm.agent.configuration;
 
 import co.elastic.apm.agent.bci.ElasticApmAgent;
-import co.elastic.apm.agent.configuration.converter.ListValueConverter;
 import co.elastic.apm.agent.configuration.converter.RoundedDoubleConverter;
 import co.elastic.apm.agent.configuration.converter.TimeDuration;
 import co.elastic.apm.agent.configuration.converter.TimeDurationValueConverter;
@@ -28,7 +27,8 @@ import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.matcher.MethodMatcher;
 import co.elastic.apm.agent.matcher.MethodMatcherValueConverter;
 import co.elastic.apm.agent.matcher.WildcardMatcher;
-import co.elastic.apm.agent.matcher.WildcardMatcherValueConverter;
+import co.elastic.apm.agent.matcher.WildcardMatcherSet;
+import co.elastic.apm.agent.matcher.WildcardMatcherSetValueConverter;
 import org.stagemonitor.configuration.ConfigurationOption;
 import org.stagemonitor.configuration.ConfigurationOptionProvider;
 import org.stagemonitor.configuration.converter.AbstractValueConverter;
@@ -48,6 +48,7 @@ import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 import static co.elastic.apm.agent.configuration.validation.RangeValidator.isInRange;
+import static co.elastic.apm.agent.configuration.validation.RangeValidator.min;
 import static co.elastic.apm.agent.logging.LoggingConfiguration.AGENT_HOME_PLACEHOLDER;
 
 public class CoreConfiguration extends ConfigurationOptionProvider {
@@ -225,6 +226,22 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
         .addValidator(isInRange(0d, 1d))
         .buildWithDefault(1.0);
 
+    private final ConfigurationOption<Double> transactionMaxSampledPerSecond = ConfigurationOption.builder(RoundedDoubleConverter.withDefaultPrecision(), Double.class)
+        .key("transaction_max_sampled_per_second")
+        .configurationCategory(CORE_CATEGORY)
+        .tags("performance")
+        .description("When set to a value greater than `0`, the agent adapts the sample rate so that roughly this number of transactions are sampled per second.\n" +
+            "This keeps the overhead of the agent constant during traffic spikes.\n" +
+            "\n" +
+            "The sample rate is recomputed every second, based on the number of transactions of the last five seconds.\n" +
+            "It never exceeds <<config-transaction-sample-rate>>.\n" +
+            "Only transactions which start a new trace are subject to this limit,\n" +
+            "the others follow the sampling decision of their parent.\n" +
+            "The effective sample rate is propagated to downstream services so that they are able to extrapolate the number of transactions.")
+        .dynamic(true)
+        .addValidator(min(0d))
+        .buildWithDefault(0d);
+
     private final ConfigurationOption<Integer> transactionMaxSpans = ConfigurationOption.integerOption()
         .key("transaction_max_spans")
         .configurationCategory(CORE_CATEGORY)
@@ -236,8 +253,50 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
         .dynamic(true)
         .buildWithDefault(500);
 
+    private final ConfigurationOption<Boolean> tailSamplingEnabled = ConfigurationOption.booleanOption()
+        .key("tail_sampling_enabled")
+        .configurationCategory(CORE_CATEGORY)
+        .tags("performance")
+        .description("When enabled, the spans of sampled transactions are buffered until the transaction ends.\n" +
+            "The agent then decides whether to report the whole transaction including its spans,\n" +
+            "or to discard the spans and to report the transaction like a non-sampled one.\n" +
+            "\n" +
+            "Transactions are always reported if they, or one of their spans, have failed,\n" +
+            "or if they are slower than <<config-tail-sampling-latency-threshold>>.\n" +
+            "Of the other transactions, only a fraction of <<config-tail-sampling-rate>> is reported.\n" +
+            "\n" +
+            "The transactions are still sampled according to <<config-transaction-sample-rate>> when they start.\n" +
+            "The number of buffered spans per transaction is limited by <<config-transaction-max-spans>>.\n" +
+            "\n" +
+            "NOTE: Downstream services are not aware of the decision,\n" +
+            "as the trace context has already been propagated before the transaction ends.\n" +
+            "Their part of a discarded trace may still be reported.\n" +
+            "Breakdown metrics are not affected by this option.")
+        .dynamic(true)
+        .buildWithDefault(false);
+
+    private final ConfigurationOption<Double> tailSamplingRate = ConfigurationOption.builder(RoundedDoubleConverter.withDefaultPrecision(), Double.class)
+        .key("tail_sampling_rate")
+        .configurationCategory(CORE_CATEGORY)
+        .tags("performance")
+        .description("The fraction of transactions that are reported when <<config-tail-sampling-enabled>> is set,\n" +
+            "even though they have neither failed nor been slower than <<config-tail-sampling-latency-threshold>>.\n" +
+            "\n" +
+            "Value will be rounded with 4 significant digits, as an example, value '0.55555' will be rounded to `0.5556`")
+        .dynamic(true)
+        .addValidator(isInRange(0d, 1d))
+        .buildWithDefault(0.01);
+
+    private final ConfigurationOption<TimeDuration> tailSamplingLatencyThreshold = TimeDurationValueConverter.durationOption("ms")
+        .key("tail_sampling_latency_threshold")
+        .configurationCategory(CORE_CATEGORY)
+        .tags("performance")
+        .description("Transactions that are slower than this threshold are always reported when <<config-tail-sampling-enabled>> is set.")
+        .dynamic(true)
+        .buildWithDefault(TimeDuration.of("500ms"));
+
     private final ConfigurationOption<List<WildcardMatcher>> sanitizeFieldNames = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherSetValueConverter(), List.class)
         .key("sanitize_field_names")
         .configurationCategory(CORE_CATEGORY)
         .description("Sometimes it is necessary to sanitize the data sent to Elastic APM,\n" +
@@ -265,7 +324,7 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
         )
         .dynamic(true)
         .tags("security")
-        .buildWithDefault(Arrays.asList(
+        .buildWithDefault(WildcardMatcherSet.of(Arrays.asList(
             WildcardMatcher.valueOf("password"),
             WildcardMatcher.valueOf("passwd"),
             WildcardMatcher.valueOf("pwd"),
@@ -278,7 +337,7 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
             WildcardMatcher.valueOf("*auth*"),
             // HTTP response header which can contain session ids
             WildcardMatcher.valueOf("set-cookie")
-        ));
+        )));
 
     private final ConfigurationOption<Collection<String>> enabledInstrumentations = ConfigurationOption.stringsOption()
         .key("enable_instrumentations")
@@ -337,7 +396,7 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
         .buildWithDefault(false);
 
     private final ConfigurationOption<List<WildcardMatcher>> unnestExceptions = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherSetValueConverter(), List.class)
         .key("unnest_exceptions")
         .configurationCategory(CORE_CATEGORY)
         .description("When reporting exceptions,\n" +
@@ -347,10 +406,10 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
             "\n" +
             WildcardMatcher.DOCUMENTATION)
         .dynamic(true)
-        .buildWithDefault(Collections.singletonList(WildcardMatcher.valueOf("(?-i)*Nested*Exception")));
+        .buildWithDefault(WildcardMatcherSet.of(Collections.singletonList(WildcardMatcher.valueOf("(?-i)*Nested*Exception"))));
 
     private final ConfigurationOption<List<WildcardMatcher>> ignoreExceptions = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherSetValueConverter(), List.class)
         .key("ignore_exceptions")
         .tags("added[1.11.0]")
         .configurationCategory(CORE_CATEGORY)
@@ -460,7 +519,7 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
         .buildWithDefault(true);
 
     private final ConfigurationOption<List<WildcardMatcher>> classesExcludedFromInstrumentation = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherSetValueConverter(), List.class)
         .key("classes_excluded_from_instrumentation")
         .configurationCategory(CORE_CATEGORY)
         .description("Use to exclude specific classes from being instrumented. In order to exclude entire packages, \n" +
@@ -471,7 +530,7 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
         .buildWithDefault(Collections.<WildcardMatcher>emptyList());
 
     private final ConfigurationOption<List<WildcardMatcher>> defaultClassesExcludedFromInstrumentation = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherSetValueConverter(), List.class)
         .key("classes_excluded_from_instrumentation_default")
         .configurationCategory(CORE_CATEGORY)
         .tags("internal")
@@ -479,7 +538,7 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
             "\n" +
             WildcardMatcher.DOCUMENTATION)
         .dynamic(false)
-        .buildWithDefault(Arrays.asList(
+        .buildWithDefault(WildcardMatcherSet.of(Arrays.asList(
             WildcardMatcher.valueOf("(?-i)org.infinispan*"),
             WildcardMatcher.valueOf("(?-i)org.apache.xerces*"),
             WildcardMatcher.valueOf("(?-i)org.jboss.as.*"),
@@ -487,10 +546,10 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
             WildcardMatcher.valueOf("(?-i)org.eclipse.jdt.ecj*"),
             WildcardMatcher.valueOf("(?-i)org.wildfly.extension.*"),
             WildcardMatcher.valueOf("(?-i)org.wildfly.security*")
-        ));
+        )));
 
     private final ConfigurationOption<List<WildcardMatcher>> methodsExcludedFromInstrumentation = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherSetValueConverter(), List.class)
         .key("methods_excluded_from_instrumentation")
         .configurationCategory(CORE_CATEGORY)
         .tags("internal")
@@ -498,9 +557,9 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
             "\n" +
             WildcardMatcher.DOCUMENTATION)
         .dynamic(true)
-        .buildWithDefault(Arrays.asList(
+        .buildWithDefault(WildcardMatcherSet.of(Arrays.asList(
             WildcardMatcher.valueOf("(?-i)_persistence_*")
-        ));
+        )));
 
     private final ConfigurationOption<List<MethodMatcher>> traceMethods = ConfigurationOption
         .builder(MethodMatcherValueConverter.LIST, List.class)
@@ -612,6 +671,36 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
         .description("Disables the collection of breakdown metrics (`span.self_time`)")
         .buildWithDefault(true);
 
+    private final ConfigurationOption<Boolean> latencyHistograms = ConfigurationOption.booleanOption()
+        .key("latency_histograms")
+        .tags("performance")
+        .configurationCategory(CORE_CATEGORY)
+        .description("When enabled, the agent records the durations of all transactions,\n" +
+            "including the ones that are not sampled, in the histogram metric `transaction.duration.histogram`,\n" +
+            "labeled by transaction name and type.\n" +
+            "If <<config-breakdown-metrics, `breakdown_metrics`>> are enabled,\n" +
+            "the self-time of spans is also recorded in the histogram metric `span.self_time.histogram`.\n" +
+            "\n" +
+            "This allows to view latency percentiles that are not skewed by the sample rate.\n" +
+            "The histograms use log-linear buckets with a relative error of about 6%.")
+        .dynamic(true)
+        .buildWithDefault(false);
+
+    private final ConfigurationOption<Collection<String>> stripedObjectPools = ConfigurationOption.stringsOption()
+        .key("striped_object_pools")
+        .tags("performance")
+        .configurationCategory(CORE_CATEGORY)
+        .description("A list of object pools which should be striped.\n" +
+            "Valid options are `transaction`, `span` and `error`.\n" +
+            "\n" +
+            "By default, the pooled transactions, spans and errors are kept in one shared queue per type.\n" +
+            "Under high load on many cores, application threads can contend on the head and tail of these queues.\n" +
+            "A striped pool puts small per-core magazines in front of the shared queue,\n" +
+            "so that threads mostly take objects from and return them to their own magazine.\n" +
+            "It also gives back the memory of objects that were only needed during load spikes,\n" +
+            "by only retaining as many objects as have recently been in use at the same time.")
+        .buildWithDefault(Collections.<String>emptyList());
+
     private final ConfigurationOption<String> configFileLocation = ConfigurationOption.stringOption()
         .key(CONFIG_FILE)
         .tags("added[1.8.0]")
@@ -681,6 +770,46 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
         .dynamic(true)
         .buildWithDefault(TimeDuration.of("0ms"));
 
+    private final ConfigurationOption<Boolean> spanCompressionEnabled = ConfigurationOption.booleanOption()
+        .key("span_compression_enabled")
+        .configurationCategory(CORE_CATEGORY)
+        .tags("performance")
+        .description("Setting this option to true will enable span compression.\n" +
+            "\n" +
+            "Consecutive sibling exit spans, such as the database queries of an N+1 loop,\n" +
+            "are compressed into a single composite span which holds the number of compressed spans and the sum of their durations.\n" +
+            "This reduces the overhead of the agent and the load on the APM Server when many similar spans are created.\n" +
+            "\n" +
+            "Only exit spans which are successful, don't propagate the trace context and have the same type, subtype and\n" +
+            "`destination.service.resource` as their predecessor are compressed.\n" +
+            "See <<config-span-compression-exact-match-max-duration>> and <<config-span-compression-same-kind-max-duration>>\n" +
+            "for the duration thresholds of the two compression strategies.")
+        .dynamic(true)
+        .buildWithDefault(false);
+
+    private final ConfigurationOption<TimeDuration> spanCompressionExactMatchMaxDuration = TimeDurationValueConverter.durationOption("ms")
+        .key("span_compression_exact_match_max_duration")
+        .configurationCategory(CORE_CATEGORY)
+        .tags("performance")
+        .description("Consecutive spans that are exact match and that are under this threshold will be compressed into a single composite span.\n" +
+            "Two spans are considered an exact match if they have the same name, type, subtype and `destination.service.resource`.\n" +
+            "This reduces the collection, processing, and storage overhead, and removes clutter from the UI.\n" +
+            "The tradeoff is that the DB statements of all the compressed spans will not be collected.")
+        .dynamic(true)
+        .buildWithDefault(TimeDuration.of("50ms"));
+
+    private final ConfigurationOption<TimeDuration> spanCompressionSameKindMaxDuration = TimeDurationValueConverter.durationOption("ms")
+        .key("span_compression_same_kind_max_duration")
+        .configurationCategory(CORE_CATEGORY)
+        .tags("performance")
+        .description("Consecutive spans to the same destination that are under this threshold will be compressed into a single composite span.\n" +
+            "Two spans are considered to be of the same kind if they have the same type, subtype and `destination.service.resource`,\n" +
+            "regardless of their names.\n" +
+            "The name of the composite span is `Calls to <destination.service.resource>`.\n" +
+            "The default value of `0ms` disables this compression strategy.")
+        .dynamic(true)
+        .buildWithDefault(TimeDuration.of("0ms"));
+
     private final ConfigurationOption<CloudProvider> cloudProvider = ConfigurationOption.enumOption(CloudProvider.class)
         .key("cloud_provider")
         .tags("added[1.21.0]")
@@ -766,10 +895,26 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
         return sampleRate;
     }
 
+    public double getTransactionMaxSampledPerSecond() {
+        return transactionMaxSampledPerSecond.get();
+    }
+
     public int getTransactionMaxSpans() {
         return transactionMaxSpans.get();
     }
 
+    public boolean isTailSamplingEnabled() {
+        return tailSamplingEnabled.get();
+    }
+
+    public ConfigurationOption<Double> getTailSamplingRate() {
+        return tailSamplingRate;
+    }
+
+    public TimeDuration getTailSamplingLatencyThreshold() {
+        return tailSamplingLatencyThreshold.get();
+    }
+
     public List<WildcardMatcher> getSanitizeFieldNames() {
         return sanitizeFieldNames.get();
     }
@@ -879,6 +1024,14 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
         return breakdownMetrics.get();
     }
 
+    public boolean isLatencyHistogramsEnabled() {
+        return latencyHistograms.get();
+    }
+
+    public boolean isStripedObjectPool(String poolName) {
+        return stripedObjectPools.get().contains(poolName);
+    }
+
     public boolean isElasticTraceparentHeaderEnabled() {
         return useElasticTraceparentHeader.get();
     }
@@ -891,6 +1044,18 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
         return spanMinDuration.get();
     }
 
+    public boolean isSpanCompressionEnabled() {
+        return spanCompressionEnabled.get();
+    }
+
+    public TimeDuration getSpanCompressionExactMatchMaxDuration() {
+        return spanCompressionExactMatchMaxDuration.get();
+    }
+
+    public TimeDuration getSpanCompressionSameKindMaxDuration() {
+        return spanCompressionSameKindMaxDuration.get();
+    }
+
     /*
      * Makes sure to not initialize ConfigurationOption, which would initialize the logger
      */
@@ -19,10 +19,9 @@
 package co.elastic.apm.agent.configuration;
 
 import co.elastic.apm.agent.matcher.WildcardMatcher;
-import co.elastic.apm.agent.matcher.WildcardMatcherValueConverter;
+import co.elastic.apm.agent.matcher.WildcardMatcherSetValueConverter;
 import org.stagemonitor.configuration.ConfigurationOption;
 import org.stagemonitor.configuration.ConfigurationOptionProvider;
-import org.stagemonitor.configuration.converter.ListValueConverter;
 
 import java.util.Collections;
 import java.util.List;
@@ -53,7 +52,7 @@ public class MessagingConfiguration extends ConfigurationOptionProvider {
         .buildWithDefault(Boolean.TRUE);
 
     private final ConfigurationOption<List<WildcardMatcher>> ignoreMessageQueues = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherSetValueConverter(), List.class)
         .key("ignore_message_queues")
         .configurationCategory(MESSAGING_CATEGORY)
         .description("Used to filter out specific messaging queues/topics from being traced. \n" +
@@ -0,0 +1,308 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.db.signature;
+
+import co.elastic.apm.agent.metrics.DoubleSupplier;
+import co.elastic.apm.agent.metrics.Labels;
+import co.elastic.apm.agent.metrics.MetricRegistry;
+import co.elastic.apm.agent.util.MathUtils;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded cache for query signatures which is shared by all {@link SignatureParser}s.
+ * <p>
+ * Entries are looked up by a 64 bit fingerprint of the query which is cheap to compute.
+ * As different queries can have the same fingerprint, the query of an entry is compared to the looked up query,
+ * which is also cheap when the same string instance is used.
+ * The cache is set-associative: a fingerprint maps to a bucket of {@link #WAYS} slots.
+ * When a bucket is full, the slot with the lowest estimated access frequency is the eviction candidate.
+ * The new entry only replaces it if it has been accessed more frequently (TinyLFU admission).
+ * This protects the cache from being flushed by dynamic queries which are not likely to be repeated.
+ * The estimated memory used by the cached queries and signatures is limited as well.
+ * </p>
+ * <p>
+ * Lookups are lock-free and don't allocate.
+ * The signature of a query is only copied into an entry once the entry has been admitted.
+ * </p>
+ */
+public class SignatureCache {
+
+    private static final int WAYS = 8;
+    private static final int DEFAULT_MAX_ENTRIES = 4096;
+    private static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+    private static final SignatureCache INSTANCE = new SignatureCache(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES);
+
+    private final AtomicReferenceArray<Entry> entries;
+    private final int bucketMask;
+    private final long maxBytes;
+    private final FrequencySketch sketch;
+    private final AtomicLong estimatedBytes = new AtomicLong();
+    private final AtomicLong size = new AtomicLong();
+    /**
+     * Not atomic, as an atomic increment on every hit is a significant part of the cost of a lookup.
+     * Like the frequencies of the {@link FrequencySketch}, concurrent increments may get lost,
+     * which is acceptable for a metric.
+     */
+    private long hits;
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public static SignatureCache getInstance() {
+        return INSTANCE;
+    }
+
+    SignatureCache(int maxEntries, long maxBytes) {
+        int buckets = MathUtils.getNextPowerOf2(Math.max(1, maxEntries / WAYS));
+        this.entries = new AtomicReferenceArray<>(buckets * WAYS);
+        this.bucketMask = buckets - 1;
+        this.maxBytes = maxBytes;
+        this.sketch = new FrequencySketch(buckets * WAYS);
+    }
+
+    /**
+     * Computes a 64 bit fingerprint of a query.
+     * <p>
+     * The fingerprint is based on {@link String#hashCode()}, which is cached within the string instance,
+     * so that the query does not have to be scanned again when the same instance is executed multiple times.
+     * </p>
+     *
+     * @param query the query
+     * @param seed  distinguishes parsers which may compute different signatures for the same query
+     * @return the fingerprint
+     */
+    public static long fingerprint(String query, long seed) {
+        long hash = ((long) query.hashCode() << 32 | query.length()) ^ seed;
+        // finalizer of MurmurHash3, to make all bits of the fingerprint depend on all bits of the input
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * Looks up the entry with the given fingerprint and records the access.
+     *
+     * @param fingerprint the fingerprint of the query, see {@link #fingerprint(String, long)}
+     * @param query       the query
+     * @return the cached entry or {@code null} if there's no entry for this query
+     */
+    @Nullable
+    public Entry get(long fingerprint, String query) {
+        sketch.increment(fingerprint);
+        int offset = bucketOffset(fingerprint);
+        for (int i = offset; i < offset + WAYS; i++) {
+            Entry entry = entries.get(i);
+            if (entry != null && entry.fingerprint == fingerprint && query.equals(entry.query)) {
+                hits++;
+                return entry;
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Adds an entry to the cache unless an entry which is accessed more frequently would have to be evicted to make room for it.
+     * <p>
+     * The signature and db link are only copied into an {@link Entry} once the entry has been admitted,
+     * so that rejected queries, which are common for dynamic or large working sets, don't allocate.
+     * </p>
+     *
+     * @param fingerprint the fingerprint of the query, see {@link #fingerprint(String, long)}
+     * @param query       the query
+     * @param signature   the signature of the query
+     * @param dbLink      the db link of the query
+     */
+    public void put(long fingerprint, String query, CharSequence signature, CharSequence dbLink) {
+        int estimatedSize = Entry.estimateSize(query, signature, dbLink);
+        int offset = bucketOffset(fingerprint);
+        int victimIndex = -1;
+        Entry victim = null;
+        int victimFrequency = Integer.MAX_VALUE;
+        for (int i = offset; i < offset + WAYS; i++) {
+            Entry entry = entries.get(i);
+            if (entry == null) {
+                if (estimatedBytes.get() + estimatedSize <= maxBytes
+                    && entries.compareAndSet(i, null, new Entry(fingerprint, query, signature.toString(), dbLink.toString(), estimatedSize))) {
+                    estimatedBytes.addAndGet(estimatedSize);
+                    size.incrementAndGet();
+                    return;
+                }
+            } else if (entry.fingerprint == fingerprint && query.equals(entry.query)) {
+                // already added concurrently
+                return;
+            } else {
+                int frequency = sketch.frequency(entry.fingerprint);
+                if (frequency < victimFrequency) {
+                    victimIndex = i;
+                    victim = entry;
+                    victimFrequency = frequency;
+                }
+            }
+        }
+        if (victim != null
+            && sketch.frequency(fingerprint) > victimFrequency
+            && estimatedBytes.get() + estimatedSize - victim.estimatedSize <= maxBytes
+            && entries.compareAndSet(victimIndex, victim, new Entry(fingerprint, query, signature.toString(), dbLink.toString(), estimatedSize))) {
+            estimatedBytes.addAndGet(estimatedSize - victim.estimatedSize);
+            evictions.incrementAndGet();
+        }
+    }
+
+    private int bucketOffset(long fingerprint) {
+        return ((int) (fingerprint ^ (fingerprint >>> 32)) & bucketMask) * WAYS;
+    }
+
+    public long getSize() {
+        return size.get();
+    }
+
+    public long getEstimatedBytes() {
+        return estimatedBytes.get();
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    void bindTo(MetricRegistry registry) {
+        registry.add("agent.sql_signature_cache.size", Labels.EMPTY, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return size.get();
+            }
+        });
+        registry.add("agent.sql_signature_cache.hits", Labels.EMPTY, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return hits;
+            }
+        });
+        registry.add("agent.sql_signature_cache.misses", Labels.EMPTY, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return misses.get();
+            }
+        });
+        registry.add("agent.sql_signature_cache.evictions", Labels.EMPTY, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return evictions.get();
+            }
+        });
+    }
+
+    public static class Entry {
+        private final long fingerprint;
+        private final String query;
+        private final String signature;
+        private final String dbLink;
+        private final int estimatedSize;
+
+        private Entry(long fingerprint, String query, String signature, String dbLink, int estimatedSize) {
+            this.fingerprint = fingerprint;
+            this.query = query;
+            this.signature = signature;
+            this.dbLink = dbLink;
+            this.estimatedSize = estimatedSize;
+        }
+
+        private static int estimateSize(String query, CharSequence signature, CharSequence dbLink) {
+            // object headers and fields plus two bytes per char
+            return 128 + 2 * (query.length() + signature.length() + dbLink.length());
+        }
+
+        public String getSignature() {
+            return signature;
+        }
+
+        public String getDbLink() {
+            return dbLink;
+        }
+    }
+
+    /**
+     * A count-min sketch with 4 bit counters which estimates the access frequency of fingerprints.
+     * <p>
+     * The counters are halved periodically so that the frequencies reflect recent accesses.
+     * Updates are not atomic, as small inaccuracies are acceptable for an estimate.
+     * </p>
+     */
+    static class FrequencySketch {
+        private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+        private static final int MAX_FREQUENCY = 15;
+        private final byte[] table;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int maxEntries) {
+            table = new byte[MathUtils.getNextPowerOf2(maxEntries * 4)];
+            mask = table.length - 1;
+            sampleSize = maxEntries * 10;
+        }
+
+        void increment(long fingerprint) {
+            boolean added = false;
+            for (int i = 0; i < SEEDS.length; i++) {
+                int index = indexOf(fingerprint, i);
+                if (table[index] < MAX_FREQUENCY) {
+                    table[index]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        int frequency(long fingerprint) {
+            int frequency = MAX_FREQUENCY;
+            for (int i = 0; i < SEEDS.length; i++) {
+                frequency = Math.min(frequency, table[indexOf(fingerprint, i)]);
+            }
+            return frequency;
+        }
+
+        private int indexOf(long fingerprint, int row) {
+            long hash = (fingerprint + SEEDS[row]) * SEEDS[row];
+            return (int) (hash ^ (hash >>> 32)) & mask;
+        }
+
+        private void reset() {
+            additions = 0;
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (byte) (table[i] >>> 1);
+            }
+        }
+    }
+}
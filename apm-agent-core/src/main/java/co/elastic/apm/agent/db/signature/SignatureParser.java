@@ -24,8 +24,6 @@ import co.elastic.apm.agent.sdk.weakconcurrent.WeakMap;
 
 import javax.annotation.Nullable;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 
 import static co.elastic.apm.agent.db.signature.Scanner.Token.EOF;
 import static co.elastic.apm.agent.db.signature.Scanner.Token.FROM;
@@ -36,12 +34,6 @@ import static co.elastic.apm.agent.db.signature.Scanner.Token.RPAREN;
 
 public class SignatureParser {
 
-    /**
-     * If the cache reaches this size we assume that the application creates a lot of dynamic queries.
-     * In that case it's inefficient to try to cache these as they are not likely to be repeated.
-     * But we still pay the price of allocating a Map.Entry and a String for the signature.
-     */
-    private static final int DISABLE_CACHE_THRESHOLD = 512;
     /**
      * The cache management overhead is probably not worth it for short queries
      */
@@ -54,12 +46,17 @@ public class SignatureParser {
     private final DetachedThreadLocal<Scanner> scanner;
 
     /**
-     * Not using weak keys because ORMs like Hibernate generate equal SQL strings for the same query but don't reuse the same string instance.
-     * When relying on weak keys, we would not leverage any caching benefits if the query string is collected.
-     * That means that we are leaking Strings but as the size of the map is limited that should not be an issue.
+     * Not relying on the identity of the query strings because ORMs like Hibernate generate equal SQL strings for the same query
+     * but don't reuse the same string instance.
+     * The cache is shared by all parsers and is bounded by the number of entries and by their estimated size.
+     */
+    private final SignatureCache signatureCache;
+
+    /**
+     * Parsers with different {@link Scanner}s may compute different signatures for the same query,
+     * that's why the fingerprint of a query depends on the type of scanner.
      */
-    private final ConcurrentMap<String, String[]> signatureCache = new ConcurrentHashMap<String, String[]>(DISABLE_CACHE_THRESHOLD,
-            0.5f, Runtime.getRuntime().availableProcessors());
+    private final long fingerprintSeed;
 
     public SignatureParser() {
         this(new Callable<Scanner>() {
@@ -71,6 +68,12 @@ public class SignatureParser {
     }
 
     public SignatureParser(final Callable<Scanner> scannerAllocator) {
+        this(scannerAllocator, SignatureCache.getInstance());
+    }
+
+    SignatureParser(final Callable<Scanner> scannerAllocator, SignatureCache signatureCache) {
+        this.signatureCache = signatureCache;
+        this.fingerprintSeed = scannerAllocator.getClass().getName().hashCode();
         scanner = WeakConcurrent
             .<Scanner>threadLocalBuilder()
             .withDefaultValueSupplier(new WeakMap.DefaultValueSupplier<Thread, Scanner>() {
@@ -95,12 +98,14 @@ public class SignatureParser {
         final boolean cacheable = preparedStatement // non-prepared statements are likely to be dynamic strings
             && QUERY_LENGTH_CACHE_LOWER_THRESHOLD < query.length()
             && query.length() < QUERY_LENGTH_CACHE_UPPER_THRESHOLD;
+        long fingerprint = 0;
         if (cacheable) {
-            final String[] cachedSignature = signatureCache.get(query);
+            fingerprint = SignatureCache.fingerprint(query, fingerprintSeed);
+            final SignatureCache.Entry cachedSignature = signatureCache.get(fingerprint, query);
             if (cachedSignature != null) {
-                signature.append(cachedSignature[0]);
+                signature.append(cachedSignature.getSignature());
                 if (dbLink != null) {
-                    dbLink.append(cachedSignature[1]);
+                    dbLink.append(cachedSignature.getDbLink());
                 }
                 return;
             }
@@ -109,9 +114,8 @@ public class SignatureParser {
         scanner.setQuery(query);
         parse(scanner, query, signature, dbLink);
 
-        if (cacheable && signatureCache.size() <= DISABLE_CACHE_THRESHOLD) {
-            // we don't mind a small overshoot due to race conditions
-            signatureCache.put(query, new String[]{signature.toString(), dbLink != null ? dbLink.toString() : ""});
+        if (cacheable) {
+            signatureCache.put(fingerprint, query, signature, dbLink != null ? dbLink : "");
         }
     }
 
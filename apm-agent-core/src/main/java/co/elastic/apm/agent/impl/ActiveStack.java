@@ -0,0 +1,99 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl;
+
+import co.elastic.apm.agent.impl.transaction.AbstractSpan;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+
+/**
+ * The stack of the spans which are active on a thread.
+ * <p>
+ * The bottom of the stack is usually the transaction, which makes it easy to retrieve.
+ * As opposed to an {@link java.util.ArrayDeque}, which reserves room for 16 elements,
+ * the stack starts small, as there are rarely more than a few active spans at the same time.
+ * That keeps the footprint of threads small that are parked while a span is active,
+ * like virtual threads that wait for I/O.
+ * </p>
+ */
+final class ActiveStack {
+
+    static final int INITIAL_CAPACITY = 4;
+
+    private final boolean releaseWhenEmpty;
+    private AbstractSpan<?>[] spans = new AbstractSpan<?>[INITIAL_CAPACITY];
+    private int size;
+
+    /**
+     * @param releaseWhenEmpty whether the stack should be released once no span is active anymore,
+     *                         instead of being retained for the next activation
+     */
+    ActiveStack(boolean releaseWhenEmpty) {
+        this.releaseWhenEmpty = releaseWhenEmpty;
+    }
+
+    void push(AbstractSpan<?> span) {
+        if (size == spans.length) {
+            spans = Arrays.copyOf(spans, size * 2);
+        }
+        spans[size++] = span;
+    }
+
+    /**
+     * Removes the top of the stack.
+     *
+     * @return the span that was on top of the stack, or {@code null} if the stack is empty
+     */
+    @Nullable
+    AbstractSpan<?> pop() {
+        if (size == 0) {
+            return null;
+        }
+        AbstractSpan<?> span = spans[--size];
+        spans[size] = null;
+        return span;
+    }
+
+    @Nullable
+    AbstractSpan<?> peek() {
+        return size > 0 ? spans[size - 1] : null;
+    }
+
+    @Nullable
+    AbstractSpan<?> peekBottom() {
+        return size > 0 ? spans[0] : null;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int capacity() {
+        return spans.length;
+    }
+
+    boolean isReleasedWhenEmpty() {
+        return releaseWhenEmpty;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl;
+
+import co.elastic.apm.agent.context.AbstractLifecycleListener;
+import co.elastic.apm.agent.metrics.DoubleSupplier;
+import co.elastic.apm.agent.metrics.Labels;
+import co.elastic.apm.agent.metrics.MetricRegistry;
+import co.elastic.apm.agent.objectpool.ObjectPool;
+import co.elastic.apm.agent.util.AgentThreads;
+
+/**
+ * Registers metrics about the overhead of the agent itself,
+ * such as the usage of the tracer's object pools and the CPU time consumed by the agent's threads.
+ * <p>
+ * The metrics of the reporter and the instrumentation are registered by
+ * {@link co.elastic.apm.agent.report.ReporterMetrics} and {@link co.elastic.apm.agent.bci.InstrumentationStatsLifecycleListener}.
+ * </p>
+ */
+public class AgentOverheadMetrics extends AbstractLifecycleListener {
+
+    @Override
+    public void start(ElasticApmTracer tracer) {
+        bindTo(tracer.getMetricRegistry(), tracer);
+    }
+
+    void bindTo(MetricRegistry registry, ElasticApmTracer tracer) {
+        bindTo(registry, "transaction", tracer.getTransactionPool());
+        bindTo(registry, "span", tracer.getSpanPool());
+        bindTo(registry, "error", tracer.getErrorPool());
+        registry.addUnlessNegative("agent.threads.cpu.time", Labels.EMPTY, new DoubleSupplier() {
+            @Override
+            public double get() {
+                long cpuTimeNanos = AgentThreads.getCpuTimeNanos();
+                return cpuTimeNanos < 0 ? cpuTimeNanos : cpuTimeNanos / 1_000_000d;
+            }
+        });
+    }
+
+    private static void bindTo(MetricRegistry registry, String poolName, final ObjectPool<?> pool) {
+        Labels labels = Labels.Mutable.of("pool", poolName);
+        registry.add("agent.object_pool.hits", labels, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return pool.getHits();
+            }
+        });
+        registry.add("agent.object_pool.misses", labels, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return pool.getMisses();
+            }
+        });
+        registry.add("agent.object_pool.garbage", labels, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return pool.getGarbageCreated();
+            }
+        });
+    }
+}
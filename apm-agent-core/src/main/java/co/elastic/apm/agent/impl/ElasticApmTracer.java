@@ -26,7 +26,11 @@ import co.elastic.apm.agent.context.LifecycleListener;
 import co.elastic.apm.agent.impl.error.ErrorCapture;
 import co.elastic.apm.agent.impl.metadata.MetaDataFuture;
 import co.elastic.apm.agent.impl.sampling.ProbabilitySampler;
+import co.elastic.apm.agent.impl.sampling.RateLimitingSampler;
 import co.elastic.apm.agent.impl.sampling.Sampler;
+import co.elastic.apm.agent.impl.sampling.TailSamplingPolicy;
+import co.elastic.apm.agent.impl.stacktrace.CapturedStackTrace;
+import co.elastic.apm.agent.impl.stacktrace.StackWalkerStackTraceCollector;
 import co.elastic.apm.agent.impl.stacktrace.StacktraceConfiguration;
 import co.elastic.apm.agent.impl.transaction.AbstractSpan;
 import co.elastic.apm.agent.impl.transaction.BinaryHeaderGetter;
@@ -48,20 +52,20 @@ import co.elastic.apm.agent.sdk.weakconcurrent.WeakConcurrent;
 import co.elastic.apm.agent.sdk.weakconcurrent.WeakMap;
 import co.elastic.apm.agent.util.DependencyInjectingServiceLoader;
 import co.elastic.apm.agent.util.ExecutorUtils;
+import co.elastic.apm.agent.util.VirtualThreads;
 import org.stagemonitor.configuration.ConfigurationOption;
 import org.stagemonitor.configuration.ConfigurationOptionProvider;
 import org.stagemonitor.configuration.ConfigurationRegistry;
 
 import javax.annotation.Nullable;
 import java.io.Closeable;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Deque;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -77,6 +81,8 @@ public class ElasticApmTracer implements Tracer {
 
     private final ConfigurationRegistry configurationRegistry;
     private final StacktraceConfiguration stacktraceConfiguration;
+    @Nullable
+    private final StackWalkerStackTraceCollector stackTraceCollector;
     private final ApmServerClient apmServerClient;
     private final List<LifecycleListener> lifecycleListeners = new CopyOnWriteArrayList<>();
     private final ObjectPool<Transaction> transactionPool;
@@ -87,18 +93,17 @@ public class ElasticApmTracer implements Tracer {
     // Maintains a stack of all the activated spans
     // This way its easy to retrieve the bottom of the stack (the transaction)
     // Also, the caller does not have to keep a reference to the previously active span, as that is maintained by the stack
-    private final ThreadLocal<Deque<AbstractSpan<?>>> activeStack = new ThreadLocal<Deque<AbstractSpan<?>>>() {
-        @Override
-        protected Deque<AbstractSpan<?>> initialValue() {
-            return new ArrayDeque<AbstractSpan<?>>();
-        }
-    };
+    // The stack is only created when a span is activated on a thread,
+    // and the stacks of virtual threads are released when they are empty, as there may be millions of virtual threads
+    private final ThreadLocal<ActiveStack> activeStack = new ThreadLocal<ActiveStack>();
 
     private final CoreConfiguration coreConfiguration;
     private final List<ActivationListener> activationListeners;
     private final MetricRegistry metricRegistry;
     private final ScheduledThreadPoolExecutor sharedPool;
     private Sampler sampler;
+    private final RateLimitingSampler rateLimitingSampler;
+    private final TailSamplingPolicy tailSamplingPolicy;
     boolean assertionsEnabled = false;
 
     /**
@@ -115,10 +120,12 @@ public class ElasticApmTracer implements Tracer {
 
     ElasticApmTracer(ConfigurationRegistry configurationRegistry, Reporter reporter, ObjectPoolFactory poolFactory,
                      ApmServerClient apmServerClient, final String ephemeralId, MetaDataFuture metaDataFuture) {
-        this.metricRegistry = new MetricRegistry(configurationRegistry.getConfig(ReporterConfiguration.class));
+        ReporterConfiguration reporterConfiguration = configurationRegistry.getConfig(ReporterConfiguration.class);
+        this.metricRegistry = new MetricRegistry(reporterConfiguration, reporterConfiguration.getMetricSetLimit());
         this.configurationRegistry = configurationRegistry;
         this.reporter = reporter;
         this.stacktraceConfiguration = configurationRegistry.getConfig(StacktraceConfiguration.class);
+        this.stackTraceCollector = StackWalkerStackTraceCollector.isAvailable() ? new StackWalkerStackTraceCollector() : null;
         this.apmServerClient = apmServerClient;
         this.ephemeralId = ephemeralId;
         this.metaDataFuture = metaDataFuture;
@@ -148,6 +155,8 @@ public class ElasticApmTracer implements Tracer {
                 sampler = ProbabilitySampler.of(newValue);
             }
         });
+        rateLimitingSampler = new RateLimitingSampler(coreConfiguration.getSampleRate().get());
+        tailSamplingPolicy = new TailSamplingPolicy(coreConfiguration);
         this.activationListeners = DependencyInjectingServiceLoader.load(ActivationListener.class, this);
         sharedPool = ExecutorUtils.createSingleThreadSchedulingDaemonPool("shared");
 
@@ -159,13 +168,13 @@ public class ElasticApmTracer implements Tracer {
     @Override
     @Nullable
     public Transaction startRootTransaction(@Nullable ClassLoader initiatingClassLoader) {
-        return startRootTransaction(sampler, -1, initiatingClassLoader);
+        return startRootTransaction(getSampler(), -1, initiatingClassLoader);
     }
 
     @Override
     @Nullable
     public Transaction startRootTransaction(@Nullable ClassLoader initiatingClassLoader, long epochMicro) {
-        return startRootTransaction(sampler, epochMicro, initiatingClassLoader);
+        return startRootTransaction(getSampler(), epochMicro, initiatingClassLoader);
     }
 
     @Override
@@ -182,13 +191,13 @@ public class ElasticApmTracer implements Tracer {
     @Override
     @Nullable
     public <C> Transaction startChildTransaction(@Nullable C headerCarrier, TextHeaderGetter<C> textHeadersGetter, @Nullable ClassLoader initiatingClassLoader) {
-        return startChildTransaction(headerCarrier, textHeadersGetter, sampler, -1, initiatingClassLoader);
+        return startChildTransaction(headerCarrier, textHeadersGetter, getSampler(), -1, initiatingClassLoader);
     }
 
     @Override
     @Nullable
     public <C> Transaction startChildTransaction(@Nullable C headerCarrier, TextHeaderGetter<C> textHeadersGetter, @Nullable ClassLoader initiatingClassLoader, long epochMicros) {
-        return startChildTransaction(headerCarrier, textHeadersGetter, sampler, epochMicros, initiatingClassLoader);
+        return startChildTransaction(headerCarrier, textHeadersGetter, getSampler(), epochMicros, initiatingClassLoader);
     }
 
     @Override
@@ -207,7 +216,7 @@ public class ElasticApmTracer implements Tracer {
     @Override
     @Nullable
     public <C> Transaction startChildTransaction(@Nullable C headerCarrier, BinaryHeaderGetter<C> binaryHeadersGetter, @Nullable ClassLoader initiatingClassLoader) {
-        return startChildTransaction(headerCarrier, binaryHeadersGetter, sampler, -1, initiatingClassLoader);
+        return startChildTransaction(headerCarrier, binaryHeadersGetter, getSampler(), -1, initiatingClassLoader);
     }
 
     @Override
@@ -254,7 +263,8 @@ public class ElasticApmTracer implements Tracer {
     @Override
     @Nullable
     public Transaction currentTransaction() {
-        final AbstractSpan<?> bottomOfStack = activeStack.get().peekLast();
+        final ActiveStack stack = activeStack.get();
+        final AbstractSpan<?> bottomOfStack = stack != null ? stack.peekBottom() : null;
         return bottomOfStack != null ? bottomOfStack.getTransaction() : null;
     }
 
@@ -371,6 +381,14 @@ public class ElasticApmTracer implements Tracer {
                     new RuntimeException("this exception is just used to record where the transaction has been ended from"));
             }
         }
+        if (!transaction.isNoop() && transaction.isSampled()) {
+            boolean keep = !tailSamplingPolicy.isEnabled() || tailSamplingPolicy.shouldKeep(transaction);
+            transaction.getTailSamplingBuffer().decide(keep, reporter);
+            if (!keep) {
+                logger.debug("Transaction {} is not kept by the tail sampling policy, treating it as non-sampled", transaction);
+                transaction.markUnsampled();
+            }
+        }
         if (!transaction.isNoop() &&
             (transaction.isSampled() || apmServerClient.supportsKeepingUnsampledTransaction())) {
             // we do report non-sampled transactions (without the context)
@@ -382,6 +400,11 @@ public class ElasticApmTracer implements Tracer {
 
     public void endSpan(Span span) {
         if (!span.isSampled()) {
+            Transaction transaction = span.getTransaction();
+            if (transaction != null && transaction.isSampled()) {
+                // the span has been dropped because transaction_max_spans has been reached
+                transaction.getDroppedSpanStats().captureDroppedSpan(span);
+            }
             span.decrementReferences();
             return;
         }
@@ -394,6 +417,7 @@ public class ElasticApmTracer implements Tracer {
             Transaction transaction = span.getTransaction();
             if (transaction != null) {
                 transaction.getSpanCount().getDropped().incrementAndGet();
+                transaction.getDroppedSpanStats().captureDroppedSpan(span);
             }
             span.decrementReferences();
             return;
@@ -413,13 +437,40 @@ public class ElasticApmTracer implements Tracer {
         // makes sure that parents are also non-discardable
         span.setNonDiscardable();
 
+        captureStackTrace(span);
+        if (transaction != null && tailSamplingPolicy.isEnabled()
+            && transaction.getTailSamplingBuffer().offer(span, coreConfiguration.getTransactionMaxSpans(), reporter)) {
+            return;
+        }
+        reporter.report(span);
+    }
+
+    /**
+     * Captures the stack trace of the span if it's slower than {@code span_stack_trace_min_duration}.
+     * <p>
+     * Has to be called on the thread that ends the span.
+     * Spans that are buffered for span compression call this before they're buffered,
+     * as they may be reported by a different thread at a later time.
+     * </p>
+     *
+     * @param span the span that is about to be reported or buffered
+     */
+    public void captureStackTrace(Span span) {
         long spanStackTraceMinDurationMs = stacktraceConfiguration.getSpanStackTraceMinDurationMs();
-        if (spanStackTraceMinDurationMs >= 0 && span.isSampled() && span.getStackFrames() == null) {
+        if (spanStackTraceMinDurationMs >= 0 && span.isSampled() && span.getStackFrames() == null && span.getStacktrace() == null
+            && span.getCapturedStackTrace() == null) {
             if (span.getDurationMs() >= spanStackTraceMinDurationMs) {
-                span.withStacktrace(new Throwable());
+                CapturedStackTrace capturedStackTrace = null;
+                if (stackTraceCollector != null && stacktraceConfiguration.isSpanStackTraceWalkerEnabled()) {
+                    capturedStackTrace = stackTraceCollector.capture(stacktraceConfiguration.getStackTraceLimit());
+                }
+                if (capturedStackTrace != null) {
+                    span.withStackTrace(capturedStackTrace);
+                } else {
+                    span.withStacktrace(new Throwable());
+                }
             }
         }
-        reporter.report(span);
     }
 
     public void endError(ErrorCapture error) {
@@ -470,7 +521,13 @@ public class ElasticApmTracer implements Tracer {
         return reporter;
     }
 
+    /**
+     * @return the sampler for the next root transaction, which may change over time if {@code transaction_max_sampled_per_second} is set
+     */
     public Sampler getSampler() {
+        if (coreConfiguration.getTransactionMaxSampledPerSecond() > 0) {
+            return rateLimitingSampler.getSampler();
+        }
         return sampler;
     }
 
@@ -478,10 +535,23 @@ public class ElasticApmTracer implements Tracer {
         return objectPoolFactory;
     }
 
+    ObjectPool<Transaction> getTransactionPool() {
+        return transactionPool;
+    }
+
+    ObjectPool<Span> getSpanPool() {
+        return spanPool;
+    }
+
+    ObjectPool<ErrorCapture> getErrorPool() {
+        return errorPool;
+    }
+
     @Override
     @Nullable
     public AbstractSpan<?> getActive() {
-        return activeStack.get().peek();
+        final ActiveStack stack = activeStack.get();
+        return stack != null ? stack.peek() : null;
     }
 
     @Nullable
@@ -579,6 +649,15 @@ public class ElasticApmTracer implements Tracer {
         }
         apmServerClient.start();
         reporter.start();
+        sharedPool.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                double maxSampledPerSecond = coreConfiguration.getTransactionMaxSampledPerSecond();
+                if (maxSampledPerSecond > 0) {
+                    rateLimitingSampler.updateSampleRate(maxSampledPerSecond, coreConfiguration.getSampleRate().get());
+                }
+            }
+        }, 1, 1, TimeUnit.SECONDS);
         for (LifecycleListener lifecycleListener : lifecycleListeners) {
             try {
                 lifecycleListener.start(this);
@@ -700,7 +779,12 @@ public class ElasticApmTracer implements Tracer {
                 logger.warn("Exception while calling {}#beforeActivate", activationListeners.get(i).getClass().getSimpleName(), t);
             }
         }
-        activeStack.get().push(span);
+        ActiveStack stack = activeStack.get();
+        if (stack == null) {
+            stack = new ActiveStack(VirtualThreads.isVirtual(Thread.currentThread()));
+            activeStack.set(stack);
+        }
+        stack.push(span);
     }
 
     public void deactivate(AbstractSpan<?> span) {
@@ -708,8 +792,11 @@ public class ElasticApmTracer implements Tracer {
             logger.debug("Deactivating {} on thread {}", span, Thread.currentThread().getId());
         }
         try {
-            final Deque<AbstractSpan<?>> stack = activeStack.get();
-            assertIsActive(span, stack.poll());
+            final ActiveStack stack = activeStack.get();
+            assertIsActive(span, stack != null ? stack.pop() : null);
+            if (stack != null && stack.isEmpty() && stack.isReleasedWhenEmpty()) {
+                activeStack.remove();
+            }
             List<ActivationListener> activationListeners = getActivationListeners();
             for (int i = 0, size = activationListeners.size(); i < size; i++) {
                 try {
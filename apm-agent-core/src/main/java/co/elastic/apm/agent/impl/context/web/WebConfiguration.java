@@ -19,10 +19,10 @@
 package co.elastic.apm.agent.impl.context.web;
 
 import co.elastic.apm.agent.matcher.WildcardMatcher;
-import co.elastic.apm.agent.matcher.WildcardMatcherValueConverter;
+import co.elastic.apm.agent.matcher.WildcardMatcherSet;
+import co.elastic.apm.agent.matcher.WildcardMatcherSetValueConverter;
 import org.stagemonitor.configuration.ConfigurationOption;
 import org.stagemonitor.configuration.ConfigurationOptionProvider;
-import org.stagemonitor.configuration.converter.ListValueConverter;
 
 import java.util.Arrays;
 import java.util.Collections;
@@ -33,7 +33,7 @@ public class WebConfiguration extends ConfigurationOptionProvider {
     private static final String HTTP_CATEGORY = "HTTP";
 
     private final ConfigurationOption<List<WildcardMatcher>> captureContentTypes = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherSetValueConverter(), List.class)
         .key("capture_body_content_types")
         .configurationCategory(HTTP_CATEGORY)
         .tags("added[1.5.0]", "performance")
@@ -43,15 +43,15 @@ public class WebConfiguration extends ConfigurationOptionProvider {
             "\n" +
             WildcardMatcher.DOCUMENTATION)
         .dynamic(true)
-        .buildWithDefault(Arrays.asList(
+        .buildWithDefault(WildcardMatcherSet.of(Arrays.asList(
             WildcardMatcher.valueOf("application/x-www-form-urlencoded*"),
             WildcardMatcher.valueOf("text/*"),
             WildcardMatcher.valueOf("application/json*"),
             WildcardMatcher.valueOf("application/xml*")
-        ));
+        )));
 
     private final ConfigurationOption<List<WildcardMatcher>> ignoreUrls = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherSetValueConverter(), List.class)
         .key("transaction_ignore_urls")
         .aliasKeys("ignore_urls")
         .configurationCategory(HTTP_CATEGORY)
@@ -62,7 +62,7 @@ public class WebConfiguration extends ConfigurationOptionProvider {
             "\n" +
             WildcardMatcher.DOCUMENTATION)
         .dynamic(true)
-        .buildWithDefault(Arrays.asList(
+        .buildWithDefault(WildcardMatcherSet.of(Arrays.asList(
             WildcardMatcher.valueOf("/VAADIN/*"),
             WildcardMatcher.valueOf("/heartbeat*"),
             WildcardMatcher.valueOf("/favicon.ico"),
@@ -76,9 +76,9 @@ public class WebConfiguration extends ConfigurationOptionProvider {
             WildcardMatcher.valueOf("*.svg"),
             WildcardMatcher.valueOf("*.woff"),
             WildcardMatcher.valueOf("*.woff2")
-        ));
+        )));
     private final ConfigurationOption<List<WildcardMatcher>> ignoreUserAgents = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherSetValueConverter(), List.class)
         .key("transaction_ignore_user_agents")
         .aliasKeys("ignore_user_agents")
         .tags("added[1.22.0]")
@@ -108,7 +108,7 @@ public class WebConfiguration extends ConfigurationOptionProvider {
         .buildWithDefault(false);
 
     private final ConfigurationOption<List<WildcardMatcher>> urlGroups = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherSetValueConverter(), List.class)
         .key("url_groups")
         .configurationCategory(HTTP_CATEGORY)
         .description("This option is only considered, when `use_path_as_transaction_name` is active.\n" +
@@ -0,0 +1,131 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl.sampling;
+
+import co.elastic.apm.agent.configuration.converter.RoundedDoubleConverter;
+import co.elastic.apm.agent.impl.transaction.Id;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Adapts the sample rate so that roughly a given number of transactions per second are sampled.
+ * <p>
+ * The sampling decisions are made by immutable {@link Sampler}s, as returned by {@link #getSampler()}.
+ * They only increment a counter of root transactions, so that there is no locking on the hot path.
+ * As each of these samplers has a constant sample rate, the sampling decision, the recorded sample rate and the
+ * {@code es=s:} {@code tracestate} entry which is propagated to downstream services are always consistent.
+ * </p>
+ * <p>
+ * {@link #updateSampleRate(double, double)} is expected to be called once per second.
+ * It computes the rate of root transactions over a sliding window of {@link #WINDOW_SIZE} seconds
+ * and replaces the current sampler if the resulting sample rate has changed.
+ * The sample rate never exceeds {@code transaction_sample_rate}
+ * and, unless {@code transaction_sample_rate} is {@code 0}, never drops below {@link #MIN_SAMPLE_RATE}.
+ * </p>
+ */
+public class RateLimitingSampler {
+
+    static final int WINDOW_SIZE = 5;
+    /**
+     * The smallest sample rate that can be represented with the precision of {@code transaction_sample_rate}.
+     * This makes sure that some transactions are still sampled when the throughput is orders of magnitude above the target.
+     */
+    static final double MIN_SAMPLE_RATE = 0.0001;
+
+    private static final RoundedDoubleConverter DOUBLE_CONVERTER = RoundedDoubleConverter.withDefaultPrecision();
+
+    private final AtomicLong rootTransactions = new AtomicLong();
+    /**
+     * The number of root transactions of the last {@link #WINDOW_SIZE} seconds, only accessed by the thread calling {@link #updateSampleRate(double, double)}
+     */
+    private final long[] window = new long[WINDOW_SIZE];
+    private int windowIndex;
+    private int windowFill;
+    private volatile CountingSampler sampler;
+
+    public RateLimitingSampler(double maxSampleRate) {
+        sampler = new CountingSampler(ProbabilitySampler.of(maxSampleRate), rootTransactions);
+    }
+
+    /**
+     * @return a sampler with a constant sample rate which is expected to be used for a single sampling decision
+     */
+    public Sampler getSampler() {
+        return sampler;
+    }
+
+    /**
+     * Updates the sample rate based on the number of root transactions since the last call.
+     *
+     * @param targetTransactionsPerSecond the number of transactions per second that should be sampled
+     * @param maxSampleRate               the upper bound of the sample rate
+     */
+    public synchronized void updateSampleRate(double targetTransactionsPerSecond, double maxSampleRate) {
+        window[windowIndex] = rootTransactions.getAndSet(0);
+        windowIndex = (windowIndex + 1) % WINDOW_SIZE;
+        windowFill = Math.min(windowFill + 1, WINDOW_SIZE);
+        long sum = 0;
+        for (int i = 0; i < windowFill; i++) {
+            sum += window[i];
+        }
+        double transactionsPerSecond = (double) sum / windowFill;
+        double sampleRate = maxSampleRate;
+        if (transactionsPerSecond > 0) {
+            double targetSampleRate = Math.max(MIN_SAMPLE_RATE, targetTransactionsPerSecond / transactionsPerSecond);
+            sampleRate = DOUBLE_CONVERTER.round(Math.min(maxSampleRate, targetSampleRate));
+        }
+        if (sampleRate != sampler.getSampleRate()) {
+            sampler = new CountingSampler(ProbabilitySampler.of(sampleRate), rootTransactions);
+        }
+    }
+
+    /**
+     * @return the current sample rate
+     */
+    public double getSampleRate() {
+        return sampler.getSampleRate();
+    }
+
+    private static class CountingSampler implements Sampler {
+
+        private final Sampler delegate;
+        private final AtomicLong counter;
+
+        private CountingSampler(Sampler delegate, AtomicLong counter) {
+            this.delegate = delegate;
+            this.counter = counter;
+        }
+
+        @Override
+        public boolean isSampled(Id traceId) {
+            counter.incrementAndGet();
+            return delegate.isSampled(traceId);
+        }
+
+        @Override
+        public double getSampleRate() {
+            return delegate.getSampleRate();
+        }
+
+        @Override
+        public String getTraceStateHeader() {
+            return delegate.getTraceStateHeader();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl.sampling;
+
+import co.elastic.apm.agent.configuration.CoreConfiguration;
+import co.elastic.apm.agent.impl.transaction.Outcome;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import org.stagemonitor.configuration.ConfigurationOption;
+
+/**
+ * Decides whether a transaction and its buffered spans are reported when the transaction ends, see {@code tail_sampling_enabled}.
+ * <p>
+ * Failed and slow transactions are always kept.
+ * The other transactions are kept according to {@code tail_sampling_rate}.
+ * As the decision is based on the trace id, just like the decision of the {@link ProbabilitySampler},
+ * the kept transactions are a subset of the ones that would be sampled with a {@code transaction_sample_rate} of the same value.
+ * </p>
+ */
+public class TailSamplingPolicy {
+
+    private final CoreConfiguration coreConfiguration;
+    private volatile Sampler sampler;
+
+    public TailSamplingPolicy(CoreConfiguration coreConfiguration) {
+        this.coreConfiguration = coreConfiguration;
+        sampler = ProbabilitySampler.of(coreConfiguration.getTailSamplingRate().get());
+        coreConfiguration.getTailSamplingRate().addChangeListener(new ConfigurationOption.ChangeListener<Double>() {
+            @Override
+            public void onChange(ConfigurationOption<?> configurationOption, Double oldValue, Double newValue) {
+                sampler = ProbabilitySampler.of(newValue);
+            }
+        });
+    }
+
+    public boolean isEnabled() {
+        return coreConfiguration.isTailSamplingEnabled();
+    }
+
+    /**
+     * @param transaction the ended transaction
+     * @return whether to report the transaction and its spans
+     */
+    public boolean shouldKeep(Transaction transaction) {
+        return transaction.getOutcome() == Outcome.FAILURE
+            || transaction.getTailSamplingBuffer().hasFailedSpans()
+            || transaction.getDuration() >= coreConfiguration.getTailSamplingLatencyThreshold().getMillis() * 1000
+            || sampler.isSampled(transaction.getTraceContext().getTraceId());
+    }
+}
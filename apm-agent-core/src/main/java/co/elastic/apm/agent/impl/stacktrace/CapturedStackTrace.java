@@ -0,0 +1,127 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl.stacktrace;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * An immutable stack trace that has been captured by the {@link StackWalkerStackTraceCollector}.
+ * <p>
+ * Stack traces that consist of the same frames are {@linkplain StackWalkerStackTraceCollector#capture(int) interned},
+ * so that spans created by the same call site share an instance.
+ * This allows the serializer to {@linkplain #setSerialized(byte[], Collection) cache} the serialized frames.
+ * </p>
+ */
+public class CapturedStackTrace {
+
+    private final String[] classNames;
+    private final String[] methodNames;
+    private final String[] fileNames;
+    private final int[] lineNumbers;
+    private final int hash;
+    @Nullable
+    private volatile Serialized serialized;
+
+    public CapturedStackTrace(String[] classNames, String[] methodNames, String[] fileNames, int[] lineNumbers, int size) {
+        this.classNames = Arrays.copyOf(classNames, size);
+        this.methodNames = Arrays.copyOf(methodNames, size);
+        this.fileNames = Arrays.copyOf(fileNames, size);
+        this.lineNumbers = Arrays.copyOf(lineNumbers, size);
+        int hash = 1;
+        for (int i = 0; i < size; i++) {
+            hash = 31 * hash + classNames[i].hashCode();
+            hash = 31 * hash + methodNames[i].hashCode();
+            hash = 31 * hash + lineNumbers[i];
+        }
+        this.hash = hash;
+    }
+
+    public int size() {
+        return classNames.length;
+    }
+
+    public String getClassName(int i) {
+        return classNames[i];
+    }
+
+    public String getMethodName(int i) {
+        return methodNames[i];
+    }
+
+    public String getFileName(int i) {
+        return fileNames[i];
+    }
+
+    public int getLineNumber(int i) {
+        return lineNumbers[i];
+    }
+
+    /**
+     * Returns the cached serialized frames, if they have been serialized with the same application packages.
+     *
+     * @param applicationPackages the current {@link StacktraceConfiguration#getApplicationPackages() application_packages},
+     *                            which determine whether a frame is a library frame
+     * @return the cached serialized frames, or {@code null} if they have to be serialized
+     */
+    @Nullable
+    public byte[] getSerialized(Collection<String> applicationPackages) {
+        Serialized serialized = this.serialized;
+        if (serialized != null && serialized.applicationPackages == applicationPackages) {
+            return serialized.bytes;
+        }
+        return null;
+    }
+
+    public void setSerialized(byte[] bytes, Collection<String> applicationPackages) {
+        this.serialized = new Serialized(bytes, applicationPackages);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CapturedStackTrace)) {
+            return false;
+        }
+        CapturedStackTrace that = (CapturedStackTrace) o;
+        return hash == that.hash
+            && Arrays.equals(lineNumbers, that.lineNumbers)
+            && Arrays.equals(methodNames, that.methodNames)
+            && Arrays.equals(classNames, that.classNames)
+            && Arrays.equals(fileNames, that.fileNames);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    private static class Serialized {
+        private final byte[] bytes;
+        private final Collection<String> applicationPackages;
+
+        private Serialized(byte[] bytes, Collection<String> applicationPackages) {
+            this.bytes = bytes;
+            this.applicationPackages = applicationPackages;
+        }
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl.stacktrace;
+
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static java.lang.invoke.MethodType.methodType;
+
+/**
+ * Captures stack traces with the {@code java.lang.StackWalker} that's available as of Java 9.
+ * <p>
+ * As opposed to {@link Throwable#getStackTrace()}, which always materializes all frames of the stack,
+ * the frames are walked lazily.
+ * The top most agent frames and excluded frames are skipped during the walk,
+ * and the walk stops once the {@link StacktraceConfiguration#getStackTraceLimit() stack_trace_limit} is reached.
+ * </p>
+ * <p>
+ * Captured stack traces are interned, so that spans which are created by the same call site share a {@link CapturedStackTrace},
+ * which lets the serializer serialize the frames only once.
+ * </p>
+ * <p>
+ * As the agent is compiled for Java 7, the {@code StackWalker} API is accessed via {@link MethodHandle}s
+ * and the {@code java.util.function.Function} that walks the frames is a {@link Proxy}.
+ * </p>
+ */
+public class StackWalkerStackTraceCollector {
+
+    private static final Logger logger = LoggerFactory.getLogger(StackWalkerStackTraceCollector.class);
+
+    private static final List<String> EXCLUDED_FRAMES = Arrays.asList("java.lang.reflect", "com.sun", "sun.", "jdk.internal.");
+    private static final int MAX_CACHED_STACK_TRACES = 1000;
+    private static final int INITIAL_FRAMES_CAPACITY = 64;
+
+    @Nullable
+    private static final Object STACK_WALKER;
+    @Nullable
+    private static final Class<?> FUNCTION;
+    @Nullable
+    private static final MethodHandle WALK;
+    @Nullable
+    private static final MethodHandle ITERATOR;
+    @Nullable
+    private static final MethodHandle GET_CLASS_NAME;
+    @Nullable
+    private static final MethodHandle GET_METHOD_NAME;
+    @Nullable
+    private static final MethodHandle GET_FILE_NAME;
+    @Nullable
+    private static final MethodHandle GET_LINE_NUMBER;
+
+    static {
+        Object stackWalker = null;
+        Class<?> function = null;
+        MethodHandle walk = null;
+        MethodHandle iterator = null;
+        MethodHandle getClassName = null;
+        MethodHandle getMethodName = null;
+        MethodHandle getFileName = null;
+        MethodHandle getLineNumber = null;
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            Class<?> stackWalkerClass = Class.forName("java.lang.StackWalker");
+            Class<?> stackFrameClass = Class.forName("java.lang.StackWalker$StackFrame");
+            function = Class.forName("java.util.function.Function");
+            stackWalker = stackWalkerClass.getMethod("getInstance").invoke(null);
+            walk = lookup.findVirtual(stackWalkerClass, "walk", methodType(Object.class, function))
+                .asType(methodType(Object.class, Object.class, Object.class));
+            iterator = lookup.findVirtual(Class.forName("java.util.stream.BaseStream"), "iterator", methodType(Iterator.class))
+                .asType(methodType(Iterator.class, Object.class));
+            getClassName = getter(lookup, stackFrameClass, "getClassName", String.class);
+            getMethodName = getter(lookup, stackFrameClass, "getMethodName", String.class);
+            getFileName = getter(lookup, stackFrameClass, "getFileName", String.class);
+            getLineNumber = getter(lookup, stackFrameClass, "getLineNumber", int.class);
+        } catch (Throwable e) {
+            // expected on Java 7 and 8
+            logger.debug("StackWalker is not available: {}", e.toString());
+            stackWalker = null;
+        }
+        STACK_WALKER = stackWalker;
+        FUNCTION = function;
+        WALK = walk;
+        ITERATOR = iterator;
+        GET_CLASS_NAME = getClassName;
+        GET_METHOD_NAME = getMethodName;
+        GET_FILE_NAME = getFileName;
+        GET_LINE_NUMBER = getLineNumber;
+    }
+
+    private final ConcurrentMap<CapturedStackTrace, CapturedStackTrace> stackTraces = new ConcurrentHashMap<>();
+
+    private static MethodHandle getter(MethodHandles.Lookup lookup, Class<?> type, String name, Class<?> returnType) throws ReflectiveOperationException {
+        return lookup.findVirtual(type, name, methodType(returnType)).asType(methodType(returnType, Object.class));
+    }
+
+    /**
+     * @return whether the {@code StackWalker} is available, which is the case as of Java 9
+     */
+    public static boolean isAvailable() {
+        return STACK_WALKER != null;
+    }
+
+    /**
+     * Returns {@code true} for frames that are never included in a span's stack trace.
+     *
+     * @param fileName  the name of the source file of the frame, which is a required field
+     * @param className the fully qualified name of the class of the frame
+     * @return whether the frame is excluded
+     */
+    public static boolean isExcluded(@Nullable String fileName, String className) {
+        if (fileName == null) {
+            return true;
+        }
+        for (int i = 0, size = EXCLUDED_FRAMES.size(); i < size; i++) {
+            if (className.startsWith(EXCLUDED_FRAMES.get(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Captures the stack trace of the current thread, excluding the top most agent frames.
+     *
+     * @param stackTraceLimit the maximum number of frames to capture, {@code -1} for all frames
+     * @return the captured stack trace or {@code null} if the stack trace could not be captured
+     */
+    @Nullable
+    public CapturedStackTrace capture(int stackTraceLimit) {
+        if (STACK_WALKER == null || FUNCTION == null || WALK == null) {
+            return null;
+        }
+        FrameCollector frameCollector = new FrameCollector(stackTraceLimit);
+        try {
+            Object walkFunction = Proxy.newProxyInstance(StackWalkerStackTraceCollector.class.getClassLoader(), new Class<?>[]{FUNCTION}, frameCollector);
+            Object ignore = (Object) WALK.invokeExact(STACK_WALKER, walkFunction);
+        } catch (Throwable e) {
+            logger.debug("Failed to walk the stack", e);
+            return null;
+        }
+        return intern(frameCollector.toStackTrace());
+    }
+
+    private CapturedStackTrace intern(CapturedStackTrace stackTrace) {
+        CapturedStackTrace interned = stackTraces.get(stackTrace);
+        if (interned != null) {
+            return interned;
+        }
+        if (stackTraces.size() < MAX_CACHED_STACK_TRACES) {
+            interned = stackTraces.putIfAbsent(stackTrace, stackTrace);
+            if (interned != null) {
+                return interned;
+            }
+        }
+        return stackTrace;
+    }
+
+    /**
+     * @return the number of distinct stack traces that are cached
+     */
+    int getCachedStackTraces() {
+        return stackTraces.size();
+    }
+
+    /**
+     * Implements {@code java.util.function.Function<Stream<StackFrame>, Object>} and collects the frames of the stream.
+     */
+    private static class FrameCollector implements InvocationHandler {
+
+        private final int stackTraceLimit;
+        private String[] classNames;
+        private String[] methodNames;
+        private String[] fileNames;
+        private int[] lineNumbers;
+        private int size;
+
+        private FrameCollector(int stackTraceLimit) {
+            this.stackTraceLimit = stackTraceLimit;
+            int capacity = stackTraceLimit < 0 ? INITIAL_FRAMES_CAPACITY : Math.min(stackTraceLimit, INITIAL_FRAMES_CAPACITY);
+            classNames = new String[capacity];
+            methodNames = new String[capacity];
+            fileNames = new String[capacity];
+            lineNumbers = new int[capacity];
+        }
+
+        @Nullable
+        @Override
+        public Object invoke(Object proxy, Method method, @Nullable Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                switch (method.getName()) {
+                    case "equals":
+                        return args != null && proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    default:
+                        return "StackWalkerStackTraceCollector$FrameCollector";
+                }
+            }
+            if (args != null && ITERATOR != null) {
+                collect((Iterator<?>) ITERATOR.invokeExact(args[0]));
+            }
+            return null;
+        }
+
+        private void collect(Iterator<?> frames) throws Throwable {
+            boolean topMostElasticApmPackagesSkipped = false;
+            while ((stackTraceLimit < 0 || size < stackTraceLimit) && frames.hasNext()) {
+                Object frame = frames.next();
+                String className = (String) GET_CLASS_NAME.invokeExact(frame);
+                // only skip the top most apm stack frames
+                if (!topMostElasticApmPackagesSkipped && className.startsWith("co.elastic.apm")) {
+                    continue;
+                }
+                topMostElasticApmPackagesSkipped = true;
+                String fileName = (String) GET_FILE_NAME.invokeExact(frame);
+                if (isExcluded(fileName, className)) {
+                    continue;
+                }
+                add(className, (String) GET_METHOD_NAME.invokeExact(frame), fileName, (int) GET_LINE_NUMBER.invokeExact(frame));
+            }
+        }
+
+        private void add(String className, String methodName, String fileName, int lineNumber) {
+            if (size == classNames.length) {
+                int capacity = size * 2;
+                classNames = Arrays.copyOf(classNames, capacity);
+                methodNames = Arrays.copyOf(methodNames, capacity);
+                fileNames = Arrays.copyOf(fileNames, capacity);
+                lineNumbers = Arrays.copyOf(lineNumbers, capacity);
+            }
+            classNames[size] = className;
+            methodNames[size] = methodName;
+            fileNames[size] = fileName;
+            lineNumbers[size] = lineNumber;
+            size++;
+        }
+
+        private CapturedStackTrace toStackTrace() {
+            return new CapturedStackTrace(classNames, methodNames, fileNames, lineNumbers, size);
+        }
+    }
+}
@@ -95,6 +95,22 @@ public class StacktraceConfiguration extends ConfigurationOptionProvider {
         .dynamic(true)
         .buildWithDefault(TimeDuration.of("5ms"));
 
+    private final ConfigurationOption<Boolean> spanStackTraceWalkerEnabled = ConfigurationOption.booleanOption()
+        .key("span_stack_trace_walker_enabled")
+        .tags("performance")
+        .configurationCategory(STACKTRACE_CATEGORY)
+        .description("Whether to capture the stack traces of spans with the `StackWalker` API.\n" +
+            "\n" +
+            "By default, the agent captures the full stack trace of a span and only drops the frames that exceed\n" +
+            "<<config-stack-trace-limit>> when serializing the span.\n" +
+            "When enabled, the frames are walked lazily,\n" +
+            "so that only up to <<config-stack-trace-limit>> frames are captured and excluded frames are skipped right away.\n" +
+            "Spans that are created by the same call site share the captured frames, which are serialized only once.\n" +
+            "\n" +
+            "NOTE: Requires Java 9 or later. On older Java versions, this option has no effect.")
+        .dynamic(true)
+        .buildWithDefault(false);
+
     public Collection<String> getApplicationPackages() {
         return applicationPackages.get();
     }
@@ -103,6 +119,10 @@ public class StacktraceConfiguration extends ConfigurationOptionProvider {
         return stackTraceLimit.get();
     }
 
+    public boolean isSpanStackTraceWalkerEnabled() {
+        return spanStackTraceWalkerEnabled.get();
+    }
+
     public long getSpanStackTraceMinDurationMs() {
         if (spanStackTraceMinDurationMs.isDefault() && !spanFramesMinDurationMs.isDefault()) {
             long spanFramesMinDurationMsValue = spanFramesMinDurationMs.getValue().getMillis();
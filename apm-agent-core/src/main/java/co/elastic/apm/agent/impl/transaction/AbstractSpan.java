@@ -32,7 +32,9 @@ import co.elastic.apm.agent.sdk.logging.LoggerFactory;
 import javax.annotation.Nullable;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
 
 public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recyclable {
     public static final int PRIO_USER_SUPPLIED = 1000;
@@ -54,7 +56,7 @@ public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recycla
 
     // in microseconds
     protected long duration;
-    private ChildDurationTimer childDurations = new ChildDurationTimer();
+    private final ChildDurationTimer childDurations = new ChildDurationTimer();
     protected AtomicInteger references = new AtomicInteger();
     protected volatile boolean finished = true;
     private int namePriority = PRIO_DEFAULT;
@@ -105,6 +107,12 @@ public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recycla
 
     private boolean hasCapturedExceptions;
 
+    /**
+     * The last ended child span which is eligible for span compression.
+     * It is reported as soon as a sibling can't be compressed into it or when this span ends.
+     */
+    private final AtomicReference<Span> bufferedSpan = new AtomicReference<Span>();
+
     public int getReferenceCount() {
         return references.get();
     }
@@ -138,9 +146,13 @@ public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recycla
 
     private static class ChildDurationTimer implements Recyclable {
 
-        private AtomicInteger activeChildren = new AtomicInteger();
-        private AtomicLong start = new AtomicLong();
-        private AtomicLong duration = new AtomicLong();
+        // field updaters instead of atomic wrappers avoid three additional objects per (pooled) span
+        private static final AtomicIntegerFieldUpdater<ChildDurationTimer> ACTIVE_CHILDREN = AtomicIntegerFieldUpdater.newUpdater(ChildDurationTimer.class, "activeChildren");
+        private static final AtomicLongFieldUpdater<ChildDurationTimer> DURATION = AtomicLongFieldUpdater.newUpdater(ChildDurationTimer.class, "duration");
+
+        private volatile int activeChildren;
+        private volatile long start;
+        private volatile long duration;
 
         /**
          * Starts the timer if it has not been started already.
@@ -148,8 +160,8 @@ public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recycla
          * @param startTimestamp
          */
         void onChildStart(long startTimestamp) {
-            if (activeChildren.incrementAndGet() == 1) {
-                start.set(startTimestamp);
+            if (ACTIVE_CHILDREN.incrementAndGet(this) == 1) {
+                start = startTimestamp;
             }
         }
 
@@ -159,7 +171,7 @@ public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recycla
          * @param endTimestamp
          */
         void onChildEnd(long endTimestamp) {
-            if (activeChildren.decrementAndGet() == 0) {
+            if (ACTIVE_CHILDREN.decrementAndGet(this) == 0) {
                 incrementDuration(endTimestamp);
             }
         }
@@ -170,24 +182,25 @@ public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recycla
          * @param endTimestamp
          */
         void onSpanEnd(long endTimestamp) {
-            if (activeChildren.getAndSet(0) != 0) {
+            // avoids the atomic write for the common case where all children have already ended
+            if (activeChildren != 0 && ACTIVE_CHILDREN.getAndSet(this, 0) != 0) {
                 incrementDuration(endTimestamp);
             }
         }
 
         private void incrementDuration(long epochMicros) {
-            duration.addAndGet(epochMicros - start.get());
+            DURATION.addAndGet(this, epochMicros - start);
         }
 
         @Override
         public void resetState() {
-            activeChildren.set(0);
-            start.set(0);
-            duration.set(0);
+            activeChildren = 0;
+            start = 0;
+            duration = 0;
         }
 
         public long getDuration() {
-            return duration.get();
+            return duration;
         }
     }
 
@@ -356,6 +369,7 @@ public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recycla
         outcome = null;
         userOutcome = null;
         hasCapturedExceptions = false;
+        bufferedSpan.set(null);
     }
 
     public Span createSpan() {
@@ -455,9 +469,12 @@ public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recycla
             if (name.length() == 0) {
                 name.append("unnamed");
             }
-            childDurations.onSpanEnd(epochMicros);
+            if (collectBreakdownMetrics) {
+                childDurations.onSpanEnd(epochMicros);
+            }
             beforeEnd(epochMicros);
             this.finished = true;
+            reportBufferedSpan();
             afterEnd();
         } else {
             logger.warn("End has already been called: {}", this);
@@ -481,6 +498,39 @@ public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recycla
 
     protected abstract void beforeEnd(long epochMicros);
 
+    /**
+     * Takes the buffered compression candidate, so that the caller may try to compress a sibling into it.
+     * The caller has to either {@linkplain #bufferSpan(Span) buffer} or report the returned span.
+     *
+     * @return the buffered child span, or {@code null} if there is none
+     */
+    @Nullable
+    Span takeBufferedSpan() {
+        return bufferedSpan.getAndSet(null);
+    }
+
+    /**
+     * Buffers a child span as a candidate for span compression.
+     * If another child has been buffered concurrently, or if this span has ended in the meantime, the span is reported right away.
+     *
+     * @param span the ended child span
+     */
+    void bufferSpan(Span span) {
+        if (!bufferedSpan.compareAndSet(null, span)) {
+            tracer.endSpan(span);
+        } else if (finished) {
+            // this span has ended concurrently and might have missed the buffered span
+            reportBufferedSpan();
+        }
+    }
+
+    void reportBufferedSpan() {
+        Span buffered = bufferedSpan.getAndSet(null);
+        if (buffered != null) {
+            tracer.endSpan(buffered);
+        }
+    }
+
     protected abstract void afterEnd();
 
     public boolean isChildOf(AbstractSpan<?> parent) {
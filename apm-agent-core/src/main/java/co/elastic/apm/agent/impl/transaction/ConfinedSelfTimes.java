@@ -0,0 +1,159 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl.transaction;
+
+import co.elastic.apm.agent.metrics.Histogram;
+import co.elastic.apm.agent.metrics.Labels;
+import co.elastic.apm.agent.metrics.MetricRegistry;
+import co.elastic.apm.agent.objectpool.Recyclable;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+
+/**
+ * Accumulates the self-times of the spans of a {@link Transaction} which end on the thread that started the transaction.
+ * <p>
+ * As only that thread updates the timings, they are accumulated in plain fields,
+ * without the atomic updates and concurrent map lookups that are needed for spans ending on other threads.
+ * The timings are flushed to the metric registry in one batch when the transaction ends.
+ * </p>
+ * <p>
+ * Similar to the concurrent timers of the transaction, the entries are not removed when the transaction is recycled.
+ * Instead, they accumulate span types and subtypes over time and only their timings are reset.
+ * </p>
+ * <p>
+ * If the transaction ends on another thread, the transaction first hands the self-times off to that thread,
+ * waiting for an ongoing update of the starting thread to complete.
+ * Spans which end on the starting thread afterwards are treated like the ones ending on any other thread.
+ * </p>
+ */
+class ConfinedSelfTimes implements Recyclable {
+
+    private static final int INITIAL_CAPACITY = 4;
+
+    private Entry[] entries = new Entry[INITIAL_CAPACITY];
+    private int size;
+
+    /**
+     * @param type             the span type
+     * @param subtype          the span subtype
+     * @param duration         the self-time of the span, in microseconds
+     * @param recordHistogram  whether to record the self-time in the histogram of the entry
+     */
+    void update(String type, @Nullable String subtype, long duration, boolean recordHistogram) {
+        if (subtype == null) {
+            subtype = "";
+        }
+        Entry entry = get(type, subtype);
+        entry.totalTimeUs += duration;
+        entry.count++;
+        if (recordHistogram) {
+            entry.getOrCreateHistogram().update(duration);
+        }
+    }
+
+    private Entry get(String type, String subtype) {
+        for (int i = 0; i < size; i++) {
+            Entry entry = entries[i];
+            if (entry.type.equals(type) && entry.subtype.equals(subtype)) {
+                return entry;
+            }
+        }
+        if (size == entries.length) {
+            entries = Arrays.copyOf(entries, size * 2);
+        }
+        Entry entry = new Entry(type, subtype);
+        entries[size] = entry;
+        size++;
+        return entry;
+    }
+
+    int size() {
+        return size;
+    }
+
+    Entry get(int index) {
+        return entries[index];
+    }
+
+    @Override
+    public void resetState() {
+        for (int i = 0; i < size; i++) {
+            entries[i].resetState();
+        }
+    }
+
+    static class Entry implements Recyclable {
+
+        final String type;
+        /**
+         * The subtype, or an empty string if not set
+         */
+        final String subtype;
+        long totalTimeUs;
+        long count;
+        /**
+         * The individual self-times, only created if {@code latency_histograms} are enabled
+         */
+        @Nullable
+        Histogram histogram;
+        /**
+         * The id of the metric set this entry has last been reported to, only accessed by the thread that ends the transaction
+         */
+        private int metricSetId;
+        @Nullable
+        private Labels metricSetLabels;
+
+        private Entry(String type, String subtype) {
+            this.type = type;
+            this.subtype = subtype;
+        }
+
+        /**
+         * Returns the id of the metric set for the provided labels.
+         * <p>
+         * As transaction names tend to repeat, the id of the last report is likely to be applicable again.
+         * Comparing the labels to the ones of that metric set is cheaper than hashing and looking them up in the registry.
+         * </p>
+         */
+        int getMetricSetId(MetricRegistry metricRegistry, Labels labels) {
+            if (metricSetLabels == null || !metricSetLabels.equals(labels)) {
+                metricSetId = metricRegistry.getOrCreateMetricSetId(labels);
+                metricSetLabels = metricRegistry.getMetricSetLabels(metricSetId);
+            }
+            return metricSetId;
+        }
+
+        private Histogram getOrCreateHistogram() {
+            if (histogram == null) {
+                histogram = new Histogram();
+            }
+            return histogram;
+        }
+
+        @Override
+        public void resetState() {
+            totalTimeUs = 0;
+            count = 0;
+            if (histogram != null) {
+                histogram.resetState();
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl.transaction;
+
+import co.elastic.apm.agent.objectpool.Recyclable;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Aggregates the exit spans of a transaction that have been dropped,
+ * for example because of {@code transaction_max_spans} or {@code span_min_duration}.
+ * <p>
+ * The spans are grouped by {@code destination.service.resource} and outcome.
+ * The number of groups is limited to {@link #MAX_BUCKETS}, spans that don't fit into a group any more are only counted by {@link SpanCount#getDropped()}.
+ * </p>
+ * <p>
+ * Buckets are only created under a lock but are looked up without locking.
+ * They are retained when the transaction is recycled so that they can be reused without allocations.
+ * </p>
+ */
+public class DroppedSpanStats implements Recyclable {
+
+    static final int MAX_BUCKETS = 128;
+
+    @Nullable
+    private volatile Bucket[] buckets;
+    private volatile int size;
+
+    /**
+     * Records a dropped span, unless it's not an exit span, it has no {@code destination.service.resource}
+     * or the maximum number of buckets has been reached.
+     * The resource of exit spans is inferred when they end, so it's only empty if it has explicitly been set to an empty value.
+     *
+     * @param span the dropped span
+     */
+    public void captureDroppedSpan(Span span) {
+        if (!span.isExit()) {
+            return;
+        }
+        StringBuilder resource = span.getContext().getDestination().getService().getResource();
+        if (resource.length() == 0) {
+            return;
+        }
+        Bucket bucket = getOrCreateBucket(resource, span.getOutcome());
+        if (bucket != null) {
+            if (span.isComposite()) {
+                bucket.count.addAndGet(span.getComposite().getCount());
+                bucket.sum.addAndGet(span.getComposite().getSum());
+            } else {
+                bucket.count.incrementAndGet();
+                bucket.sum.addAndGet(span.getDuration());
+            }
+        }
+    }
+
+    @Nullable
+    private Bucket getOrCreateBucket(CharSequence resource, Outcome outcome) {
+        Bucket bucket = findBucket(resource, outcome);
+        if (bucket != null) {
+            return bucket;
+        }
+        synchronized (this) {
+            bucket = findBucket(resource, outcome);
+            if (bucket != null) {
+                return bucket;
+            }
+            int currentSize = size;
+            if (currentSize >= MAX_BUCKETS) {
+                return null;
+            }
+            Bucket[] buckets = this.buckets;
+            if (buckets == null) {
+                buckets = new Bucket[MAX_BUCKETS];
+                this.buckets = buckets;
+            }
+            bucket = buckets[currentSize];
+            if (bucket == null) {
+                bucket = new Bucket();
+                buckets[currentSize] = bucket;
+            }
+            bucket.init(resource, outcome);
+            // publishes the initialized bucket to the lock-free readers
+            size = currentSize + 1;
+            return bucket;
+        }
+    }
+
+    @Nullable
+    private Bucket findBucket(CharSequence resource, Outcome outcome) {
+        int size = this.size;
+        Bucket[] buckets = this.buckets;
+        for (int i = 0; i < size; i++) {
+            if (buckets[i].matches(resource, outcome)) {
+                return buckets[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the number of buckets that can be accessed via {@link #get(int)}
+     */
+    public int size() {
+        return size;
+    }
+
+    public Bucket get(int index) {
+        if (index >= size || buckets == null) {
+            throw new IndexOutOfBoundsException();
+        }
+        return buckets[index];
+    }
+
+    @Override
+    public synchronized void resetState() {
+        size = 0;
+    }
+
+    public static class Bucket {
+
+        private final StringBuilder destinationServiceResource = new StringBuilder();
+        private Outcome outcome = Outcome.UNKNOWN;
+        private final AtomicInteger count = new AtomicInteger();
+        private final AtomicLong sum = new AtomicLong();
+
+        private void init(CharSequence destinationServiceResource, Outcome outcome) {
+            this.destinationServiceResource.setLength(0);
+            this.destinationServiceResource.append(destinationServiceResource);
+            this.outcome = outcome;
+            count.set(0);
+            sum.set(0);
+        }
+
+        private boolean matches(CharSequence destinationServiceResource, Outcome outcome) {
+            if (this.outcome != outcome || this.destinationServiceResource.length() != destinationServiceResource.length()) {
+                return false;
+            }
+            for (int i = 0; i < destinationServiceResource.length(); i++) {
+                if (this.destinationServiceResource.charAt(i) != destinationServiceResource.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public StringBuilder getDestinationServiceResource() {
+            return destinationServiceResource;
+        }
+
+        public Outcome getOutcome() {
+            return outcome;
+        }
+
+        /**
+         * @return the number of dropped spans
+         */
+        public int getCount() {
+            return count.get();
+        }
+
+        /**
+         * @return the sum of the durations of the dropped spans, in µs
+         */
+        public long getSum() {
+            return sum.get();
+        }
+    }
+}
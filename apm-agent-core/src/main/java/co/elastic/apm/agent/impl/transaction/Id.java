@@ -19,21 +19,29 @@
 package co.elastic.apm.agent.impl.transaction;
 
 import co.elastic.apm.agent.objectpool.Recyclable;
+import co.elastic.apm.agent.util.ByteUtils;
 import co.elastic.apm.agent.util.HexUtils;
 import com.dslplatform.json.JsonWriter;
 
 import javax.annotation.Nullable;
-import java.nio.ByteBuffer;
-import java.util.Arrays;
 import java.util.Random;
 import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * A 128 bit globally unique ID of the whole trace forest
+ * <p>
+ * The id is stored as one or two {@code long}s, rather than as a byte array,
+ * so that random ids can be generated with one {@link Random#nextLong()} call per 8 bytes
+ * and so that they can be compared and hex encoded without iterating over individual bytes.
+ * For 128 bit ids, {@link #high} holds the first and {@link #low} the last 8 bytes (big-endian).
+ * For 64 bit ids, only {@link #low} is used.
+ * </p>
  */
 public class Id implements Recyclable {
 
-    private final byte[] data;
+    private final int length;
+    private long high;
+    private long low;
     private boolean empty = true;
     @Nullable
     private String cachedStringRepresentation;
@@ -47,7 +55,7 @@ public class Id implements Recyclable {
     }
 
     private Id(int idLengthBytes) {
-        data = new byte[idLengthBytes];
+        length = idLengthBytes;
     }
 
     public void setToRandomValue() {
@@ -55,58 +63,106 @@ public class Id implements Recyclable {
     }
 
     public void setToRandomValue(Random random) {
-        random.nextBytes(data);
+        if (length == 16) {
+            high = random.nextLong();
+        }
+        low = random.nextLong();
         onMutation(false);
     }
 
     public void fromHexString(String hexEncodedString, int offset) {
-        HexUtils.nextBytes(hexEncodedString, offset, data);
+        if (hexEncodedString.length() < offset + length * 2) {
+            throw new IllegalArgumentException(String.format("Can't read %d bytes from string %s with offset %d", length, hexEncodedString, offset));
+        }
+        if (length == 16) {
+            high = HexUtils.getNextLong(hexEncodedString, offset);
+            offset += 16;
+        }
+        low = HexUtils.getNextLong(hexEncodedString, offset);
         onMutation();
     }
 
     /**
      * Sets the id based on a byte array
      *
-     * @param bytes the byte array used to fill this id's {@link #data}
+     * @param bytes the byte array used to fill this id
      * @param offset the offset in the byte array
      * @return the number of read bytes which is equivalent to {@link #getLength()}
      */
     public int fromBytes(byte[] bytes, int offset) {
-        System.arraycopy(bytes, offset, data, 0, data.length);
+        if (length == 16) {
+            high = ByteUtils.getLong(bytes, offset);
+            offset += 8;
+        }
+        low = ByteUtils.getLong(bytes, offset);
         onMutation();
-        return data.length;
+        return length;
     }
 
     public int toBytes(byte[] bytes, int offset) {
-        System.arraycopy(data, 0, bytes, offset, data.length);
-        return offset + data.length;
+        if (length == 16) {
+            ByteUtils.putLong(bytes, offset, high);
+            offset += 8;
+        }
+        ByteUtils.putLong(bytes, offset, low);
+        return offset + 8;
     }
 
     public void fromLongs(long... values) {
-        if (values.length * Long.BYTES != data.length) {
+        if (values.length * Long.BYTES != length) {
             throw new IllegalArgumentException("Invalid number of long values");
         }
-        final ByteBuffer buffer = ByteBuffer.wrap(data);
-        for (long value : values) {
-            buffer.putLong(value);
+        if (length == 16) {
+            fromLongs(values[0], values[1]);
+        } else {
+            fromLong(values[0]);
         }
-        onMutation();
+    }
+
+    /**
+     * Sets a 128 bit id without allocating a varargs array
+     *
+     * @param high the first 8 bytes of the id
+     * @param low  the last 8 bytes of the id
+     */
+    public void fromLongs(long high, long low) {
+        if (length != 16) {
+            throw new IllegalArgumentException("Invalid number of long values");
+        }
+        this.high = high;
+        this.low = low;
+        onMutation(high == 0 && low == 0);
+    }
+
+    /**
+     * Sets a 64 bit id
+     *
+     * @param value the id
+     */
+    public void fromLong(long value) {
+        if (length != 8) {
+            throw new IllegalArgumentException("Invalid number of long values");
+        }
+        this.low = value;
+        onMutation(value == 0);
     }
 
     @Override
     public void resetState() {
-        Arrays.fill(data, (byte) 0);
+        high = 0;
+        low = 0;
         onMutation(true);
     }
 
     public void copyFrom(Id other) {
-        System.arraycopy(other.data, 0, data, 0, data.length);
+        this.high = other.high;
+        this.low = other.low;
         this.cachedStringRepresentation = other.cachedStringRepresentation;
         this.empty = other.empty;
     }
 
     private void onMutation() {
-        onMutation(isAllZeros(data));
+        onMutation(high == 0 && low == 0);
     }
 
     private void onMutation(boolean empty) {
@@ -119,29 +175,32 @@ public class Id implements Recyclable {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         Id that = (Id) o;
-        return Arrays.equals(data, that.data);
+        return length == that.length && high == that.high && low == that.low;
     }
 
     public boolean dataEquals(byte[] data, int offset) {
-        byte[] thisData = this.data;
-        for (int i = 0; i < thisData.length; i++) {
-            if (thisData[i] != data[i + offset]) {
+        if (length == 16) {
+            if (high != ByteUtils.getLong(data, offset)) {
                 return false;
             }
+            offset += 8;
         }
-        return true;
+        return low == ByteUtils.getLong(data, offset);
     }
 
     @Override
     public int hashCode() {
-        return Arrays.hashCode(data);
+        long hash = 31 * high + low;
+        return (int) (hash ^ (hash >>> 32));
     }
 
     @Override
     public String toString() {
         String s = cachedStringRepresentation;
         if (s == null) {
-            s = cachedStringRepresentation = HexUtils.bytesToHex(data);
+            StringBuilder sb = new StringBuilder(length * 2);
+            writeAsHex(sb);
+            s = cachedStringRepresentation = sb.toString();
         }
         return s;
     }
@@ -150,21 +209,18 @@ public class Id implements Recyclable {
         return empty;
     }
 
-    private static boolean isAllZeros(byte[] bytes) {
-        for (byte b : bytes) {
-            if (b != 0) {
-                return false;
-            }
-        }
-        return true;
-    }
-
     public void writeAsHex(JsonWriter jw) {
-        HexUtils.writeBytesAsHex(data, jw);
+        if (length == 16) {
+            HexUtils.writeAsHex(high, jw);
+        }
+        HexUtils.writeAsHex(low, jw);
     }
 
     public void writeAsHex(StringBuilder sb) {
-        HexUtils.writeBytesAsHex(data, sb);
+        if (length == 16) {
+            HexUtils.writeAsHex(high, sb);
+        }
+        HexUtils.writeAsHex(low, sb);
     }
 
     /**
@@ -180,21 +236,31 @@ public class Id implements Recyclable {
      * @return the last 8 bytes of this id as a {@code long}
      */
     public long getLeastSignificantBits() {
-        return readLong(data.length - 8);
+        return low;
     }
 
     /**
      * Converts the next 8 bytes, starting from the offset, to a {@code long}
      */
     public long readLong(int offset) {
-        long lsb = 0;
+        if (offset == length - 8) {
+            return low;
+        } else if (offset == 0) {
+            return high;
+        }
+        long value = 0;
         for (int i = offset; i < offset + 8; i++) {
-            lsb = (lsb << 8) | (data[i] & 0xff);
+            value = (value << 8) | getByte(i);
         }
-        return lsb;
+        return value;
+    }
+
+    private int getByte(int index) {
+        long value = index < length - 8 ? high : low;
+        return (int) (value >>> (8 * (7 - (index & 7)))) & 0xff;
     }
 
     int getLength() {
-        return data.length;
+        return length;
     }
 }
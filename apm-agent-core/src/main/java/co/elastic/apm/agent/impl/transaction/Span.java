@@ -26,6 +26,7 @@ import co.elastic.apm.agent.impl.context.Message;
 import co.elastic.apm.agent.impl.context.SpanContext;
 import co.elastic.apm.agent.impl.context.Url;
 import co.elastic.apm.agent.impl.context.web.ResultUtil;
+import co.elastic.apm.agent.impl.stacktrace.CapturedStackTrace;
 import co.elastic.apm.agent.objectpool.Recyclable;
 import co.elastic.apm.agent.sdk.logging.Logger;
 import co.elastic.apm.agent.sdk.logging.LoggerFactory;
@@ -73,6 +74,9 @@ public class Span extends AbstractSpan<Span> implements Recyclable {
     private Transaction transaction;
     @Nullable
     private List<StackFrame> stackFrames;
+    @Nullable
+    private CapturedStackTrace capturedStackTrace;
+    private final Composite composite = new Composite();
 
     /**
      * If a span is non-discardable, all the spans leading up to it are non-discardable as well
@@ -286,13 +290,119 @@ public class Span extends AbstractSpan<Span> implements Recyclable {
         }
         if (parent != null) {
             parent.onChildEnd(epochMicros);
-            parent.decrementReferences();
         }
     }
 
     @Override
     protected void afterEnd() {
-        this.tracer.endSpan(this);
+        // the reference to the parent is held until here so that it can't be recycled while this span is buffered
+        AbstractSpan<?> parent = this.parent;
+        CoreConfiguration coreConfiguration = tracer.getConfig(CoreConfiguration.class);
+        if (parent == null || !coreConfiguration.isSpanCompressionEnabled()) {
+            this.tracer.endSpan(this);
+        } else if (!isCompressionEligible()) {
+            // only consecutive spans are compressed
+            parent.reportBufferedSpan();
+            this.tracer.endSpan(this);
+        } else if (parent.isFinished()) {
+            this.tracer.endSpan(this);
+        } else {
+            tracer.captureStackTrace(this);
+            Span buffered = parent.takeBufferedSpan();
+            if (buffered != null && buffered.tryToCompress(this, coreConfiguration)) {
+                parent.bufferSpan(buffered);
+                // this span is represented by the composite span
+                decrementReferences();
+            } else {
+                if (buffered != null) {
+                    this.tracer.endSpan(buffered);
+                }
+                parent.bufferSpan(this);
+            }
+        }
+        if (parent != null) {
+            parent.decrementReferences();
+        }
+    }
+
+    /**
+     * Only sampled exit spans which have been successful and which don't propagate the trace context are compressed.
+     */
+    private boolean isCompressionEligible() {
+        return isExit() && isSampled() && isDiscardable() && getOutcome() != Outcome.FAILURE && getStackFrames() == null;
+    }
+
+    /**
+     * Tries to compress a consecutive sibling into this span.
+     * This turns this span into a composite span if it isn't one already.
+     *
+     * @param sibling           the sibling that has ended after this span
+     * @param coreConfiguration the configuration containing the compression thresholds
+     * @return {@code true}, if the sibling has been compressed into this span, {@code false} otherwise
+     */
+    private boolean tryToCompress(Span sibling, CoreConfiguration coreConfiguration) {
+        if (!isSameKind(sibling)) {
+            return false;
+        }
+        long exactMatchMaxDuration = coreConfiguration.getSpanCompressionExactMatchMaxDuration().getMillis() * 1000;
+        long sameKindMaxDuration = coreConfiguration.getSpanCompressionSameKindMaxDuration().getMillis() * 1000;
+        long siblingDuration = sibling.getDuration();
+        if (!composite.hasContent()) {
+            if (contentEquals(name, sibling.name) && duration <= exactMatchMaxDuration && siblingDuration <= exactMatchMaxDuration) {
+                composite.init(duration, Composite.EXACT_MATCH);
+            } else if (duration <= sameKindMaxDuration && siblingDuration <= sameKindMaxDuration) {
+                composite.init(duration, Composite.SAME_KIND);
+                StringBuilder compositeName = getAndOverrideName(PRIO_USER_SUPPLIED);
+                if (compositeName != null) {
+                    compositeName.append("Calls to ").append(context.getDestination().getService().getResource());
+                }
+            } else {
+                return false;
+            }
+        } else if (Composite.EXACT_MATCH.equals(composite.getCompressionStrategy())) {
+            if (!contentEquals(name, sibling.name) || siblingDuration > exactMatchMaxDuration) {
+                return false;
+            }
+        } else if (siblingDuration > sameKindMaxDuration) {
+            return false;
+        }
+        composite.add(siblingDuration);
+        duration = Math.max(duration, sibling.getTimestamp() + siblingDuration - getTimestamp());
+        return true;
+    }
+
+    private boolean isSameKind(Span other) {
+        return equals(type, other.type)
+            && equals(subtype, other.subtype)
+            && contentEquals(context.getDestination().getService().getResource(), other.context.getDestination().getService().getResource());
+    }
+
+    private static boolean equals(@Nullable String s1, @Nullable String s2) {
+        return s1 == null ? s2 == null : s1.equals(s2);
+    }
+
+    private static boolean contentEquals(CharSequence cs1, CharSequence cs2) {
+        int length = cs1.length();
+        if (length != cs2.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (cs1.charAt(i) != cs2.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the composite information if this span represents multiple compressed spans
+     */
+    public Composite getComposite() {
+        return composite;
+    }
+
+    public boolean isComposite() {
+        return composite.hasContent();
     }
 
     @Override
@@ -300,6 +410,7 @@ public class Span extends AbstractSpan<Span> implements Recyclable {
         super.resetState();
         context.resetState();
         stacktrace = null;
+        composite.resetState();
         type = null;
         subtype = null;
         action = null;
@@ -310,6 +421,7 @@ public class Span extends AbstractSpan<Span> implements Recyclable {
         // when trying to recycle this list by clearing it, we increase the static memory overhead of the agent
         // because all spans in the pool contain that list even if they are not used as inferred spans
         stackFrames = null;
+        capturedStackTrace = null;
     }
 
     @Override
@@ -322,6 +434,16 @@ public class Span extends AbstractSpan<Span> implements Recyclable {
         return this;
     }
 
+    public Span withStackTrace(CapturedStackTrace capturedStackTrace) {
+        this.capturedStackTrace = capturedStackTrace;
+        return this;
+    }
+
+    @Nullable
+    public CapturedStackTrace getCapturedStackTrace() {
+        return capturedStackTrace;
+    }
+
     @Override
     public void incrementReferences() {
         if (transaction != null) {
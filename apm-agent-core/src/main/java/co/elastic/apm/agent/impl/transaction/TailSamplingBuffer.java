@@ -0,0 +1,119 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl.transaction;
+
+import co.elastic.apm.agent.objectpool.Recyclable;
+import co.elastic.apm.agent.report.Reporter;
+
+/**
+ * Buffers the ended spans of a transaction until it has been decided whether the transaction is reported,
+ * see {@code tail_sampling_enabled}.
+ * <p>
+ * The buffered spans are held in their pooled form and keep a reference to the transaction, so that it's not recycled before the decision.
+ * Spans that end after the decision has been made are reported or discarded right away.
+ * </p>
+ */
+public class TailSamplingBuffer implements Recyclable {
+
+    private static final int UNDECIDED = 0;
+    private static final int KEEP = 1;
+    private static final int DISCARD = 2;
+
+    /**
+     * Retained after the transaction has been recycled to avoid allocations
+     */
+    private Span[] spans = new Span[0];
+    private int size;
+    private int decision = UNDECIDED;
+    private boolean hasFailedSpans;
+
+    /**
+     * Buffers a span until {@link #decide(boolean, Reporter)} is called.
+     *
+     * @param span     the ended span
+     * @param maxSpans the maximum number of spans to buffer
+     * @param reporter the reporter to report the buffered spans to, if the buffer is full
+     * @return {@code true}, if the span has been buffered or discarded,
+     * {@code false}, if the caller has to report the span as the transaction is going to be reported anyway
+     */
+    public synchronized boolean offer(Span span, int maxSpans, Reporter reporter) {
+        if (decision == DISCARD) {
+            span.decrementReferences();
+            return true;
+        } else if (decision == KEEP) {
+            return false;
+        }
+        if (span.getOutcome() == Outcome.FAILURE) {
+            hasFailedSpans = true;
+        }
+        if (size >= maxSpans) {
+            // the spans can't be held back any longer
+            decide(true, reporter);
+            return false;
+        }
+        if (size == spans.length) {
+            Span[] newSpans = new Span[Math.min(Math.max(size * 2, 16), Math.max(maxSpans, 1))];
+            System.arraycopy(spans, 0, newSpans, 0, size);
+            spans = newSpans;
+        }
+        spans[size++] = span;
+        return true;
+    }
+
+    /**
+     * Reports or discards all buffered spans and the spans that end after this call.
+     *
+     * @param keep     whether to report the spans
+     * @param reporter the reporter
+     */
+    public synchronized void decide(boolean keep, Reporter reporter) {
+        decision = keep ? KEEP : DISCARD;
+        for (int i = 0; i < size; i++) {
+            Span span = spans[i];
+            spans[i] = null;
+            if (keep) {
+                reporter.report(span);
+            } else {
+                span.decrementReferences();
+            }
+        }
+        size = 0;
+    }
+
+    /**
+     * @return whether one of the buffered spans has failed
+     */
+    public synchronized boolean hasFailedSpans() {
+        return hasFailedSpans;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    public synchronized void resetState() {
+        for (int i = 0; i < size; i++) {
+            spans[i] = null;
+        }
+        size = 0;
+        decision = UNDECIDED;
+        hasFailedSpans = false;
+    }
+}
@@ -24,6 +24,7 @@ import co.elastic.apm.agent.impl.context.Response;
 import co.elastic.apm.agent.impl.context.TransactionContext;
 import co.elastic.apm.agent.impl.context.web.ResultUtil;
 import co.elastic.apm.agent.impl.sampling.Sampler;
+import co.elastic.apm.agent.metrics.Histogram;
 import co.elastic.apm.agent.metrics.Labels;
 import co.elastic.apm.agent.metrics.MetricRegistry;
 import co.elastic.apm.agent.metrics.Timer;
@@ -54,6 +55,8 @@ public class Transaction extends AbstractSpan<Transaction> {
      */
     private final TransactionContext context = new TransactionContext();
     private final SpanCount spanCount = new SpanCount();
+    private final DroppedSpanStats droppedSpanStats = new DroppedSpanStats();
+    private final TailSamplingBuffer tailSamplingBuffer = new TailSamplingBuffer();
     /**
      * type: subtype: timer
      * <p>
@@ -64,7 +67,37 @@ public class Transaction extends AbstractSpan<Transaction> {
      * </p>
      */
     private final KeyListConcurrentHashMap<String, KeyListConcurrentHashMap<String, Timer>> timerBySpanTypeAndSubtype = new KeyListConcurrentHashMap<>();
+    /**
+     * type: subtype: individual self-times of the spans which have ended on other threads than the {@link #ownerThread}
+     * <p>
+     * Only populated if {@link #latencyHistograms} are enabled.
+     * Like {@link #timerBySpanTypeAndSubtype}, this map is not cleared when the transaction is recycled.
+     * </p>
+     */
+    private final KeyListConcurrentHashMap<String, KeyListConcurrentHashMap<String, Histogram>> histogramBySpanTypeAndSubtype = new KeyListConcurrentHashMap<>();
     private final WriterReaderPhaser phaser = new WriterReaderPhaser();
+    /**
+     * Self-times of spans ending on the {@link #ownerThread}, which don't need to go through the {@link #phaser} and the concurrent timers
+     */
+    private final ConfinedSelfTimes confinedSelfTimes = new ConfinedSelfTimes();
+    /**
+     * The thread which has started this transaction.
+     * <p>
+     * Set to {@code null} when the transaction ends on another thread,
+     * which hands the {@link #confinedSelfTimes} off to the ending thread, see {@link #handOffConfinedSelfTimes()}.
+     * </p>
+     */
+    @Nullable
+    private volatile Thread ownerThread;
+    /**
+     * Whether the {@link #ownerThread} is currently updating the {@link #confinedSelfTimes}
+     */
+    private volatile boolean ownerUpdating;
+    /**
+     * Whether to record the duration of this transaction and the self-time of each of its spans in histograms,
+     * see {@link CoreConfiguration#isLatencyHistogramsEnabled()}
+     */
+    private boolean latencyHistograms;
 
     /**
      * The result of the transaction. HTTP status code for HTTP-related
@@ -128,7 +161,10 @@ public class Transaction extends AbstractSpan<Transaction> {
     }
 
     private void onTransactionStart(boolean startedAsChild, long epochMicros, Sampler sampler) {
-        maxSpans = tracer.getConfig(CoreConfiguration.class).getTransactionMaxSpans();
+        ownerThread = Thread.currentThread();
+        CoreConfiguration coreConfiguration = tracer.getConfig(CoreConfiguration.class);
+        maxSpans = coreConfiguration.getTransactionMaxSpans();
+        latencyHistograms = coreConfiguration.isLatencyHistogramsEnabled();
         if (!startedAsChild) {
             traceContext.asRootSpan(sampler);
         }
@@ -253,6 +289,23 @@ public class Transaction extends AbstractSpan<Transaction> {
         return spanCount;
     }
 
+    public DroppedSpanStats getDroppedSpanStats() {
+        return droppedSpanStats;
+    }
+
+    public TailSamplingBuffer getTailSamplingBuffer() {
+        return tailSamplingBuffer;
+    }
+
+    /**
+     * Marks this transaction as non-sampled after it has ended,
+     * so that it's reported like a transaction that hasn't been sampled in the first place.
+     * Used when the transaction is not kept by the tail sampling policy.
+     */
+    public void markUnsampled() {
+        getTraceContext().setRecorded(false);
+    }
+
     boolean isSpanLimitReached() {
         return getSpanCount().isSpanLimitReached(maxSpans);
     }
@@ -267,13 +320,19 @@ public class Transaction extends AbstractSpan<Transaction> {
         context.resetState();
         result = null;
         spanCount.resetState();
+        droppedSpanStats.resetState();
+        tailSamplingBuffer.resetState();
         type = null;
         noop = false;
         maxSpans = 0;
+        latencyHistograms = false;
         frameworkName = null;
         frameworkVersion = null;
         faas.resetState();
+        ownerThread = null;
         // don't clear timerBySpanTypeAndSubtype map (see field-level javadoc)
+        // but reset the timings of spans which have ended concurrently to trackMetrics on another thread
+        confinedSelfTimes.resetState();
     }
 
     public boolean isNoop() {
@@ -370,6 +429,21 @@ public class Transaction extends AbstractSpan<Transaction> {
     }
 
     void incrementTimer(@Nullable String type, @Nullable String subtype, long duration) {
+        if (Thread.currentThread() == ownerThread) {
+            ownerUpdating = true;
+            try {
+                // re-check after announcing the update, as the transaction may have been handed off to an ending thread in the meantime
+                if (Thread.currentThread() == ownerThread) {
+                    // only the owner thread updates these timers, no need to synchronize with other writers
+                    if (collectBreakdownMetrics && type != null && !finished) {
+                        confinedSelfTimes.update(type, subtype, duration, latencyHistograms);
+                    }
+                    return;
+                }
+            } finally {
+                ownerUpdating = false;
+            }
+        }
         long criticalValueAtEnter = phaser.writerCriticalSectionEnter();
         try {
             if (!collectBreakdownMetrics || type == null || finished) {
@@ -395,21 +469,70 @@ public class Transaction extends AbstractSpan<Transaction> {
                 }
             }
             timer.update(duration);
+            Histogram histogram = null;
+            if (latencyHistograms) {
+                histogram = getOrCreateHistogram(type, subtype);
+                histogram.update(duration);
+            }
             if (finished) {
                 // in case end()->trackMetrics() has been called concurrently
                 // don't leak timers
                 timer.resetState();
+                if (histogram != null) {
+                    histogram.resetState();
+                }
             }
         } finally {
             phaser.writerCriticalSectionExit(criticalValueAtEnter);
         }
     }
 
+    private Histogram getOrCreateHistogram(String type, String subtype) {
+        KeyListConcurrentHashMap<String, Histogram> histogramsBySubtype = histogramBySpanTypeAndSubtype.get(type);
+        if (histogramsBySubtype == null) {
+            histogramsBySubtype = new KeyListConcurrentHashMap<>();
+            KeyListConcurrentHashMap<String, Histogram> racyMap = histogramBySpanTypeAndSubtype.putIfAbsent(type, histogramsBySubtype);
+            if (racyMap != null) {
+                histogramsBySubtype = racyMap;
+            }
+        }
+        Histogram histogram = histogramsBySubtype.get(subtype);
+        if (histogram == null) {
+            histogram = new Histogram();
+            Histogram racyHistogram = histogramsBySubtype.putIfAbsent(subtype, histogram);
+            if (racyHistogram != null) {
+                histogram = racyHistogram;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Makes sure that the {@link #ownerThread} doesn't update the {@link #confinedSelfTimes} while they are read by another thread that ends the transaction.
+     * <p>
+     * After clearing the {@link #ownerThread}, the former owner takes the same path as all other threads, through the {@link #phaser}.
+     * An update the owner has already started is waited for.
+     * As both fields are volatile, either the owner sees the cleared {@link #ownerThread},
+     * or this thread sees that the owner is updating.
+     * </p>
+     */
+    private void handOffConfinedSelfTimes() {
+        if (Thread.currentThread() == ownerThread) {
+            // the transaction ends on the thread that started it, which is the only one updating the confined self-times
+            return;
+        }
+        ownerThread = null;
+        while (ownerUpdating) {
+            Thread.yield();
+        }
+    }
+
     private void trackMetrics() {
+        handOffConfinedSelfTimes();
         try {
             phaser.readerLock();
             phaser.flipPhase();
-            // timers are guaranteed to be stable now
+            // concurrent timers are guaranteed to be stable now
             // - no concurrent updates possible as finished is true
             // - no other thread is running the incrementTimer method,
             //   as flipPhase only returns when all threads have exited that method
@@ -427,21 +550,31 @@ public class Transaction extends AbstractSpan<Transaction> {
             final MetricRegistry metricRegistry = tracer.getMetricRegistry();
             long criticalValueAtEnter = metricRegistry.writerCriticalSectionEnter();
             try {
+                if (latencyHistograms) {
+                    metricRegistry.updateHistogram("transaction.duration.histogram", labels, getDuration());
+                }
                 if (collectBreakdownMetrics) {
+                    for (int i = 0, size = confinedSelfTimes.size(); i < size; i++) {
+                        ConfinedSelfTimes.Entry entry = confinedSelfTimes.get(i);
+                        if (entry.count > 0) {
+                            setSpanTypeAndSubtype(labels, entry.type, entry.subtype);
+                            updateSelfTime(metricRegistry, entry.getMetricSetId(metricRegistry, labels), entry.totalTimeUs, entry.count, entry.histogram);
+                            entry.resetState();
+                        }
+                    }
                     List<String> types = timerBySpanTypeAndSubtype.keyList();
                     for (int i = 0; i < types.size(); i++) {
                         String spanType = types.get(i);
                         KeyListConcurrentHashMap<String, Timer> timerBySubtype = timerBySpanTypeAndSubtype.get(spanType);
+                        KeyListConcurrentHashMap<String, Histogram> histogramBySubtype = histogramBySpanTypeAndSubtype.get(spanType);
                         List<String> subtypes = timerBySubtype.keyList();
                         for (int j = 0; j < subtypes.size(); j++) {
                             String subtype = subtypes.get(j);
                             final Timer timer = timerBySubtype.get(subtype);
                             if (timer.getCount() > 0) {
-                                if (subtype.equals("")) {
-                                    subtype = null;
-                                }
-                                labels.spanType(spanType).spanSubType(subtype);
-                                metricRegistry.updateTimer("span.self_time", labels, timer.getTotalTimeUs(), timer.getCount());
+                                setSpanTypeAndSubtype(labels, spanType, subtype);
+                                Histogram histogram = histogramBySubtype != null ? histogramBySubtype.get(subtype) : null;
+                                updateSelfTime(metricRegistry, metricRegistry.getOrCreateMetricSetId(labels), timer.getTotalTimeUs(), timer.getCount(), histogram);
                                 timer.resetState();
                             }
                         }
@@ -454,4 +587,17 @@ public class Transaction extends AbstractSpan<Transaction> {
             phaser.readerUnlock();
         }
     }
+
+    private static void setSpanTypeAndSubtype(Labels.Mutable labels, String spanType, String subtype) {
+        labels.spanType(spanType).spanSubType(subtype.isEmpty() ? null : subtype);
+    }
+
+    private static void updateSelfTime(MetricRegistry metricRegistry, int metricSetId, long totalTimeUs, long count, @Nullable Histogram histogram) {
+        metricRegistry.updateTimer("span.self_time", metricSetId, totalTimeUs, count);
+        if (histogram != null && histogram.hasContent()) {
+            // the self-times have been recorded when the spans ended, before the labels of the transaction were final
+            metricRegistry.updateHistogram("span.self_time.histogram", metricSetId, histogram);
+            histogram.resetState();
+        }
+    }
 }
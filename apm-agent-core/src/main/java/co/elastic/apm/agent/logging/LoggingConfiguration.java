@@ -21,7 +21,8 @@ package co.elastic.apm.agent.logging;
 import co.elastic.apm.agent.configuration.converter.ByteValue;
 import co.elastic.apm.agent.configuration.converter.ByteValueConverter;
 import co.elastic.apm.agent.matcher.WildcardMatcher;
-import co.elastic.apm.agent.matcher.WildcardMatcherValueConverter;
+import co.elastic.apm.agent.matcher.WildcardMatcherSet;
+import co.elastic.apm.agent.matcher.WildcardMatcherSetValueConverter;
 import co.elastic.apm.agent.sdk.logging.LoggerFactory;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
@@ -35,7 +36,6 @@ import org.apache.logging.log4j.spi.LoggerContextFactory;
 import org.apache.logging.log4j.status.StatusLogger;
 import org.stagemonitor.configuration.ConfigurationOption;
 import org.stagemonitor.configuration.ConfigurationOptionProvider;
-import org.stagemonitor.configuration.converter.ListValueConverter;
 import org.stagemonitor.configuration.converter.MapValueConverter;
 import org.stagemonitor.configuration.converter.StringValueConverter;
 import org.stagemonitor.configuration.source.ConfigurationSource;
@@ -212,7 +212,7 @@ public class LoggingConfiguration extends ConfigurationOptionProvider {
         .buildWithDefault(Collections.<String, String>emptyMap());
 
     private final ConfigurationOption<List<WildcardMatcher>> logEcsFormatterAllowList = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherSetValueConverter(), List.class)
         .key("log_ecs_formatter_allow_list")
         .configurationCategory(LOGGING_CATEGORY)
         .description("Only formatters that match an item on this list will be automatically reformatted to ECS when \n" +
@@ -224,11 +224,11 @@ public class LoggingConfiguration extends ConfigurationOptionProvider {
             WildcardMatcher.DOCUMENTATION
         )
         .dynamic(false)
-        .buildWithDefault(Arrays.asList(
+        .buildWithDefault(WildcardMatcherSet.of(Arrays.asList(
             WildcardMatcher.valueOf("*PatternLayout*"),
             WildcardMatcher.valueOf("org.apache.log4j.SimpleLayout"),
             WildcardMatcher.valueOf("ch.qos.logback.core.encoder.EchoEncoder")
-        ));
+        )));
 
     private final ConfigurationOption<String> logEcsFormattingDestinationDir = ConfigurationOption.stringOption()
         .key("log_ecs_reformatting_dir")
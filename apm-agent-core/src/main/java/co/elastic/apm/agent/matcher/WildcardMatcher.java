@@ -172,6 +172,10 @@ public abstract class WildcardMatcher {
 
     /**
      * Returns the first {@link WildcardMatcher} {@linkplain WildcardMatcher#matches(CharSequence) matching} the provided partitioned string.
+     * <p>
+     * If the matchers are a {@link WildcardMatcherSet}, which is the case for the values of configuration options,
+     * the compiled matchers are used instead of trying each matcher one after another.
+     * </p>
      *
      * @param matchers   the matchers which should be used to match the provided string
      * @param firstPart  The first part of the string to match against.
@@ -181,6 +185,9 @@ public abstract class WildcardMatcher {
      */
     @Nullable
     public static WildcardMatcher anyMatch(List<WildcardMatcher> matchers, CharSequence firstPart, @Nullable CharSequence secondPart) {
+        if (matchers instanceof WildcardMatcherSet) {
+            return ((WildcardMatcherSet) matchers).anyMatch(firstPart, secondPart);
+        }
         for (int i = 0; i < matchers.size(); i++) {
             if (matchers.get(i).matches(firstPart, secondPart)) {
                 return matchers.get(i);
@@ -396,5 +403,17 @@ public abstract class WildcardMatcher {
         public String getMatcher() {
             return matcher;
         }
+
+        boolean isWildcardAtBeginning() {
+            return wildcardAtBeginning;
+        }
+
+        boolean isWildcardAtEnd() {
+            return wildcardAtEnd;
+        }
+
+        boolean isIgnoreCase() {
+            return ignoreCase;
+        }
     }
 }
@@ -0,0 +1,336 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.matcher;
+
+import javax.annotation.Nullable;
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.RandomAccess;
+
+/**
+ * An immutable list of {@link WildcardMatcher}s which is compiled once,
+ * so that finding the first matching {@link WildcardMatcher} does not require trying each one after another.
+ * <p>
+ * The configuration options containing a list of {@link WildcardMatcher}s are converted to a {@link WildcardMatcherSet},
+ * see {@link WildcardMatcherSetValueConverter}.
+ * That means that a list is only compiled when the configuration changes,
+ * and that {@link WildcardMatcher#anyMatch(List, CharSequence)} transparently uses the compiled matchers.
+ * </p>
+ * <p>
+ * Separately for case sensitive and case insensitive matchers,
+ * the matchers are compiled into
+ * </p>
+ * <ul>
+ *     <li>a trie of the prefixes of matchers like {@code foo*} and {@code foo}</li>
+ *     <li>a trie of the reversed suffixes of matchers like {@code *foo}</li>
+ *     <li>an Aho-Corasick automaton of the infixes of matchers like {@code *foo*}</li>
+ * </ul>
+ * <p>
+ * This means that the string to match is traversed at most three times per case sensitivity,
+ * regardless of the number of matchers.
+ * Matchers with wildcards in the middle, like {@code /foo/*}{@code /bar}, are tried one after another.
+ * Just as with {@link WildcardMatcher}, matching is completely allocation free.
+ * </p>
+ */
+// don't use for-each as it allocates memory by instantiating an iterator
+@SuppressWarnings("ForLoopReplaceableByForEach")
+public final class WildcardMatcherSet extends AbstractList<WildcardMatcher> implements RandomAccess {
+
+    private static final int NO_MATCH = Integer.MAX_VALUE;
+
+    private final List<WildcardMatcher> matchers;
+    private final CompiledMatchers caseInsensitiveMatchers = new CompiledMatchers(true);
+    private final CompiledMatchers caseSensitiveMatchers = new CompiledMatchers(false);
+    /**
+     * The indices of the matchers that can't be compiled, in ascending order
+     */
+    private final int[] otherMatchers;
+
+    private WildcardMatcherSet(List<WildcardMatcher> matchers) {
+        this.matchers = Collections.unmodifiableList(new ArrayList<>(matchers));
+        int[] otherMatchers = new int[matchers.size()];
+        int others = 0;
+        for (int i = 0; i < matchers.size(); i++) {
+            WildcardMatcher matcher = matchers.get(i);
+            if (!(matcher instanceof WildcardMatcher.SimpleWildcardMatcher) || matcher.getMatcher().isEmpty()) {
+                // empty matchers, like *, have special semantics, see WildcardMatcher#indexOfIgnoreCase
+                otherMatchers[others++] = i;
+                continue;
+            }
+            WildcardMatcher.SimpleWildcardMatcher simpleMatcher = (WildcardMatcher.SimpleWildcardMatcher) matcher;
+            if (simpleMatcher.isIgnoreCase()) {
+                caseInsensitiveMatchers.add(simpleMatcher, i);
+            } else {
+                caseSensitiveMatchers.add(simpleMatcher, i);
+            }
+        }
+        this.otherMatchers = Arrays.copyOf(otherMatchers, others);
+        caseInsensitiveMatchers.compile();
+        caseSensitiveMatchers.compile();
+    }
+
+    /**
+     * Compiles the provided matchers, unless they already are a {@link WildcardMatcherSet}.
+     *
+     * @param matchers the matchers to compile
+     * @return a {@link WildcardMatcherSet} containing the provided matchers in the same order
+     */
+    public static WildcardMatcherSet of(List<WildcardMatcher> matchers) {
+        if (matchers instanceof WildcardMatcherSet) {
+            return (WildcardMatcherSet) matchers;
+        }
+        return new WildcardMatcherSet(matchers);
+    }
+
+    @Override
+    public WildcardMatcher get(int index) {
+        return matchers.get(index);
+    }
+
+    @Override
+    public int size() {
+        return matchers.size();
+    }
+
+    /**
+     * Returns the first {@link WildcardMatcher} {@linkplain WildcardMatcher#matches(CharSequence) matching} the provided string.
+     *
+     * @param s the string to match against
+     * @return the first matching {@link WildcardMatcher}, or {@code null} if none match.
+     */
+    @Nullable
+    public WildcardMatcher anyMatch(@Nullable CharSequence s) {
+        if (s == null) {
+            return null;
+        }
+        return anyMatch(s, null);
+    }
+
+    /**
+     * Returns the first {@link WildcardMatcher} {@linkplain WildcardMatcher#matches(CharSequence, CharSequence) matching} the provided partitioned string.
+     *
+     * @param firstPart  The first part of the string to match against.
+     * @param secondPart The second part of the string to match against.
+     * @return the first matching {@link WildcardMatcher}, or {@code null} if none match.
+     */
+    @Nullable
+    public WildcardMatcher anyMatch(CharSequence firstPart, @Nullable CharSequence secondPart) {
+        if (secondPart == null) {
+            secondPart = "";
+        }
+        int firstMatch = caseInsensitiveMatchers.indexOfFirstMatch(firstPart, secondPart, NO_MATCH);
+        firstMatch = caseSensitiveMatchers.indexOfFirstMatch(firstPart, secondPart, firstMatch);
+        for (int i = 0; i < otherMatchers.length && otherMatchers[i] < firstMatch; i++) {
+            if (matchers.get(otherMatchers[i]).matches(firstPart, secondPart)) {
+                firstMatch = otherMatchers[i];
+                break;
+            }
+        }
+        return firstMatch == NO_MATCH ? null : matchers.get(firstMatch);
+    }
+
+    /**
+     * The compiled matchers of the same case sensitivity.
+     */
+    private static class CompiledMatchers {
+
+        private final boolean ignoreCase;
+        private final Node prefixes = new Node();
+        private final Node suffixes = new Node();
+        private final Node infixes = new Node();
+        private int minPrefixIndex = NO_MATCH;
+        private int minSuffixIndex = NO_MATCH;
+        private int minInfixIndex = NO_MATCH;
+
+        private CompiledMatchers(boolean ignoreCase) {
+            this.ignoreCase = ignoreCase;
+        }
+
+        private void add(WildcardMatcher.SimpleWildcardMatcher matcher, int index) {
+            String pattern = matcher.getMatcher();
+            boolean wildcardAtBeginning = matcher.isWildcardAtBeginning();
+            boolean wildcardAtEnd = matcher.isWildcardAtEnd();
+            if (wildcardAtBeginning && wildcardAtEnd) {
+                Node node = infixes;
+                for (int i = 0; i < pattern.length(); i++) {
+                    node = node.addChild(normalize(pattern.charAt(i)));
+                }
+                node.patternIndex = Math.min(node.patternIndex, index);
+                minInfixIndex = Math.min(minInfixIndex, index);
+            } else if (wildcardAtBeginning) {
+                Node node = suffixes;
+                for (int i = pattern.length() - 1; i >= 0; i--) {
+                    node = node.addChild(normalize(pattern.charAt(i)));
+                }
+                node.patternIndex = Math.min(node.patternIndex, index);
+                minSuffixIndex = Math.min(minSuffixIndex, index);
+            } else {
+                Node node = prefixes;
+                for (int i = 0; i < pattern.length(); i++) {
+                    node = node.addChild(normalize(pattern.charAt(i)));
+                }
+                if (wildcardAtEnd) {
+                    node.patternIndex = Math.min(node.patternIndex, index);
+                } else {
+                    node.exactIndex = Math.min(node.exactIndex, index);
+                }
+                minPrefixIndex = Math.min(minPrefixIndex, index);
+            }
+        }
+
+        /**
+         * Computes the failure links of the Aho-Corasick automaton, in breadth-first order.
+         */
+        private void compile() {
+            infixes.failure = infixes;
+            infixes.outputIndex = infixes.patternIndex;
+            Queue<Node> queue = new ArrayDeque<>();
+            queue.add(infixes);
+            while (!queue.isEmpty()) {
+                Node parent = queue.remove();
+                for (int i = 0; i < parent.keys.length; i++) {
+                    char c = parent.keys[i];
+                    Node child = parent.children[i];
+                    Node failure = infixes;
+                    if (parent != infixes) {
+                        Node candidate = parent.failure;
+                        while (candidate != infixes && candidate.child(c) == null) {
+                            candidate = candidate.failure;
+                        }
+                        Node next = candidate.child(c);
+                        failure = next != null ? next : infixes;
+                    }
+                    child.failure = failure;
+                    child.outputIndex = Math.min(child.patternIndex, failure.outputIndex);
+                    queue.add(child);
+                }
+            }
+        }
+
+        /**
+         * @param firstMatch the index of the first matcher that is already known to match
+         * @return the index of the first matcher that matches, or {@code firstMatch} if there's no matcher with a lower index that matches
+         */
+        private int indexOfFirstMatch(CharSequence firstPart, CharSequence secondPart, int firstMatch) {
+            int firstPartLength = firstPart.length();
+            int length = firstPartLength + secondPart.length();
+            if (minPrefixIndex < firstMatch) {
+                Node node = prefixes;
+                for (int i = 0; i < length; i++) {
+                    node = node.child(normalize(WildcardMatcher.charAt(i, firstPart, secondPart, firstPartLength)));
+                    if (node == null) {
+                        break;
+                    }
+                    firstMatch = Math.min(firstMatch, node.patternIndex);
+                    if (i == length - 1) {
+                        firstMatch = Math.min(firstMatch, node.exactIndex);
+                    }
+                }
+            }
+            if (minSuffixIndex < firstMatch) {
+                Node node = suffixes;
+                for (int i = length - 1; i >= 0; i--) {
+                    node = node.child(normalize(WildcardMatcher.charAt(i, firstPart, secondPart, firstPartLength)));
+                    if (node == null) {
+                        break;
+                    }
+                    firstMatch = Math.min(firstMatch, node.patternIndex);
+                }
+            }
+            if (minInfixIndex < firstMatch) {
+                Node node = infixes;
+                for (int i = 0; i < length && minInfixIndex < firstMatch; i++) {
+                    char c = normalize(WildcardMatcher.charAt(i, firstPart, secondPart, firstPartLength));
+                    Node next = node.child(c);
+                    while (next == null && node != infixes) {
+                        node = node.failure;
+                        next = node.child(c);
+                    }
+                    node = next != null ? next : infixes;
+                    firstMatch = Math.min(firstMatch, node.outputIndex);
+                }
+            }
+            return firstMatch;
+        }
+
+        private char normalize(char c) {
+            return ignoreCase ? Character.toLowerCase(c) : c;
+        }
+    }
+
+    private static class Node {
+
+        private static final char[] NO_KEYS = new char[0];
+        private static final Node[] NO_CHILDREN = new Node[0];
+
+        /**
+         * The characters of the child nodes, in ascending order
+         */
+        private char[] keys = NO_KEYS;
+        private Node[] children = NO_CHILDREN;
+        /**
+         * The lowest index of the matchers whose prefix, suffix or infix ends at this node
+         */
+        private int patternIndex = NO_MATCH;
+        /**
+         * The lowest index of the matchers without wildcards which end at this node, only used in the prefix trie
+         */
+        private int exactIndex = NO_MATCH;
+        /**
+         * The Aho-Corasick failure link, pointing to the node of the longest proper suffix that's also in the automaton
+         */
+        @Nullable
+        private Node failure;
+        /**
+         * The lowest {@link #patternIndex} of this node and of all nodes reachable via {@link #failure} links
+         */
+        private int outputIndex = NO_MATCH;
+
+        @Nullable
+        private Node child(char c) {
+            int i = Arrays.binarySearch(keys, c);
+            return i >= 0 ? children[i] : null;
+        }
+
+        private Node addChild(char c) {
+            int i = Arrays.binarySearch(keys, c);
+            if (i >= 0) {
+                return children[i];
+            }
+            int insertionPoint = -i - 1;
+            char[] newKeys = new char[keys.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, insertionPoint);
+            System.arraycopy(children, 0, newChildren, 0, insertionPoint);
+            System.arraycopy(keys, insertionPoint, newKeys, insertionPoint + 1, keys.length - insertionPoint);
+            System.arraycopy(children, insertionPoint, newChildren, insertionPoint + 1, children.length - insertionPoint);
+            Node child = new Node();
+            newKeys[insertionPoint] = c;
+            newChildren[insertionPoint] = child;
+            keys = newKeys;
+            children = newChildren;
+            return child;
+        }
+    }
+}
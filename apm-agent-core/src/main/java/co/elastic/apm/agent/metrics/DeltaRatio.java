@@ -0,0 +1,65 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A gauge which reports the ratio between the increments of two monotonically increasing counters
+ * since the last time the gauge has been read,
+ * for example the average number of bytes per serialized event within the last metrics interval.
+ * <p>
+ * Reports {@link Double#NaN} if the denominator has not been incremented since the last read,
+ * which leads to the metric being omitted for that interval.
+ * </p>
+ */
+public class DeltaRatio implements DoubleSupplier {
+
+    private final AtomicLong numerator = new AtomicLong();
+    private final AtomicLong denominator = new AtomicLong();
+    private long lastNumerator;
+    private long lastDenominator;
+
+    public void increment(long numeratorDelta, long denominatorDelta) {
+        numerator.addAndGet(numeratorDelta);
+        denominator.addAndGet(denominatorDelta);
+    }
+
+    public long getNumerator() {
+        return numerator.get();
+    }
+
+    public long getDenominator() {
+        return denominator.get();
+    }
+
+    @Override
+    public synchronized double get() {
+        long currentNumerator = numerator.get();
+        long currentDenominator = denominator.get();
+        long numeratorDelta = currentNumerator - lastNumerator;
+        long denominatorDelta = currentDenominator - lastDenominator;
+        lastNumerator = currentNumerator;
+        lastDenominator = currentDenominator;
+        if (denominatorDelta == 0) {
+            return Double.NaN;
+        }
+        return (double) numeratorDelta / denominatorDelta;
+    }
+}
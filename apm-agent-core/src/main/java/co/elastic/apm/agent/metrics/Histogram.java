@@ -0,0 +1,199 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.metrics;
+
+import co.elastic.apm.agent.objectpool.Recyclable;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A histogram of durations, in µs, with log-linear buckets, similar to an HDR histogram.
+ * <p>
+ * Values below {@code 2^}{@link #SUB_BUCKET_BITS} fall into a bucket of their own.
+ * Above that, each power of two is divided into {@code 2^}{@link #SUB_BUCKET_BITS} equally sized buckets,
+ * which limits the relative error of a recorded value to about 6%.
+ * Values greater than {@link #MAX_VALUE} (about 19 hours) are recorded as {@link #MAX_VALUE}.
+ * </p>
+ * <p>
+ * The buckets of each power of two are allocated when the first value within that range is recorded,
+ * as the values of a histogram are usually clustered within a few orders of magnitude.
+ * Buckets are retained when the histogram is reset, so that recording a value is allocation-free in steady state.
+ * Recording a value is lock-free.
+ * Consistent reads are ensured by the {@link org.HdrHistogram.WriterReaderPhaser} of the {@link MetricRegistry}.
+ * </p>
+ */
+public class Histogram implements Recyclable {
+
+    static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 36;
+    static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+    static final int BUCKET_COUNT = getBucketIndex(MAX_VALUE) + 1;
+
+    private static final int CHUNK_COUNT = (BUCKET_COUNT + SUB_BUCKET_COUNT - 1) / SUB_BUCKET_COUNT;
+
+    /**
+     * The counts of the buckets, in chunks of {@link #SUB_BUCKET_COUNT} buckets
+     */
+    private final AtomicReferenceArray<AtomicLongArray> chunks = new AtomicReferenceArray<>(CHUNK_COUNT);
+    private final AtomicLong count = new AtomicLong();
+
+    public void update(long durationUs) {
+        update(durationUs, 1);
+    }
+
+    public void update(long durationUs, long count) {
+        int bucketIndex = getBucketIndex(durationUs);
+        getOrCreateChunk(bucketIndex >>> SUB_BUCKET_BITS).addAndGet(bucketIndex & (SUB_BUCKET_COUNT - 1), count);
+        this.count.addAndGet(count);
+    }
+
+    /**
+     * Adds all values of the provided histogram to this one.
+     *
+     * @param other the histogram to add
+     */
+    public void add(Histogram other) {
+        if (!other.hasContent()) {
+            return;
+        }
+        for (int i = 0; i < CHUNK_COUNT; i++) {
+            AtomicLongArray otherChunk = other.chunks.get(i);
+            if (otherChunk != null) {
+                AtomicLongArray chunk = null;
+                for (int j = 0; j < SUB_BUCKET_COUNT; j++) {
+                    long bucketCount = otherChunk.get(j);
+                    if (bucketCount != 0) {
+                        if (chunk == null) {
+                            chunk = getOrCreateChunk(i);
+                        }
+                        chunk.addAndGet(j, bucketCount);
+                        count.addAndGet(bucketCount);
+                    }
+                }
+            }
+        }
+    }
+
+    private AtomicLongArray getOrCreateChunk(int chunkIndex) {
+        AtomicLongArray chunk = chunks.get(chunkIndex);
+        if (chunk == null) {
+            chunks.compareAndSet(chunkIndex, null, new AtomicLongArray(SUB_BUCKET_COUNT));
+            chunk = chunks.get(chunkIndex);
+        }
+        return chunk;
+    }
+
+    public static int getBucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) Math.max(value, 0);
+        }
+        value = Math.min(value, MAX_VALUE);
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKET_COUNT;
+        return SUB_BUCKET_COUNT + shift * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    /**
+     * @param bucketIndex the index of the bucket
+     * @return the lowest value that is recorded in the given bucket
+     */
+    static long getLowestValue(int bucketIndex) {
+        if (bucketIndex < SUB_BUCKET_COUNT) {
+            return bucketIndex;
+        }
+        int shift = bucketIndex / SUB_BUCKET_COUNT - 1;
+        long subBucket = bucketIndex % SUB_BUCKET_COUNT;
+        return (SUB_BUCKET_COUNT + subBucket) << shift;
+    }
+
+    /**
+     * @param bucketIndex the index of the bucket
+     * @return the value in the middle of the bucket, which is used as the representative value of all values within the bucket
+     */
+    public static double getBucketValue(int bucketIndex) {
+        long lowestValue = getLowestValue(bucketIndex);
+        if (bucketIndex < SUB_BUCKET_COUNT) {
+            return lowestValue;
+        }
+        long bucketWidth = 1L << (bucketIndex / SUB_BUCKET_COUNT - 1);
+        return lowestValue + (bucketWidth - 1) / 2d;
+    }
+
+    public static int getBucketCount() {
+        return BUCKET_COUNT;
+    }
+
+    public long getCount(int bucketIndex) {
+        AtomicLongArray chunk = chunks.get(bucketIndex >>> SUB_BUCKET_BITS);
+        return chunk != null ? chunk.get(bucketIndex & (SUB_BUCKET_COUNT - 1)) : 0;
+    }
+
+    /**
+     * @return the total number of recorded values
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    public boolean hasContent() {
+        return count.get() > 0;
+    }
+
+    /**
+     * Returns the value at the given percentile.
+     * As the values are bucketed, the result is only an approximation.
+     *
+     * @param percentile the percentile, between 0 and 100
+     * @return the approximate value at the given percentile, or {@code 0} if the histogram is empty
+     */
+    public double getValueAtPercentile(double percentile) {
+        long totalCount = count.get();
+        if (totalCount == 0) {
+            return 0;
+        }
+        long countAtPercentile = Math.max(1, (long) Math.ceil(percentile / 100 * totalCount));
+        long runningCount = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            runningCount += getCount(i);
+            if (runningCount >= countAtPercentile) {
+                return getBucketValue(i);
+            }
+        }
+        return getBucketValue(BUCKET_COUNT - 1);
+    }
+
+    @Override
+    public void resetState() {
+        if (count.get() > 0) {
+            for (int i = 0; i < CHUNK_COUNT; i++) {
+                AtomicLongArray chunk = chunks.get(i);
+                if (chunk != null) {
+                    for (int j = 0; j < SUB_BUCKET_COUNT; j++) {
+                        chunk.set(j, 0);
+                    }
+                }
+            }
+            count.set(0);
+        }
+    }
+}
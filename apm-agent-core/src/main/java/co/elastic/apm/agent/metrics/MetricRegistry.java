@@ -24,7 +24,6 @@ import org.HdrHistogram.WriterReaderPhaser;
 import co.elastic.apm.agent.sdk.logging.Logger;
 import co.elastic.apm.agent.sdk.logging.LoggerFactory;
 
-import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -33,16 +32,49 @@ import java.util.concurrent.ConcurrentMap;
 /**
  * A registry for metrics.
  * <p>
- * Currently only holds gauges.
- * There are plans to add support for histogram-based timers.
+ * Holds gauges, counters, timers and {@link Histogram}s.
  * </p>
  */
 public class MetricRegistry {
 
     private static final Logger logger = LoggerFactory.getLogger(MetricRegistry.class);
-    private static final int METRIC_SET_LIMIT = 1000;
+    public static final int DEFAULT_METRIC_SET_LIMIT = 1000;
+    /**
+     * The transaction name of the metric sets which aggregate the metrics of all labels that exceed the {@link #metricSetLimit}
+     */
+    static final String OVERFLOW_TRANSACTION_NAME = "_other";
+    /**
+     * The maximum number of overflow metric sets.
+     * <p>
+     * Metrics with labels that exceed the {@link #metricSetLimit} are aggregated by their low-cardinality labels,
+     * which are the service name and version, the transaction type and the span type and subtype.
+     * Only the transaction name is collapsed to {@link #OVERFLOW_TRANSACTION_NAME} and other labels are dropped.
+     * If there are more combinations of the low-cardinality labels than this limit,
+     * the remaining metrics are aggregated in the metric set with the {@link #OVERFLOW_LABELS}.
+     * </p>
+     */
+    static final int MAX_OVERFLOW_METRIC_SETS = 100;
+    /**
+     * The labels of the metric set which aggregates the metrics of all labels that exceed both the {@link #metricSetLimit}
+     * and the {@link #MAX_OVERFLOW_METRIC_SETS}
+     */
+    public static final Labels.Immutable OVERFLOW_LABELS = Labels.Mutable.of().transactionName(OVERFLOW_TRANSACTION_NAME).immutableCopy();
+    /**
+     * Returned by {@link #getOrCreateMetricSetId(Labels, boolean)} if the limit has been reached and overflowing is not allowed
+     */
+    private static final int NO_METRIC_SET = -1;
+    /**
+     * Used to look up the overflow metric set of labels without allocating
+     */
+    private static final ThreadLocal<Labels.Mutable> overflowLabelsThreadLocal = new ThreadLocal<Labels.Mutable>() {
+        @Override
+        protected Labels.Mutable initialValue() {
+            return Labels.Mutable.of();
+        }
+    };
     private final WriterReaderPhaser phaser = new WriterReaderPhaser();
     private final ReporterConfiguration config;
+    private final int metricSetLimit;
     /**
      * Groups {@link MetricSet}s by their unique labels.
      */
@@ -50,12 +82,51 @@ public class MetricRegistry {
     private ConcurrentMap<Labels.Immutable, MetricSet> inactiveMetricSets = new ConcurrentHashMap<>();
     /**
      * Final and thus stable references to the two different metric sets.
-     * See {@link #getOrCreateMetricSet(Labels)}
+     * See {@link #createMetricSet(Labels, boolean)}
      */
     private final ConcurrentMap<Labels.Immutable, MetricSet> metricSets1 = activeMetricSets, metricSets2 = inactiveMetricSets;
+    /**
+     * The metric sets of {@link #metricSets1} and {@link #metricSets2}, indexed by their {@link MetricSet#getId() id}.
+     * <p>
+     * Metric sets are never removed, so that their ids are dense and stable.
+     * This allows callers to cache the id for a combination of labels and to update the metric set without hashing the labels again.
+     * The last slots are reserved for the overflow metric sets.
+     * </p>
+     */
+    private final MetricSet[] metricSetsById1, metricSetsById2;
+    /**
+     * Guarded by {@code this}, only written when creating a metric set
+     */
+    private int metricSetCount;
+    /**
+     * Guarded by {@code this}, the number of overflow metric sets, not counting the one with the {@link #OVERFLOW_LABELS}
+     */
+    private int overflowMetricSetCount;
+    /**
+     * Whether the {@link #metricSetLimit} has been reached, which means that labels without a metric set are mapped to an overflow metric set.
+     * Allows to look up the overflow metric set without taking the lock on {@code this}.
+     */
+    private volatile boolean metricSetLimitReached;
+    /**
+     * Whether the {@link #MAX_OVERFLOW_METRIC_SETS} have been reached,
+     * which means that labels without an overflow metric set are mapped to the one with the {@link #OVERFLOW_LABELS}.
+     */
+    private volatile boolean overflowMetricSetLimitReached;
+    /**
+     * The number of times the lock on {@code this} has been taken to create a metric set, only written while holding the lock
+     */
+    // visible for testing
+    volatile int createMetricSetCalls;
 
     public MetricRegistry(ReporterConfiguration config) {
+        this(config, DEFAULT_METRIC_SET_LIMIT);
+    }
+
+    public MetricRegistry(ReporterConfiguration config, int metricSetLimit) {
         this.config = config;
+        this.metricSetLimit = metricSetLimit;
+        metricSetsById1 = new MetricSet[metricSetLimit + MAX_OVERFLOW_METRIC_SETS + 1];
+        metricSetsById2 = new MetricSet[metricSetLimit + MAX_OVERFLOW_METRIC_SETS + 1];
     }
 
     /**
@@ -117,9 +188,10 @@ public class MetricRegistry {
 
         long criticalValueAtEnter = phaser.writerCriticalSectionEnter();
         try {
-            final MetricSet metricSet = getOrCreateMetricSet(labels);
-            if (metricSet != null) {
-                metricSet.addGauge(name, metric);
+            // the gauges of different labels can't be aggregated, so they are not collected beyond the limit
+            final int metricSetId = getOrCreateMetricSetId(labels, false);
+            if (metricSetId != NO_METRIC_SET) {
+                getActiveMetricSet(metricSetId).addGauge(name, metric);
             }
         } finally {
             phaser.writerCriticalSectionExit(criticalValueAtEnter);
@@ -187,60 +259,207 @@ public class MetricRegistry {
     }
 
     public void updateTimer(String timerName, Labels labels, long durationUs, long count) {
+        updateTimer(timerName, getOrCreateMetricSetId(labels), durationUs, count);
+    }
+
+    /**
+     * Same as {@link #updateTimer(String, Labels, long, long)} but for the metric set with the provided id.
+     *
+     * @param timerName   the name of the timer
+     * @param metricSetId the id of the metric set, as returned by {@link #getOrCreateMetricSetId(Labels)}
+     * @param durationUs  the duration to add, in microseconds
+     * @param count       the number of durations that have been added up
+     */
+    public void updateTimer(String timerName, int metricSetId, long durationUs, long count) {
         long criticalValueAtEnter = phaser.writerCriticalSectionEnter();
         try {
-            final MetricSet metricSet = getOrCreateMetricSet(labels);
-            if (metricSet != null) {
-                metricSet.timer(timerName).update(durationUs, count);
-            }
+            getActiveMetricSet(metricSetId).timer(timerName).update(durationUs, count);
         } finally {
             phaser.writerCriticalSectionExit(criticalValueAtEnter);
         }
     }
 
+    public void updateHistogram(String histogramName, Labels labels, long durationUs) {
+        updateHistogram(histogramName, labels, durationUs, 1);
+    }
+
+    /**
+     * Records a value in the histogram with the provided name and labels.
+     *
+     * @param histogramName the name of the histogram
+     * @param labels        labels for the histogram
+     * @param durationUs    the value to record, in microseconds
+     * @param count         the number of times the value has been observed
+     */
+    public void updateHistogram(String histogramName, Labels labels, long durationUs, long count) {
+        updateHistogram(histogramName, getOrCreateMetricSetId(labels), durationUs, count);
+    }
+
+    /**
+     * Same as {@link #updateHistogram(String, Labels, long, long)} but for the metric set with the provided id.
+     *
+     * @param histogramName the name of the histogram
+     * @param metricSetId   the id of the metric set, as returned by {@link #getOrCreateMetricSetId(Labels)}
+     * @param durationUs    the value to record, in microseconds
+     * @param count         the number of times the value has been observed
+     */
+    public void updateHistogram(String histogramName, int metricSetId, long durationUs, long count) {
+        long criticalValueAtEnter = phaser.writerCriticalSectionEnter();
+        try {
+            getActiveMetricSet(metricSetId).histogram(histogramName).update(durationUs, count);
+        } finally {
+            phaser.writerCriticalSectionExit(criticalValueAtEnter);
+        }
+    }
+
+    /**
+     * Adds all values of the provided histogram to the histogram with the provided name in the metric set with the provided id.
+     * This allows to record individual values in a local histogram before the labels they belong to are known.
+     *
+     * @param histogramName the name of the histogram
+     * @param metricSetId   the id of the metric set, as returned by {@link #getOrCreateMetricSetId(Labels)}
+     * @param values        the values to add
+     */
+    public void updateHistogram(String histogramName, int metricSetId, Histogram values) {
+        long criticalValueAtEnter = phaser.writerCriticalSectionEnter();
+        try {
+            getActiveMetricSet(metricSetId).histogram(histogramName).add(values);
+        } finally {
+            phaser.writerCriticalSectionExit(criticalValueAtEnter);
+        }
+    }
+
+    /**
+     * Returns the id of the metric set for the provided labels and creates the metric set if it doesn't exist yet.
+     * <p>
+     * Callers which update the same metric set repeatedly can cache the id, together with the {@link #getMetricSetLabels(int) labels}
+     * of the metric set to check whether the id is still applicable.
+     * This avoids hashing the labels and looking them up for every update.
+     * </p>
+     * <p>
+     * If the configured limit of metric sets has been reached, the id of an overflow metric set is returned,
+     * which only has the low-cardinality labels of the provided ones and the transaction name {@link #OVERFLOW_TRANSACTION_NAME},
+     * see {@link #MAX_OVERFLOW_METRIC_SETS}.
+     * </p>
+     *
+     * @param labels the labels of the metric set
+     * @return the id of the metric set
+     */
+    public int getOrCreateMetricSetId(Labels labels) {
+        return getOrCreateMetricSetId(labels, true);
+    }
+
+    /**
+     * @param metricSetId the id of a metric set, as returned by {@link #getOrCreateMetricSetId(Labels)}
+     * @return the labels of the metric set
+     */
+    public Labels getMetricSetLabels(int metricSetId) {
+        return metricSetsById1[metricSetId].getLabels();
+    }
+
+    private int getOrCreateMetricSetId(Labels labels, boolean allowOverflow) {
+        MetricSet metricSet = activeMetricSets.get(labels);
+        if (metricSet != null) {
+            return metricSet.getId();
+        }
+        if (metricSetLimitReached) {
+            // once the limit is reached, labels with a high cardinality keep missing the map
+            // looking up their overflow metric set without taking the lock avoids contention when the registry is overloaded
+            if (!allowOverflow) {
+                return NO_METRIC_SET;
+            }
+            metricSet = activeMetricSets.get(getOverflowLabels(labels));
+            if (metricSet == null && overflowMetricSetLimitReached) {
+                metricSet = activeMetricSets.get(OVERFLOW_LABELS);
+            }
+            if (metricSet != null) {
+                return metricSet.getId();
+            }
+        }
+        return createMetricSet(labels, allowOverflow);
+    }
+
     /*
      * Must always be executed in context of a critical section so that the
      * activeMetricSets and inactiveMetricSets reference can't swap while this method runs
      */
-    @Nullable
-    private MetricSet getOrCreateMetricSet(Labels labels) {
-        MetricSet metricSet = activeMetricSets.get(labels);
+    private MetricSet getActiveMetricSet(int metricSetId) {
+        return activeMetricSets == metricSets1 ? metricSetsById1[metricSetId] : metricSetsById2[metricSetId];
+    }
+
+    private synchronized int createMetricSet(Labels labels, boolean allowOverflow) {
+        createMetricSetCalls++;
+        // both maps contain the same labels, but metricSets1 is the first one to be updated
+        MetricSet metricSet = metricSets1.get(labels);
         if (metricSet != null) {
-            return metricSet;
+            return metricSet.getId();
         }
-        if (activeMetricSets.size() < METRIC_SET_LIMIT) {
-            return createMetricSet(labels.immutableCopy());
+        if (metricSetCount < metricSetLimit) {
+            int metricSetId = addMetricSet(labels.immutableCopy());
+            if (metricSetCount == metricSetLimit) {
+                metricSetLimitReached = true;
+                logger.warn("The limit of {} metric sets has been reached, metrics with new labels are aggregated into metric sets with the " +
+                    "transaction name '_other'. Try to name your transactions so that there are less distinct transaction names.", metricSetLimit);
+            }
+            return metricSetId;
         }
-        return null;
+        if (!allowOverflow) {
+            return NO_METRIC_SET;
+        }
+        Labels overflowLabels = getOverflowLabels(labels);
+        metricSet = metricSets1.get(overflowLabels);
+        if (metricSet != null) {
+            return metricSet.getId();
+        }
+        if (overflowMetricSetCount < MAX_OVERFLOW_METRIC_SETS) {
+            overflowMetricSetCount++;
+            if (overflowMetricSetCount == MAX_OVERFLOW_METRIC_SETS) {
+                overflowMetricSetLimitReached = true;
+            }
+            return addMetricSet(overflowLabels.immutableCopy());
+        }
+        metricSet = metricSets1.get(OVERFLOW_LABELS);
+        if (metricSet != null) {
+            return metricSet.getId();
+        }
+        return addMetricSet(OVERFLOW_LABELS);
+    }
+
+    /**
+     * The returned labels are reused by subsequent calls on the same thread
+     *
+     * @return the low-cardinality labels of the provided labels, with the transaction name {@link #OVERFLOW_TRANSACTION_NAME}
+     */
+    private static Labels getOverflowLabels(Labels labels) {
+        Labels.Mutable overflowLabels = overflowLabelsThreadLocal.get();
+        overflowLabels.resetState();
+        return overflowLabels.serviceName(labels.getServiceName())
+            .serviceVersion(labels.getServiceVersion())
+            .transactionName(OVERFLOW_TRANSACTION_NAME)
+            .transactionType(labels.getTransactionType())
+            .spanType(labels.getSpanType())
+            .spanSubType(labels.getSpanSubType());
     }
 
-    @Nonnull
-    private MetricSet createMetricSet(Labels.Immutable labelsCopy) {
+    private int addMetricSet(Labels.Immutable labelsCopy) {
+        int metricSetId = metricSetCount++;
         // Gauges are the only metric types which are not reset after each report (as opposed to counters and timers)
         // that's why both metric sets have to contain the exact same gauges.
-        // we can't access inactiveMetricSets as it might be swapped as this method is executed
-        // inactiveMetricSets is only stable after flipping the phase (phaser.flipPhase)
-        MetricSet metricSet = new MetricSet(labelsCopy);
-        final MetricSet racyMetricSet = metricSets1.putIfAbsent(labelsCopy, metricSet);
-        if (racyMetricSet != null) {
-            metricSet = racyMetricSet;
-        }
-        // even if the map already contains this metric set, the gauges reference will be the same
-        metricSets2.putIfAbsent(labelsCopy, new MetricSet(labelsCopy, metricSet.getGauges()));
-        if (metricSets1.size() >= METRIC_SET_LIMIT) {
-            logger.warn("The limit of 1000 timers has been reached, no new timers will be created. " +
-                "Try to name your transactions so that there are less distinct transaction names.");
-        }
-        return activeMetricSets.get(labelsCopy);
+        MetricSet metricSet1 = new MetricSet(metricSetId, labelsCopy);
+        MetricSet metricSet2 = new MetricSet(metricSetId, labelsCopy, metricSet1.getGauges());
+        // the slots are written before the metric sets are published via the maps,
+        // so that the id of a metric set obtained from the maps always refers to an initialized slot
+        metricSetsById1[metricSetId] = metricSet1;
+        metricSetsById2[metricSetId] = metricSet2;
+        metricSets1.put(labelsCopy, metricSet1);
+        metricSets2.put(labelsCopy, metricSet2);
+        return metricSetId;
     }
 
     public void incrementCounter(String name, Labels labels) {
         long criticalValueAtEnter = phaser.writerCriticalSectionEnter();
         try {
-            final MetricSet metricSet = getOrCreateMetricSet(labels);
-            if (metricSet != null) {
-                metricSet.incrementCounter(name);
-            }
+            getActiveMetricSet(getOrCreateMetricSetId(labels)).incrementCounter(name);
         } finally {
             phaser.writerCriticalSectionExit(criticalValueAtEnter);
         }
@@ -41,19 +41,23 @@ import java.util.concurrent.atomic.AtomicLong;
  * </pre>
  */
 public class MetricSet implements Recyclable {
+    private final int id;
     private final Labels.Immutable labels;
     private final ConcurrentMap<String, DoubleSupplier> gauges;
     // low load factor as hash collisions are quite costly when tracking breakdown metrics
     private final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<>(32, 0.5f, Runtime.getRuntime().availableProcessors());
     private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<>(32, 0.5f, Runtime.getRuntime().availableProcessors());
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>(4, 0.5f, Runtime.getRuntime().availableProcessors());
     private volatile boolean hasNonEmptyTimer;
     private volatile boolean hasNonEmptyCounter;
+    private volatile boolean hasNonEmptyHistogram;
 
-    MetricSet(Labels.Immutable labels) {
-        this(labels, new ConcurrentHashMap<String, DoubleSupplier>());
+    MetricSet(int id, Labels.Immutable labels) {
+        this(id, labels, new ConcurrentHashMap<String, DoubleSupplier>());
     }
 
-    MetricSet(Labels.Immutable labels, ConcurrentMap<String, DoubleSupplier> gauges) {
+    MetricSet(int id, Labels.Immutable labels, ConcurrentMap<String, DoubleSupplier> gauges) {
+        this.id = id;
         this.labels = labels;
         this.gauges = gauges;
     }
@@ -67,6 +71,13 @@ public class MetricSet implements Recyclable {
         return gauges.get(name);
     }
 
+    /**
+     * @return the id of this metric set, see {@link MetricRegistry#getOrCreateMetricSetId(Labels)}
+     */
+    public int getId() {
+        return id;
+    }
+
     public Labels getLabels() {
         return labels;
     }
@@ -85,6 +96,16 @@ public class MetricSet implements Recyclable {
         return timer;
     }
 
+    public Histogram histogram(String histogramName) {
+        hasNonEmptyHistogram = true;
+        Histogram histogram = histograms.get(histogramName);
+        if (histogram == null) {
+            histograms.putIfAbsent(histogramName, new Histogram());
+            histogram = histograms.get(histogramName);
+        }
+        return histogram;
+    }
+
     public void incrementCounter(String name) {
         hasNonEmptyCounter = true;
         AtomicLong counter = counters.get(name);
@@ -99,8 +120,12 @@ public class MetricSet implements Recyclable {
         return timers;
     }
 
+    public Map<String, Histogram> getHistograms() {
+        return histograms;
+    }
+
     public boolean hasContent() {
-        return !gauges.isEmpty() || hasNonEmptyTimer || hasNonEmptyCounter;
+        return !gauges.isEmpty() || hasNonEmptyTimer || hasNonEmptyCounter || hasNonEmptyHistogram;
     }
 
     /**
@@ -113,8 +138,12 @@ public class MetricSet implements Recyclable {
         for (AtomicLong counter : counters.values()) {
             counter.set(0);
         }
+        for (Histogram histogram : histograms.values()) {
+            histogram.resetState();
+        }
         hasNonEmptyTimer = false;
         hasNonEmptyCounter = false;
+        hasNonEmptyHistogram = false;
     }
 
     public Map<String, AtomicLong> getCounters() {
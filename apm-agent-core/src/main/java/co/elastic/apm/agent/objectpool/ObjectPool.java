@@ -50,5 +50,15 @@ public interface ObjectPool<T> {
      */
     long getGarbageCreated();
 
+    /**
+     * @return number of times that an object has been reused from the pool
+     */
+    long getHits();
+
+    /**
+     * @return number of times that an object had to be allocated because the pool was empty
+     */
+    long getMisses();
+
     void clear();
 }
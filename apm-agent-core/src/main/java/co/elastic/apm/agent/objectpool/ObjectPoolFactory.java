@@ -18,45 +18,65 @@
  */
 package co.elastic.apm.agent.objectpool;
 
+import co.elastic.apm.agent.configuration.CoreConfiguration;
 import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.impl.error.ErrorCapture;
 import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.impl.transaction.Transaction;
 import co.elastic.apm.agent.objectpool.impl.QueueBasedObjectPool;
+import co.elastic.apm.agent.objectpool.impl.StripedObjectPool;
 import org.jctools.queues.atomic.AtomicQueueFactory;
 
 import static org.jctools.queues.spec.ConcurrentQueueSpec.createBoundedMpmc;
 
 public class ObjectPoolFactory {
 
-    protected <T extends Recyclable> ObjectPool<T> createRecyclableObjectPool(int maxCapacity, Allocator<T> allocator) {
+    /**
+     * The capacity of the per-core magazines of {@linkplain CoreConfiguration#isStripedObjectPool(String) striped pools}
+     */
+    private static final int MAGAZINE_SIZE = 16;
+
+    /**
+     * Creates a {@link StripedObjectPool} if the pool is configured to be striped and a {@link QueueBasedObjectPool} otherwise.
+     *
+     * @param poolName    the name of the pool, as used in {@link CoreConfiguration#isStripedObjectPool(String)}
+     * @param maxCapacity the capacity of the shared queue
+     * @param allocator   a factory used to create new instances of the recyclable object
+     * @param tracer      the tracer
+     */
+    protected <T extends Recyclable> ObjectPool<T> createRecyclableObjectPool(String poolName, int maxCapacity, Allocator<T> allocator,
+                                                                              ElasticApmTracer tracer) {
+        if (tracer.getConfig(CoreConfiguration.class).isStripedObjectPool(poolName)) {
+            return StripedObjectPool.ofRecyclable(AtomicQueueFactory.<T>newQueue(createBoundedMpmc(maxCapacity)),
+                StripedObjectPool.getDefaultStripes(), MAGAZINE_SIZE, allocator);
+        }
         return QueueBasedObjectPool.ofRecyclable(AtomicQueueFactory.<T>newQueue(createBoundedMpmc(maxCapacity)), false, allocator);
     }
 
     public ObjectPool<Transaction> createTransactionPool(int maxCapacity, final ElasticApmTracer tracer) {
-        return createRecyclableObjectPool(maxCapacity, new Allocator<Transaction>() {
+        return createRecyclableObjectPool("transaction", maxCapacity, new Allocator<Transaction>() {
             @Override
             public Transaction createInstance() {
                 return new Transaction(tracer);
             }
-        });
+        }, tracer);
     }
 
     public ObjectPool<Span> createSpanPool(int maxCapacity, final ElasticApmTracer tracer) {
-        return createRecyclableObjectPool(maxCapacity, new Allocator<Span>() {
+        return createRecyclableObjectPool("span", maxCapacity, new Allocator<Span>() {
             @Override
             public Span createInstance() {
                 return new Span(tracer);
             }
-        });
+        }, tracer);
     }
 
     public ObjectPool<ErrorCapture> createErrorPool(int maxCapacity, final ElasticApmTracer tracer) {
-        return createRecyclableObjectPool(maxCapacity, new Allocator<ErrorCapture>() {
+        return createRecyclableObjectPool("error", maxCapacity, new Allocator<ErrorCapture>() {
                 @Override
                 public ErrorCapture createInstance() {
                     return new ErrorCapture(tracer);
                 }
-            });
+            }, tracer);
     }
 }
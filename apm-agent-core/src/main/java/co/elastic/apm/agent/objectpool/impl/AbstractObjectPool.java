@@ -24,17 +24,33 @@ import co.elastic.apm.agent.objectpool.Resetter;
 
 import javax.annotation.Nullable;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public abstract class AbstractObjectPool<T> implements ObjectPool<T> {
 
     protected final Allocator<T> allocator;
     protected final Resetter<T> resetter;
     private final AtomicInteger garbageCreated;
+    /**
+     * Incremented on every {@link #createInstance()} that is served from the pool.
+     * Only striped for pools that are meant to be used by many threads concurrently, see {@link StripedObjectPool}.
+     */
+    private final StripedCounter hits;
+    private final AtomicLong misses;
 
     protected AbstractObjectPool(Allocator<T> allocator, Resetter<T> resetter) {
+        this(allocator, resetter, 1);
+    }
+
+    /**
+     * @param hitCounterStripes the number of stripes of the hit counter, each additional stripe takes up 128 bytes
+     */
+    protected AbstractObjectPool(Allocator<T> allocator, Resetter<T> resetter, int hitCounterStripes) {
         this.allocator = allocator;
         this.resetter = resetter;
         this.garbageCreated = new AtomicInteger();
+        this.hits = new StripedCounter(hitCounterStripes);
+        this.misses = new AtomicLong();
     }
 
     @Override
@@ -43,6 +59,9 @@ public abstract class AbstractObjectPool<T> implements ObjectPool<T> {
         if (object == null) {
             // pool does not have available instance, falling back to creating a new one
             object = allocator.createInstance();
+            misses.incrementAndGet();
+        } else {
+            hits.increment();
         }
         return object;
     }
@@ -61,6 +80,16 @@ public abstract class AbstractObjectPool<T> implements ObjectPool<T> {
         return garbageCreated.longValue();
     }
 
+    @Override
+    public final long getHits() {
+        return hits.get();
+    }
+
+    @Override
+    public final long getMisses() {
+        return misses.get();
+    }
+
     /**
      * Pushes object reference back into the available pooled instances
      *
@@ -0,0 +1,62 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.objectpool.impl;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that is incremented by many threads concurrently, without them contending on the same cache line.
+ * <p>
+ * Threads are mapped to a stripe based on their id.
+ * Reading the counter sums up all stripes, which makes it considerably more expensive than incrementing it.
+ * </p>
+ */
+class StripedCounter {
+
+    /**
+     * Each stripe occupies 128 bytes, which avoids false sharing of adjacent stripes, including with adjacent-line prefetching
+     */
+    private static final int PADDING = 16;
+
+    private final AtomicLongArray stripes;
+    private final int mask;
+    private final int padding;
+
+    /**
+     * @param numStripes the number of stripes, must be a power of two
+     */
+    StripedCounter(int numStripes) {
+        // a single stripe can't be falsely shared with another one, so it's just a plain atomic long
+        this.padding = numStripes == 1 ? 1 : PADDING;
+        this.stripes = new AtomicLongArray(numStripes * padding);
+        this.mask = numStripes - 1;
+    }
+
+    void increment() {
+        stripes.incrementAndGet(((int) Thread.currentThread().getId() & mask) * padding);
+    }
+
+    long get() {
+        long sum = 0;
+        for (int i = 0; i < stripes.length(); i += padding) {
+            sum += stripes.get(i);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.objectpool.impl;
+
+import co.elastic.apm.agent.objectpool.Allocator;
+import co.elastic.apm.agent.objectpool.Recyclable;
+import co.elastic.apm.agent.objectpool.Resetter;
+import co.elastic.apm.agent.util.MathUtils;
+import org.jctools.queues.atomic.MpmcAtomicArrayQueue;
+
+import javax.annotation.Nullable;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An object pool with a layer of small per-stripe magazines in front of a shared depot queue.
+ * <p>
+ * Threads are mapped to a stripe based on their id, the same way as the {@link co.elastic.apm.agent.report.ApmServerReporter}
+ * maps them to its queue shards.
+ * Objects are taken from and returned to the magazine of the current thread's stripe,
+ * so that threads mostly don't contend on the head and tail of a single queue.
+ * Only when the magazine is empty or full, the shared depot is used.
+ * As objects can be recycled on a different thread than the one that created them,
+ * each magazine is a (small) multi-producer multi-consumer queue.
+ * </p>
+ * <p>
+ * The number of objects retained by the pool is tuned based on the observed peak number of objects in use.
+ * When more objects are alive than have been in use at the same time within the last two
+ * {@linkplain #DEFAULT_AUTOTUNE_INTERVAL_NANOS intervals}, objects that can't be returned to a magazine are discarded instead of
+ * being returned to the depot.
+ * This gives back the memory of objects that were only needed during a load spike.
+ * The peak is only tracked approximately, as the pool never blocks or uses locks to keep it exact.
+ * </p>
+ * <p>
+ * When objects are recycled on a different thread than the one that created them,
+ * for example on the reporter thread, the magazine of the recycling thread is mostly full.
+ * To keep this path cheap, the number of objects in the pool is not computed by summing up the sizes of all queues for every recycled object.
+ * Instead, an approximate counter is updated when objects go through the depot and is recomputed once every
+ * {@link #OBJECTS_IN_POOL_REFRESH_INTERVAL} objects that don't fit into a magazine.
+ * </p>
+ *
+ * @param <T> pooled object type
+ */
+public class StripedObjectPool<T> extends AbstractObjectPool<T> {
+
+    private static final long DEFAULT_AUTOTUNE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final int MAX_STRIPES = 64;
+    static final int OBJECTS_IN_POOL_REFRESH_INTERVAL = 64;
+
+    private final Queue<T>[] magazines;
+    private final int mask;
+    private final Queue<T> depot;
+    private final long autotuneIntervalNanos;
+    private volatile long intervalStartNanos = System.nanoTime();
+    private volatile long intervalPeakInUse;
+    private volatile long previousIntervalPeakInUse;
+    /**
+     * Approximates {@link #getObjectsInPool()}.
+     * Updated without atomic operations, so concurrent updates may get lost until it's recomputed.
+     */
+    private volatile int approximateObjectsInPool;
+    /**
+     * Starts at the refresh interval, so that the first object which doesn't fit into a magazine computes {@link #approximateObjectsInPool}
+     */
+    private volatile int slowRecyclesSinceRefresh = OBJECTS_IN_POOL_REFRESH_INTERVAL;
+
+    /**
+     * Creates a striped pool for types that implement {@link Recyclable}.
+     *
+     * @param depot        the shared queue the magazines fall back to
+     * @param stripes      the number of magazines, rounded up to the next power of two
+     * @param magazineSize the capacity of each magazine, rounded up to the next power of two
+     * @param allocator    a factory used to create new instances of the recyclable object
+     */
+    public static <T extends Recyclable> StripedObjectPool<T> ofRecyclable(Queue<T> depot, int stripes, int magazineSize, Allocator<T> allocator) {
+        return new StripedObjectPool<>(depot, stripes, magazineSize, allocator, Resetter.ForRecyclable.<T>get(),
+            DEFAULT_AUTOTUNE_INTERVAL_NANOS);
+    }
+
+    /**
+     * @return the default number of stripes, which is based on the number of available processors
+     */
+    public static int getDefaultStripes() {
+        return Math.min(MathUtils.getNextPowerOf2(Runtime.getRuntime().availableProcessors()), MAX_STRIPES);
+    }
+
+    @SuppressWarnings("unchecked")
+    StripedObjectPool(Queue<T> depot, int stripes, int magazineSize, Allocator<T> allocator, Resetter<T> resetter,
+                      long autotuneIntervalNanos) {
+        super(allocator, resetter, toNumStripes(stripes));
+        int numStripes = toNumStripes(stripes);
+        this.magazines = new Queue[numStripes];
+        for (int i = 0; i < numStripes; i++) {
+            magazines[i] = new MpmcAtomicArrayQueue<>(magazineSize);
+        }
+        this.mask = numStripes - 1;
+        this.depot = depot;
+        this.autotuneIntervalNanos = autotuneIntervalNanos;
+    }
+
+    private static int toNumStripes(int stripes) {
+        return stripes <= 1 ? 1 : MathUtils.getNextPowerOf2(stripes);
+    }
+
+    @Nullable
+    @Override
+    protected T tryCreateInstance() {
+        T object = getMagazine().poll();
+        if (object == null) {
+            object = depot.poll();
+            if (object == null) {
+                // a new object is about to be created, which means that all alive objects are in use
+                onInUse(getAlive() + 1);
+            } else {
+                approximateObjectsInPool--;
+            }
+        }
+        return object;
+    }
+
+    @Override
+    protected boolean returnToPool(T obj) {
+        if (getMagazine().offer(obj)) {
+            return true;
+        }
+        long alive = getAlive();
+        long inUse = alive - getApproximateObjectsInPool();
+        onInUse(inUse);
+        if (alive > Math.max(intervalPeakInUse, previousIntervalPeakInUse)) {
+            // retaining the object would keep more objects alive than have recently been used concurrently
+            return false;
+        }
+        if (depot.offer(obj)) {
+            approximateObjectsInPool++;
+            return true;
+        }
+        return false;
+    }
+
+    private int getApproximateObjectsInPool() {
+        int slowRecycles = slowRecyclesSinceRefresh + 1;
+        if (slowRecycles >= OBJECTS_IN_POOL_REFRESH_INTERVAL) {
+            slowRecycles = 0;
+            approximateObjectsInPool = getObjectsInPool();
+        }
+        slowRecyclesSinceRefresh = slowRecycles;
+        return Math.max(approximateObjectsInPool, 0);
+    }
+
+    private Queue<T> getMagazine() {
+        return magazines[(int) Thread.currentThread().getId() & mask];
+    }
+
+    /**
+     * @return the number of objects that have been created by this pool and have not been discarded
+     */
+    private long getAlive() {
+        return getMisses() - getGarbageCreated();
+    }
+
+    private void onInUse(long inUse) {
+        long now = System.nanoTime();
+        long elapsed = now - intervalStartNanos;
+        if (elapsed > autotuneIntervalNanos) {
+            intervalStartNanos = now;
+            // without any activity during the whole last interval, the peak of the interval before doesn't matter anymore
+            previousIntervalPeakInUse = elapsed > 2 * autotuneIntervalNanos ? 0 : intervalPeakInUse;
+            intervalPeakInUse = inUse;
+        } else if (inUse > intervalPeakInUse) {
+            intervalPeakInUse = inUse;
+        }
+    }
+
+    /**
+     * @return the peak number of objects that have been in use at the same time within the last two intervals
+     */
+    long getPeakInUse() {
+        return Math.max(intervalPeakInUse, previousIntervalPeakInUse);
+    }
+
+    @Override
+    public int getObjectsInPool() {
+        int objectsInPool = depot.size();
+        for (Queue<T> magazine : magazines) {
+            objectsInPool += magazine.size();
+        }
+        return objectsInPool;
+    }
+
+    @Override
+    public void clear() {
+        for (Queue<T> magazine : magazines) {
+            magazine.clear();
+        }
+        depot.clear();
+        approximateObjectsInPool = 0;
+        slowRecyclesSinceRefresh = OBJECTS_IN_POOL_REFRESH_INTERVAL;
+    }
+}
@@ -18,7 +18,13 @@
  */
 package co.elastic.apm.agent.report;
 
-import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import co.elastic.apm.agent.metrics.DeltaRatio;
+import co.elastic.apm.agent.metrics.Labels;
+import co.elastic.apm.agent.metrics.MetricRegistry;
+import co.elastic.apm.agent.report.compression.CompressionCodec;
+import co.elastic.apm.agent.report.compression.DeflateCodec;
+import co.elastic.apm.agent.report.compression.GzipCodec;
+import co.elastic.apm.agent.report.compression.IdentityCodec;
 import co.elastic.apm.agent.report.serialize.PayloadSerializer;
 import co.elastic.apm.agent.sdk.logging.Logger;
 import co.elastic.apm.agent.sdk.logging.LoggerFactory;
@@ -27,14 +33,16 @@ import org.stagemonitor.util.IOUtils;
 import javax.annotation.Nullable;
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLSocketFactory;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
+import java.net.URL;
 import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
-import java.util.zip.Deflater;
-import java.util.zip.DeflaterOutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class AbstractIntakeApiHandler {
     protected final Logger logger = LoggerFactory.getLogger(getClass());
@@ -43,26 +51,95 @@ public class AbstractIntakeApiHandler {
     protected final ReporterConfiguration reporterConfiguration;
     protected final PayloadSerializer payloadSerializer;
     protected final ApmServerClient apmServerClient;
-    protected Deflater deflater;
+    private final CompressionCodec compressionCodec;
+    private final IntakeBatchingController batchingController;
     protected long currentlyTransmitting = 0;
-    protected long reported = 0;
-    protected long dropped = 0;
+    /**
+     * Updated by the reporter thread and by the sender threads of the {@link IntakeRequestPipeline}
+     */
+    protected final AtomicLong reported = new AtomicLong();
+    protected final AtomicLong dropped = new AtomicLong();
     @Nullable
     protected HttpURLConnection connection;
     @Nullable
     protected OutputStream os;
     @Nullable
     private CountingOutputStream countingOs;
-    protected int errorCount;
+    /**
+     * Counts the bytes written to the {@link CompressionCodec} of the current request, before compression
+     */
+    @Nullable
+    private CountingOutputStream uncompressedOs;
+    /**
+     * The ratio of uncompressed to compressed request body bytes
+     */
+    private final DeltaRatio compressionRatio = new DeltaRatio();
+    @Nullable
+    private String contentEncoding;
+    private final AtomicInteger errorCount = new AtomicInteger();
     protected volatile boolean shutDown;
-    private volatile boolean healthy = true;
+    /**
+     * The number of threads which are currently {@linkplain #backoff(long) backing off}
+     */
+    private final AtomicInteger backingOff = new AtomicInteger();
     private long requestStartedNanos;
+    /**
+     * Only set if {@linkplain ReporterConfiguration#getApiRequestConcurrency() pipelining} is enabled for this handler
+     */
+    @Nullable
+    private final IntakeRequestPipeline pipeline;
+    @Nullable
+    private IntakeRequestPipeline.RequestBuffer requestBuffer;
 
     public AbstractIntakeApiHandler(ReporterConfiguration reporterConfiguration, PayloadSerializer payloadSerializer, ApmServerClient apmServerClient) {
+        this(reporterConfiguration, payloadSerializer, apmServerClient, null);
+    }
+
+    /**
+     * @param pipelineEndpoint if not {@code null}, this handler makes use of the {@link IntakeRequestPipeline} to send requests to
+     *                         this endpoint when {@link ReporterConfiguration#getApiRequestConcurrency() api_request_concurrency}
+     *                         is greater than zero.
+     *                         Requires subclasses to use {@link #startBufferedRequest()} instead of {@link #startRequest(String)}
+     *                         when {@link #isPipelined()} returns {@code true}.
+     */
+    protected AbstractIntakeApiHandler(ReporterConfiguration reporterConfiguration, PayloadSerializer payloadSerializer,
+                                       ApmServerClient apmServerClient, @Nullable String pipelineEndpoint) {
         this.reporterConfiguration = reporterConfiguration;
         this.payloadSerializer = payloadSerializer;
         this.apmServerClient = apmServerClient;
-        this.deflater = new Deflater(Deflater.BEST_SPEED);
+        this.compressionCodec = createCompressionCodec(reporterConfiguration);
+        this.batchingController = new IntakeBatchingController(reporterConfiguration);
+        int concurrency = reporterConfiguration.getApiRequestConcurrency();
+        if (pipelineEndpoint != null && concurrency > 0) {
+            this.pipeline = new IntakeRequestPipeline(this, pipelineEndpoint, concurrency, createSpillQueue(reporterConfiguration));
+        } else {
+            this.pipeline = null;
+            if (pipelineEndpoint != null && reporterConfiguration.getSpillQueueDir() != null) {
+                logger.warn("Ignoring spill_queue_dir as it requires api_request_concurrency to be greater than 0");
+            }
+        }
+    }
+
+    private static CompressionCodec createCompressionCodec(ReporterConfiguration reporterConfiguration) {
+        int level = reporterConfiguration.getApiRequestCompressionLevel();
+        switch (reporterConfiguration.getApiRequestCompression()) {
+            case NONE:
+                return IdentityCodec.INSTANCE;
+            case GZIP:
+                return new GzipCodec(level);
+            default:
+                return new DeflateCodec(level);
+        }
+    }
+
+    @Nullable
+    private static SpillQueue createSpillQueue(ReporterConfiguration reporterConfiguration) {
+        String spillQueueDir = reporterConfiguration.getSpillQueueDir();
+        if (spillQueueDir == null) {
+            return null;
+        }
+        SpillQueue spillQueue = new SpillQueue(new File(spillQueueDir), reporterConfiguration.getSpillQueueMaxSize());
+        return spillQueue.open() ? spillQueue : null;
     }
 
     /*
@@ -81,13 +158,18 @@ public class AbstractIntakeApiHandler {
     }
 
     protected boolean shouldEndRequest() {
-        if (countingOs == null) {
+        final long written;
+        if (requestBuffer != null) {
+            written = requestBuffer.size() + payloadSerializer.getBufferSize();
+        } else if (countingOs != null) {
+            written = countingOs.getCount() + payloadSerializer.getBufferSize();
+        } else {
             return false;
         }
-        final long written = countingOs.getCount() + payloadSerializer.getBufferSize();
-        final boolean endRequest = written >= reporterConfiguration.getApiRequestSize();
+        final long requestSize = batchingController.getRequestSize();
+        final boolean endRequest = written >= requestSize;
         if (endRequest && logger.isDebugEnabled()) {
-            logger.debug("Flushing, because request size limit exceeded {}/{}", written, reporterConfiguration.getApiRequestSize());
+            logger.debug("Flushing, because request size limit exceeded {}/{}", written, requestSize);
         }
         return endRequest;
     }
@@ -97,26 +179,24 @@ public class AbstractIntakeApiHandler {
         payloadSerializer.blockUntilReady();
         final HttpURLConnection connection = apmServerClient.startRequest(endpoint);
         if (connection != null) {
-            boolean useCompression = !isLocalhost(connection);
+            CompressionCodec codec = getCompressionCodec(connection.getURL());
             try {
                 if (logger.isDebugEnabled()) {
                     logger.debug("Starting new request to {}", connection.getURL());
                 }
                 connection.setRequestMethod("POST");
                 connection.setDoOutput(true);
-                connection.setChunkedStreamingMode(DslJsonSerializer.BUFFER_SIZE);
-                if (useCompression) {
-                    connection.setRequestProperty("Content-Encoding", "deflate");
+                // the serializer writes its whole buffer at once, which the deflate codecs compress in multiples of their output buffer
+                connection.setChunkedStreamingMode(payloadSerializer.getBufferCapacity());
+                contentEncoding = codec.getContentEncoding();
+                if (contentEncoding != null) {
+                    connection.setRequestProperty("Content-Encoding", contentEncoding);
                 }
                 connection.setRequestProperty("Content-Type", "application/x-ndjson");
                 connection.setUseCaches(false);
                 connection.connect();
                 countingOs = new CountingOutputStream(connection.getOutputStream());
-                if (useCompression) {
-                    os = new DeflaterOutputStream(countingOs, deflater, true);
-                } else {
-                    os = countingOs;
-                }
+                os = uncompressedOs = new CountingOutputStream(codec.compress(countingOs));
                 payloadSerializer.setOutputStream(os);
                 payloadSerializer.appendMetaDataNdJsonToStream();
                 payloadSerializer.flushToOutputStream();
@@ -150,8 +230,62 @@ public class AbstractIntakeApiHandler {
         return connection;
     }
 
-    private boolean isLocalhost(HttpURLConnection connection) {
-        switch (connection.getURL().getHost()) {
+    /**
+     * Starts a new request whose body is serialized and compressed into an in-memory buffer.
+     * The buffer is handed over to the {@link IntakeRequestPipeline} in {@link #endRequest()}.
+     *
+     * @return {@code true} if a request has been started,
+     * {@code false} if there's no APM Server URL configured
+     */
+    protected boolean startBufferedRequest() throws Exception {
+        if (pipeline == null) {
+            throw new IllegalStateException("Buffered requests require api_request_concurrency to be greater than 0");
+        }
+        payloadSerializer.blockUntilReady();
+        URL url = apmServerClient.getCurrentUrl();
+        if (url == null) {
+            return false;
+        }
+        CompressionCodec codec = getCompressionCodec(url);
+        contentEncoding = codec.getContentEncoding();
+        requestBuffer = pipeline.createRequestBuffer(contentEncoding);
+        // the codec compresses directly into the buffer
+        os = uncompressedOs = new CountingOutputStream(codec.compress(requestBuffer));
+        payloadSerializer.setOutputStream(os);
+        payloadSerializer.appendMetaDataNdJsonToStream();
+        payloadSerializer.flushToOutputStream();
+        requestStartedNanos = System.nanoTime();
+        return true;
+    }
+
+    /**
+     * Whether this handler hands requests over to sender threads,
+     * as opposed to streaming them to the APM Server from the calling thread.
+     *
+     * @return {@code true} if {@link #startBufferedRequest()} should be used to start requests
+     */
+    protected boolean isPipelined() {
+        return pipeline != null;
+    }
+
+    protected boolean isRequestInProgress() {
+        return connection != null || requestBuffer != null;
+    }
+
+    /**
+     * Compression is skipped for an APM Server on localhost
+     * when the codec is selected {@linkplain ReporterConfiguration.ApiRequestCompression#AUTO automatically},
+     * as the CPU time spent compressing outweighs the reduced network traffic.
+     */
+    private CompressionCodec getCompressionCodec(URL url) {
+        if (reporterConfiguration.getApiRequestCompression() == ReporterConfiguration.ApiRequestCompression.AUTO && isLocalhost(url)) {
+            return IdentityCodec.INSTANCE;
+        }
+        return compressionCodec;
+    }
+
+    private static boolean isLocalhost(URL url) {
+        switch (url.getHost()) {
             case "localhost":
             case "127.0.0.1":
             case "[::1]":
@@ -163,23 +297,33 @@ public class AbstractIntakeApiHandler {
     }
 
     public void endRequest() {
-        if (connection != null) {
+        if (requestBuffer != null) {
+            endBufferedRequest(requestBuffer);
+        } else if (connection != null) {
+            long sentNanos = System.nanoTime();
             try {
                 payloadSerializer.fullFlush();
                 if (os != null) {
                     os.close();
                 }
-                if (logger.isDebugEnabled()) {
-                    logger.debug("Flushing {} uncompressed {} compressed bytes", deflater.getBytesRead(), deflater.getBytesWritten());
+                sentNanos = System.nanoTime();
+                if (countingOs != null) {
+                    batchingController.onRequestEnded(countingOs.getCount(), sentNanos - requestStartedNanos);
+                    onRequestCompressed(countingOs.getCount());
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Flushed {} bytes with content encoding {}", countingOs.getCount(), contentEncoding);
+                    }
                 }
                 InputStream inputStream = connection.getInputStream();
                 final int responseCode = connection.getResponseCode();
+                batchingController.onResponse(System.nanoTime() - sentNanos, responseCode < 400);
                 if (responseCode >= 400) {
                     onRequestError(responseCode, inputStream, null);
                 } else {
                     onRequestSuccess();
                 }
             } catch (IOException e) {
+                batchingController.onResponse(System.nanoTime() - sentNanos, false);
                 try {
                     onRequestError(connection.getResponseCode(), connection.getErrorStream(), e);
                 } catch (IOException e1) {
@@ -190,14 +334,172 @@ public class AbstractIntakeApiHandler {
                 connection = null;
                 os = null;
                 countingOs = null;
-                deflater.reset();
+                uncompressedOs = null;
+                contentEncoding = null;
                 currentlyTransmitting = 0;
             }
         }
     }
 
+    private void endBufferedRequest(IntakeRequestPipeline.RequestBuffer buffer) {
+        try {
+            payloadSerializer.fullFlush();
+            if (os != null) {
+                os.close();
+            }
+            batchingController.onRequestEnded(buffer.size(), System.nanoTime() - requestStartedNanos);
+            onRequestCompressed(buffer.size());
+            if (logger.isDebugEnabled()) {
+                logger.debug("Handing over request with {} bytes and content encoding {} to the intake senders",
+                    buffer.size(), contentEncoding);
+            }
+            buffer.setEvents(currentlyTransmitting);
+            //noinspection ConstantConditions
+            if (!pipeline.submit(buffer)) {
+                logger.debug("Dropping {} events as all intake senders are busy", currentlyTransmitting);
+            }
+        } catch (IOException e) {
+            // can't happen as we're writing to an in-memory buffer
+            logger.error(e.getMessage(), e);
+        } finally {
+            requestBuffer = null;
+            os = null;
+            uncompressedOs = null;
+            contentEncoding = null;
+            currentlyTransmitting = 0;
+        }
+    }
+
+    /**
+     * Sends a request body that has been buffered via {@link #startBufferedRequest()}.
+     * <p>
+     * Called by the sender threads of the {@link IntakeRequestPipeline}.
+     * The bookkeeping of reported and dropped events is atomic, so that the senders don't need to synchronize with each other.
+     * When a request fails, only the sender which has sent it {@linkplain #backoff(long) backs off}.
+     * </p>
+     *
+     * @param buffer the request body
+     */
+    void sendBufferedRequest(IntakeRequestPipeline.RequestBuffer buffer) {
+        HttpURLConnection connection = null;
+        long sentNanos = System.nanoTime();
+        try {
+            //noinspection ConstantConditions
+            connection = apmServerClient.startRequest(pipeline.getEndpoint());
+            if (connection == null) {
+                dropped.addAndGet(buffer.getEvents());
+                return;
+            }
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(buffer.size());
+            if (buffer.getContentEncoding() != null) {
+                connection.setRequestProperty("Content-Encoding", buffer.getContentEncoding());
+            }
+            connection.setRequestProperty("Content-Type", "application/x-ndjson");
+            connection.setUseCaches(false);
+            connection.connect();
+            OutputStream requestBody = connection.getOutputStream();
+            requestBody.write(buffer.getBuffer(), 0, buffer.size());
+            requestBody.close();
+            sentNanos = System.nanoTime();
+            InputStream inputStream = connection.getInputStream();
+            final int responseCode = connection.getResponseCode();
+            batchingController.onResponse(System.nanoTime() - sentNanos, responseCode < 400);
+            if (responseCode >= 400) {
+                onBufferedRequestError(responseCode, inputStream, null, buffer);
+            } else {
+                errorCount.set(0);
+                reported.addAndGet(buffer.getEvents());
+            }
+        } catch (IOException e) {
+            batchingController.onResponse(System.nanoTime() - sentNanos, false);
+            Integer responseCode = null;
+            if (connection != null) {
+                try {
+                    responseCode = connection.getResponseCode();
+                } catch (IOException ignore) {
+                    responseCode = -1;
+                }
+            }
+            onBufferedRequestError(responseCode, connection != null ? connection.getErrorStream() : null, e, buffer);
+        } catch (Exception e) {
+            logger.error("Error sending data to APM server: {}", e.getMessage());
+            logger.debug("Sending payload to APM server failed", e);
+            onConnectionError(null, spillOrDrop(null, buffer), 0);
+        } finally {
+            HttpUtils.consumeAndClose(connection);
+        }
+    }
+
+    private void onBufferedRequestError(@Nullable Integer responseCode, @Nullable InputStream inputStream, @Nullable IOException e,
+                                        IntakeRequestPipeline.RequestBuffer buffer) {
+        if (e != null) {
+            logger.error("Error sending data to APM server: {}, response code is {}", e.getMessage(), responseCode);
+            logger.debug("Sending payload to APM server failed", e);
+        }
+        if (inputStream != null && logger.isWarnEnabled()) {
+            try {
+                logger.warn(IOUtils.toString(inputStream));
+            } catch (IOException e1) {
+                logger.warn(e1.getMessage(), e);
+            }
+        }
+        onConnectionError(responseCode, spillOrDrop(responseCode, buffer), 0);
+    }
+
+    /**
+     * Spills requests that failed due to connectivity or capacity issues of the APM Server so that they can be retried later.
+     * Requests the APM Server has rejected for other reasons, for example because they are invalid, are not retried.
+     *
+     * @return the number of dropped events
+     */
+    private long spillOrDrop(@Nullable Integer responseCode, IntakeRequestPipeline.RequestBuffer buffer) {
+        boolean retryable = responseCode == null || responseCode == -1 || responseCode >= 429;
+        //noinspection ConstantConditions
+        if (retryable && pipeline.spill(buffer)) {
+            logger.debug("Spilled {} events to disk", buffer.getEvents());
+            return 0;
+        }
+        return buffer.getEvents();
+    }
+
+    /**
+     * Waits for requests which have been handed over to the sender threads to complete.
+     * Does nothing if this handler is not {@linkplain #isPipelined() pipelined}.
+     */
+    protected void awaitPendingRequests() {
+        if (pipeline != null && !pipeline.awaitIdle(reporterConfiguration.getServerTimeout().getMillis())) {
+            logger.debug("Timed out waiting for {} in-flight intake requests", pipeline.getInFlight());
+        }
+    }
+
+    private void onRequestCompressed(long compressedBytes) {
+        if (uncompressedOs != null && compressedBytes > 0) {
+            compressionRatio.increment(uncompressedOs.getCount(), compressedBytes);
+        }
+    }
+
+    public void bindTo(MetricRegistry metricRegistry) {
+        batchingController.bindTo(metricRegistry);
+        payloadSerializer.bindTo(metricRegistry);
+        metricRegistry.add("agent.intake.compression_ratio", Labels.EMPTY, compressionRatio);
+        if (pipeline != null) {
+            pipeline.bindTo(metricRegistry);
+        }
+    }
+
     protected boolean isApiRequestTimeExpired() {
-        return System.nanoTime() >= requestStartedNanos + TimeUnit.MILLISECONDS.toNanos(reporterConfiguration.getApiRequestTime().getMillis());
+        return System.nanoTime() >= requestStartedNanos + TimeUnit.MILLISECONDS.toNanos(getRequestTimeMillis());
+    }
+
+    /**
+     * @return the time in milliseconds after which the current request should be ended,
+     * which is {@link ReporterConfiguration#getApiRequestTime() api_request_time} unless
+     * {@linkplain ReporterConfiguration#isAdaptiveBatching() adaptive batching} is enabled
+     */
+    protected long getRequestTimeMillis() {
+        return batchingController.getRequestTimeMillis();
     }
 
     protected void onRequestError(Integer responseCode, InputStream inputStream, @Nullable IOException e) {
@@ -217,8 +519,15 @@ public class AbstractIntakeApiHandler {
     }
 
     protected void onConnectionError(@Nullable Integer responseCode, long droppedEvents, long reportedEvents) {
-        dropped += droppedEvents;
-        reported += reportedEvents;
+        backoff(recordConnectionError(responseCode, droppedEvents, reportedEvents));
+    }
+
+    /**
+     * @return the time to back off for, in milliseconds
+     */
+    private long recordConnectionError(@Nullable Integer responseCode, long droppedEvents, long reportedEvents) {
+        dropped.addAndGet(droppedEvents);
+        reported.addAndGet(reportedEvents);
         // if the response code is null, the server did not even send a response
         if (responseCode == null || responseCode > 429) {
             // this server seems to have connection or capacity issues, try next
@@ -227,43 +536,47 @@ public class AbstractIntakeApiHandler {
             logger.warn("It seems like you are using a version of the APM Server which is not compatible with this agent. " +
                 "Please use APM Server 6.5.0 or newer.");
         }
-
-        backoff();
+        long backoffTimeSeconds = getBackoffTimeSeconds(errorCount.getAndIncrement());
+        logger.info("Backing off for {} seconds (+/-10%)", backoffTimeSeconds);
+        return TimeUnit.SECONDS.toMillis(backoffTimeSeconds);
     }
 
-    private void backoff() {
-        long backoffTimeSeconds = getBackoffTimeSeconds(errorCount++);
-        logger.info("Backing off for {} seconds (+/-10%)", backoffTimeSeconds);
-        final long backoffTimeMillis = TimeUnit.SECONDS.toMillis(backoffTimeSeconds);
+    /**
+     * Must not be called while holding a lock, as this blocks the calling thread for up to 36 seconds
+     */
+    private void backoff(long backoffTimeMillis) {
         if (backoffTimeMillis > 0) {
             // back off because there are connection issues with the apm server
             try {
-                healthy = false;
+                backingOff.incrementAndGet();
                 synchronized (WAIT_LOCK) {
                     WAIT_LOCK.wait(backoffTimeMillis + getRandomJitter(backoffTimeMillis));
                 }
             } catch (InterruptedException e) {
                 logger.info("APM Agent ReportingEventHandler had been interrupted", e);
             } finally {
-                healthy = true;
+                backingOff.decrementAndGet();
             }
         }
     }
 
     public boolean isHealthy() {
-        return healthy;
+        return backingOff.get() == 0;
     }
 
     public long getReported() {
-        return reported;
+        return reported.get();
     }
 
     public long getDropped() {
-        return dropped;
+        if (pipeline != null) {
+            return dropped.get() + pipeline.getRejected();
+        }
+        return dropped.get();
     }
 
     public int getErrorCount() {
-        return errorCount;
+        return errorCount.get();
     }
 
     public void close() {
@@ -271,10 +584,13 @@ public class AbstractIntakeApiHandler {
         synchronized (WAIT_LOCK) {
             WAIT_LOCK.notifyAll();
         }
+        if (pipeline != null) {
+            pipeline.close(reporterConfiguration.getServerTimeout().getMillis());
+        }
     }
 
     protected void onRequestSuccess() {
-        errorCount = 0;
-        reported += currentlyTransmitting;
+        errorCount.set(0);
+        reported.addAndGet(currentlyTransmitting);
     }
 }
@@ -21,15 +21,23 @@ package co.elastic.apm.agent.report;
 import co.elastic.apm.agent.impl.error.ErrorCapture;
 import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.metrics.DoubleSupplier;
+import co.elastic.apm.agent.metrics.Labels;
+import co.elastic.apm.agent.metrics.MetricRegistry;
 import co.elastic.apm.agent.report.disruptor.ExponentionallyIncreasingSleepingWaitStrategy;
+import co.elastic.apm.agent.util.AgentThreads;
 import co.elastic.apm.agent.util.MathUtils;
 import co.elastic.apm.agent.common.ThreadUtils;
 import com.dslplatform.json.JsonWriter;
+import com.lmax.disruptor.BlockingWaitStrategy;
 import com.lmax.disruptor.EventFactory;
 import com.lmax.disruptor.EventTranslator;
 import com.lmax.disruptor.EventTranslatorOneArg;
 import com.lmax.disruptor.IgnoreExceptionHandler;
 import com.lmax.disruptor.InsufficientCapacityException;
+import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.WaitStrategy;
+import com.lmax.disruptor.YieldingWaitStrategy;
 import com.lmax.disruptor.dsl.Disruptor;
 import com.lmax.disruptor.dsl.ProducerType;
 import co.elastic.apm.agent.sdk.logging.Logger;
@@ -63,6 +71,12 @@ public class ApmServerReporter implements Reporter {
             event.setSpan(s);
         }
     };
+    private static final EventTranslatorOneArg<ReportingEvent, SerializedSpanBuffer.Slot> SERIALIZED_SPAN_EVENT_TRANSLATOR = new EventTranslatorOneArg<ReportingEvent, SerializedSpanBuffer.Slot>() {
+        @Override
+        public void translateTo(ReportingEvent event, long sequence, SerializedSpanBuffer.Slot serializedSpan) {
+            event.setSerializedSpan(serializedSpan);
+        }
+    };
     private static final EventTranslatorOneArg<ReportingEvent, Thread> END_REQUEST_EVENT_TRANSLATOR = new EventTranslatorOneArg<ReportingEvent, Thread>() {
         @Override
         public void translateTo(ReportingEvent event, long sequence, @Nullable Thread unparkAfterProcessed) {
@@ -70,7 +84,7 @@ public class ApmServerReporter implements Reporter {
             event.unparkAfterProcessed(unparkAfterProcessed);
         }
     };
-    private static final EventTranslator<ReportingEvent> WAKEUP_EVENT_TRANSLATOR = new EventTranslator<ReportingEvent>() {
+    static final EventTranslator<ReportingEvent> WAKEUP_EVENT_TRANSLATOR = new EventTranslator<ReportingEvent>() {
         @Override
         public void translateTo(ReportingEvent event, long sequence) {
             event.setWakeupEvent();
@@ -96,28 +110,70 @@ public class ApmServerReporter implements Reporter {
         }
     };
 
+    /**
+     * The size of the main ring buffer when the events are {@linkplain ReportingEventShards sharded},
+     * in which case the main ring buffer only holds control events
+     */
+    private static final int CONTROL_RING_BUFFER_SIZE = 256;
+    private static final int MIN_SHARD_SIZE = 16;
+
     private final Disruptor<ReportingEvent> disruptor;
+    @Nullable
+    private final ReportingEventShards shards;
     private final AtomicLong dropped = new AtomicLong();
     private final boolean dropTransactionIfQueueFull;
     private final ReportingEventHandler reportingEventHandler;
     private final boolean syncReport;
+    @Nullable
+    private final SerializedSpanBuffer serializedSpanBuffer;
 
     public ApmServerReporter(boolean dropTransactionIfQueueFull, ReporterConfiguration reporterConfiguration,
                              ReportingEventHandler reportingEventHandler) {
+        this(dropTransactionIfQueueFull, reporterConfiguration, reportingEventHandler, null);
+    }
+
+    /**
+     * @param serializedSpanBuffer if not {@code null}, spans are serialized into this buffer when they are reported,
+     *                             instead of being queued until the reporter thread serializes them
+     */
+    ApmServerReporter(boolean dropTransactionIfQueueFull, ReporterConfiguration reporterConfiguration,
+                      ReportingEventHandler reportingEventHandler, @Nullable SerializedSpanBuffer serializedSpanBuffer) {
+        this.serializedSpanBuffer = serializedSpanBuffer;
         this.dropTransactionIfQueueFull = dropTransactionIfQueueFull;
         this.syncReport = reporterConfiguration.isReportSynchronously();
-        disruptor = new Disruptor<>(new TransactionEventFactory(), MathUtils.getNextPowerOf2(reporterConfiguration.getMaxQueueSize()), new ThreadFactory() {
+        int queueSize = MathUtils.getNextPowerOf2(reporterConfiguration.getMaxQueueSize());
+        int queueShards = reporterConfiguration.getQueueShards();
+        int numShards = queueShards > 1 ? MathUtils.getNextPowerOf2(queueShards) : 1;
+        disruptor = new Disruptor<>(new TransactionEventFactory(), numShards > 1 ? CONTROL_RING_BUFFER_SIZE : queueSize, new ThreadFactory() {
             @Override
             public Thread newThread(Runnable r) {
                 Thread thread = new Thread(r);
                 thread.setDaemon(true);
                 thread.setName(ThreadUtils.addElasticApmThreadPrefix("server-reporter"));
-                return thread;
+                return AgentThreads.track(thread);
             }
-        }, ProducerType.MULTI, new ExponentionallyIncreasingSleepingWaitStrategy(100_000, 10_000_000));
+        }, ProducerType.MULTI, createWaitStrategy(reporterConfiguration.getReporterWaitStrategy()));
         this.reportingEventHandler = reportingEventHandler;
         disruptor.setDefaultExceptionHandler(new IgnoreExceptionHandler());
-        disruptor.handleEventsWith(this.reportingEventHandler);
+        if (numShards > 1) {
+            int shardSize = Math.max(queueSize / numShards, MIN_SHARD_SIZE);
+            shards = new ReportingEventShards(numShards, shardSize, reportingEventHandler, disruptor.getRingBuffer());
+            disruptor.handleEventsWith(shards);
+        } else {
+            shards = null;
+            disruptor.handleEventsWith(this.reportingEventHandler);
+        }
+    }
+
+    private static WaitStrategy createWaitStrategy(ReporterConfiguration.ReporterWaitStrategy waitStrategy) {
+        switch (waitStrategy) {
+            case BLOCKING:
+                return new BlockingWaitStrategy();
+            case YIELDING:
+                return new YieldingWaitStrategy();
+            default:
+                return new ExponentionallyIncreasingSleepingWaitStrategy(100_000, 10_000_000);
+        }
     }
 
     @Override
@@ -138,6 +194,20 @@ public class ApmServerReporter implements Reporter {
 
     @Override
     public void report(Span span) {
+        // don't bother serializing spans that are going to be dropped anyway
+        if (serializedSpanBuffer != null && hasRemainingCapacity()) {
+            SerializedSpanBuffer.Slot serializedSpan = serializedSpanBuffer.serialize(span);
+            if (serializedSpan != null) {
+                span.decrementReferences();
+                if (!tryAddEventToRingBuffer(serializedSpan, SERIALIZED_SPAN_EVENT_TRANSLATOR)) {
+                    serializedSpan.release();
+                }
+                if (syncReport) {
+                    flush();
+                }
+                return;
+            }
+        }
         if (!tryAddEventToRingBuffer(span, SPAN_EVENT_TRANSLATOR)) {
             span.decrementReferences();
         }
@@ -161,6 +231,55 @@ public class ApmServerReporter implements Reporter {
         return reportingEventHandler.getReported();
     }
 
+    /**
+     * Registers the internal metrics of the reporter with the provided registry.
+     *
+     * @param metricRegistry the registry to add the metrics to
+     */
+    public void bindTo(MetricRegistry metricRegistry) {
+        reportingEventHandler.bindTo(metricRegistry);
+        metricRegistry.add("agent.events.queue.fill", Labels.EMPTY, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return getQueueFillLevel();
+            }
+        });
+        metricRegistry.add("agent.events.dropped", Labels.EMPTY, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return getDropped();
+            }
+        });
+        metricRegistry.add("agent.events.reported", Labels.EMPTY, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return getReported();
+            }
+        });
+    }
+
+    /**
+     * @return the ratio of occupied slots in the ring buffer, or in the shards if the events are sharded
+     */
+    double getQueueFillLevel() {
+        if (shards != null) {
+            return shards.getFillLevel();
+        }
+        RingBuffer<ReportingEvent> ringBuffer = disruptor.getRingBuffer();
+        return (double) (ringBuffer.getBufferSize() - ringBuffer.remainingCapacity()) / ringBuffer.getBufferSize();
+    }
+
+    /**
+     * @return whether the queue the current thread adds its events to has at least one free slot,
+     * which may have changed by the time the event is added
+     */
+    private boolean hasRemainingCapacity() {
+        if (shards != null) {
+            return shards.hasRemainingCapacity();
+        }
+        return disruptor.getRingBuffer().remainingCapacity() > 0;
+    }
+
     public void scheduleWakeupEvent() {
         disruptor.getRingBuffer().tryPublishEvent(WAKEUP_EVENT_TRANSLATOR);
     }
@@ -253,6 +372,9 @@ public class ApmServerReporter implements Reporter {
     }
 
     private <E> boolean tryAddEventToRingBuffer(E event, EventTranslatorOneArg<ReportingEvent, E> eventTranslator) {
+        if (shards != null) {
+            return tryAddEventToShard(event, eventTranslator);
+        }
         if (dropTransactionIfQueueFull) {
             boolean queueFull = !disruptor.getRingBuffer().tryPublishEvent(eventTranslator, event);
             if (queueFull) {
@@ -268,6 +390,22 @@ public class ApmServerReporter implements Reporter {
         return true;
     }
 
+    private <E> boolean tryAddEventToShard(E event, EventTranslatorOneArg<ReportingEvent, E> eventTranslator) {
+        //noinspection ConstantConditions
+        if (dropTransactionIfQueueFull) {
+            if (!shards.tryPublishEvent(eventTranslator, event)) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Could not add {} {} to ring buffer shard as no slots are available", event.getClass().getSimpleName(), event);
+                }
+                dropped.incrementAndGet();
+                return false;
+            }
+        } else {
+            shards.publishEvent(eventTranslator, event);
+        }
+        return true;
+    }
+
     static class TransactionEventFactory implements EventFactory<ReportingEvent> {
         @Override
         public ReportingEvent newInstance() {
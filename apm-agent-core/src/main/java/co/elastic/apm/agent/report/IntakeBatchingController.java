@@ -0,0 +1,193 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.metrics.DoubleSupplier;
+import co.elastic.apm.agent.metrics.Labels;
+import co.elastic.apm.agent.metrics.MetricRegistry;
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when an intake request should be ended.
+ * <p>
+ * Without {@linkplain ReporterConfiguration#isAdaptiveBatching() adaptive batching},
+ * requests are ended based on the static {@link ReporterConfiguration#getApiRequestSize() api_request_size}
+ * and {@link ReporterConfiguration#getApiRequestTime() api_request_time}.
+ * </p>
+ * <p>
+ * With adaptive batching, the effective request size and time are adjusted after each request within the configured bounds,
+ * based on an exponentially weighted moving average of the throughput of the application,
+ * and of the latency and error rate of the APM Server:
+ * </p>
+ * <ul>
+ *     <li>
+ *         If the APM Server is slow or responds with errors, the effective size and time are doubled,
+ *         which leads to fewer and bigger requests.
+ *     </li>
+ *     <li>
+ *         If a request has been filled up before the effective time has elapsed, the effective size grows,
+ *         which amortizes the overhead of requests for applications that produce a lot of data.
+ *     </li>
+ *     <li>
+ *         If a request has been ended because the effective time has elapsed, the effective time shrinks so that data arrives sooner,
+ *         and the effective size is set to twice the amount of data the application produces within the effective time.
+ *     </li>
+ * </ul>
+ * <p>
+ * Requests are ended by the reporter thread but, when {@linkplain IntakeRequestPipeline pipelined}, their responses are
+ * received by the sender threads which is why the methods updating the state are synchronized.
+ * </p>
+ */
+class IntakeBatchingController {
+
+    private static final Logger logger = LoggerFactory.getLogger(IntakeBatchingController.class);
+
+    /**
+     * The weight of a new sample in the moving averages
+     */
+    private static final double ALPHA = 0.3;
+    private static final double MAX_ERROR_RATE = 0.1;
+    /**
+     * Responses that take longer than this fraction of the {@link ReporterConfiguration#getServerTimeout() server_timeout}
+     * are considered as slow
+     */
+    private static final int SLOW_RESPONSE_TIMEOUT_FRACTION = 4;
+
+    private final ReporterConfiguration reporterConfiguration;
+    private final boolean adaptive;
+    private volatile long requestSize;
+    private volatile long requestTimeMillis;
+    private volatile double latencyMillis;
+    private volatile double bytesPerSecond;
+    private volatile double errorRate;
+
+    IntakeBatchingController(ReporterConfiguration reporterConfiguration) {
+        this.reporterConfiguration = reporterConfiguration;
+        this.adaptive = reporterConfiguration.isAdaptiveBatching();
+        this.requestSize = reporterConfiguration.getApiRequestSize();
+        this.requestTimeMillis = reporterConfiguration.getApiRequestTime().getMillis();
+    }
+
+    /**
+     * @return the size of the request body after which a request should be ended
+     */
+    long getRequestSize() {
+        return adaptive ? requestSize : reporterConfiguration.getApiRequestSize();
+    }
+
+    /**
+     * @return the time in milliseconds after which a request should be ended
+     */
+    long getRequestTimeMillis() {
+        return adaptive ? requestTimeMillis : reporterConfiguration.getApiRequestTime().getMillis();
+    }
+
+    /**
+     * Called by the reporter thread after the body of a request has been written completely.
+     *
+     * @param bytes     the size of the request body
+     * @param openNanos the time the request has been open for
+     */
+    synchronized void onRequestEnded(long bytes, long openNanos) {
+        long openMillis = TimeUnit.NANOSECONDS.toMillis(openNanos);
+        bytesPerSecond = average(bytesPerSecond, bytes * 1000d / Math.max(openMillis, 1));
+        if (!adaptive) {
+            return;
+        }
+        long maxSize = reporterConfiguration.getApiRequestSize();
+        long minSize = Math.min(reporterConfiguration.getApiRequestSizeMin(), maxSize);
+        long maxTime = reporterConfiguration.getApiRequestTime().getMillis();
+        long minTime = Math.min(reporterConfiguration.getApiRequestTimeMin().getMillis(), maxTime);
+        long size = requestSize;
+        long time = requestTimeMillis;
+        if (errorRate > MAX_ERROR_RATE || latencyMillis > reporterConfiguration.getServerTimeout().getMillis() / SLOW_RESPONSE_TIMEOUT_FRACTION) {
+            size *= 2;
+            time *= 2;
+        } else if (bytes >= size) {
+            size += size / 2;
+        } else if (openMillis >= time) {
+            time -= time / 4;
+            size = (long) (bytesPerSecond * time / 1000 * 2);
+        }
+        requestSize = clamp(size, minSize, maxSize);
+        requestTimeMillis = clamp(time, minTime, maxTime);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Adapted request size to {} bytes and request time to {}ms (latency {}ms, throughput {} bytes/s, error rate {})",
+                requestSize, requestTimeMillis, (long) latencyMillis, (long) bytesPerSecond, errorRate);
+        }
+    }
+
+    /**
+     * Called when the response of a request has been received or when the request has failed.
+     *
+     * @param latencyNanos the time it took from finishing the request body until the response has been received
+     * @param success      whether the APM Server has accepted the request
+     */
+    synchronized void onResponse(long latencyNanos, boolean success) {
+        latencyMillis = average(latencyMillis, latencyNanos / 1_000_000d);
+        errorRate = average(errorRate, success ? 0 : 1);
+    }
+
+    private static double average(double average, double sample) {
+        return average + ALPHA * (sample - average);
+    }
+
+    private static long clamp(long value, long min, long max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    void bindTo(MetricRegistry registry) {
+        if (!adaptive) {
+            return;
+        }
+        registry.add("agent.intake.batching.request_size", Labels.EMPTY, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return requestSize;
+            }
+        });
+        registry.add("agent.intake.batching.request_time", Labels.EMPTY, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return requestTimeMillis;
+            }
+        });
+        registry.add("agent.intake.batching.latency", Labels.EMPTY, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return latencyMillis;
+            }
+        });
+        registry.add("agent.intake.batching.throughput", Labels.EMPTY, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return bytesPerSecond;
+            }
+        });
+        registry.add("agent.intake.batching.error_rate", Labels.EMPTY, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return errorRate;
+            }
+        });
+    }
+}
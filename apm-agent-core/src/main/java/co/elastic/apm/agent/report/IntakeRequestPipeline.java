@@ -0,0 +1,346 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.metrics.DoubleSupplier;
+import co.elastic.apm.agent.metrics.Labels;
+import co.elastic.apm.agent.metrics.MetricRegistry;
+import co.elastic.apm.agent.report.compression.DirectByteArrayOutputStream;
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+import co.elastic.apm.agent.util.ExecutorUtils;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decouples the network I/O of intake requests from the reporter thread.
+ * <p>
+ * The reporter thread serializes and compresses events into pooled {@link RequestBuffer}s.
+ * Once a request is complete, the buffer is handed over to one of a fixed number of sender threads,
+ * each of which sends the buffered request body to the APM Server using its own HTTP connection.
+ * While the senders are busy, the reporter thread can already serialize the next batch of events.
+ * </p>
+ * <p>
+ * The number of buffers that can be pending at any point in time is bounded by the number of senders.
+ * If all senders are busy and the queue of pending requests is full, the request is rejected and its events are dropped.
+ * </p>
+ * <p>
+ * If a {@link SpillQueue} is configured, requests are spilled to disk instead of being dropped while the APM Server is unhealthy,
+ * when all senders are busy, or when sending the request failed due to a connection or capacity issue of the APM Server.
+ * Idle senders drain the spill queue once the APM Server is healthy again.
+ * To preserve the order of the requests, new requests are spilled as well until the spill queue is empty,
+ * and senders take spilled requests before pending ones.
+ * </p>
+ */
+class IntakeRequestPipeline {
+
+    private static final Logger logger = LoggerFactory.getLogger(IntakeRequestPipeline.class);
+
+    private final AbstractIntakeApiHandler handler;
+    private final String endpoint;
+    private final BlockingQueue<RequestBuffer> pendingRequests;
+    private final BlockingQueue<RequestBuffer> bufferPool;
+    private final Sender[] senders;
+    private final ThreadPoolExecutor senderPool;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+    @Nullable
+    private final SpillQueue spillQueue;
+    private volatile boolean shutDown;
+
+    IntakeRequestPipeline(AbstractIntakeApiHandler handler, String endpoint, int concurrency, @Nullable SpillQueue spillQueue) {
+        this.handler = handler;
+        this.endpoint = endpoint;
+        this.spillQueue = spillQueue;
+        this.pendingRequests = new ArrayBlockingQueue<>(concurrency);
+        // one buffer per sender, one per pending request and one that is currently filled by the reporter thread
+        this.bufferPool = new ArrayBlockingQueue<>(2 * concurrency + 1);
+        this.senders = new Sender[concurrency];
+        this.senderPool = ExecutorUtils.createThreadDaemonPool("intake-sender", concurrency, concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            senders[i] = new Sender();
+            senderPool.execute(senders[i]);
+        }
+    }
+
+    /**
+     * Returns a buffer the reporter thread can serialize a new request body into.
+     * Buffers are reused so that their backing arrays don't have to grow again for each request.
+     *
+     * @param contentEncoding the codec the request body will be compressed with, {@code null} if it won't be compressed
+     * @return an empty buffer
+     */
+    RequestBuffer createRequestBuffer(@Nullable String contentEncoding) {
+        RequestBuffer buffer = bufferPool.poll();
+        if (buffer == null) {
+            buffer = new RequestBuffer();
+        }
+        buffer.contentEncoding = contentEncoding;
+        return buffer;
+    }
+
+    /**
+     * @return the intake API endpoint the buffered requests are sent to
+     */
+    String getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * Hands a completed request body over to the sender threads.
+     *
+     * @param buffer the completed request body
+     * @return {@code true} if the request has been queued for sending or has been spilled to disk,
+     * {@code false} if all senders are busy and the request could neither be queued nor spilled,
+     * in which case its events are dropped
+     */
+    boolean submit(RequestBuffer buffer) {
+        // while there's a backlog of spilled requests, new requests have to queue up behind it
+        if ((!handler.isHealthy() || hasSpilledRequests()) && spill(buffer)) {
+            recycle(buffer);
+            return true;
+        }
+        inFlight.incrementAndGet();
+        if (shutDown || !pendingRequests.offer(buffer)) {
+            inFlight.decrementAndGet();
+            boolean spilled = spill(buffer);
+            if (!spilled) {
+                rejected.addAndGet(buffer.getEvents());
+            }
+            recycle(buffer);
+            return spilled;
+        }
+        return true;
+    }
+
+    /**
+     * Persists the request so that it can be sent once the APM Server is healthy again.
+     * Does not recycle the buffer.
+     *
+     * @param buffer the request body
+     * @return {@code true} if the request has been spilled to disk
+     */
+    boolean spill(RequestBuffer buffer) {
+        return spillQueue != null && spillQueue.offer(buffer);
+    }
+
+    private boolean hasSpilledRequests() {
+        return spillQueue != null && !spillQueue.isEmpty();
+    }
+
+    @Nullable
+    private RequestBuffer pollSpilled() {
+        if (spillQueue == null || shutDown || !handler.isHealthy()) {
+            return null;
+        }
+        RequestBuffer buffer = createRequestBuffer(null);
+        if (spillQueue.poll(buffer)) {
+            inFlight.incrementAndGet();
+            return buffer;
+        }
+        recycle(buffer);
+        return null;
+    }
+
+    /**
+     * Blocks until all submitted requests have been sent or the timeout has elapsed.
+     *
+     * @param timeoutMs the maximum time to wait in milliseconds
+     * @return {@code true} if there are no more requests in flight
+     */
+    boolean awaitIdle(long timeoutMs) {
+        long thresholdNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (inFlight.get() > 0 && System.nanoTime() < thresholdNs) {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return inFlight.get() == 0;
+    }
+
+    int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return the number of events which have been dropped because all senders were busy
+     */
+    long getRejected() {
+        long dropped = rejected.get();
+        if (spillQueue != null) {
+            dropped += spillQueue.getEvictedEvents();
+        }
+        return dropped;
+    }
+
+    void bindTo(MetricRegistry registry) {
+        registry.add("agent.intake.requests.in_flight", Labels.EMPTY, new DoubleSupplier() {
+            @Override
+            public double get() {
+                return inFlight.get();
+            }
+        });
+        if (spillQueue != null) {
+            registry.add("agent.intake.spill.size", Labels.EMPTY, new DoubleSupplier() {
+                @Override
+                public double get() {
+                    return spillQueue.getSizeOnDisk();
+                }
+            });
+        }
+        for (int i = 0; i < senders.length; i++) {
+            final Sender sender = senders[i];
+            Labels.Mutable labels = Labels.Mutable.of("sender", Integer.toString(i));
+            registry.add("agent.intake.sender.requests", labels, new DoubleSupplier() {
+                @Override
+                public double get() {
+                    return sender.requests.getAndSet(0);
+                }
+            });
+            registry.add("agent.intake.sender.bytes", labels, new DoubleSupplier() {
+                @Override
+                public double get() {
+                    return sender.bytes.getAndSet(0);
+                }
+            });
+            registry.add("agent.intake.sender.time", labels, new DoubleSupplier() {
+                @Override
+                public double get() {
+                    return TimeUnit.NANOSECONDS.toMillis(sender.timeNs.getAndSet(0));
+                }
+            });
+        }
+    }
+
+    /**
+     * Stops accepting new requests and waits for the pending ones to be sent.
+     *
+     * @param timeoutMs the maximum time to wait for pending requests in milliseconds
+     */
+    void close(long timeoutMs) {
+        shutDown = true;
+        ExecutorUtils.shutdownAndWaitTermination(senderPool, timeoutMs, TimeUnit.MILLISECONDS);
+        if (spillQueue != null) {
+            spillQueue.close();
+        }
+    }
+
+    private void recycle(RequestBuffer buffer) {
+        buffer.reset();
+        buffer.events = 0;
+        bufferPool.offer(buffer);
+    }
+
+    private class Sender implements Runnable {
+
+        /*
+         * Reset on every metrics report so that the gauges represent the throughput within the last metrics_interval
+         */
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong timeNs = new AtomicLong();
+
+        @Override
+        public void run() {
+            while (!shutDown || !pendingRequests.isEmpty()) {
+                // the spilled requests are older than the pending ones
+                RequestBuffer buffer = pollSpilled();
+                if (buffer == null) {
+                    buffer = pendingRequests.poll();
+                }
+                if (buffer == null) {
+                    try {
+                        buffer = pendingRequests.poll(100, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        logger.debug("Intake request sender has been interrupted, {} requests are still pending", pendingRequests.size());
+                        return;
+                    }
+                }
+                if (buffer != null) {
+                    long start = System.nanoTime();
+                    try {
+                        handler.sendBufferedRequest(buffer);
+                    } finally {
+                        requests.incrementAndGet();
+                        bytes.addAndGet(buffer.size());
+                        timeNs.addAndGet(System.nanoTime() - start);
+                        recycle(buffer);
+                        inFlight.decrementAndGet();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * An in-memory intake request body which is already serialized and, if applicable, compressed.
+     */
+    static class RequestBuffer extends DirectByteArrayOutputStream {
+
+        @Nullable
+        private String contentEncoding;
+        private long events;
+
+        RequestBuffer() {
+            super(DslJsonSerializer.BUFFER_SIZE);
+        }
+
+        @Nullable
+        String getContentEncoding() {
+            return contentEncoding;
+        }
+
+        void setContentEncoding(@Nullable String contentEncoding) {
+            this.contentEncoding = contentEncoding;
+        }
+
+        /**
+         * Replaces the contents of this buffer with {@code length} bytes read from the provided {@link ByteBuffer}.
+         *
+         * @param src    the buffer to read from, starting at its current position
+         * @param length the number of bytes to read
+         */
+        void readFrom(ByteBuffer src, int length) {
+            if (buf.length < length) {
+                buf = new byte[length];
+            }
+            src.get(buf, 0, length);
+            count = length;
+        }
+
+        long getEvents() {
+            return events;
+        }
+
+        void setEvents(long events) {
+            this.events = events;
+        }
+    }
+}
@@ -25,7 +25,6 @@ import co.elastic.apm.agent.sdk.logging.Logger;
 import co.elastic.apm.agent.sdk.logging.LoggerFactory;
 
 import javax.annotation.Nullable;
-import java.net.HttpURLConnection;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
@@ -40,12 +39,15 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
     private final ScheduledExecutorService timeoutTimer;
     @Nullable
     private Runnable timeoutTask;
-    private final AtomicLong processed = new AtomicLong();
+    /**
+     * The sequence of the last processed event, {@code -1} as the first event has the sequence {@code 0}
+     */
+    private final AtomicLong processed = new AtomicLong(-1);
     private static final Logger logger = LoggerFactory.getLogger(IntakeV2ReportingEventHandler.class);
 
     public IntakeV2ReportingEventHandler(ReporterConfiguration reporterConfiguration, ProcessorEventHandler processorEventHandler,
                                          PayloadSerializer payloadSerializer, ApmServerClient apmServerClient) {
-        super(reporterConfiguration, payloadSerializer, apmServerClient);
+        super(reporterConfiguration, payloadSerializer, apmServerClient, INTAKE_V2_URL);
         this.processorEventHandler = processorEventHandler;
         this.timeoutTimer = ExecutorUtils.createSingleThreadSchedulingDaemonPool("request-timeout-timer");
     }
@@ -62,7 +64,7 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
         }
         try {
             if (!shutDown) {
-                if (connection != null && isApiRequestTimeExpired()) {
+                if (isRequestInProgress() && isApiRequestTimeExpired()) {
                     logger.debug("Request flush because the request timeout occurred");
                     endRequest();
                 }
@@ -87,6 +89,7 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
         switch (event.getType()) {
             case END_REQUEST:
                 endRequest();
+                awaitPendingRequests();
                 break;
             case SHUTDOWN:
                 handleShutdownEvent();
@@ -95,6 +98,7 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
             case ERROR:
             case TRANSACTION:
             case JSON_WRITER:
+            case SERIALIZED_SPAN:
                 handleIntakeEvent(event, sequence, endOfBatch);
                 break;
         }
@@ -103,21 +107,22 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
     private void handleShutdownEvent() {
         shutDown = true;
         endRequest();
+        awaitPendingRequests();
     }
 
     private void handleIntakeEvent(ReportingEvent event, long sequence, boolean endOfBatch) {
         processorEventHandler.onEvent(event, sequence, endOfBatch);
         try {
-            if (connection == null) {
-                connection = startRequest(INTAKE_V2_URL);
+            if (!isRequestInProgress()) {
+                startIntakeRequest();
             }
-            if (connection != null) {
+            if (isRequestInProgress()) {
                 writeEvent(event);
             } else {
                 if (logger.isDebugEnabled()) {
                     logger.debug("Failed to get APM server connection, dropping event: {}", event);
                 }
-                dropped++;
+                dropped.incrementAndGet();
             }
         } catch (Exception e) {
             handleConnectionError(event, e);
@@ -154,24 +159,29 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
         } else if (event.getError() != null) {
             currentlyTransmitting++;
             payloadSerializer.serializeErrorNdJson(event.getError());
+        } else if (event.getSerializedSpan() != null) {
+            currentlyTransmitting++;
+            event.getSerializedSpan().writeTo(payloadSerializer);
         } else if (event.getJsonWriter() != null) {
             payloadSerializer.writeBytes(event.getJsonWriter().getByteBuffer(), event.getJsonWriter().size());
         }
     }
 
-    @Override
-    @Nullable
-    protected HttpURLConnection startRequest(String endpoint) throws Exception {
-        HttpURLConnection connection = super.startRequest(endpoint);
-        if (connection != null) {
-            if (timeoutTask != null) {
-                if (logger.isDebugEnabled()) {
-                    logger.debug("Scheduling request timeout in {}", reporterConfiguration.getApiRequestTime());
-                }
-                timeoutTimer.schedule(timeoutTask, reporterConfiguration.getApiRequestTime().getMillis(), TimeUnit.MILLISECONDS);
+    private void startIntakeRequest() throws Exception {
+        boolean started;
+        if (isPipelined()) {
+            started = startBufferedRequest();
+        } else {
+            connection = startRequest(INTAKE_V2_URL);
+            started = connection != null;
+        }
+        if (started && timeoutTask != null) {
+            long requestTimeMillis = getRequestTimeMillis();
+            if (logger.isDebugEnabled()) {
+                logger.debug("Scheduling request timeout in {}ms", requestTimeMillis);
             }
+            timeoutTimer.schedule(timeoutTask, requestTimeMillis, TimeUnit.MILLISECONDS);
         }
-        return connection;
     }
 
     @Override
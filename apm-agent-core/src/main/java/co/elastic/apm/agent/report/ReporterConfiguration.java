@@ -23,11 +23,11 @@ import co.elastic.apm.agent.configuration.converter.ByteValueConverter;
 import co.elastic.apm.agent.configuration.converter.TimeDuration;
 import co.elastic.apm.agent.configuration.converter.TimeDurationValueConverter;
 import co.elastic.apm.agent.matcher.WildcardMatcher;
-import co.elastic.apm.agent.matcher.WildcardMatcherValueConverter;
+import co.elastic.apm.agent.matcher.WildcardMatcherSetValueConverter;
+import co.elastic.apm.agent.metrics.MetricRegistry;
 import co.elastic.apm.agent.sdk.logging.LoggerFactory;
 import org.stagemonitor.configuration.ConfigurationOption;
 import org.stagemonitor.configuration.ConfigurationOptionProvider;
-import org.stagemonitor.configuration.converter.ListValueConverter;
 import org.stagemonitor.configuration.converter.UrlValueConverter;
 
 import javax.annotation.Nullable;
@@ -35,7 +35,9 @@ import java.net.URL;
 import java.util.Collections;
 import java.util.List;
 
+import static co.elastic.apm.agent.configuration.validation.RangeValidator.isInRange;
 import static co.elastic.apm.agent.configuration.validation.RangeValidator.isNotInRange;
+import static co.elastic.apm.agent.configuration.validation.RangeValidator.min;
 
 public class ReporterConfiguration extends ConfigurationOptionProvider {
 
@@ -153,6 +155,59 @@ public class ReporterConfiguration extends ConfigurationOptionProvider {
         .dynamic(false)
         .buildWithDefault(512);
 
+    private final ConfigurationOption<Integer> queueShards = ConfigurationOption.integerOption()
+        .key("queue_shards")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("The number of queues the events of the application threads are spread across.\n" +
+            "\n" +
+            "By default, all application threads add their events to a single queue,\n" +
+            "which may become a point of contention on machines with many cores and many threads that create events concurrently.\n" +
+            "When set to a value greater than `1`, each thread adds its events to one of multiple queues, determined by the thread's id,\n" +
+            "which are all drained by the reporter thread.\n" +
+            "The value is rounded up to the next power of two.\n" +
+            "A good starting point is the number of CPU cores.\n" +
+            "\n" +
+            "NOTE: The <<config-max-queue-size>> is split evenly across the queues.\n" +
+            "A single thread that creates a lot of events is therefore more likely to fill up its queue.")
+        .addValidator(isInRange(1, 1024))
+        .dynamic(false)
+        .buildWithDefault(1);
+
+    private final ConfigurationOption<ReporterWaitStrategy> reporterWaitStrategy = ConfigurationOption.enumOption(ReporterWaitStrategy.class)
+        .key("reporter_wait_strategy")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("How the reporter thread waits for new events.\n" +
+            "\n" +
+            "- `sleeping`: sleeps for an exponentially increasing amount of time, up to 10ms, while there are no events.\n" +
+            "  This has a low CPU overhead while idle and doesn't slow down the application threads.\n" +
+            "- `blocking`: waits on a lock until an event arrives.\n" +
+            "  This has the lowest CPU overhead while idle, but each event requires the application thread to signal the reporter thread.\n" +
+            "- `yielding`: continuously checks for new events, yielding the CPU between checks.\n" +
+            "  This leads to the lowest latency but keeps a CPU core busy.\n" +
+            "  Only use this on machines with spare cores.")
+        .dynamic(false)
+        .buildWithDefault(ReporterWaitStrategy.SLEEPING);
+
+    private final ConfigurationOption<ByteValue> offHeapSpanBufferSize = ByteValueConverter.byteOption()
+        .key("off_heap_span_buffer_size")
+        .tags("performance")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("The amount of direct memory used to hold spans which have ended but have not been sent yet.\n" +
+            "\n" +
+            "By default, ended spans are queued as objects until the reporter thread serializes them.\n" +
+            "When the reporter thread can't keep up, the queued spans and their context can make up a large part of the heap\n" +
+            "and may be promoted to the old generation.\n" +
+            "When set to a value greater than `0`, spans are serialized on the thread that ends them, into a buffer outside of the heap.\n" +
+            "The span objects are then reused right away.\n" +
+            "This trades a bit of latency on the application threads for less garbage collection pressure.\n" +
+            "\n" +
+            "Each span takes up a 4kb slot of the buffer.\n" +
+            "Spans that don't fit into a slot, and spans that end while the buffer is full, are queued as objects.\n" +
+            "\n" +
+            "Allowed byte units are `b`, `kb`, `mb` and `gb`. `1kb` is equal to `1024b`.")
+        .dynamic(false)
+        .buildWithDefault(ByteValue.of("0b"));
+
     private final ConfigurationOption<Boolean> reportSynchronously = ConfigurationOption.booleanOption()
         .key("report_sync")
         .tags("internal")
@@ -188,6 +243,105 @@ public class ReporterConfiguration extends ConfigurationOptionProvider {
             "Allowed byte units are `b`, `kb` and `mb`. `1kb` is equal to `1024b`.")
         .buildWithDefault(ByteValue.of("768kb"));
 
+    private final ConfigurationOption<Boolean> adaptiveBatching = ConfigurationOption.booleanOption()
+        .key("adaptive_batching")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("Whether the agent should adapt the size and duration of requests to the APM Server to the observed\n" +
+            "throughput of the application and to the latency and error rate of the APM Server.\n" +
+            "\n" +
+            "When enabled, <<config-api-request-size>> and <<config-api-request-time>> are upper bounds and\n" +
+            "<<config-api-request-size-min>> and <<config-api-request-time-min>> are lower bounds for the effective values.\n" +
+            "While the APM Server responds quickly, requests are ended more frequently so that data arrives faster,\n" +
+            "and requests grow when the application produces more data than fits into them.\n" +
+            "When the APM Server responds slowly or with errors, the agent backs off to fewer and bigger requests.\n" +
+            "\n" +
+            "The effective values are exposed through the `agent.intake.batching.*` metrics.")
+        .dynamic(false)
+        .buildWithDefault(false);
+
+    private final ConfigurationOption<ByteValue> apiRequestSizeMin = ByteValueConverter.byteOption()
+        .key("api_request_size_min")
+        .configurationCategory(REPORTER_CATEGORY)
+        .dynamic(true)
+        .description("The lower bound of the request size when <<config-adaptive-batching>> is enabled.\n" +
+            "\n" +
+            "Allowed byte units are `b`, `kb` and `mb`. `1kb` is equal to `1024b`.")
+        .buildWithDefault(ByteValue.of("16kb"));
+
+    private final ConfigurationOption<TimeDuration> apiRequestTimeMin = TimeDurationValueConverter.durationOption("s")
+        .key("api_request_time_min")
+        .configurationCategory(REPORTER_CATEGORY)
+        .dynamic(true)
+        .description("The lower bound of the time to keep a request to the APM Server open for when <<config-adaptive-batching>> is enabled.")
+        .buildWithDefault(TimeDuration.of("1s"));
+
+    private final ConfigurationOption<Integer> apiRequestConcurrency = ConfigurationOption.integerOption()
+        .key("api_request_concurrency")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("The number of HTTP requests to the APM Server that may be in flight at the same time.\n" +
+            "\n" +
+            "When set to `0`, events are serialized and streamed to the APM Server through a single HTTP connection " +
+            "on the reporter thread.\n" +
+            "When set to a value greater than `0`, the reporter thread serializes and compresses events into in-memory buffers " +
+            "of up to <<config-api-request-size>>, which are then sent by a pool of sender threads of the configured size.\n" +
+            "This lets serialization, compression and network I/O overlap and keeps a slow APM Server from blocking the reporter thread.\n" +
+            "\n" +
+            "NOTE: Each in-flight request holds a buffer of up to <<config-api-request-size>> on the heap.")
+        .addValidator(min(0))
+        .dynamic(false)
+        .buildWithDefault(0);
+
+    private final ConfigurationOption<String> spillQueueDir = ConfigurationOption.stringOption()
+        .key("spill_queue_dir")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("A directory in which the agent persists events that can't be sent because the APM Server is unavailable.\n" +
+            "\n" +
+            "While the APM Server is down or overloaded, already serialized requests are spilled to memory-mapped files in this directory " +
+            "instead of being dropped.\n" +
+            "Once the APM Server is available again, the spilled requests are sent in the order they have been spilled.\n" +
+            "Requests that are still on disk when the application stops are sent after the next start.\n" +
+            "The directory must not be shared by multiple agents.\n" +
+            "\n" +
+            "If not set, spilling events to disk is disabled.\n" +
+            "\n" +
+            "NOTE: Requires <<config-api-request-concurrency>> to be greater than `0`.")
+        .dynamic(false)
+        .build();
+
+    private final ConfigurationOption<ByteValue> spillQueueMaxSize = ByteValueConverter.byteOption()
+        .key("spill_queue_max_size")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("The maximum amount of disk space the <<config-spill-queue-dir>> may take up.\n" +
+            "When this limit is reached, the oldest spilled requests are dropped.\n" +
+            "\n" +
+            "Allowed byte units are `b`, `kb`, `mb` and `gb`. `1kb` is equal to `1024b`.")
+        .dynamic(false)
+        .buildWithDefault(ByteValue.of("64mb"));
+
+    private final ConfigurationOption<ApiRequestCompression> apiRequestCompression = ConfigurationOption.enumOption(ApiRequestCompression.class)
+        .key("api_request_compression")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("The codec used to compress the bodies of requests to the APM Server.\n" +
+            "\n" +
+            "- `auto`: compresses with `deflate` unless the APM Server runs on `localhost`, in which case compression is skipped\n" +
+            "- `none`: sends uncompressed request bodies\n" +
+            "- `deflate`: compresses with zlib-wrapped deflate (`Content-Encoding: deflate`)\n" +
+            "- `gzip`: compresses with gzip (`Content-Encoding: gzip`)\n" +
+            "\n" +
+            "All codecs are supported by APM Server 6.5.0 and newer.")
+        .dynamic(false)
+        .buildWithDefault(ApiRequestCompression.AUTO);
+
+    private final ConfigurationOption<Integer> apiRequestCompressionLevel = ConfigurationOption.integerOption()
+        .key("api_request_compression_level")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("The compression level used by the `deflate` and `gzip` <<config-api-request-compression>> codecs,\n" +
+            "ranging from `1` (fastest) to `9` (smallest).\n" +
+            "Higher levels reduce network traffic at the cost of CPU time on the reporter thread.")
+        .addValidator(isInRange(1, 9))
+        .dynamic(false)
+        .buildWithDefault(1);
+
     private final ConfigurationOption<TimeDuration> metricsInterval = TimeDurationValueConverter.durationOption("s")
         .key("metrics_interval")
         .tags("added[1.3.0]")
@@ -199,7 +353,7 @@ public class ReporterConfiguration extends ConfigurationOptionProvider {
         .buildWithDefault(TimeDuration.of("30s"));
 
     private final ConfigurationOption<List<WildcardMatcher>> disableMetrics = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherSetValueConverter(), List.class)
         .key("disable_metrics")
         .tags("added[1.3.0]")
         .configurationCategory(REPORTER_CATEGORY)
@@ -211,6 +365,23 @@ public class ReporterConfiguration extends ConfigurationOptionProvider {
         .dynamic(false)
         .buildWithDefault(Collections.<WildcardMatcher>emptyList());
 
+    private final ConfigurationOption<Integer> metricSetLimit = ConfigurationOption.integerOption()
+        .key("metric_set_limit")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("The maximum number of metric sets, that is distinct combinations of labels like transaction names and span types, " +
+            "the agent keeps track of.\n" +
+            "\n" +
+            "When this limit is reached, the metrics of new label combinations are aggregated into metric sets " +
+            "with the transaction name `_other`.\n" +
+            "These keep the service name and version, the transaction type and the span type and subtype, but no other labels.\n" +
+            "Gauges for new label combinations are not collected anymore.\n" +
+            "\n" +
+            "NOTE: Each metric set takes up memory for as long as the application runs.\n" +
+            "Consider naming your transactions so that there are less distinct transaction names, instead of increasing this limit.")
+        .addValidator(min(1))
+        .dynamic(false)
+        .buildWithDefault(MetricRegistry.DEFAULT_METRIC_SET_LIMIT);
+
     @Nullable
     public String getSecretToken() {
         return secretToken.get();
@@ -276,6 +447,18 @@ public class ReporterConfiguration extends ConfigurationOptionProvider {
         return maxQueueSize.get();
     }
 
+    public int getQueueShards() {
+        return queueShards.get();
+    }
+
+    public ReporterWaitStrategy getReporterWaitStrategy() {
+        return reporterWaitStrategy.get();
+    }
+
+    public long getOffHeapSpanBufferSize() {
+        return offHeapSpanBufferSize.get().getBytes();
+    }
+
     public boolean isReportSynchronously() {
         return reportSynchronously.get();
     }
@@ -292,6 +475,39 @@ public class ReporterConfiguration extends ConfigurationOptionProvider {
         return apiRequestSize.get().getBytes();
     }
 
+    public boolean isAdaptiveBatching() {
+        return adaptiveBatching.get();
+    }
+
+    public long getApiRequestSizeMin() {
+        return apiRequestSizeMin.get().getBytes();
+    }
+
+    public TimeDuration getApiRequestTimeMin() {
+        return apiRequestTimeMin.get();
+    }
+
+    public int getApiRequestConcurrency() {
+        return apiRequestConcurrency.get();
+    }
+
+    @Nullable
+    public String getSpillQueueDir() {
+        return spillQueueDir.get();
+    }
+
+    public long getSpillQueueMaxSize() {
+        return spillQueueMaxSize.get().getBytes();
+    }
+
+    public ApiRequestCompression getApiRequestCompression() {
+        return apiRequestCompression.get();
+    }
+
+    public int getApiRequestCompressionLevel() {
+        return apiRequestCompressionLevel.get();
+    }
+
     public long getMetricsIntervalMs() {
         return metricsInterval.get().getMillis();
     }
@@ -300,6 +516,10 @@ public class ReporterConfiguration extends ConfigurationOptionProvider {
         return disableMetrics.get();
     }
 
+    public int getMetricSetLimit() {
+        return metricSetLimit.get();
+    }
+
     public ConfigurationOption<URL> getServerUrlOption() {
         return this.serverUrl;
     }
@@ -307,4 +527,27 @@ public class ReporterConfiguration extends ConfigurationOptionProvider {
     public ConfigurationOption<List<URL>> getServerUrlsOption() {
         return this.serverUrls;
     }
+
+    public enum ApiRequestCompression {
+        AUTO,
+        NONE,
+        DEFLATE,
+        GZIP;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase();
+        }
+    }
+
+    public enum ReporterWaitStrategy {
+        SLEEPING,
+        BLOCKING,
+        YIELDING;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase();
+        }
+    }
 }
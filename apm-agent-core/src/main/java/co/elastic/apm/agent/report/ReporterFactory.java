@@ -20,11 +20,15 @@ package co.elastic.apm.agent.report;
 
 import co.elastic.apm.agent.impl.metadata.MetaData;
 import co.elastic.apm.agent.impl.stacktrace.StacktraceConfiguration;
+import co.elastic.apm.agent.objectpool.Allocator;
 import co.elastic.apm.agent.report.processor.ProcessorEventHandler;
 import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import co.elastic.apm.agent.report.serialize.PayloadSerializer;
+import co.elastic.apm.agent.report.serialize.SerializerMetrics;
 import org.stagemonitor.configuration.ConfigurationRegistry;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.util.concurrent.Future;
 
 public class ReporterFactory {
@@ -34,17 +38,40 @@ public class ReporterFactory {
                                    Future<MetaData> metaData) {
 
         ReporterConfiguration reporterConfiguration = configurationRegistry.getConfig(ReporterConfiguration.class);
-        ReportingEventHandler reportingEventHandler = getReportingEventHandler(configurationRegistry, reporterConfiguration, metaData, apmServerClient);
-        return new ApmServerReporter(true, reporterConfiguration, reportingEventHandler);
+        // the spans serialized on application threads are covered by the serialization metrics of the reporter
+        SerializerMetrics serializerMetrics = new SerializerMetrics();
+        ReportingEventHandler reportingEventHandler = getReportingEventHandler(configurationRegistry, reporterConfiguration, metaData, apmServerClient, serializerMetrics);
+        return new ApmServerReporter(true, reporterConfiguration, reportingEventHandler,
+            getSerializedSpanBuffer(configurationRegistry, reporterConfiguration, metaData, apmServerClient, serializerMetrics));
+    }
+
+    @Nullable
+    private SerializedSpanBuffer getSerializedSpanBuffer(ConfigurationRegistry configurationRegistry,
+                                                         ReporterConfiguration reporterConfiguration,
+                                                         final Future<MetaData> metaData,
+                                                         final ApmServerClient apmServerClient,
+                                                         final SerializerMetrics serializerMetrics) {
+        long offHeapSpanBufferSize = reporterConfiguration.getOffHeapSpanBufferSize();
+        if (offHeapSpanBufferSize <= 0) {
+            return null;
+        }
+        final StacktraceConfiguration stacktraceConfiguration = configurationRegistry.getConfig(StacktraceConfiguration.class);
+        return new SerializedSpanBuffer(offHeapSpanBufferSize, Runtime.getRuntime().availableProcessors(), new Allocator<PayloadSerializer>() {
+            @Override
+            public PayloadSerializer createInstance() {
+                return new DslJsonSerializer(stacktraceConfiguration, apmServerClient, metaData, serializerMetrics);
+            }
+        });
     }
 
     @Nonnull
     private ReportingEventHandler getReportingEventHandler(ConfigurationRegistry configurationRegistry,
                                                            ReporterConfiguration reporterConfiguration,
                                                            Future<MetaData> metaData,
-                                                           ApmServerClient apmServerClient) {
+                                                           ApmServerClient apmServerClient,
+                                                           SerializerMetrics serializerMetrics) {
 
-        DslJsonSerializer payloadSerializer = new DslJsonSerializer(configurationRegistry.getConfig(StacktraceConfiguration.class), apmServerClient, metaData);
+        DslJsonSerializer payloadSerializer = new DslJsonSerializer(configurationRegistry.getConfig(StacktraceConfiguration.class), apmServerClient, metaData, serializerMetrics);
         ProcessorEventHandler processorEventHandler = ProcessorEventHandler.loadProcessors(configurationRegistry);
         return new IntakeV2ReportingEventHandler(reporterConfiguration, processorEventHandler, payloadSerializer, apmServerClient);
     }
@@ -29,6 +29,7 @@ import java.util.concurrent.locks.LockSupport;
 import static co.elastic.apm.agent.report.ReportingEvent.ReportingEventType.END_REQUEST;
 import static co.elastic.apm.agent.report.ReportingEvent.ReportingEventType.ERROR;
 import static co.elastic.apm.agent.report.ReportingEvent.ReportingEventType.JSON_WRITER;
+import static co.elastic.apm.agent.report.ReportingEvent.ReportingEventType.SERIALIZED_SPAN;
 import static co.elastic.apm.agent.report.ReportingEvent.ReportingEventType.SHUTDOWN;
 import static co.elastic.apm.agent.report.ReportingEvent.ReportingEventType.SPAN;
 import static co.elastic.apm.agent.report.ReportingEvent.ReportingEventType.TRANSACTION;
@@ -46,6 +47,8 @@ public class ReportingEvent {
     @Nullable
     private JsonWriter jsonWriter;
     @Nullable
+    private SerializedSpanBuffer.Slot serializedSpan;
+    @Nullable
     private Thread unparkAfterProcessed;
 
     public void resetState() {
@@ -54,6 +57,7 @@ public class ReportingEvent {
         this.error = null;
         this.span = null;
         this.jsonWriter = null;
+        this.serializedSpan = null;
         this.unparkAfterProcessed = null;
     }
 
@@ -122,6 +126,16 @@ public class ReportingEvent {
         this.type = JSON_WRITER;
     }
 
+    @Nullable
+    SerializedSpanBuffer.Slot getSerializedSpan() {
+        return serializedSpan;
+    }
+
+    void setSerializedSpan(SerializedSpanBuffer.Slot serializedSpan) {
+        this.serializedSpan = serializedSpan;
+        this.type = SERIALIZED_SPAN;
+    }
+
     public void end() {
         if (transaction != null) {
             transaction.decrementReferences();
@@ -129,6 +143,8 @@ public class ReportingEvent {
             span.decrementReferences();
         } else if (error != null) {
             error.recycle();
+        } else if (serializedSpan != null) {
+            serializedSpan.release();
         }
         if (unparkAfterProcessed != null) {
             LockSupport.unpark(unparkAfterProcessed);
@@ -144,6 +160,6 @@ public class ReportingEvent {
     }
 
     enum ReportingEventType {
-        END_REQUEST, TRANSACTION, SPAN, ERROR, SHUTDOWN, JSON_WRITER, WAKEUP
+        END_REQUEST, TRANSACTION, SPAN, ERROR, SHUTDOWN, JSON_WRITER, WAKEUP, SERIALIZED_SPAN
     }
 }
@@ -18,6 +18,7 @@
  */
 package co.elastic.apm.agent.report;
 
+import co.elastic.apm.agent.metrics.MetricRegistry;
 import com.lmax.disruptor.EventHandler;
 
 public interface ReportingEventHandler extends EventHandler<ReportingEvent> {
@@ -33,4 +34,11 @@ public interface ReportingEventHandler extends EventHandler<ReportingEvent> {
     void close();
 
     boolean isHealthy();
+
+    /**
+     * Registers the handler's internal metrics, if any.
+     *
+     * @param metricRegistry the registry to add the metrics to
+     */
+    void bindTo(MetricRegistry metricRegistry);
 }
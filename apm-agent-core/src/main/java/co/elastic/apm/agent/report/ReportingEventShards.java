@@ -0,0 +1,216 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+import com.lmax.disruptor.BusySpinWaitStrategy;
+import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.EventPoller;
+import com.lmax.disruptor.EventTranslatorOneArg;
+import com.lmax.disruptor.RingBuffer;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Spreads the events reported by application threads across multiple ring buffers,
+ * so that threads don't all contend on the sequence of a single ring buffer.
+ * <p>
+ * The shards don't have their own consumer thread.
+ * Instead, this handler wraps the {@link ReportingEventHandler} of the main ring buffer and drains all shards on the reporter thread
+ * before each event of the main ring buffer is handled.
+ * Control events, such as flushes and shutdowns, are still published to the main ring buffer.
+ * Before such an event is handled, every shard is drained up to the cursor it had at that point,
+ * which makes sure that all events which have been reported before a flush are handled before the flush itself,
+ * even when the main ring buffer already contains newer events.
+ * </p>
+ * <p>
+ * When the reporter thread is about to wait for new events on the main ring buffer, it marks itself as idle.
+ * An application thread that publishes an event to a shard while the reporter thread is idle publishes a wakeup event to the main ring buffer.
+ * The reporter thread checks the shards once more after marking itself as idle,
+ * so that an event published concurrently is either drained or triggers a wakeup.
+ * Under load, the reporter thread is rarely idle which means that application threads only touch the main ring buffer occasionally.
+ * </p>
+ */
+class ReportingEventShards implements EventHandler<ReportingEvent> {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReportingEventShards.class);
+
+    private final RingBuffer<ReportingEvent>[] shards;
+    private final EventPoller<ReportingEvent>[] pollers;
+    private final int mask;
+    private final ReportingEventHandler reportingEventHandler;
+    private final RingBuffer<ReportingEvent> mainRingBuffer;
+    private final EventPoller.Handler<ReportingEvent> drainHandler;
+    private volatile boolean idle = true;
+    /**
+     * The sequence the events drained from the shards are handled with.
+     * Only accessed by the reporter thread.
+     */
+    private long drainSequence;
+
+    @SuppressWarnings("unchecked")
+    ReportingEventShards(int numShards, int shardSize, final ReportingEventHandler reportingEventHandler, RingBuffer<ReportingEvent> mainRingBuffer) {
+        this.shards = new RingBuffer[numShards];
+        this.pollers = new EventPoller[numShards];
+        this.mask = numShards - 1;
+        this.reportingEventHandler = reportingEventHandler;
+        this.mainRingBuffer = mainRingBuffer;
+        for (int i = 0; i < numShards; i++) {
+            // nobody waits on the shards, the wait strategy is only used to signal a waiting consumer which is a no-op for this one
+            shards[i] = RingBuffer.createMultiProducer(new ApmServerReporter.TransactionEventFactory(), shardSize, new BusySpinWaitStrategy());
+            pollers[i] = shards[i].newPoller();
+            shards[i].addGatingSequences(pollers[i].getSequence());
+        }
+        this.drainHandler = new EventPoller.Handler<ReportingEvent>() {
+            @Override
+            public boolean onEvent(ReportingEvent event, long sequence, boolean endOfBatch) {
+                try {
+                    reportingEventHandler.onEvent(event, drainSequence, false);
+                } catch (Exception e) {
+                    logger.warn("Exception while handling event {}: {}", event, e.getMessage());
+                }
+                return true;
+            }
+        };
+    }
+
+    <E> boolean tryPublishEvent(EventTranslatorOneArg<ReportingEvent, E> translator, E event) {
+        boolean published = getShard().tryPublishEvent(translator, event);
+        if (published) {
+            wakeupIfIdle();
+        }
+        return published;
+    }
+
+    /**
+     * Publishes an event, waiting for the reporter thread to free up a slot if the shard is full.
+     */
+    <E> void publishEvent(EventTranslatorOneArg<ReportingEvent, E> translator, E event) {
+        RingBuffer<ReportingEvent> shard = getShard();
+        while (!shard.tryPublishEvent(translator, event)) {
+            // same as the Disruptor's back-off for full ring buffers
+            LockSupport.parkNanos(1);
+        }
+        wakeupIfIdle();
+    }
+
+    /**
+     * @return the ratio of occupied slots across all shards
+     */
+    double getFillLevel() {
+        long capacity = 0;
+        long remaining = 0;
+        for (RingBuffer<ReportingEvent> shard : shards) {
+            capacity += shard.getBufferSize();
+            remaining += shard.remainingCapacity();
+        }
+        return (double) (capacity - remaining) / capacity;
+    }
+
+    /**
+     * @return whether the shard of the current thread has at least one free slot
+     */
+    boolean hasRemainingCapacity() {
+        return getShard().remainingCapacity() > 0;
+    }
+
+    private RingBuffer<ReportingEvent> getShard() {
+        return shards[(int) Thread.currentThread().getId() & mask];
+    }
+
+    private void wakeupIfIdle() {
+        if (idle) {
+            idle = false;
+            mainRingBuffer.tryPublishEvent(ApmServerReporter.WAKEUP_EVENT_TRANSLATOR);
+        }
+    }
+
+    @Override
+    public void onEvent(ReportingEvent event, long sequence, boolean endOfBatch) throws Exception {
+        idle = false;
+        // the events of the shards must not mark the current event as processed before it actually has been
+        if (isControlEvent(event)) {
+            drainAll(sequence - 1);
+        } else {
+            drain(sequence - 1, sequence);
+        }
+        reportingEventHandler.onEvent(event, sequence, endOfBatch);
+        if (endOfBatch) {
+            drain(sequence, sequence);
+            idle = true;
+            drain(sequence, sequence);
+        }
+    }
+
+    private static boolean isControlEvent(ReportingEvent event) {
+        ReportingEvent.ReportingEventType type = event.getType();
+        return type == ReportingEvent.ReportingEventType.END_REQUEST || type == ReportingEvent.ReportingEventType.SHUTDOWN;
+    }
+
+    /**
+     * Drains each shard until all events which have been published to it before this method was called are handled.
+     * Events which are published concurrently may be handled as well,
+     * but they don't keep this method from returning when application threads produce events faster than they can be handled.
+     *
+     * @param drainSequence the sequence the drained events are handled with
+     */
+    private void drainAll(long drainSequence) {
+        this.drainSequence = drainSequence;
+        for (int i = 0; i < shards.length; i++) {
+            // the cursor of a multi-producer ring buffer is the highest claimed sequence,
+            // so this also waits for events whose publication is in progress
+            long cursor = shards[i].getCursor();
+            EventPoller<ReportingEvent> poller = pollers[i];
+            while (poller.getSequence().get() < cursor) {
+                try {
+                    if (poller.poll(drainHandler) != EventPoller.PollState.PROCESSING) {
+                        Thread.yield();
+                    }
+                } catch (Exception e) {
+                    // can't happen as the drain handler doesn't throw
+                    logger.warn(e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Drains the shards until they are empty or until there are new events in the main ring buffer.
+     * This keeps the reporter thread from waiting on the main ring buffer while the application threads produce events.
+     *
+     * @param drainSequence the sequence the drained events are handled with
+     * @param mainSequence  the sequence of the current event of the main ring buffer
+     */
+    private void drain(long drainSequence, long mainSequence) {
+        this.drainSequence = drainSequence;
+        boolean drained;
+        do {
+            drained = false;
+            for (EventPoller<ReportingEvent> poller : pollers) {
+                try {
+                    drained |= poller.poll(drainHandler) == EventPoller.PollState.PROCESSING;
+                } catch (Exception e) {
+                    // can't happen as the drain handler doesn't throw
+                    logger.warn(e.getMessage(), e);
+                }
+            }
+        } while (drained && mainRingBuffer.getCursor() <= mainSequence);
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.objectpool.Allocator;
+import co.elastic.apm.agent.objectpool.ObjectPool;
+import co.elastic.apm.agent.objectpool.Resetter;
+import co.elastic.apm.agent.objectpool.impl.QueueBasedObjectPool;
+import co.elastic.apm.agent.report.serialize.PayloadSerializer;
+import com.dslplatform.json.JsonWriter;
+import org.jctools.queues.atomic.MpmcAtomicArrayQueue;
+
+import javax.annotation.Nullable;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+
+/**
+ * Holds spans that have been serialized on the thread that ended them in direct memory, until the reporter thread sends them.
+ * <p>
+ * Ended spans are usually queued until the reporter thread serializes them.
+ * While being queued, they retain their context, such as the {@code db}, {@code http} and {@code destination} objects.
+ * When the reporter can't keep up, a full queue of spans may survive enough garbage collections to be promoted to the old generation.
+ * Instead, this buffer serializes a span into its final ND-JSON representation as soon as it's reported,
+ * so that the {@link Span} can be recycled immediately.
+ * The reporter thread then only copies the bytes to the request body.
+ * </p>
+ * <p>
+ * The direct memory is split into {@link Slot}s of a fixed size, which are handed out by a lock-free free list.
+ * Spans that don't fit into a slot, and spans which are reported while all slots are in use,
+ * are queued as regular {@link Span} objects.
+ * </p>
+ */
+class SerializedSpanBuffer {
+
+    /**
+     * The maximum size of a serialized span.
+     * Most spans are significantly smaller, except for spans with a stack trace or a long database statement.
+     */
+    static final int SLOT_SIZE = 4096;
+
+    private final Queue<Slot> freeSlots;
+    /**
+     * Each thread that serializes a span needs its own serializer, which are pooled as serializing is not re-entrant.
+     */
+    private final ObjectPool<PayloadSerializer> serializers;
+    /**
+     * Only used by the reporter thread
+     */
+    private final byte[] copyBuffer = new byte[SLOT_SIZE];
+
+    /**
+     * @param size                the amount of direct memory to allocate, in bytes
+     * @param maxSerializers      the maximum number of idle serializers to retain
+     * @param serializerAllocator creates the serializers which serialize the spans
+     */
+    SerializedSpanBuffer(long size, int maxSerializers, Allocator<PayloadSerializer> serializerAllocator) {
+        int slots = (int) Math.min(size / SLOT_SIZE, Integer.MAX_VALUE / SLOT_SIZE);
+        if (slots < 1) {
+            throw new IllegalArgumentException("The size of the buffer has to be at least " + SLOT_SIZE + " bytes");
+        }
+        // the queues require a capacity of at least 2
+        this.freeSlots = new MpmcAtomicArrayQueue<>(Math.max(slots, 2));
+        ByteBuffer buffer = ByteBuffer.allocateDirect(slots * SLOT_SIZE);
+        for (int i = 0; i < slots; i++) {
+            ((Buffer) buffer).limit((i + 1) * SLOT_SIZE);
+            ((Buffer) buffer).position(i * SLOT_SIZE);
+            freeSlots.offer(new Slot(buffer.slice()));
+        }
+        this.serializers = QueueBasedObjectPool.of(new MpmcAtomicArrayQueue<PayloadSerializer>(Math.max(maxSerializers, 2)), false, serializerAllocator,
+            new Resetter<PayloadSerializer>() {
+                @Override
+                public void recycle(PayloadSerializer serializer) {
+                    serializer.getJsonWriter().reset();
+                }
+            });
+    }
+
+    /**
+     * Serializes the span into a free slot.
+     * <p>
+     * The caller is responsible for recycling the span if this method returns a slot
+     * and for {@linkplain Slot#release() releasing} the slot after it has been sent.
+     * </p>
+     *
+     * @param span the span to serialize
+     * @return the slot holding the serialized span,
+     * or {@code null} if there's no free slot or if the serialized span exceeds the {@link #SLOT_SIZE}
+     */
+    @Nullable
+    Slot serialize(Span span) {
+        Slot slot = freeSlots.poll();
+        if (slot == null) {
+            return null;
+        }
+        boolean serialized = false;
+        PayloadSerializer serializer = serializers.createInstance();
+        try {
+            serializer.serializeSpanNdJson(span);
+            JsonWriter jw = serializer.getJsonWriter();
+            if (jw.size() <= SLOT_SIZE) {
+                slot.write(jw.getByteBuffer(), jw.size());
+                serialized = true;
+            }
+        } finally {
+            serializers.recycle(serializer);
+            if (!serialized) {
+                slot.release();
+            }
+        }
+        return serialized ? slot : null;
+    }
+
+    /**
+     * @return the number of slots that don't hold a serialized span
+     */
+    int getFreeSlots() {
+        return freeSlots.size();
+    }
+
+    /**
+     * A fixed-size region of direct memory that holds a single serialized span.
+     */
+    class Slot {
+        private final ByteBuffer buffer;
+        private int length;
+
+        private Slot(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        private void write(byte[] bytes, int length) {
+            ((Buffer) buffer).clear();
+            buffer.put(bytes, 0, length);
+            this.length = length;
+        }
+
+        /**
+         * Writes the serialized span to the serializer of the reporter thread.
+         * Must only be called by the reporter thread.
+         *
+         * @param serializer the serializer to append the serialized span to
+         */
+        void writeTo(PayloadSerializer serializer) {
+            ((Buffer) buffer).position(0);
+            buffer.get(copyBuffer, 0, length);
+            serializer.writeBytes(copyBuffer, length);
+        }
+
+        /**
+         * Returns this slot to the free list so that it can be reused for another span.
+         */
+        void release() {
+            length = 0;
+            freeSlots.offer(this);
+        }
+    }
+}
@@ -0,0 +1,432 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.sdk.logging.Logger;
+import co.elastic.apm.agent.sdk.logging.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.zip.CRC32;
+
+/**
+ * A bounded, persistent FIFO queue of serialized intake request bodies, backed by memory-mapped segment files.
+ * <p>
+ * While the APM Server is unavailable, requests that can't be sent are spilled to this queue instead of being dropped.
+ * Once the APM Server is healthy again, the queue is drained in the order the requests have been spilled.
+ * </p>
+ * <p>
+ * The queue consists of a sequence of fixed-size segment files.
+ * Each segment starts with a header that holds a magic number and the offset up to which the segment has been consumed.
+ * Each record consists of the length of the payload, the number of events it contains, its flags, a CRC32 checksum and the payload itself.
+ * On startup, segments left over by a previous process are recovered.
+ * The end of a segment is determined by scanning the records until the first record with an invalid length or checksum,
+ * which makes sure that records which have only partially been written when the process crashed are discarded.
+ * </p>
+ * <p>
+ * When the total size of all segments would exceed the configured maximum, the oldest segment is deleted along with the
+ * requests it contains.
+ * </p>
+ * <p>
+ * Segments are forced to disk when they are full and a new segment is started, when they have been fully consumed
+ * and when the queue is closed.
+ * Records and read offsets are written to the memory-mapped segment without being forced,
+ * which makes them safe against crashes of the process, as the OS writes back the mapped pages anyway.
+ * However, the records of the segment that is currently being written to may be lost if the OS crashes or the power fails
+ * before the segment is full or the queue is closed.
+ * Likewise, requests which have been read since the read offset has last been forced may be sent again after such a crash.
+ * The delivery is at-least-once anyway, as a request may also be sent again if the process crashes right after it has been sent.
+ * Not forcing the read offset for every request keeps {@link #poll} from blocking all other methods on disk I/O while the queue is drained.
+ * </p>
+ * <p>
+ * All methods are synchronized as requests may be spilled by the reporter thread and the intake sender threads concurrently.
+ * </p>
+ */
+class SpillQueue {
+
+    private static final Logger logger = LoggerFactory.getLogger(SpillQueue.class);
+
+    private static final String SEGMENT_FILE_SUFFIX = ".spill";
+    private static final int MAGIC = 0xE1A57C01;
+    private static final int HEADER_SIZE = 8;
+    private static final int READ_OFFSET_POSITION = 4;
+    private static final int RECORD_HEADER_SIZE = 13;
+    /**
+     * The content encodings of the spilled requests, indexed by the flags of a record
+     */
+    private static final String[] CONTENT_ENCODINGS = {null, "deflate", "gzip"};
+    private static final int MAX_SEGMENTS = 8;
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private final CRC32 crc = new CRC32();
+    @Nullable
+    private FileLock directoryLock;
+    private long nextSegmentId;
+    private long evictedEvents;
+
+    /**
+     * @param directory the directory to store the segment files in
+     * @param maxSize   the maximum number of bytes all segments may occupy on disk
+     */
+    SpillQueue(File directory, long maxSize) {
+        this.directory = directory;
+        this.maxSegments = MAX_SEGMENTS;
+        this.segmentSize = (int) Math.min(Integer.MAX_VALUE, maxSize / MAX_SEGMENTS);
+    }
+
+    /**
+     * Acquires an exclusive lock on the spill directory and recovers the segments left over from a previous process.
+     *
+     * @return {@code true} if the queue is ready to be used,
+     * {@code false} if the directory can't be used, for example because another process holds the lock on it
+     */
+    synchronized boolean open() {
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                logger.warn("Could not create spill queue directory {}", directory);
+                return false;
+            }
+            FileChannel lockChannel = new RandomAccessFile(new File(directory, "spill.lock"), "rw").getChannel();
+            directoryLock = lockChannel.tryLock();
+            if (directoryLock == null) {
+                lockChannel.close();
+                logger.warn("The spill queue directory {} is used by another process, spilling events to disk is disabled", directory);
+                return false;
+            }
+            recover();
+            return true;
+        } catch (Exception e) {
+            logger.warn("Could not open spill queue in " + directory, e);
+            return false;
+        }
+    }
+
+    private void recover() throws IOException {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_FILE_SUFFIX);
+            }
+        });
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            long id;
+            try {
+                id = Long.parseLong(file.getName().substring(0, file.getName().length() - SEGMENT_FILE_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            Segment segment = Segment.recover(file, id, crc);
+            if (segment == null || segment.isFullyConsumed()) {
+                delete(file);
+            } else {
+                segments.addLast(segment);
+                nextSegmentId = id + 1;
+            }
+        }
+        while (segments.size() > maxSegments) {
+            evictOldest();
+        }
+        if (!segments.isEmpty()) {
+            logger.info("Recovered {} spill queue segments from {}", segments.size(), directory);
+        }
+    }
+
+    /**
+     * Appends a serialized request body to the queue, evicting the oldest segment if the queue is full.
+     *
+     * @param buffer the request body
+     * @return {@code true} if the request has been spilled,
+     * {@code false} if it's too large to fit into a single segment or if the segment could not be created
+     */
+    synchronized boolean offer(IntakeRequestPipeline.RequestBuffer buffer) {
+        int recordSize = RECORD_HEADER_SIZE + buffer.size();
+        if (directoryLock == null || HEADER_SIZE + recordSize > segmentSize) {
+            return false;
+        }
+        Segment tail = segments.peekLast();
+        if (tail == null || tail.remainingCapacity() < recordSize) {
+            if (tail != null) {
+                // the segment won't be written to anymore, make sure its records survive an OS crash
+                tail.flush();
+            }
+            if (segments.size() >= maxSegments) {
+                evictOldest();
+            }
+            try {
+                tail = Segment.create(new File(directory, String.format("%019d%s", nextSegmentId, SEGMENT_FILE_SUFFIX)), nextSegmentId, segmentSize);
+                nextSegmentId++;
+            } catch (IOException e) {
+                logger.warn("Could not create spill queue segment", e);
+                return false;
+            }
+            segments.addLast(tail);
+        }
+        tail.append(buffer, crc);
+        return true;
+    }
+
+    /**
+     * Removes the oldest request body from the queue and copies it into the provided buffer.
+     *
+     * @param buffer the buffer to read the request body into
+     * @return {@code true} if a request body has been read, {@code false} if the queue is empty
+     */
+    synchronized boolean poll(IntakeRequestPipeline.RequestBuffer buffer) {
+        Segment head;
+        while ((head = segments.peekFirst()) != null) {
+            if (head.read(buffer)) {
+                if (head.isFullyConsumed()) {
+                    if (head != segments.peekLast()) {
+                        segments.pollFirst();
+                        head.release();
+                    } else {
+                        // the tail segment is kept as it is still being written to,
+                        // persist that it has been consumed so that its requests are not sent again after an OS crash
+                        head.flush();
+                    }
+                }
+                return true;
+            }
+            if (head == segments.peekLast()) {
+                return false;
+            }
+            segments.pollFirst();
+            head.release();
+        }
+        return false;
+    }
+
+    synchronized boolean isEmpty() {
+        for (Segment segment : segments) {
+            if (!segment.isFullyConsumed()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of bytes currently occupied by segments on disk
+     */
+    synchronized long getSizeOnDisk() {
+        return (long) segments.size() * segmentSize;
+    }
+
+    /**
+     * @return the number of events which have been dropped because their segment has been evicted
+     */
+    synchronized long getEvictedEvents() {
+        return evictedEvents;
+    }
+
+    synchronized void close() {
+        for (Segment segment : segments) {
+            segment.flush();
+        }
+        segments.clear();
+        if (directoryLock != null) {
+            try {
+                directoryLock.release();
+                directoryLock.channel().close();
+            } catch (IOException ignore) {
+                // the lock is released when the process exits anyway
+            }
+            directoryLock = null;
+        }
+    }
+
+    private void evictOldest() {
+        Segment oldest = segments.pollFirst();
+        if (oldest != null) {
+            long events = oldest.countUnconsumedEvents();
+            evictedEvents += events;
+            logger.debug("Spill queue is full, evicting segment with {} unsent events", events);
+            oldest.release();
+        }
+    }
+
+    private static void delete(File file) {
+        if (!file.delete()) {
+            logger.debug("Could not delete spill queue segment {}", file);
+        }
+    }
+
+    private static byte toFlags(@Nullable String contentEncoding) {
+        for (byte i = 1; i < CONTENT_ENCODINGS.length; i++) {
+            if (CONTENT_ENCODINGS[i].equals(contentEncoding)) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    private static class Segment {
+        private final File file;
+        private final long id;
+        private final MappedByteBuffer mapped;
+        private int readOffset;
+        private int writeOffset;
+
+        private Segment(File file, long id, MappedByteBuffer mapped, int readOffset, int writeOffset) {
+            this.file = file;
+            this.id = id;
+            this.mapped = mapped;
+            this.readOffset = readOffset;
+            this.writeOffset = writeOffset;
+        }
+
+        static Segment create(File file, long id, int size) throws IOException {
+            MappedByteBuffer mapped = map(file, size);
+            mapped.putInt(0, MAGIC);
+            mapped.putInt(READ_OFFSET_POSITION, HEADER_SIZE);
+            return new Segment(file, id, mapped, HEADER_SIZE, HEADER_SIZE);
+        }
+
+        @Nullable
+        static Segment recover(File file, long id, CRC32 crc) {
+            try {
+                long length = file.length();
+                if (length < HEADER_SIZE || length > Integer.MAX_VALUE) {
+                    return null;
+                }
+                MappedByteBuffer mapped = map(file, (int) length);
+                if (mapped.getInt(0) != MAGIC) {
+                    return null;
+                }
+                int readOffset = mapped.getInt(READ_OFFSET_POSITION);
+                int writeOffset = HEADER_SIZE;
+                // scanning for the last valid record to discard a record that has been written partially
+                byte[] scratch = new byte[0];
+                while (writeOffset + RECORD_HEADER_SIZE <= length) {
+                    int payloadLength = mapped.getInt(writeOffset);
+                    if (payloadLength <= 0 || writeOffset + RECORD_HEADER_SIZE + payloadLength > length) {
+                        break;
+                    }
+                    byte flags = mapped.get(writeOffset + 8);
+                    if (flags < 0 || flags >= CONTENT_ENCODINGS.length) {
+                        break;
+                    }
+                    if (scratch.length < payloadLength) {
+                        scratch = new byte[payloadLength];
+                    }
+                    ((Buffer) mapped).position(writeOffset + RECORD_HEADER_SIZE);
+                    mapped.get(scratch, 0, payloadLength);
+                    crc.reset();
+                    crc.update(scratch, 0, payloadLength);
+                    if ((int) crc.getValue() != mapped.getInt(writeOffset + 9)) {
+                        break;
+                    }
+                    writeOffset += RECORD_HEADER_SIZE + payloadLength;
+                }
+                if (readOffset < HEADER_SIZE || readOffset > writeOffset) {
+                    readOffset = HEADER_SIZE;
+                }
+                return new Segment(file, id, mapped, readOffset, writeOffset);
+            } catch (IOException e) {
+                logger.warn("Could not recover spill queue segment " + file, e);
+                return null;
+            }
+        }
+
+        private static MappedByteBuffer map(File file, int size) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            } finally {
+                // the mapping stays valid after the channel is closed
+                raf.close();
+            }
+        }
+
+        int remainingCapacity() {
+            return mapped.capacity() - writeOffset;
+        }
+
+        void append(IntakeRequestPipeline.RequestBuffer buffer, CRC32 crc) {
+            int payloadLength = buffer.size();
+            crc.reset();
+            crc.update(buffer.getBuffer(), 0, payloadLength);
+            // writing the payload before the length so that a crash in-between leaves an invalid record behind
+            ((Buffer) mapped).position(writeOffset + RECORD_HEADER_SIZE);
+            mapped.put(buffer.getBuffer(), 0, payloadLength);
+            mapped.putInt(writeOffset + 4, (int) buffer.getEvents());
+            mapped.put(writeOffset + 8, toFlags(buffer.getContentEncoding()));
+            mapped.putInt(writeOffset + 9, (int) crc.getValue());
+            mapped.putInt(writeOffset, payloadLength);
+            writeOffset += RECORD_HEADER_SIZE + payloadLength;
+        }
+
+        boolean read(IntakeRequestPipeline.RequestBuffer buffer) {
+            if (readOffset >= writeOffset) {
+                return false;
+            }
+            int payloadLength = mapped.getInt(readOffset);
+            buffer.setEvents(mapped.getInt(readOffset + 4));
+            buffer.setContentEncoding(CONTENT_ENCODINGS[mapped.get(readOffset + 8)]);
+            ((Buffer) mapped).position(readOffset + RECORD_HEADER_SIZE);
+            buffer.readFrom(mapped, payloadLength);
+            readOffset += RECORD_HEADER_SIZE + payloadLength;
+            mapped.putInt(READ_OFFSET_POSITION, readOffset);
+            return true;
+        }
+
+        boolean isFullyConsumed() {
+            return readOffset >= writeOffset;
+        }
+
+        long countUnconsumedEvents() {
+            long events = 0;
+            for (int offset = readOffset; offset < writeOffset; offset += RECORD_HEADER_SIZE + mapped.getInt(offset)) {
+                events += mapped.getInt(offset + 4);
+            }
+            return events;
+        }
+
+        void flush() {
+            mapped.force();
+        }
+
+        void release() {
+            // the mapping is released once the buffer is garbage collected
+            delete(file);
+        }
+
+        @Override
+        public String toString() {
+            return "Segment{id=" + id + ", file=" + file + "}";
+        }
+    }
+}
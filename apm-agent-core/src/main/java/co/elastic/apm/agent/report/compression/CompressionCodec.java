@@ -0,0 +1,55 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.compression;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Compresses the bodies of requests to the APM Server.
+ * <p>
+ * Codecs are stateful and not thread safe.
+ * A codec is owned by a single reporter thread and reused for all of its requests so that compressing a request body doesn't allocate.
+ * </p>
+ */
+public interface CompressionCodec {
+
+    /**
+     * @return the value of the {@code Content-Encoding} header, or {@code null} if request bodies are sent uncompressed
+     */
+    @Nullable
+    String getContentEncoding();
+
+    /**
+     * Starts compressing a new request body.
+     * <p>
+     * Closing the returned stream finishes the compressed stream and closes the provided {@link OutputStream}.
+     * This method must not be called again before the stream returned by the previous invocation has been closed.
+     * </p>
+     * <p>
+     * If {@code out} is a {@link DirectByteArrayOutputStream},
+     * codecs may write the compressed bytes directly into its backing array, avoiding an intermediate copy.
+     * </p>
+     *
+     * @param out the stream to write the compressed bytes to
+     * @return a stream accepting the uncompressed request body
+     */
+    OutputStream compress(OutputStream out) throws IOException;
+}
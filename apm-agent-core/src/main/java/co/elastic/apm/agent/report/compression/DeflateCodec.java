@@ -0,0 +1,180 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.compression;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses request bodies with zlib-wrapped deflate ({@code Content-Encoding: deflate}).
+ * <p>
+ * In contrast to a {@link java.util.zip.DeflaterOutputStream},
+ * the {@link Deflater} and the output buffer are reused across requests.
+ * When writing to a {@link DirectByteArrayOutputStream},
+ * the {@link Deflater} writes directly into its backing array instead of going through the output buffer.
+ * </p>
+ */
+public class DeflateCodec implements CompressionCodec {
+
+    /**
+     * A divisor of the HTTP chunk size, which is the size of the serializer's buffer,
+     * so that the chunks are filled by whole outputs of the {@link Deflater}.
+     */
+    private static final int OUTPUT_BUFFER_SIZE = 8 * 1024;
+    private static final int MIN_DIRECT_OUTPUT_SIZE = 512;
+
+    protected final Deflater deflater;
+    private final byte[] outputBuffer = new byte[OUTPUT_BUFFER_SIZE];
+    private final DeflatingOutputStream deflatingOutputStream = new DeflatingOutputStream();
+    @Nullable
+    private OutputStream out;
+    @Nullable
+    private DirectByteArrayOutputStream directOut;
+
+    public DeflateCodec(int level) {
+        this(new Deflater(level));
+    }
+
+    protected DeflateCodec(Deflater deflater) {
+        this.deflater = deflater;
+    }
+
+    @Nullable
+    @Override
+    public String getContentEncoding() {
+        return "deflate";
+    }
+
+    @Override
+    public OutputStream compress(OutputStream out) throws IOException {
+        deflater.reset();
+        this.out = out;
+        this.directOut = out instanceof DirectByteArrayOutputStream ? (DirectByteArrayOutputStream) out : null;
+        deflatingOutputStream.closed = false;
+        onStart(out);
+        return deflatingOutputStream;
+    }
+
+    /**
+     * Called when starting to compress a new request body, before any compressed bytes have been written.
+     */
+    protected void onStart(OutputStream out) throws IOException {
+    }
+
+    /**
+     * Called for each chunk of the uncompressed request body.
+     */
+    protected void onInput(byte[] b, int off, int len) {
+    }
+
+    /**
+     * Called after all compressed bytes have been written.
+     */
+    protected void onFinish(OutputStream out) throws IOException {
+    }
+
+    /**
+     * Performs a single deflate operation, writing the output to {@link #out}.
+     *
+     * @return the number of bytes of output space the {@link Deflater} did not fill up
+     */
+    private int deflate(OutputStream out, int flushMode) throws IOException {
+        if (directOut != null) {
+            byte[] buf = directOut.ensureFree(MIN_DIRECT_OUTPUT_SIZE);
+            int offset = directOut.size();
+            int space = buf.length - offset;
+            int length = deflater.deflate(buf, offset, space, flushMode);
+            directOut.advance(length);
+            return space - length;
+        } else {
+            int length = deflater.deflate(outputBuffer, 0, outputBuffer.length, flushMode);
+            if (length > 0) {
+                out.write(outputBuffer, 0, length);
+            }
+            return outputBuffer.length - length;
+        }
+    }
+
+    private class DeflatingOutputStream extends OutputStream {
+
+        private final byte[] singleByte = new byte[1];
+        private boolean closed = true;
+
+        @Override
+        public void write(int b) throws IOException {
+            singleByte[0] = (byte) b;
+            write(singleByte, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            OutputStream out = ensureOpen();
+            if (len == 0) {
+                return;
+            }
+            onInput(b, off, len);
+            deflater.setInput(b, off, len);
+            while (!deflater.needsInput()) {
+                deflate(out, Deflater.NO_FLUSH);
+            }
+        }
+
+        /**
+         * Flushes all pending output so that the receiver is able to decompress everything written so far
+         */
+        @Override
+        public void flush() throws IOException {
+            OutputStream out = ensureOpen();
+            while (deflate(out, Deflater.SYNC_FLUSH) == 0) {
+                // the output space has been filled up completely, there may be more pending output
+            }
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            OutputStream out = ensureOpen();
+            closed = true;
+            try {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    deflate(out, Deflater.NO_FLUSH);
+                }
+                onFinish(out);
+            } finally {
+                DeflateCodec.this.out = null;
+                directOut = null;
+                out.close();
+            }
+        }
+
+        private OutputStream ensureOpen() throws IOException {
+            OutputStream out = DeflateCodec.this.out;
+            if (closed || out == null) {
+                throw new IOException("Stream closed");
+            }
+            return out;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.compression;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * A {@link ByteArrayOutputStream} that allows writing directly into its backing array,
+ * so that producers which operate on arrays, like a {@link java.util.zip.Deflater}, don't need an intermediate buffer.
+ */
+public class DirectByteArrayOutputStream extends ByteArrayOutputStream {
+
+    public DirectByteArrayOutputStream(int size) {
+        super(size);
+    }
+
+    /**
+     * Returns the backing array, which is valid up until {@link #size()}.
+     * The returned array may be replaced by a bigger one on subsequent writes.
+     *
+     * @return the backing array
+     */
+    public byte[] getBuffer() {
+        return buf;
+    }
+
+    /**
+     * Makes sure that at least {@code minFree} bytes can be written to the backing array, starting at {@link #size()}.
+     *
+     * @param minFree the number of bytes that need to fit into the backing array
+     * @return the backing array
+     */
+    public byte[] ensureFree(int minFree) {
+        if (buf.length - count < minFree) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length << 1, count + minFree));
+        }
+        return buf;
+    }
+
+    /**
+     * Marks {@code length} bytes which have been written directly into the {@linkplain #getBuffer() backing array} as part of this stream.
+     *
+     * @param length the number of bytes that have been written after {@link #size()}
+     */
+    public void advance(int length) {
+        if (length < 0 || count + length > buf.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        count += length;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.compression;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses request bodies with gzip ({@code Content-Encoding: gzip}).
+ * <p>
+ * Writes the gzip header and trailer around a raw deflate stream so that,
+ * unlike a {@link java.util.zip.GZIPOutputStream}, the {@link Deflater} can be reused and the compression level can be set.
+ * </p>
+ */
+public class GzipCodec extends DeflateCodec {
+
+    private static final byte[] HEADER = {
+        0x1f, (byte) 0x8b, // magic number
+        Deflater.DEFLATED, // compression method
+        0, // flags
+        0, 0, 0, 0, // modification time
+        0, // extra flags
+        0 // operating system
+    };
+
+    private final CRC32 crc = new CRC32();
+    private final byte[] trailer = new byte[8];
+
+    public GzipCodec(int level) {
+        super(new Deflater(level, true));
+    }
+
+    @Nullable
+    @Override
+    public String getContentEncoding() {
+        return "gzip";
+    }
+
+    @Override
+    protected void onStart(OutputStream out) throws IOException {
+        crc.reset();
+        out.write(HEADER);
+    }
+
+    @Override
+    protected void onInput(byte[] b, int off, int len) {
+        crc.update(b, off, len);
+    }
+
+    @Override
+    protected void onFinish(OutputStream out) throws IOException {
+        writeIntLE((int) crc.getValue(), trailer, 0);
+        writeIntLE((int) deflater.getBytesRead(), trailer, 4);
+        out.write(trailer);
+    }
+
+    private static void writeIntLE(int value, byte[] buf, int offset) {
+        buf[offset] = (byte) value;
+        buf[offset + 1] = (byte) (value >> 8);
+        buf[offset + 2] = (byte) (value >> 16);
+        buf[offset + 3] = (byte) (value >> 24);
+    }
+}
@@ -46,7 +46,11 @@ import co.elastic.apm.agent.impl.metadata.ProcessInfo;
 import co.elastic.apm.agent.impl.metadata.RuntimeInfo;
 import co.elastic.apm.agent.impl.metadata.Service;
 import co.elastic.apm.agent.impl.metadata.SystemInfo;
+import co.elastic.apm.agent.impl.stacktrace.CapturedStackTrace;
+import co.elastic.apm.agent.impl.stacktrace.StackWalkerStackTraceCollector;
 import co.elastic.apm.agent.impl.stacktrace.StacktraceConfiguration;
+import co.elastic.apm.agent.impl.transaction.Composite;
+import co.elastic.apm.agent.impl.transaction.DroppedSpanStats;
 import co.elastic.apm.agent.impl.transaction.Faas;
 import co.elastic.apm.agent.impl.transaction.FaasTrigger;
 import co.elastic.apm.agent.impl.transaction.Id;
@@ -56,6 +60,7 @@ import co.elastic.apm.agent.impl.transaction.StackFrame;
 import co.elastic.apm.agent.impl.transaction.TraceContext;
 import co.elastic.apm.agent.impl.transaction.Transaction;
 import co.elastic.apm.agent.metrics.Labels;
+import co.elastic.apm.agent.metrics.MetricRegistry;
 import co.elastic.apm.agent.report.ApmServerClient;
 import co.elastic.apm.agent.util.HexUtils;
 import co.elastic.apm.agent.util.PotentiallyMultiValuedMap;
@@ -76,6 +81,7 @@ import java.nio.CharBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -96,17 +102,35 @@ public class DslJsonSerializer implements PayloadSerializer {
      * Matches default ZLIB buffer size.
      * Lets us assume the ZLIB buffer is always empty,
      * so that {@link #getBufferSize()} is the total amount of buffered bytes.
+     * <p>
+     * This is the initial and minimum size of the buffer,
+     * which grows up to {@link #MAX_BUFFER_SIZE} if the serialized events are bigger.
+     * </p>
      */
     public static final int BUFFER_SIZE = 16384;
+    static final int MAX_BUFFER_SIZE = 256 * 1024;
+    /**
+     * The percentile of the recently serialized events that should fit into the buffer without flushing it mid-event
+     */
+    private static final double BUFFER_SIZE_PERCENTILE = 0.99;
     public static final int MAX_VALUE_LENGTH = 1024;
     public static final int MAX_LONG_STRING_VALUE_LENGTH = 10000;
     private static final byte NEW_LINE = (byte) '\n';
     private static final Logger logger = LoggerFactory.getLogger(DslJsonSerializer.class);
     private static final String[] DISALLOWED_IN_PROPERTY_NAME = new String[]{".", "*", "\""};
-    private static final List<String> excludedStackFrames = Arrays.asList("java.lang.reflect", "com.sun", "sun.", "jdk.internal.");
+    private static final int MAX_CACHED_FRAGMENTS = 1000;
+    /**
+     * Shared by all serializers, as the serialized representation of a value does not depend on the serializer.
+     * As the cache doesn't evict, only fields with a bounded set of values, like service names, types and destination resources, are cached.
+     * Transaction and span names are not, as a single high-cardinality name (like an un-normalized URL) would fill up the cache.
+     */
     // visible for testing
-    final JsonWriter jw;
+    static final JsonFragmentCache fragmentCache = new JsonFragmentCache(MAX_CACHED_FRAGMENTS);
+    private final DslJson<Object> dslJson = new DslJson<>(new DslJson.Settings<>());
+    // visible for testing
+    JsonWriter jw;
     private final StringBuilder replaceBuilder = new StringBuilder(MAX_LONG_STRING_VALUE_LENGTH + 1);
+    private final JsonFragmentCache.Key fragmentKey = new JsonFragmentCache.Key();
     private final StacktraceConfiguration stacktraceConfiguration;
     private final ApmServerClient apmServerClient;
     @Nullable
@@ -115,12 +139,28 @@ public class DslJsonSerializer implements PayloadSerializer {
     private final Future<MetaData> metaData;
     @Nullable
     private byte[] serializedMetaData;
+    private final SerializerMetrics serializerMetrics;
+    /**
+     * The sizes of the recently serialized events, only updated by the thread that serializes the events
+     */
+    private final SerializedSizeHistogram eventSizes = new SerializedSizeHistogram(MAX_BUFFER_SIZE);
+    private long eventStartNanos;
+    private long eventStartBytes;
 
     public DslJsonSerializer(StacktraceConfiguration stacktraceConfiguration, ApmServerClient apmServerClient, final Future<MetaData> metaData) {
+        this(stacktraceConfiguration, apmServerClient, metaData, new SerializerMetrics());
+    }
+
+    /**
+     * @param serializerMetrics the metrics to record the serialized events in, which may be shared with other serializers
+     */
+    public DslJsonSerializer(StacktraceConfiguration stacktraceConfiguration, ApmServerClient apmServerClient, final Future<MetaData> metaData,
+                             SerializerMetrics serializerMetrics) {
+        this.serializerMetrics = serializerMetrics;
         this.stacktraceConfiguration = stacktraceConfiguration;
         this.apmServerClient = apmServerClient;
         this.metaData = metaData;
-        jw = new DslJson<>(new DslJson.Settings<>()).newWriter(BUFFER_SIZE);
+        jw = dslJson.newWriter(BUFFER_SIZE);
     }
 
     @Override
@@ -153,6 +193,24 @@ public class DslJsonSerializer implements PayloadSerializer {
             }
         } finally {
             jw.reset();
+            adaptBufferSize();
+        }
+    }
+
+    /**
+     * Adapts the size of the {@link JsonWriter}'s buffer to the recently serialized events,
+     * so that most events are written to the {@link OutputStream} in one go instead of flushing the buffer mid-event.
+     * <p>
+     * Only called after the {@link OutputStream} has been detached, when there are no buffered bytes.
+     * The buffer is only replaced if it's too small or at least four times as big as needed,
+     * so that it's reused as long as the sizes of the events don't change significantly.
+     * </p>
+     */
+    private void adaptBufferSize() {
+        int bufferSize = Math.min(Math.max(eventSizes.getPercentile(BUFFER_SIZE_PERCENTILE), BUFFER_SIZE), MAX_BUFFER_SIZE);
+        int capacity = getBufferCapacity();
+        if (bufferSize > capacity || bufferSize <= capacity / 4) {
+            jw = dslJson.newWriter(bufferSize);
         }
     }
 
@@ -262,29 +320,58 @@ public class DslJsonSerializer implements PayloadSerializer {
 
     @Override
     public void serializeTransactionNdJson(Transaction transaction) {
+        onEventStart();
         jw.writeByte(JsonWriter.OBJECT_START);
         writeFieldName("transaction");
         serializeTransaction(transaction);
         jw.writeByte(JsonWriter.OBJECT_END);
         jw.writeByte(NEW_LINE);
+        onEventEnd();
     }
 
     @Override
     public void serializeSpanNdJson(Span span) {
+        onEventStart();
         jw.writeByte(JsonWriter.OBJECT_START);
         writeFieldName("span");
         serializeSpan(span);
         jw.writeByte(JsonWriter.OBJECT_END);
         jw.writeByte(NEW_LINE);
+        onEventEnd();
     }
 
     @Override
     public void serializeErrorNdJson(ErrorCapture error) {
+        onEventStart();
         jw.writeByte(JsonWriter.OBJECT_START);
         writeFieldName("error");
         serializeError(error);
         jw.writeByte(JsonWriter.OBJECT_END);
         jw.writeByte(NEW_LINE);
+        onEventEnd();
+    }
+
+    private void onEventStart() {
+        eventStartBytes = jw.flushed() + jw.size();
+        eventStartNanos = System.nanoTime();
+    }
+
+    private void onEventEnd() {
+        long durationNanos = System.nanoTime() - eventStartNanos;
+        long eventBytes = jw.flushed() + jw.size() - eventStartBytes;
+        serializerMetrics.onEventSerialized(eventBytes, durationNanos);
+        eventSizes.record(eventBytes);
+    }
+
+    /**
+     * Registers the serialization metrics, which cover the events serialized within a metrics interval,
+     * including the ones of the serializers that share the {@link SerializerMetrics} with this one.
+     *
+     * @param metricRegistry the registry to add the metrics to
+     */
+    @Override
+    public void bindTo(MetricRegistry metricRegistry) {
+        serializerMetrics.bindTo(metricRegistry);
     }
 
     /**
@@ -298,6 +385,18 @@ public class DslJsonSerializer implements PayloadSerializer {
         return jw.size();
     }
 
+    /**
+     * Returns the capacity of the underlying {@link JsonWriter}'s buffer, which is adapted to the size of the serialized events.
+     * The buffer is flushed to the underlying stream whenever it's full,
+     * so this is the maximum number of bytes written to the stream at once.
+     *
+     * @return the capacity of the underlying {@link JsonWriter}'s buffer
+     */
+    @Override
+    public int getBufferCapacity() {
+        return jw.getByteBuffer().length;
+    }
+
     @Override
     public void serializeFileMetaData(File file) {
         jw.writeByte(JsonWriter.OBJECT_START);
@@ -451,6 +550,17 @@ public class DslJsonSerializer implements PayloadSerializer {
         jw.writeByte(JsonWriter.OBJECT_END);
     }
 
+    private void serializeServiceNameAndVersion(@Nullable final String serviceName, @Nullable final String serviceVersion) {
+        if (serviceName != null) {
+            writeFieldName("service");
+            jw.writeByte(OBJECT_START);
+            writeCachedField("version", serviceVersion);
+            writeLastCachedField("name", serviceName);
+            jw.writeByte(OBJECT_END);
+            jw.writeByte(COMMA);
+        }
+    }
+
     private static void serializeServiceNameAndVersion(final CharSequence serviceName, final CharSequence serviceVersion, final StringBuilder replaceBuilder, final JsonWriter jw) {
         if (serviceName != null) {
             writeFieldName("service", jw);
@@ -475,8 +585,8 @@ public class DslJsonSerializer implements PayloadSerializer {
     private void serializeFramework(final String frameworkName, final @Nullable String frameworkVersion) {
         writeFieldName("framework");
         jw.writeByte(JsonWriter.OBJECT_START);
-        writeField("version", frameworkVersion);
-        writeLastField("name", frameworkName);
+        writeCachedField("version", frameworkVersion);
+        writeLastCachedField("name", frameworkName);
         jw.writeByte(JsonWriter.OBJECT_END);
         jw.writeByte(COMMA);
     }
@@ -658,13 +768,14 @@ public class DslJsonSerializer implements PayloadSerializer {
         writeTimestamp(transaction.getTimestamp());
         writeField("name", transaction.getNameForSerialization());
         serializeTraceContext(traceContext, false);
-        writeField("type", transaction.getType());
+        writeCachedField("type", transaction.getType());
         writeField("duration", transaction.getDurationMs());
         writeField("result", transaction.getResult());
-        writeField("outcome", transaction.getOutcome().toString());
+        writeCachedField("outcome", transaction.getOutcome().toString());
         serializeFaas(transaction.getFaas());
         serializeContext(transaction, transaction.getContext(), traceContext);
         serializeSpanCount(transaction.getSpanCount());
+        serializeDroppedSpanStats(transaction.getDroppedSpanStats());
         double sampleRate = traceContext.getSampleRate();
         if (!Double.isNaN(sampleRate)) {
             writeField("sample_rate", sampleRate);
@@ -694,11 +805,16 @@ public class DslJsonSerializer implements PayloadSerializer {
         writeField("name", span.getNameForSerialization());
         writeTimestamp(span.getTimestamp());
 
-        writeField("outcome", span.getOutcome().toString());
+        writeCachedField("outcome", span.getOutcome().toString());
         serializeTraceContext(traceContext, true);
         writeField("duration", span.getDurationMs());
+        if (span.isComposite()) {
+            serializeComposite(span.getComposite());
+        }
         if (span.getStacktrace() != null) {
             serializeStacktrace(span.getStacktrace().getStackTrace());
+        } else if (span.getCapturedStackTrace() != null) {
+            serializeStackTrace(span.getCapturedStackTrace());
         } else if (span.getStackFrames() != null) {
             serializeStackTrace(span.getStackFrames());
         }
@@ -712,6 +828,17 @@ public class DslJsonSerializer implements PayloadSerializer {
         jw.writeByte(OBJECT_END);
     }
 
+    private void serializeComposite(Composite composite) {
+        writeFieldName("composite");
+        jw.writeByte(OBJECT_START);
+        writeField("compression_strategy", composite.getCompressionStrategy());
+        writeField("count", composite.getCount());
+        writeFieldName("sum");
+        NumberConverter.serialize(composite.getSumMs(), jw);
+        jw.writeByte(OBJECT_END);
+        jw.writeByte(COMMA);
+    }
+
     private void serializeServiceNameWithFramework(@Nullable final Transaction transaction, final TraceContext traceContext, final ServiceOrigin serviceOrigin) {
         String serviceName = traceContext.getServiceName();
         String serviceVersion = traceContext.getServiceVersion();
@@ -725,8 +852,8 @@ public class DslJsonSerializer implements PayloadSerializer {
             if (isFrameworkNameNotNull) {
                 serializeFramework(transaction.getFrameworkName(), transaction.getFrameworkVersion());
             }
-            writeField("name", serviceName);
-            writeLastField("version", serviceVersion);
+            writeCachedField("name", serviceName);
+            writeLastCachedField("version", serviceVersion);
             jw.writeByte(OBJECT_END);
             jw.writeByte(COMMA);
         }
@@ -805,7 +932,7 @@ public class DslJsonSerializer implements PayloadSerializer {
                     replace(replaceBuilder, ".", "_", replaceStartIndex);
                 }
             }
-            writeStringValue(replaceBuilder);
+            writeCachedStringValue(replaceBuilder);
         } else {
             jw.writeNull();
         }
@@ -850,30 +977,59 @@ public class DslJsonSerializer implements PayloadSerializer {
     }
 
     private static boolean isExcluded(StackTraceElement stackTraceElement) {
-        // file name is a required field
-        if (stackTraceElement.getFileName() == null) {
-            return true;
-        }
-        String className = stackTraceElement.getClassName();
-        for (int i = 0, size = excludedStackFrames.size(); i < size; i++) {
-            if (className.startsWith(excludedStackFrames.get(i))) {
-                return true;
-            }
-        }
-        return false;
+        return StackWalkerStackTraceCollector.isExcluded(stackTraceElement.getFileName(), stackTraceElement.getClassName());
     }
 
     private void serializeStackTraceElement(StackTraceElement stacktrace) {
+        serializeStackTraceElement(stacktrace.getFileName(), stacktrace.getClassName(), stacktrace.getMethodName(), stacktrace.getLineNumber());
+    }
+
+    private void serializeStackTraceElement(@Nullable String fileName, String className, String methodName, int lineNumber) {
         jw.writeByte(OBJECT_START);
-        writeField("filename", stacktrace.getFileName());
-        writeField("classname", stacktrace.getClassName());
-        writeField("function", stacktrace.getMethodName());
-        writeField("library_frame", isLibraryFrame(stacktrace.getClassName()));
-        writeField("lineno", stacktrace.getLineNumber());
-        serializeStackFrameModule(stacktrace.getClassName());
+        writeField("filename", fileName);
+        writeField("classname", className);
+        writeField("function", methodName);
+        writeField("library_frame", isLibraryFrame(className));
+        writeField("lineno", lineNumber);
+        serializeStackFrameModule(className);
         jw.writeByte(OBJECT_END);
     }
 
+    /**
+     * Serializes a stack trace that has been captured by the {@link StackWalkerStackTraceCollector}.
+     * <p>
+     * As spans created by the same call site share the same {@link CapturedStackTrace},
+     * the serialized frames are cached in the stack trace and copied for subsequent spans.
+     * </p>
+     */
+    private void serializeStackTrace(CapturedStackTrace stackTrace) {
+        if (stackTrace.size() == 0) {
+            return;
+        }
+        Collection<String> applicationPackages = stacktraceConfiguration.getApplicationPackages();
+        byte[] serialized = stackTrace.getSerialized(applicationPackages);
+        if (serialized != null) {
+            jw.writeAscii(serialized);
+            return;
+        }
+        long flushedBefore = jw.flushed();
+        int start = jw.size();
+        writeFieldName("stacktrace");
+        jw.writeByte(ARRAY_START);
+        for (int i = 0, size = stackTrace.size(); i < size; i++) {
+            if (i > 0) {
+                jw.writeByte(COMMA);
+            }
+            serializeStackTraceElement(stackTrace.getFileName(i), stackTrace.getClassName(i), stackTrace.getMethodName(i), stackTrace.getLineNumber(i));
+        }
+        jw.writeByte(ARRAY_END);
+        jw.writeByte(COMMA);
+        // the frames can only be copied from the buffer if the writer hasn't flushed in the meantime
+        if (jw.flushed() == flushedBefore) {
+            stackTrace.setSerialized(Arrays.copyOfRange(jw.getByteBuffer(), start, jw.size()), applicationPackages);
+        }
+    }
+
     private void serializeStackFrameModule(final String fullyQualifiedClassName) {
         writeFieldName("module");
         replaceBuilder.setLength(0);
@@ -926,7 +1082,7 @@ public class DslJsonSerializer implements PayloadSerializer {
         writeFieldName("context");
         jw.writeByte(OBJECT_START);
 
-        serializeServiceNameAndVersion(traceContext.getServiceName(), traceContext.getServiceVersion(), replaceBuilder, jw);
+        serializeServiceNameAndVersion(traceContext.getServiceName(), traceContext.getServiceVersion());
         serializeMessageContext(context.getMessage());
         serializeDbContext(context.getDb());
         serializeHttpContext(context.getHttp());
@@ -972,7 +1128,7 @@ public class DslJsonSerializer implements PayloadSerializer {
             jw.writeByte(OBJECT_START);
             writeEmptyField("name");
             writeEmptyField("type");
-            writeLastField("resource", service.getResource());
+            writeLastCachedField("resource", service.getResource());
             jw.writeByte(OBJECT_END);
         }
     }
@@ -1102,6 +1258,36 @@ public class DslJsonSerializer implements PayloadSerializer {
         jw.writeByte(COMMA);
     }
 
+    private void serializeDroppedSpanStats(final DroppedSpanStats droppedSpanStats) {
+        int size = droppedSpanStats.size();
+        if (size == 0) {
+            return;
+        }
+        writeFieldName("dropped_spans_stats");
+        jw.writeByte(ARRAY_START);
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                jw.writeByte(COMMA);
+            }
+            DroppedSpanStats.Bucket bucket = droppedSpanStats.get(i);
+            jw.writeByte(OBJECT_START);
+            writeField("destination_service_resource", bucket.getDestinationServiceResource());
+            writeField("outcome", bucket.getOutcome().toString());
+            writeFieldName("duration");
+            jw.writeByte(OBJECT_START);
+            writeField("count", bucket.getCount());
+            writeFieldName("sum");
+            jw.writeByte(OBJECT_START);
+            writeFieldName("us");
+            NumberConverter.serialize(bucket.getSum(), jw);
+            jw.writeByte(OBJECT_END);
+            jw.writeByte(OBJECT_END);
+            jw.writeByte(OBJECT_END);
+        }
+        jw.writeByte(ARRAY_END);
+        jw.writeByte(COMMA);
+    }
+
     private void serializeContext(@Nullable final Transaction transaction, final TransactionContext context, TraceContext traceContext) {
         writeFieldName("context");
         jw.writeByte(OBJECT_START);
@@ -1536,6 +1722,50 @@ public class DslJsonSerializer implements PayloadSerializer {
         writeLastField(fieldName, value, replaceBuilder, jw);
     }
 
+    private void writeCachedField(final String fieldName, @Nullable final CharSequence value) {
+        if (value != null) {
+            writeFieldName(fieldName);
+            writeCachedStringValue(value);
+            jw.writeByte(COMMA);
+        }
+    }
+
+    private void writeLastCachedField(final String fieldName, @Nullable final CharSequence value) {
+        writeFieldName(fieldName);
+        if (value != null && value.length() > 0) {
+            writeCachedStringValue(value);
+        } else {
+            jw.writeNull();
+        }
+    }
+
+    /**
+     * Writes a low-cardinality string value.
+     * <p>
+     * Instead of escaping and encoding the value every time, the serialized value is copied from the {@link #fragmentCache}.
+     * On a cache miss, the value is serialized as usual and the serialized bytes are added to the cache.
+     * </p>
+     */
+    private void writeCachedStringValue(final CharSequence value) {
+        if (value.length() > JsonFragmentCache.MAX_CACHEABLE_LENGTH) {
+            writeStringValue(value);
+            return;
+        }
+        byte[] fragment = fragmentCache.get(fragmentKey.set(value));
+        fragmentKey.clear();
+        if (fragment != null) {
+            jw.writeAscii(fragment);
+            return;
+        }
+        long flushedBefore = jw.flushed();
+        int start = jw.size();
+        writeStringValue(value);
+        // the fragment can only be copied from the buffer if the writer hasn't flushed in the meantime
+        if (jw.flushed() == flushedBefore && fragmentCache.hasRemainingCapacity()) {
+            fragmentCache.put(value, Arrays.copyOfRange(jw.getByteBuffer(), start, jw.size()));
+        }
+    }
+
     public static void writeLastField(final String fieldName, @Nullable final CharSequence value, StringBuilder replaceBuilder, final JsonWriter jw) {
         writeFieldName(fieldName, jw);
         if (value != null && value.length() > 0) {
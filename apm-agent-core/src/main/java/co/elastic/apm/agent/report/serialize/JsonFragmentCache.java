@@ -0,0 +1,139 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.serialize;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A bounded cache of the serialized JSON representation of low-cardinality string values,
+ * like service names, transaction types, span types and destination resources.
+ * <p>
+ * The cached fragments are already quoted, escaped, truncated and UTF-8 encoded,
+ * so that they can be copied to the {@link com.dslplatform.json.JsonWriter} as-is.
+ * Strings are looked up by their content, which means that values stored in a {@link StringBuilder} can be looked up as well.
+ * </p>
+ * <p>
+ * The cache is filled until it reaches its maximum size and there's no eviction afterwards.
+ * This avoids that high-cardinality values continuously replace the low-cardinality ones.
+ * </p>
+ */
+class JsonFragmentCache {
+
+    /**
+     * Longer strings are not cached, as they are unlikely to be of low cardinality
+     */
+    static final int MAX_CACHEABLE_LENGTH = 256;
+
+    private final ConcurrentMap<Key, byte[]> fragments = new ConcurrentHashMap<>();
+    private final int maxFragments;
+
+    JsonFragmentCache(int maxFragments) {
+        this.maxFragments = maxFragments;
+    }
+
+    /**
+     * @param key the lookup key, see {@link Key#set(CharSequence)}
+     * @return the serialized fragment or {@code null} if the value is not cached
+     */
+    @Nullable
+    byte[] get(Key key) {
+        return fragments.get(key);
+    }
+
+    /**
+     * @return whether new fragments may be added to the cache
+     */
+    boolean hasRemainingCapacity() {
+        return fragments.size() < maxFragments;
+    }
+
+    /**
+     * Adds the serialized fragment of a value, unless the cache is already full.
+     *
+     * @param value    the value
+     * @param fragment the serialized value, including the quotes
+     */
+    void put(CharSequence value, byte[] fragment) {
+        if (hasRemainingCapacity() && value.length() <= MAX_CACHEABLE_LENGTH) {
+            fragments.putIfAbsent(new Key().set(value.toString()), fragment);
+        }
+    }
+
+    int size() {
+        return fragments.size();
+    }
+
+    /**
+     * A key that compares the content of {@link CharSequence}s.
+     * <p>
+     * Mutable, so that a serializer can look up fragments without allocating a key or converting the value to a {@link String}.
+     * The keys stored in the cache are never mutated.
+     * </p>
+     */
+    static class Key {
+
+        @Nullable
+        private CharSequence value;
+        private int hash;
+
+        Key set(CharSequence value) {
+            this.value = value;
+            int h = 0;
+            for (int i = 0, length = value.length(); i < length; i++) {
+                h = 31 * h + value.charAt(i);
+            }
+            this.hash = h;
+            return this;
+        }
+
+        void clear() {
+            value = null;
+            hash = 0;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            CharSequence thisValue = value;
+            CharSequence otherValue = other.value;
+            if (hash != other.hash || thisValue == null || otherValue == null || thisValue.length() != otherValue.length()) {
+                return false;
+            }
+            for (int i = 0, length = thisValue.length(); i < length; i++) {
+                if (thisValue.charAt(i) != otherValue.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
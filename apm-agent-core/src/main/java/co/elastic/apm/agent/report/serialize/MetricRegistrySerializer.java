@@ -20,6 +20,7 @@ package co.elastic.apm.agent.report.serialize;
 
 import co.elastic.apm.agent.configuration.ServiceInfo;
 import co.elastic.apm.agent.metrics.DoubleSupplier;
+import co.elastic.apm.agent.metrics.Histogram;
 import co.elastic.apm.agent.metrics.MetricSet;
 import co.elastic.apm.agent.metrics.Timer;
 import com.dslplatform.json.DslJson;
@@ -92,6 +93,7 @@ public class MetricRegistrySerializer {
                 hasSamples = serializeGauges(metricSet.getGauges(), jw);
                 hasSamples |= serializeTimers(metricSet.getTimers(), hasSamples, jw);
                 hasSamples |= serializeCounters(metricSet.getCounters(), hasSamples, jw);
+                hasSamples |= serializeHistograms(metricSet.getHistograms(), hasSamples, jw);
                 jw.writeByte(JsonWriter.OBJECT_END);
             }
             jw.writeByte(JsonWriter.OBJECT_END);
@@ -196,6 +198,69 @@ public class MetricRegistrySerializer {
         return hasSamples;
     }
 
+    private static boolean serializeHistograms(Map<String, Histogram> histograms, boolean hasSamples, JsonWriter jw) {
+        if (histograms.isEmpty()) {
+            return hasSamples;
+        }
+        for (Map.Entry<String, Histogram> kv : histograms.entrySet()) {
+            Histogram histogram = kv.getValue();
+            if (histogram.hasContent()) {
+                if (hasSamples) {
+                    jw.writeByte(JsonWriter.COMMA);
+                }
+                serializeHistogram(kv.getKey(), histogram, jw);
+                hasSamples = true;
+            }
+        }
+        return hasSamples;
+    }
+
+    /**
+     * Serializes only the non-empty buckets, using the middle of a bucket as its value:
+     * <pre>
+     * "transaction.duration.histogram":{"type":"histogram","values":[1.0,40.5],"counts":[3,1]}
+     * </pre>
+     */
+    private static void serializeHistogram(String key, Histogram histogram, JsonWriter jw) {
+        jw.writeByte(JsonWriter.QUOTE);
+        jw.writeAscii(key);
+        jw.writeByte(JsonWriter.QUOTE);
+        jw.writeByte(JsonWriter.SEMI);
+        jw.writeByte(JsonWriter.OBJECT_START);
+        DslJsonSerializer.writeFieldName("type", jw);
+        jw.writeAscii("\"histogram\"");
+        jw.writeByte(JsonWriter.COMMA);
+        DslJsonSerializer.writeFieldName("values", jw);
+        jw.writeByte(JsonWriter.ARRAY_START);
+        boolean first = true;
+        for (int i = 0; i < Histogram.getBucketCount(); i++) {
+            if (histogram.getCount(i) > 0) {
+                if (!first) {
+                    jw.writeByte(JsonWriter.COMMA);
+                }
+                NumberConverter.serialize(Histogram.getBucketValue(i), jw);
+                first = false;
+            }
+        }
+        jw.writeByte(JsonWriter.ARRAY_END);
+        jw.writeByte(JsonWriter.COMMA);
+        DslJsonSerializer.writeFieldName("counts", jw);
+        jw.writeByte(JsonWriter.ARRAY_START);
+        first = true;
+        for (int i = 0; i < Histogram.getBucketCount(); i++) {
+            long count = histogram.getCount(i);
+            if (count > 0) {
+                if (!first) {
+                    jw.writeByte(JsonWriter.COMMA);
+                }
+                NumberConverter.serialize(count, jw);
+                first = false;
+            }
+        }
+        jw.writeByte(JsonWriter.ARRAY_END);
+        jw.writeByte(JsonWriter.OBJECT_END);
+    }
+
     private static void serializeCounter(String key, AtomicLong value, JsonWriter jw) {
         serializeValueStart(key, "", jw);
         NumberConverter.serialize(value.get(), jw);
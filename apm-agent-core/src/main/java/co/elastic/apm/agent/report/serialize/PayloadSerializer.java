@@ -21,6 +21,7 @@ package co.elastic.apm.agent.report.serialize;
 import co.elastic.apm.agent.impl.error.ErrorCapture;
 import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.metrics.MetricRegistry;
 import com.dslplatform.json.JsonWriter;
 
 import java.io.File;
@@ -91,12 +92,26 @@ public interface PayloadSerializer {
      */
     int getBufferSize();
 
+    /**
+     * Gets the maximum number of bytes which are buffered before they're written to the {@link OutputStream}
+     *
+     * @return the capacity of the buffer
+     */
+    int getBufferCapacity();
+
     void serializeFileMetaData(File file);
 
     JsonWriter getJsonWriter();
 
     void writeBytes(byte[] bytes, int len);
 
+    /**
+     * Registers the internal metrics of this serializer, such as the serialized bytes per event.
+     *
+     * @param metricRegistry the registry to add the metrics to
+     */
+    void bindTo(MetricRegistry metricRegistry);
+
     class UninitializedException extends Exception {
         public UninitializedException(String message) {
             super(message);
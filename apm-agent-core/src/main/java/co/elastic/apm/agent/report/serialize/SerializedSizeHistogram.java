@@ -0,0 +1,93 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.serialize;
+
+/**
+ * A histogram of the sizes of serialized events, using power of two buckets.
+ * <p>
+ * The counts are halved every {@link #DECAY_INTERVAL} recorded events,
+ * so that the histogram reflects the recently serialized events rather than all events since startup.
+ * </p>
+ * <p>
+ * Not thread safe, as it's only updated by the thread that serializes the events.
+ * </p>
+ */
+class SerializedSizeHistogram {
+
+    static final int DECAY_INTERVAL = 1024;
+    /**
+     * The upper bound of the first bucket is 1KiB
+     */
+    private static final int MIN_BUCKET_SHIFT = 10;
+
+    private final long[] counts;
+    private long total;
+    private int recordedSinceDecay;
+
+    /**
+     * @param maxSize the upper bound of the last bucket, which also contains all bigger sizes
+     */
+    SerializedSizeHistogram(int maxSize) {
+        counts = new long[Math.max(1, ceilLog2(maxSize) - MIN_BUCKET_SHIFT + 1)];
+    }
+
+    void record(long size) {
+        int bucket = Math.min(Math.max(0, ceilLog2(size) - MIN_BUCKET_SHIFT), counts.length - 1);
+        counts[bucket]++;
+        total++;
+        if (++recordedSinceDecay == DECAY_INTERVAL) {
+            decay();
+        }
+    }
+
+    private void decay() {
+        recordedSinceDecay = 0;
+        total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] >>= 1;
+            total += counts[i];
+        }
+    }
+
+    /**
+     * Returns the upper bound of the bucket the given percentile falls into.
+     *
+     * @param percentile the percentile, between 0 and 1
+     * @return a power of two that's greater than or equal to the given percentile of the recorded sizes,
+     * or {@code 0} if there are no recorded sizes
+     */
+    int getPercentile(double percentile) {
+        if (total == 0) {
+            return 0;
+        }
+        long threshold = Math.max(1, (long) Math.ceil(total * percentile));
+        long cumulativeCount = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulativeCount += counts[i];
+            if (cumulativeCount >= threshold) {
+                return 1 << (MIN_BUCKET_SHIFT + i);
+            }
+        }
+        return 1 << (MIN_BUCKET_SHIFT + counts.length - 1);
+    }
+
+    private static int ceilLog2(long value) {
+        return value <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(value - 1);
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.serialize;
+
+import co.elastic.apm.agent.metrics.DeltaRatio;
+import co.elastic.apm.agent.metrics.DoubleSupplier;
+import co.elastic.apm.agent.metrics.Labels;
+import co.elastic.apm.agent.metrics.MetricRegistry;
+
+/**
+ * The serialization metrics of one or more {@link DslJsonSerializer}s.
+ * <p>
+ * Serializers which are used concurrently, like the ones that serialize spans on application threads,
+ * share an instance with the serializer of the reporter, so that all serialized events are covered by the same metrics.
+ * All metrics only cover the events which have been serialized since they have last been read.
+ * </p>
+ */
+public class SerializerMetrics {
+
+    private final DeltaRatio bytesPerEvent = new DeltaRatio();
+    private final DeltaRatio timePerEvent = new DeltaRatio();
+    private final DoubleSupplier events = new DoubleSupplier() {
+
+        private long lastEvents;
+
+        @Override
+        public synchronized double get() {
+            long currentEvents = bytesPerEvent.getDenominator();
+            long eventsDelta = currentEvents - lastEvents;
+            lastEvents = currentEvents;
+            return eventsDelta;
+        }
+    };
+
+    void onEventSerialized(long bytes, long durationNanos) {
+        bytesPerEvent.increment(bytes, 1);
+        timePerEvent.increment(durationNanos, 1);
+    }
+
+    /**
+     * Registers the serialization metrics.
+     *
+     * @param metricRegistry the registry to add the metrics to
+     */
+    public void bindTo(MetricRegistry metricRegistry) {
+        metricRegistry.add("agent.serializer.events", Labels.EMPTY, events);
+        metricRegistry.add("agent.serializer.bytes_per_event", Labels.EMPTY, bytesPerEvent);
+        metricRegistry.add("agent.serializer.time_per_event.ns", Labels.EMPTY, timePerEvent);
+    }
+}
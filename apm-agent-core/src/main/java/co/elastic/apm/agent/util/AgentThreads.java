@@ -0,0 +1,91 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.util;
+
+import javax.annotation.Nullable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Keeps track of the threads created by the agent so that the CPU time they consume can be reported.
+ * <p>
+ * Threads are registered when they are created, which avoids having to look up the names of all threads of the JVM.
+ * The CPU time of threads which have terminated is retained,
+ * so that {@link #getCpuTimeNanos()} is monotonically increasing.
+ * </p>
+ */
+public final class AgentThreads {
+
+    private static final Queue<TrackedThread> threads = new ConcurrentLinkedQueue<>();
+    private static long cpuTimeOfTerminatedThreads;
+
+    private AgentThreads() {
+    }
+
+    /**
+     * Registers a thread that has been created by the agent.
+     *
+     * @param thread the agent thread
+     * @return the provided thread
+     */
+    public static Thread track(Thread thread) {
+        threads.add(new TrackedThread(thread));
+        return thread;
+    }
+
+    /**
+     * @return the total CPU time in nanoseconds consumed by the agent threads,
+     * or {@code -1} if measuring the CPU time of threads is not supported or disabled
+     */
+    public static synchronized long getCpuTimeNanos() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (!threadMXBean.isThreadCpuTimeSupported() || !threadMXBean.isThreadCpuTimeEnabled()) {
+            return -1;
+        }
+        long cpuTime = cpuTimeOfTerminatedThreads;
+        for (Iterator<TrackedThread> iterator = threads.iterator(); iterator.hasNext(); ) {
+            TrackedThread trackedThread = iterator.next();
+            Thread thread = trackedThread.get();
+            if (thread != null && thread.getState() != Thread.State.TERMINATED) {
+                // -1 if the thread has not been started yet or has terminated in the meantime
+                long threadCpuTime = threadMXBean.getThreadCpuTime(thread.getId());
+                if (threadCpuTime >= 0) {
+                    trackedThread.lastCpuTime = threadCpuTime;
+                }
+            } else {
+                cpuTimeOfTerminatedThreads += trackedThread.lastCpuTime;
+                iterator.remove();
+            }
+            cpuTime += trackedThread.lastCpuTime;
+        }
+        return cpuTime;
+    }
+
+    private static class TrackedThread extends WeakReference<Thread> {
+        private long lastCpuTime;
+
+        private TrackedThread(@Nullable Thread referent) {
+            super(referent);
+        }
+    }
+}
@@ -86,7 +86,7 @@ public final class ExecutorUtils {
             ClassLoader originalContextCL = thread.getContextClassLoader();
             thread.setContextClassLoader(null);
             logThreadCreation(originalContextCL, threadName);
-            return thread;
+            return AgentThreads.track(thread);
         }
     }
 
@@ -118,7 +118,7 @@ public final class ExecutorUtils {
             ClassLoader originalContextCL = thread.getContextClassLoader();
             thread.setContextClassLoader(null);
             logThreadCreation(originalContextCL, threadName);
-            return thread;
+            return AgentThreads.track(thread);
         }
     }
 
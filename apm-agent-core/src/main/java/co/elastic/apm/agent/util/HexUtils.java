@@ -112,14 +112,34 @@ public class HexUtils {
         }
     }
 
+    /**
+     * Decodes the 16 hex characters starting at the offset as a big-endian {@code long}
+     *
+     * @param hexEncodedString the hex encoded string
+     * @param offset           the offset of the first character to decode
+     * @return the decoded {@code long}
+     */
+    public static long getNextLong(String hexEncodedString, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 16; i++) {
+            final int nibble = hexCharToBinary(hexEncodedString.charAt(i));
+            if (nibble == -1) {
+                throw new IllegalArgumentException("Not a hex encoded string: " + hexEncodedString + " at offset " + i);
+            }
+            value = (value << 4) | nibble;
+        }
+        return value;
+    }
+
+    public static void writeAsHex(long l, StringBuilder sb) {
+        for (int shift = 60; shift >= 0; shift -= 4) {
+            sb.append(hexArray[(int) (l >>> shift) & 0x0F]);
+        }
+    }
+
     public static void writeAsHex(long l, JsonWriter jw) {
-        writeHexByte(jw, (byte) (l >> 56));
-        writeHexByte(jw, (byte) (l >> 48));
-        writeHexByte(jw, (byte) (l >> 40));
-        writeHexByte(jw, (byte) (l >> 32));
-        writeHexByte(jw, (byte) (l >> 24));
-        writeHexByte(jw, (byte) (l >> 16));
-        writeHexByte(jw, (byte) (l >> 8));
-        writeHexByte(jw, (byte) l);
+        for (int shift = 60; shift >= 0; shift -= 4) {
+            jw.writeByte((byte) hexArray[(int) (l >>> shift) & 0x0F]);
+        }
     }
 }
@@ -0,0 +1,176 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.db.signature;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.Callable;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SignatureCacheTest {
+
+    private static final String QUERY = "SELECT id, name, description, created_at, updated_at FROM products WHERE id = ?";
+
+    private final SignatureCache cache = new SignatureCache(16, 1024 * 1024);
+    private final SignatureParser signatureParser = new SignatureParser(new Callable<Scanner>() {
+        @Override
+        public Scanner call() {
+            return new Scanner();
+        }
+    }, cache);
+
+    @Test
+    void testPreparedStatementSignatureIsCached() {
+        assertThat(querySignature(QUERY, true)).isEqualTo("SELECT FROM products");
+        assertThat(cache.getMisses()).isEqualTo(1);
+        assertThat(cache.getSize()).isEqualTo(1);
+
+        // an equal but not identical string should hit the cache
+        assertThat(querySignature(new String(QUERY.toCharArray()), true)).isEqualTo("SELECT FROM products");
+        assertThat(cache.getHits()).isEqualTo(1);
+    }
+
+    @Test
+    void testShortAndNonPreparedStatementsAreNotCached() {
+        querySignature("SELECT * FROM foo", true);
+        querySignature(QUERY, false);
+        assertThat(cache.getSize()).isZero();
+        assertThat(cache.getHits() + cache.getMisses()).isZero();
+    }
+
+    @Test
+    void testFingerprintDependsOnSeed() {
+        assertThat(SignatureCache.fingerprint(QUERY, 1)).isNotEqualTo(SignatureCache.fingerprint(QUERY, 2));
+        assertThat(SignatureCache.fingerprint(QUERY, 1)).isEqualTo(SignatureCache.fingerprint(new String(QUERY.toCharArray()), 1));
+    }
+
+    @Test
+    void testFingerprintCollision() {
+        cache.put(42, "SELECT * FROM foo", "SELECT FROM foo", "");
+        assertThat(cache.get(42, "SELECT * FROM bar")).isNull();
+        assertThat(cache.get(42, "SELECT * FROM foo").getSignature()).isEqualTo("SELECT FROM foo");
+    }
+
+    @Test
+    void testCacheIsBounded() {
+        for (int i = 0; i < 1000; i++) {
+            querySignature(QUERY + " AND dynamic_" + i + " = ?", true);
+        }
+        assertThat(cache.getSize()).isLessThanOrEqualTo(16);
+    }
+
+    @Test
+    void testFrequentlyUsedEntriesAreNotEvictedByOneOffQueries() {
+        for (int i = 0; i < 1000; i++) {
+            if (i % 10 == 0) {
+                querySignature(QUERY, true);
+            }
+            querySignature("SELECT * FROM dynamic_table_" + i + " WHERE some_long_column_name = ? AND other = ?", true);
+        }
+        long hitsBefore = cache.getHits();
+        assertThat(querySignature(QUERY, true)).isEqualTo("SELECT FROM products");
+        assertThat(cache.getHits()).isEqualTo(hitsBefore + 1);
+    }
+
+    @Test
+    void testEvictsInFavorOfMoreFrequentEntries() {
+        SignatureCache singleBucketCache = new SignatureCache(16, 1024 * 1024);
+        // even fingerprints map to the same bucket
+        for (int i = 0; i < 8; i++) {
+            singleBucketCache.put(i * 2, "query_" + i, "SELECT FROM foo_" + i, "");
+        }
+        assertThat(singleBucketCache.getSize()).isEqualTo(8);
+
+        singleBucketCache.put(42, "query", "SELECT FROM bar", "");
+        assertThat(singleBucketCache.get(42, "query")).isNull();
+
+        for (int i = 0; i < 3; i++) {
+            singleBucketCache.get(42, "query");
+        }
+        singleBucketCache.put(42, "query", "SELECT FROM bar", "");
+        assertThat(singleBucketCache.get(42, "query")).isNotNull();
+        assertThat(singleBucketCache.getEvictions()).isEqualTo(1);
+    }
+
+    @Test
+    void testSignatureIsOnlyCopiedWhenAdmitted() {
+        SignatureCache singleBucketCache = new SignatureCache(16, 1024 * 1024);
+        for (int i = 0; i < 8; i++) {
+            singleBucketCache.put(i * 2, "query_" + i, "SELECT FROM foo_" + i, "");
+        }
+        CountingCharSequence signature = new CountingCharSequence("SELECT FROM bar");
+
+        singleBucketCache.put(42, "query", signature, "");
+        assertThat(signature.toStringCalls).isZero();
+
+        for (int i = 0; i < 3; i++) {
+            singleBucketCache.get(42, "query");
+        }
+        singleBucketCache.put(42, "query", signature, "");
+        assertThat(signature.toStringCalls).isEqualTo(1);
+        assertThat(singleBucketCache.get(42, "query").getSignature()).isEqualTo("SELECT FROM bar");
+    }
+
+    @Test
+    void testMemoryBound() {
+        SignatureCache smallCache = new SignatureCache(64, 1000);
+        for (int i = 0; i < 64; i++) {
+            smallCache.put(i, "query_" + i, "SELECT FROM foo_" + i, "");
+        }
+        assertThat(smallCache.getEstimatedBytes()).isLessThanOrEqualTo(1000);
+        assertThat(smallCache.getSize()).isLessThan(64);
+    }
+
+    private static class CountingCharSequence implements CharSequence {
+        private final String value;
+        private int toStringCalls;
+
+        private CountingCharSequence(String value) {
+            this.value = value;
+        }
+
+        @Override
+        public int length() {
+            return value.length();
+        }
+
+        @Override
+        public char charAt(int index) {
+            return value.charAt(index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return value.subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            toStringCalls++;
+            return value;
+        }
+    }
+
+    private String querySignature(String query, boolean preparedStatement) {
+        StringBuilder signature = new StringBuilder();
+        signatureParser.querySignature(query, signature, preparedStatement);
+        return signature.toString();
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl;
+
+import co.elastic.apm.agent.MockTracer;
+import co.elastic.apm.agent.impl.transaction.AbstractSpan;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ActiveStackTest {
+
+    private final ElasticApmTracer tracer = MockTracer.create();
+
+    @Test
+    void testEmptyStack() {
+        ActiveStack stack = new ActiveStack(false);
+        assertThat(stack.isEmpty()).isTrue();
+        assertThat(stack.peek()).isNull();
+        assertThat(stack.peekBottom()).isNull();
+        assertThat(stack.pop()).isNull();
+        assertThat(stack.size()).isZero();
+    }
+
+    @Test
+    void testPushAndPop() {
+        ActiveStack stack = new ActiveStack(false);
+        Transaction transaction = new Transaction(tracer);
+        Span span = new Span(tracer);
+
+        stack.push(transaction);
+        stack.push(span);
+        assertThat(stack.size()).isEqualTo(2);
+        assertThat(stack.peek()).isSameAs(span);
+        assertThat(stack.peekBottom()).isSameAs(transaction);
+
+        assertThat(stack.pop()).isSameAs(span);
+        assertThat(stack.peek()).isSameAs(transaction);
+        assertThat(stack.pop()).isSameAs(transaction);
+        assertThat(stack.isEmpty()).isTrue();
+    }
+
+    @Test
+    void testGrow() {
+        ActiveStack stack = new ActiveStack(false);
+        List<AbstractSpan<?>> spans = new ArrayList<>();
+        for (int i = 0; i < ActiveStack.INITIAL_CAPACITY * 2 + 1; i++) {
+            Span span = new Span(tracer);
+            spans.add(span);
+            stack.push(span);
+        }
+        assertThat(stack.capacity()).isEqualTo(ActiveStack.INITIAL_CAPACITY * 4);
+        assertThat(stack.peekBottom()).isSameAs(spans.get(0));
+        for (int i = spans.size() - 1; i >= 0; i--) {
+            assertThat(stack.pop()).isSameAs(spans.get(i));
+        }
+        assertThat(stack.isEmpty()).isTrue();
+    }
+
+    @Test
+    void testReleaseWhenEmpty() {
+        assertThat(new ActiveStack(true).isReleasedWhenEmpty()).isTrue();
+        assertThat(new ActiveStack(false).isReleasedWhenEmpty()).isFalse();
+    }
+}
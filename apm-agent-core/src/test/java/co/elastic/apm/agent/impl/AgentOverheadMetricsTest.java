@@ -0,0 +1,71 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl;
+
+import co.elastic.apm.agent.MockReporter;
+import co.elastic.apm.agent.MockTracer;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.metrics.Labels;
+import co.elastic.apm.agent.metrics.MetricRegistry;
+import co.elastic.apm.agent.objectpool.ObjectPool;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AgentOverheadMetricsTest {
+
+    private ElasticApmTracer tracer;
+    private MetricRegistry registry;
+
+    @BeforeEach
+    void setUp() {
+        tracer = MockTracer.createRealTracer(new MockReporter());
+        registry = tracer.getMetricRegistry();
+    }
+
+    @AfterEach
+    void tearDown() {
+        tracer.stop();
+    }
+
+    @Test
+    void testObjectPoolMetrics() {
+        Labels labels = Labels.Mutable.of("pool", "transaction");
+        ObjectPool<Transaction> transactionPool = tracer.getTransactionPool();
+        double hitsBefore = registry.getGaugeValue("agent.object_pool.hits", labels);
+        double missesBefore = registry.getGaugeValue("agent.object_pool.misses", labels);
+
+        transactionPool.recycle(transactionPool.createInstance());
+        transactionPool.recycle(transactionPool.createInstance());
+
+        assertThat(registry.getGaugeValue("agent.object_pool.hits", labels) - hitsBefore
+            + registry.getGaugeValue("agent.object_pool.misses", labels) - missesBefore).isEqualTo(2);
+        assertThat(registry.getGaugeValue("agent.object_pool.hits", labels)).isGreaterThan(hitsBefore);
+        assertThat(registry.getGaugeValue("agent.object_pool.garbage", labels)).isZero();
+    }
+
+    @Test
+    void testAgentThreadCpuTime() {
+        double cpuTime = registry.getGaugeValue("agent.threads.cpu.time", Labels.EMPTY);
+        // NaN if measuring the CPU time of threads is not supported
+        assertThat(Double.isNaN(cpuTime) || cpuTime >= 0).isTrue();
+    }
+}
@@ -27,6 +27,7 @@ import co.elastic.apm.agent.impl.error.ErrorCapture;
 import co.elastic.apm.agent.impl.sampling.ConstantSampler;
 import co.elastic.apm.agent.impl.stacktrace.StacktraceConfiguration;
 import co.elastic.apm.agent.impl.transaction.AbstractSpan;
+import co.elastic.apm.agent.impl.transaction.DroppedSpanStats;
 import co.elastic.apm.agent.impl.transaction.Outcome;
 import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.impl.transaction.TraceContext;
@@ -301,6 +302,36 @@ class ElasticApmTracerTest {
         assertThat(reporter.getSpans()).hasSize(1);
     }
 
+    @Test
+    void testDroppedSpanStats() {
+        when(tracerImpl.getConfig(CoreConfiguration.class).getTransactionMaxSpans()).thenReturn(1);
+        Transaction transaction = tracerImpl.startRootTransaction(getClass().getClassLoader(), 0);
+        assertThat(transaction).isNotNull();
+        transaction.createSpan(0).end(10);
+        transaction.createSpan(10).asExit().withType("db").withSubtype("mysql").end(20);
+        transaction.createSpan(20).asExit().withType("db").withSubtype("mysql").end(50);
+        transaction.createSpan(50).asExit().withType("db").withSubtype("mysql").withOutcome(Outcome.FAILURE).end(60);
+        // only exit spans are aggregated
+        transaction.createSpan(60).withType("app").end(70);
+        // exit spans without a resource are only counted as dropped
+        Span withoutResource = transaction.createSpan(70).asExit().withType("db").withSubtype("mysql");
+        withoutResource.getContext().getDestination().getService().withUserResource("");
+        withoutResource.end(80);
+        transaction.end(100);
+
+        Transaction reported = reporter.getFirstTransaction();
+        assertThat(reported.getSpanCount().getDropped()).hasValue(5);
+        DroppedSpanStats droppedSpanStats = reported.getDroppedSpanStats();
+        assertThat(droppedSpanStats.size()).isEqualTo(2);
+        assertThat(droppedSpanStats.get(0).getDestinationServiceResource().toString()).isEqualTo("mysql");
+        assertThat(droppedSpanStats.get(0).getOutcome()).isEqualTo(Outcome.SUCCESS);
+        assertThat(droppedSpanStats.get(0).getCount()).isEqualTo(2);
+        assertThat(droppedSpanStats.get(0).getSum()).isEqualTo(40);
+        assertThat(droppedSpanStats.get(1).getOutcome()).isEqualTo(Outcome.FAILURE);
+        assertThat(droppedSpanStats.get(1).getCount()).isEqualTo(1);
+        assertThat(droppedSpanStats.get(1).getSum()).isEqualTo(10);
+    }
+
     @Test
     void testPause() {
         tracerImpl.pause();
@@ -0,0 +1,150 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl;
+
+import co.elastic.apm.agent.MockReporter;
+import co.elastic.apm.agent.configuration.CoreConfiguration;
+import co.elastic.apm.agent.configuration.SpyConfiguration;
+import co.elastic.apm.agent.configuration.converter.TimeDuration;
+import co.elastic.apm.agent.impl.transaction.Composite;
+import co.elastic.apm.agent.impl.transaction.Outcome;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.objectpool.TestObjectPoolFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doReturn;
+
+class SpanCompressionTest {
+
+    private ElasticApmTracer tracer;
+    private MockReporter reporter;
+    private TestObjectPoolFactory objectPoolFactory;
+    private Transaction transaction;
+
+    @BeforeEach
+    void setUp() {
+        objectPoolFactory = new TestObjectPoolFactory();
+        reporter = new MockReporter();
+        ConfigurationRegistry config = SpyConfiguration.createSpyConfig();
+        CoreConfiguration coreConfiguration = config.getConfig(CoreConfiguration.class);
+        doReturn(true).when(coreConfiguration).isSpanCompressionEnabled();
+        doReturn(TimeDuration.of("50ms")).when(coreConfiguration).getSpanCompressionExactMatchMaxDuration();
+        doReturn(TimeDuration.of("10ms")).when(coreConfiguration).getSpanCompressionSameKindMaxDuration();
+        tracer = new ElasticApmTracerBuilder()
+            .configurationRegistry(config)
+            .reporter(reporter)
+            .withObjectPoolFactory(objectPoolFactory)
+            .buildAndStart();
+        transaction = tracer.startRootTransaction(getClass().getClassLoader(), 0);
+        assertThat(transaction).isNotNull();
+    }
+
+    @AfterEach
+    void cleanupAndCheck() {
+        reporter.assertRecycledAfterDecrementingReferences();
+        objectPoolFactory.checkAllPooledObjectsHaveBeenRecycled();
+    }
+
+    @Test
+    void testExactMatch() {
+        long timestamp = 0;
+        for (int i = 0; i < 10; i++) {
+            endExitSpan("SELECT FROM users", "mysql", timestamp, 1000);
+            timestamp += 2000;
+        }
+        assertThat(reporter.getSpans()).isEmpty();
+        transaction.end(timestamp);
+
+        assertThat(reporter.getSpans()).hasSize(1);
+        Span span = reporter.getFirstSpan();
+        assertThat(span.getNameAsString()).isEqualTo("SELECT FROM users");
+        assertThat(span.getTimestamp()).isEqualTo(0);
+        assertThat(span.getDuration()).isEqualTo(19000);
+        Composite composite = span.getComposite();
+        assertThat(composite.getCompressionStrategy()).isEqualTo(Composite.EXACT_MATCH);
+        assertThat(composite.getCount()).isEqualTo(10);
+        assertThat(composite.getSum()).isEqualTo(10000);
+        assertThat(reporter.getFirstTransaction().getSpanCount().getReported()).hasValue(1);
+    }
+
+    @Test
+    void testSameKind() {
+        endExitSpan("SELECT FROM users", "mysql", 0, 1000);
+        endExitSpan("SELECT FROM orders", "mysql", 2000, 1000);
+        transaction.end(4000);
+
+        assertThat(reporter.getSpans()).hasSize(1);
+        Span span = reporter.getFirstSpan();
+        assertThat(span.getNameAsString()).isEqualTo("Calls to mysql");
+        assertThat(span.getComposite().getCompressionStrategy()).isEqualTo(Composite.SAME_KIND);
+        assertThat(span.getComposite().getCount()).isEqualTo(2);
+    }
+
+    @Test
+    void testExactMatchTooSlow() {
+        endExitSpan("SELECT FROM users", "mysql", 0, 60_000);
+        endExitSpan("SELECT FROM users", "mysql", 70_000, 60_000);
+        transaction.end(140_000);
+
+        assertThat(reporter.getSpans()).hasSize(2);
+        assertThat(reporter.getSpans()).noneMatch(Span::isComposite);
+    }
+
+    @Test
+    void testDifferentDestinationsAreNotCompressed() {
+        endExitSpan("SELECT FROM users", "mysql", 0, 1000);
+        endExitSpan("SELECT FROM users", "postgresql", 2000, 1000);
+        assertThat(reporter.getSpans()).hasSize(1);
+        endExitSpan("SELECT FROM users", "postgresql", 4000, 1000);
+        transaction.end(6000);
+
+        assertThat(reporter.getSpans()).hasSize(2);
+        assertThat(reporter.getSpans().get(0).isComposite()).isFalse();
+        assertThat(reporter.getSpans().get(1).getComposite().getCount()).isEqualTo(2);
+    }
+
+    @Test
+    void testNonEligibleSpanInterruptsCompression() {
+        endExitSpan("SELECT FROM users", "mysql", 0, 1000);
+        Span failed = transaction.createSpan(2000).asExit();
+        failed.withName("SELECT FROM users").withType("db").withSubtype("mysql").withOutcome(Outcome.FAILURE);
+        failed.getContext().getDestination().withAddress("localhost").withPort(3306);
+        failed.end(3000);
+        endExitSpan("SELECT FROM users", "mysql", 4000, 1000);
+        transaction.end(6000);
+
+        assertThat(reporter.getSpans()).hasSize(3);
+        assertThat(reporter.getSpans()).noneMatch(Span::isComposite);
+    }
+
+    private void endExitSpan(String name, String subtype, long timestamp, long duration) {
+        Span span = transaction.createSpan(timestamp).asExit()
+            .withName(name)
+            .withType("db")
+            .withSubtype(subtype)
+            .withAction("query");
+        span.getContext().getDestination().withAddress("localhost").withPort(3306);
+        span.end(timestamp + duration);
+    }
+}
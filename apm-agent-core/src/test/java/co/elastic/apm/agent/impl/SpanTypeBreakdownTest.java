@@ -26,6 +26,7 @@ import co.elastic.apm.agent.impl.sampling.ConstantSampler;
 import co.elastic.apm.agent.impl.transaction.AbstractSpan;
 import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.metrics.Histogram;
 import co.elastic.apm.agent.metrics.Labels;
 import co.elastic.apm.agent.metrics.MetricSet;
 import co.elastic.apm.agent.metrics.Timer;
@@ -36,6 +37,7 @@ import org.stagemonitor.configuration.source.SimpleSource;
 
 import javax.annotation.Nullable;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.when;
@@ -106,6 +108,53 @@ class SpanTypeBreakdownTest {
         });
     }
 
+    /*
+     * ██████████░░░░░░░░░░██████████
+     * └─────────██████████
+     *          10        20        30
+     */
+    @Test
+    void testBreakdown_singleDbSpan_latencyHistograms() {
+        tracer = MockTracer.createRealTracer(reporter, SpyConfiguration.createSpyConfig(SimpleSource.forTest("latency_histograms", "true")));
+        final Transaction transaction = createTransaction();
+        transaction.createSpan(10).withType("db").withSubtype("mysql").end(20);
+        transaction.end(30);
+
+        tracer.getMetricRegistry().flipPhaseAndReport(metricSets -> {
+            Histogram transactionDuration = getHistogram(metricSets, "transaction.duration.histogram", null, null);
+            assertThat(transactionDuration.getCount()).isEqualTo(1);
+            assertThat(transactionDuration.getCount(Histogram.getBucketIndex(30))).isEqualTo(1);
+            Histogram dbSelfTime = getHistogram(metricSets, "span.self_time.histogram", "db", "mysql");
+            assertThat(dbSelfTime.getCount()).isEqualTo(1);
+            assertThat(dbSelfTime.getCount(Histogram.getBucketIndex(10))).isEqualTo(1);
+            Histogram appSelfTime = getHistogram(metricSets, "span.self_time.histogram", "app", null);
+            assertThat(appSelfTime.getCount(Histogram.getBucketIndex(20))).isEqualTo(1);
+        });
+    }
+
+    /*
+     * a fast db span from 10 to 20 which ends on the thread that started the transaction,
+     * and a slow db span from 20 to 1000 which ends on another thread
+     */
+    @Test
+    void testBreakdown_latencyHistogramsRecordEachSpan() throws Exception {
+        tracer = MockTracer.createRealTracer(reporter, SpyConfiguration.createSpyConfig(SimpleSource.forTest("latency_histograms", "true")));
+        final Transaction transaction = createTransaction();
+        transaction.createSpan(10).withType("db").withSubtype("mysql").end(20);
+        final Span slowSpan = transaction.createSpan(20).withType("db").withSubtype("mysql");
+        runOnOtherThread(() -> slowSpan.end(1000));
+        transaction.end(1010);
+
+        tracer.getMetricRegistry().flipPhaseAndReport(metricSets -> {
+            Histogram dbSelfTime = getHistogram(metricSets, "span.self_time.histogram", "db", "mysql");
+            assertThat(dbSelfTime.getCount()).isEqualTo(2);
+            // each span is recorded with its own self-time rather than the average of its type
+            assertThat(dbSelfTime.getCount(Histogram.getBucketIndex(10))).isEqualTo(1);
+            assertThat(dbSelfTime.getCount(Histogram.getBucketIndex(980))).isEqualTo(1);
+            assertThat(getTimer(metricSets, "span.self_time", "db", "mysql").getTotalTimeUs()).isEqualTo(990);
+        });
+    }
+
     /*
      * ██████████░░░░░░░░░░██████████
      * └─────────██████████
@@ -345,6 +394,109 @@ class SpanTypeBreakdownTest {
         });
     }
 
+    /*
+     * spans ending on the thread which has started the transaction and spans ending on other threads
+     * are accumulated separately but reported as one timer per type and subtype
+     * ██████████░░░░░░░░░░██████████
+     * └─────────█████
+     * └──────────────█████
+     *          10        20        30
+     */
+    @Test
+    void testBreakdown_serialDbSpans_endedOnDifferentThreads() throws Exception {
+        final Transaction transaction = createTransaction();
+        transaction.createSpan(10).withType("db").withSubtype("mysql").end(15);
+        final Span span = transaction.createSpan(15).withType("db").withSubtype("mysql");
+        runOnOtherThread(() -> span.end(20));
+        transaction.end(30);
+
+        tracer.getMetricRegistry().flipPhaseAndReport(metricSets -> {
+            assertThat(getTimer(metricSets, "span.self_time", "app", null).getCount()).isEqualTo(1);
+            assertThat(getTimer(metricSets, "span.self_time", "app", null).getTotalTimeUs()).isEqualTo(20);
+            assertThat(getTimer(metricSets, "span.self_time", "db", "mysql").getCount()).isEqualTo(2);
+            assertThat(getTimer(metricSets, "span.self_time", "db", "mysql").getTotalTimeUs()).isEqualTo(10);
+        });
+    }
+
+    /*
+     * the self-times of spans ending on the thread which has started the transaction
+     * are also reported if the transaction ends on another thread
+     * ██████████░░░░░░░░░░██████████
+     * └─────────██████████
+     *          10        20        30
+     */
+    @Test
+    void testBreakdown_singleDbSpan_transactionEndedOnOtherThread() throws Exception {
+        final Transaction transaction = createTransaction();
+        transaction.createSpan(10).withType("db").withSubtype("mysql").end(20);
+        runOnOtherThread(() -> transaction.end(30));
+
+        tracer.getMetricRegistry().flipPhaseAndReport(metricSets -> {
+            assertThat(getTimer(metricSets, "span.self_time", "app", null).getCount()).isEqualTo(1);
+            assertThat(getTimer(metricSets, "span.self_time", "app", null).getTotalTimeUs()).isEqualTo(20);
+            assertThat(getTimer(metricSets, "span.self_time", "db", "mysql").getCount()).isEqualTo(1);
+            assertThat(getTimer(metricSets, "span.self_time", "db", "mysql").getTotalTimeUs()).isEqualTo(10);
+        });
+    }
+
+    /*
+     * the transaction ends on another thread while the thread which has started it still ends spans,
+     * the self-times that are reported must not be torn by concurrent updates
+     */
+    @Test
+    void testBreakdown_transactionEndedOnOtherThreadWhileOwnerEndsSpans() throws Exception {
+        final Transaction transaction = createTransaction();
+        final CountDownLatch spansEnded = new CountDownLatch(1);
+        Thread endingThread = new Thread(() -> {
+            try {
+                spansEnded.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            transaction.end(30);
+        });
+        endingThread.start();
+        int spans = 0;
+        do {
+            transaction.createSpan(10).withType("db").withSubtype("mysql").end(11);
+            if (++spans == 100) {
+                spansEnded.countDown();
+            }
+        } while (endingThread.isAlive() || spans < 100);
+        endingThread.join();
+        final int endedSpans = spans;
+
+        tracer.getMetricRegistry().flipPhaseAndReport(metricSets -> {
+            Timer timer = getTimer(metricSets, "span.self_time", "db", "mysql");
+            assertThat(timer.getCount()).isBetween(100L, (long) endedSpans);
+            assertThat(timer.getTotalTimeUs()).isEqualTo(timer.getCount());
+        });
+    }
+
+    /*
+     * recycled transactions cache the metric set of the last transaction name,
+     * which must not be used for transactions with a different name
+     */
+    @Test
+    void testBreakdown_recycledTransactionWithDifferentName() {
+        for (String name : new String[]{"test", "other", "test"}) {
+            final Transaction transaction = createTransaction().withName(name, AbstractSpan.PRIO_USER_SUPPLIED);
+            transaction.createSpan(10).withType("db").withSubtype("mysql").end(20);
+            transaction.end(30);
+            reporter.reset();
+        }
+
+        tracer.getMetricRegistry().flipPhaseAndReport(metricSets -> {
+            assertThat(getTimer(metricSets, "span.self_time", "db", "mysql").getCount()).isEqualTo(2);
+            final MetricSet other = metricSets.get(Labels.Mutable.of()
+                .transactionName("other")
+                .transactionType("request")
+                .spanType("db")
+                .spanSubType("mysql"));
+            assertThat(other.timer("span.self_time").getCount()).isEqualTo(1);
+        });
+    }
+
     @Test
     void testBreakdown_serviceName() {
         final Transaction transaction = createTransaction();
@@ -376,6 +528,12 @@ class SpanTypeBreakdownTest {
         });
     }
 
+    private static void runOnOtherThread(Runnable runnable) throws InterruptedException {
+        Thread thread = new Thread(runnable);
+        thread.start();
+        thread.join();
+    }
+
     private Transaction createTransaction() {
         return tracer.startRootTransaction(ConstantSampler.of(true), 0, getClass().getClassLoader())
             .withName("test")
@@ -387,6 +545,19 @@ class SpanTypeBreakdownTest {
         return getTimer(metricSets, timerName, null, null, spanType, spanSubType);
     }
 
+    @Nullable
+    private Histogram getHistogram(Map<? extends Labels, MetricSet> metricSets, String histogramName, @Nullable String spanType, @Nullable String spanSubType) {
+        final MetricSet metricSet = metricSets.get(Labels.Mutable.of()
+            .transactionName("test")
+            .transactionType("request")
+            .spanType(spanType)
+            .spanSubType(spanSubType));
+        if (metricSet == null) {
+            return null;
+        }
+        return metricSet.getHistograms().get(histogramName);
+    }
+
     @Nullable
     private Timer getTimer(Map<? extends Labels, MetricSet> metricSets, String timerName, @Nullable String serviceName, @Nullable String serviceVersion, @Nullable String spanType, @Nullable String spanSubType) {
         final MetricSet metricSet = metricSets.get(Labels.Mutable.of()
@@ -0,0 +1,167 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl;
+
+import co.elastic.apm.agent.MockReporter;
+import co.elastic.apm.agent.configuration.CoreConfiguration;
+import co.elastic.apm.agent.configuration.SpyConfiguration;
+import co.elastic.apm.agent.configuration.converter.TimeDuration;
+import co.elastic.apm.agent.impl.transaction.Outcome;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.metadata.MetaData;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.objectpool.TestObjectPoolFactory;
+import co.elastic.apm.agent.report.ApmServerClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+class TailSamplingTest {
+
+    private ElasticApmTracer tracer;
+    private MockReporter reporter;
+    private TestObjectPoolFactory objectPoolFactory;
+    private ConfigurationRegistry config;
+    private ApmServerClient apmServerClient;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        objectPoolFactory = new TestObjectPoolFactory();
+        reporter = new MockReporter();
+        config = SpyConfiguration.createSpyConfig();
+        CoreConfiguration coreConfiguration = config.getConfig(CoreConfiguration.class);
+        doReturn(true).when(coreConfiguration).isTailSamplingEnabled();
+        doReturn(TimeDuration.of("100ms")).when(coreConfiguration).getTailSamplingLatencyThreshold();
+        apmServerClient = mock(ApmServerClient.class);
+        doReturn(true).when(apmServerClient).supportsKeepingUnsampledTransaction();
+        tracer = new ElasticApmTracer(config, reporter, objectPoolFactory, apmServerClient, "ephemeralId", MetaData.create(config, "ephemeralId"));
+        tracer.start(false);
+    }
+
+    @AfterEach
+    void cleanupAndCheck() {
+        reporter.assertRecycledAfterDecrementingReferences();
+        objectPoolFactory.checkAllPooledObjectsHaveBeenRecycled();
+    }
+
+    @Test
+    void testDiscardFastSuccessfulTransaction() throws Exception {
+        setTailSamplingRate(0);
+        Transaction transaction = startTransaction();
+        endSpan(transaction, Outcome.SUCCESS);
+        endSpan(transaction, Outcome.SUCCESS);
+        assertThat(reporter.getSpans()).isEmpty();
+        transaction.end(10_000);
+
+        assertThat(reporter.getTransactions()).hasSize(1);
+        assertThat(reporter.getFirstTransaction().isSampled()).isFalse();
+        assertThat(reporter.getFirstTransaction().getTraceContext().getSampleRate()).isEqualTo(0);
+        assertThat(reporter.getSpans()).isEmpty();
+    }
+
+    @Test
+    void testDropDiscardedTransactionIfServerDoesNotSupportUnsampledTransactions() throws Exception {
+        doReturn(false).when(apmServerClient).supportsKeepingUnsampledTransaction();
+        setTailSamplingRate(0);
+        Transaction transaction = startTransaction();
+        endSpan(transaction, Outcome.SUCCESS);
+        transaction.end(10_000);
+
+        assertThat(reporter.getTransactions()).isEmpty();
+        assertThat(reporter.getSpans()).isEmpty();
+    }
+
+    @Test
+    void testKeepTransactionWithFailedSpan() throws Exception {
+        setTailSamplingRate(0);
+        Transaction transaction = startTransaction();
+        endSpan(transaction, Outcome.SUCCESS);
+        endSpan(transaction, Outcome.FAILURE);
+        assertThat(reporter.getSpans()).isEmpty();
+        transaction.end(10_000);
+
+        assertThat(reporter.getTransactions()).hasSize(1);
+        assertThat(reporter.getSpans()).hasSize(2);
+    }
+
+    @Test
+    void testKeepFailedTransaction() throws Exception {
+        setTailSamplingRate(0);
+        Transaction transaction = startTransaction();
+        endSpan(transaction, Outcome.SUCCESS);
+        transaction.withOutcome(Outcome.FAILURE).end(10_000);
+
+        assertThat(reporter.getTransactions()).hasSize(1);
+        assertThat(reporter.getSpans()).hasSize(1);
+    }
+
+    @Test
+    void testKeepSlowTransaction() throws Exception {
+        setTailSamplingRate(0);
+        Transaction transaction = startTransaction();
+        endSpan(transaction, Outcome.SUCCESS);
+        transaction.end(200_000);
+
+        assertThat(reporter.getTransactions()).hasSize(1);
+        assertThat(reporter.getSpans()).hasSize(1);
+    }
+
+    @Test
+    void testKeepSampledTransaction() throws Exception {
+        setTailSamplingRate(1);
+        Transaction transaction = startTransaction();
+        endSpan(transaction, Outcome.SUCCESS);
+        transaction.end(10_000);
+
+        assertThat(reporter.getTransactions()).hasSize(1);
+        assertThat(reporter.getSpans()).hasSize(1);
+    }
+
+    @Test
+    void testSpanEndingAfterDiscardedTransaction() throws Exception {
+        setTailSamplingRate(0);
+        Transaction transaction = startTransaction();
+        Span span = transaction.createSpan(0).withName("async").withType("app");
+        transaction.end(10_000);
+        span.end(20_000);
+
+        assertThat(reporter.getTransactions()).hasSize(1);
+        assertThat(reporter.getFirstTransaction().isSampled()).isFalse();
+        assertThat(reporter.getSpans()).isEmpty();
+    }
+
+    private Transaction startTransaction() {
+        Transaction transaction = tracer.startRootTransaction(getClass().getClassLoader(), 0);
+        assertThat(transaction).isNotNull();
+        return transaction.withName("GET /").withType("request").withOutcome(Outcome.SUCCESS);
+    }
+
+    private void endSpan(Transaction transaction, Outcome outcome) {
+        transaction.createSpan(0).withName("span").withType("app").withOutcome(outcome).end(1000);
+    }
+
+    private void setTailSamplingRate(double rate) throws Exception {
+        config.getConfig(CoreConfiguration.class).getTailSamplingRate().update(rate, SpyConfiguration.CONFIG_SOURCE_NAME);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl.sampling;
+
+import co.elastic.apm.agent.impl.transaction.Id;
+import co.elastic.apm.agent.impl.transaction.TraceState;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RateLimitingSamplerTest {
+
+    private final RateLimitingSampler rateLimitingSampler = new RateLimitingSampler(1.0);
+
+    @Test
+    void testSampleRateAdaptsToThroughput() {
+        assertThat(rateLimitingSampler.getSampleRate()).isEqualTo(1.0);
+
+        simulateSecond(1000);
+        assertThat(rateLimitingSampler.getSampleRate()).isEqualTo(0.01);
+
+        // the rate is computed over a sliding window
+        simulateSecond(3000);
+        assertThat(rateLimitingSampler.getSampleRate()).isEqualTo(0.005);
+
+        for (int i = 0; i < RateLimitingSampler.WINDOW_SIZE; i++) {
+            simulateSecond(5);
+        }
+        assertThat(rateLimitingSampler.getSampleRate()).isEqualTo(1.0);
+    }
+
+    @Test
+    void testSampleRateDoesNotExceedMaxSampleRate() {
+        simulateSecond(5, 0.5);
+        assertThat(rateLimitingSampler.getSampleRate()).isEqualTo(0.5);
+    }
+
+    @Test
+    void testSampleRateIsRounded() {
+        simulateSecond(3);
+        assertThat(rateLimitingSampler.getSampleRate()).isEqualTo(1.0);
+        simulateSecond(30_000);
+        assertThat(rateLimitingSampler.getSampleRate()).isEqualTo(0.0007);
+    }
+
+    @Test
+    void testSampleRateIsClampedToMinSampleRate() {
+        // 20,000 times the target
+        simulateSecond(200_000);
+        assertThat(rateLimitingSampler.getSampleRate()).isEqualTo(RateLimitingSampler.MIN_SAMPLE_RATE);
+        // unless sampling is disabled
+        simulateSecond(200_000, 0);
+        assertThat(rateLimitingSampler.getSampleRate()).isEqualTo(0);
+    }
+
+    @Test
+    void testSamplerIsConsistentWithTraceStateHeader() {
+        simulateSecond(1000);
+        Sampler sampler = rateLimitingSampler.getSampler();
+        assertThat(sampler.getTraceStateHeader()).isEqualTo(TraceState.getHeaderValue(sampler.getSampleRate()));
+        // the sampler doesn't change after the sample rate has been updated
+        simulateSecond(10_000);
+        assertThat(sampler.getSampleRate()).isEqualTo(0.01);
+        assertThat(rateLimitingSampler.getSampler().getSampleRate()).isEqualTo(0.0018);
+    }
+
+    @Test
+    void testSampledTransactionsPerSecond() {
+        for (int i = 0; i < RateLimitingSampler.WINDOW_SIZE; i++) {
+            simulateSecond(10_000);
+        }
+        int sampled = 0;
+        for (int i = 0; i < 10; i++) {
+            sampled += simulateSecond(10_000);
+        }
+        // 10 transactions per second
+        assertThat(sampled).isBetween(60, 140);
+    }
+
+    private int simulateSecond(int transactions) {
+        return simulateSecond(transactions, 1.0);
+    }
+
+    private int simulateSecond(int transactions, double maxSampleRate) {
+        int sampled = 0;
+        Id traceId = Id.new128BitId();
+        for (int i = 0; i < transactions; i++) {
+            traceId.setToRandomValue();
+            if (rateLimitingSampler.getSampler().isSampled(traceId)) {
+                sampled++;
+            }
+        }
+        rateLimitingSampler.updateSampleRate(10, maxSampleRate);
+        return sampled;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.impl.stacktrace;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.FutureTask;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StackWalkerStackTraceCollectorTest {
+
+    private StackWalkerStackTraceCollector collector;
+
+    @BeforeEach
+    void setUp() {
+        assertThat(StackWalkerStackTraceCollector.isAvailable()).isTrue();
+        collector = new StackWalkerStackTraceCollector();
+    }
+
+    @Test
+    void testSkipsTopMostAgentFrames() throws Exception {
+        // the frames of this test class are agent frames, that's why the capturing is triggered by a non-agent frame
+        FutureTask<CapturedStackTrace> task = new FutureTask<>(() -> collector.capture(-1));
+        task.run();
+        CapturedStackTrace stackTrace = task.get();
+
+        assertThat(stackTrace).isNotNull();
+        assertThat(stackTrace.getClassName(0)).isEqualTo(FutureTask.class.getName());
+        assertThat(stackTrace.getMethodName(0)).isEqualTo("run");
+        assertThat(stackTrace.getFileName(0)).isEqualTo("FutureTask.java");
+        assertThat(stackTrace.getLineNumber(0)).isPositive();
+        List<String> classNames = getClassNames(stackTrace);
+        assertThat(classNames).contains(StackWalkerStackTraceCollectorTest.class.getName());
+        assertThat(classNames).noneMatch(className -> StackWalkerStackTraceCollector.isExcluded("Foo.java", className));
+    }
+
+    @Test
+    void testStackTraceLimit() throws Exception {
+        FutureTask<CapturedStackTrace> task = new FutureTask<>(() -> collector.capture(2));
+        task.run();
+
+        assertThat(task.get()).isNotNull();
+        assertThat(task.get().size()).isEqualTo(2);
+    }
+
+    @Test
+    void testSameCallSiteIsInterned() {
+        List<CapturedStackTrace> stackTraces = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            stackTraces.add(captureFromFutureTask());
+        }
+
+        assertThat(stackTraces.get(0)).isSameAs(stackTraces.get(1));
+        assertThat(captureFromFutureTask()).isNotSameAs(stackTraces.get(0));
+        assertThat(collector.getCachedStackTraces()).isEqualTo(2);
+    }
+
+    @Test
+    void testExcludedFrames() {
+        assertThat(StackWalkerStackTraceCollector.isExcluded(null, "foo.Bar")).isTrue();
+        assertThat(StackWalkerStackTraceCollector.isExcluded("Method.java", "java.lang.reflect.Method")).isTrue();
+        assertThat(StackWalkerStackTraceCollector.isExcluded("Foo.java", "jdk.internal.reflect.Foo")).isTrue();
+        assertThat(StackWalkerStackTraceCollector.isExcluded("Foo.java", "sun.reflect.Foo")).isTrue();
+        assertThat(StackWalkerStackTraceCollector.isExcluded("Bar.java", "foo.Bar")).isFalse();
+    }
+
+    private CapturedStackTrace captureFromFutureTask() {
+        FutureTask<CapturedStackTrace> task = new FutureTask<>(() -> collector.capture(-1));
+        task.run();
+        try {
+            return task.get();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static List<String> getClassNames(CapturedStackTrace stackTrace) {
+        List<String> classNames = new ArrayList<>();
+        for (int i = 0; i < stackTrace.size(); i++) {
+            classNames.add(stackTrace.getClassName(i));
+        }
+        return classNames;
+    }
+}
@@ -21,6 +21,7 @@ package co.elastic.apm.agent.impl.transaction;
 import org.junit.jupiter.api.Test;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 class IdTest {
 
@@ -74,4 +75,41 @@ class IdTest {
         assertThat(id.readLong(0)).isEqualTo(21);
         assertThat(id.readLong(8)).isEqualTo(42);
     }
+
+    @Test
+    void testHexAndBinaryRoundTrip() {
+        final Id id = Id.new128BitId();
+        id.fromHexString("00-0af7651916cd43dd8448eb211c80319c-", 3);
+        assertThat(id.toString()).isEqualTo("0af7651916cd43dd8448eb211c80319c");
+        assertThat(id.readLong(0)).isEqualTo(0x0af7651916cd43ddL);
+        assertThat(id.getLeastSignificantBits()).isEqualTo(0x8448eb211c80319cL);
+        assertThat(id.readLong(4)).isEqualTo(0x16cd43dd8448eb21L);
+
+        byte[] bytes = new byte[17];
+        assertThat(id.toBytes(bytes, 1)).isEqualTo(17);
+        assertThat(id.dataEquals(bytes, 1)).isTrue();
+        final Id copy = Id.new128BitId();
+        assertThat(copy.fromBytes(bytes, 1)).isEqualTo(16);
+        assertThat(copy).isEqualTo(id);
+        assertThat(copy.hashCode()).isEqualTo(id.hashCode());
+        assertThat(copy.toString()).isEqualTo(id.toString());
+    }
+
+    @Test
+    void testInvalidHexString() {
+        final Id id = Id.new64BitId();
+        assertThatThrownBy(() -> id.fromHexString("000000000000000g", 0)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> id.fromHexString("000000000000000", 0)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void testRandomValue() {
+        final Id id = Id.new128BitId();
+        id.setToRandomValue();
+        assertThat(id.isEmpty()).isFalse();
+        assertThat(id.toString()).hasSize(32);
+        final Id other = Id.new128BitId();
+        other.setToRandomValue();
+        assertThat(other).isNotEqualTo(id);
+    }
 }
@@ -0,0 +1,196 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.matcher;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+import specs.TestJsonSpec;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.SoftAssertions.assertSoftly;
+
+class WildcardMatcherSetTest {
+
+    @ParameterizedTest
+    @MethodSource("getJsonTestCases")
+    void testJson(String testName, String pattern, Map<String, Boolean> expectedMatches) {
+        WildcardMatcherSet matchers = WildcardMatcherSet.of(List.of(WildcardMatcher.valueOf(pattern)));
+        expectedMatches.forEach((key, value) ->
+            assertSoftly(softly -> {
+                softly.assertThat(matchers.anyMatch(key) != null)
+                    .describedAs(testName + ": " + key)
+                    .isEqualTo(value);
+                for (int i = 0; i <= key.length(); i++) {
+                    softly.assertThat(matchers.anyMatch(key.substring(0, i), key.substring(i)) != null)
+                        .describedAs(testName + ": " + key.substring(0, i) + " | " + key.substring(i))
+                        .isEqualTo(value);
+                }
+            }));
+    }
+
+    private static Stream<Arguments> getJsonTestCases() {
+        List<Arguments> arguments = new ArrayList<>();
+        JsonNode json = TestJsonSpec.getJson("wildcard_matcher_tests.json");
+        json.fieldNames().forEachRemaining(testName -> {
+            JsonNode testNode = json.get(testName);
+            String pattern = testNode.fieldNames().next();
+
+            Map<String, Boolean> matchEntries = new LinkedHashMap<>();
+            JsonNode patternNode = testNode.get(pattern);
+            patternNode.fieldNames().forEachRemaining(name -> matchEntries.put(name, patternNode.get(name).asBoolean()));
+
+            arguments.add(Arguments.of(testName, pattern, matchEntries));
+        });
+        return arguments.stream();
+    }
+
+    @Test
+    void testReturnsFirstMatchingMatcher() {
+        WildcardMatcherSet matchers = of("*bar", "foo*", "*oba*", "foobar", "/foo/*/bar/", "(?-i)FOO*", "*");
+
+        assertThat(matchers.anyMatch("foobar")).hasToString("*bar");
+        assertThat(matchers.anyMatch("foobaz")).hasToString("foo*");
+        assertThat(matchers.anyMatch("xobaz")).hasToString("*oba*");
+        assertThat(matchers.anyMatch("/foo/baz/bar/")).hasToString("/foo/*/bar/");
+        assertThat(matchers.anyMatch("baz")).hasToString("*");
+        assertThat(matchers.anyMatch(null)).isNull();
+    }
+
+    @Test
+    void testCaseSensitivity() {
+        WildcardMatcherSet matchers = of("(?-i)FOO*", "(?-i)*Bar", "(?-i)*Baz*", "qux");
+
+        assertThat(matchers.anyMatch("FOOx")).hasToString("(?-i)FOO*");
+        assertThat(matchers.anyMatch("foox")).isNull();
+        assertThat(matchers.anyMatch("xBar")).hasToString("(?-i)*Bar");
+        assertThat(matchers.anyMatch("xbar")).isNull();
+        assertThat(matchers.anyMatch("xBazx")).hasToString("(?-i)*Baz*");
+        assertThat(matchers.anyMatch("xbazx")).isNull();
+        assertThat(matchers.anyMatch("QUX")).hasToString("qux");
+    }
+
+    @Test
+    void testEmpty() {
+        WildcardMatcherSet matchers = WildcardMatcherSet.of(Collections.emptyList());
+        assertThat(matchers).isEmpty();
+        assertThat(matchers.anyMatch("foo")).isNull();
+        assertThat(matchers.anyMatch("")).isNull();
+    }
+
+    @Test
+    void testListSemantics() {
+        List<WildcardMatcher> list = List.of(WildcardMatcher.valueOf("foo*"), WildcardMatcher.valueOf("*bar"));
+        WildcardMatcherSet matchers = WildcardMatcherSet.of(list);
+
+        assertThat(matchers).isEqualTo(list);
+        assertThat(matchers).hasToString(list.toString());
+        assertThat(WildcardMatcherSet.of(matchers)).isSameAs(matchers);
+    }
+
+    @Test
+    void testWildcardMatcherAnyMatchUsesCompiledMatchers() {
+        WildcardMatcherSet matchers = of("*foo*", "bar");
+        assertThat(WildcardMatcher.anyMatch(matchers, "xfoox")).hasToString("*foo*");
+        assertThat(WildcardMatcher.anyMatch(matchers, "xfo", "ox")).hasToString("*foo*");
+        assertThat(WildcardMatcher.isAnyMatch(matchers, "BAR")).isTrue();
+        assertThat(WildcardMatcher.isNoneMatch(matchers, "baz")).isTrue();
+    }
+
+    @Test
+    void testOverlappingInfixes() {
+        // requires following the failure links of the Aho-Corasick automaton
+        WildcardMatcherSet matchers = of("*abcd*", "*bce*", "*cf*");
+
+        assertThat(matchers.anyMatch("xabcex")).hasToString("*bce*");
+        assertThat(matchers.anyMatch("abcf")).hasToString("*cf*");
+        assertThat(matchers.anyMatch("ababcd")).hasToString("*abcd*");
+        assertThat(matchers.anyMatch("abcbc")).isNull();
+    }
+
+    @Test
+    void testSameResultAsLinearMatching() {
+        Random random = new Random(42);
+        String alphabet = "abAB/.";
+        for (int run = 0; run < 200; run++) {
+            List<WildcardMatcher> list = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                list.add(WildcardMatcher.valueOf(randomPattern(random, alphabet)));
+            }
+            WildcardMatcherSet matchers = WildcardMatcherSet.of(list);
+            for (int i = 0; i < 50; i++) {
+                String s = randomString(random, alphabet, 8);
+                int split = random.nextInt(s.length() + 1);
+                assertThat(matchers.anyMatch(s))
+                    .describedAs("%s matching %s", list, s)
+                    .isSameAs(linearAnyMatch(list, s, null));
+                assertThat(matchers.anyMatch(s.substring(0, split), s.substring(split)))
+                    .describedAs("%s matching %s", list, s)
+                    .isSameAs(linearAnyMatch(list, s.substring(0, split), s.substring(split)));
+            }
+        }
+    }
+
+    private static WildcardMatcher linearAnyMatch(List<WildcardMatcher> matchers, CharSequence firstPart, CharSequence secondPart) {
+        // copying the list to an ArrayList bypasses the compiled matchers
+        return WildcardMatcher.anyMatch(new ArrayList<>(matchers), firstPart, secondPart);
+    }
+
+    private static String randomPattern(Random random, String alphabet) {
+        StringBuilder pattern = new StringBuilder();
+        if (random.nextInt(4) == 0) {
+            pattern.append("(?-i)");
+        }
+        if (random.nextBoolean()) {
+            pattern.append('*');
+        }
+        pattern.append(randomString(random, alphabet, 4));
+        if (random.nextInt(8) == 0) {
+            pattern.append('*').append(randomString(random, alphabet, 2));
+        }
+        if (random.nextBoolean()) {
+            pattern.append('*');
+        }
+        return pattern.toString();
+    }
+
+    private static String randomString(Random random, String alphabet, int maxLength) {
+        int length = random.nextInt(maxLength + 1);
+        StringBuilder s = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            s.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return s.toString();
+    }
+
+    private static WildcardMatcherSet of(String... patterns) {
+        return WildcardMatcherSet.of(Stream.of(patterns).map(WildcardMatcher::valueOf).collect(Collectors.toList()));
+    }
+}
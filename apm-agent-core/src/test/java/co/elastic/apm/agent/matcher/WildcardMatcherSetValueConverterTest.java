@@ -0,0 +1,43 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.matcher;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class WildcardMatcherSetValueConverterTest {
+
+    private final WildcardMatcherSetValueConverter converter = new WildcardMatcherSetValueConverter();
+
+    @Test
+    void convert() {
+        List<WildcardMatcher> matchers = converter.convert("foo*, *bar");
+        assertThat(matchers).isInstanceOf(WildcardMatcherSet.class);
+        assertThat(matchers).containsExactly(WildcardMatcher.valueOf("foo*"), WildcardMatcher.valueOf("*bar"));
+        assertThat(converter.toString(matchers)).isEqualTo("foo*,*bar");
+    }
+
+    @Test
+    void convertEmpty() {
+        assertThat(converter.convert("")).isInstanceOf(WildcardMatcherSet.class).isEmpty();
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DeltaRatioTest {
+
+    private final DeltaRatio deltaRatio = new DeltaRatio();
+
+    @Test
+    void testNoIncrements() {
+        assertThat(deltaRatio.get()).isNaN();
+    }
+
+    @Test
+    void testRatioSinceLastRead() {
+        deltaRatio.increment(100, 1);
+        deltaRatio.increment(300, 1);
+        assertThat(deltaRatio.get()).isEqualTo(200);
+        assertThat(deltaRatio.get()).isNaN();
+
+        deltaRatio.increment(50, 1);
+        assertThat(deltaRatio.get()).isEqualTo(50);
+        assertThat(deltaRatio.getNumerator()).isEqualTo(450);
+        assertThat(deltaRatio.getDenominator()).isEqualTo(3);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+class HistogramTest {
+
+    private final Histogram histogram = new Histogram();
+
+    @Test
+    void testBucketIndexIsMonotonic() {
+        int previousIndex = Histogram.getBucketIndex(0);
+        for (long value = 1; value < 100_000; value++) {
+            int index = Histogram.getBucketIndex(value);
+            assertThat(index).isBetween(previousIndex, previousIndex + 1);
+            assertThat(Histogram.getLowestValue(index)).isLessThanOrEqualTo(value);
+            previousIndex = index;
+        }
+    }
+
+    @Test
+    void testRelativeError() {
+        for (long value = 1; value < 10_000_000; value = value * 3 + 1) {
+            double bucketValue = Histogram.getBucketValue(Histogram.getBucketIndex(value));
+            assertThat(bucketValue).isCloseTo(value, within(value * 0.07));
+        }
+    }
+
+    @Test
+    void testValuesOutOfRange() {
+        histogram.update(-1);
+        histogram.update(Long.MAX_VALUE);
+        assertThat(histogram.getCount(0)).isEqualTo(1);
+        assertThat(histogram.getCount(Histogram.getBucketCount() - 1)).isEqualTo(1);
+        assertThat(Histogram.getLowestValue(Histogram.getBucketCount() - 1)).isLessThanOrEqualTo(Histogram.MAX_VALUE);
+    }
+
+    @Test
+    void testPercentiles() {
+        for (int i = 1; i <= 1000; i++) {
+            histogram.update(i * 1000);
+        }
+        assertThat(histogram.getCount()).isEqualTo(1000);
+        assertThat(histogram.getValueAtPercentile(50)).isCloseTo(500_000, within(500_000 * 0.07));
+        assertThat(histogram.getValueAtPercentile(99)).isCloseTo(990_000, within(990_000 * 0.07));
+        assertThat(histogram.getValueAtPercentile(100)).isCloseTo(1_000_000, within(1_000_000 * 0.07));
+    }
+
+    @Test
+    void testAdd() {
+        histogram.update(42, 3);
+        Histogram other = new Histogram();
+        other.update(42);
+        other.update(1_000_000);
+
+        histogram.add(other);
+
+        assertThat(histogram.getCount()).isEqualTo(5);
+        assertThat(histogram.getCount(Histogram.getBucketIndex(42))).isEqualTo(4);
+        assertThat(histogram.getCount(Histogram.getBucketIndex(1_000_000))).isEqualTo(1);
+        assertThat(other.getCount()).isEqualTo(2);
+    }
+
+    @Test
+    void testReset() {
+        histogram.update(42, 3);
+        assertThat(histogram.hasContent()).isTrue();
+        assertThat(histogram.getCount(Histogram.getBucketIndex(42))).isEqualTo(3);
+
+        histogram.resetState();
+
+        assertThat(histogram.hasContent()).isFalse();
+        assertThat(histogram.getCount(Histogram.getBucketIndex(42))).isEqualTo(0);
+        assertThat(histogram.getValueAtPercentile(50)).isEqualTo(0);
+    }
+}
@@ -86,6 +86,25 @@ class MetricRegistryTest {
         metricRegistry.flipPhaseAndReport(metricSets -> verifyTimer(metricSets.get(labels), 0, 0));
     }
 
+    @Test
+    void testHistogramResetWithReporting() {
+        Labels.Mutable labels = Labels.Mutable.of("foo", "bar");
+        metricRegistry.updateHistogram("histogram", labels, 20);
+        metricRegistry.updateHistogram("histogram", labels, 2000, 2);
+        metricRegistry.flipPhaseAndReport(metricSets -> {
+            assertThat(metricSets.get(labels).hasContent()).isTrue();
+            Histogram histogram = metricSets.get(labels).getHistograms().get("histogram");
+            assertThat(histogram.getCount()).isEqualTo(3);
+            assertThat(histogram.getCount(Histogram.getBucketIndex(2000))).isEqualTo(2);
+        });
+        metricRegistry.flipPhaseAndReport(null);
+        // Now we get the original buffer back
+        metricRegistry.flipPhaseAndReport(metricSets -> {
+            assertThat(metricSets.get(labels).hasContent()).isFalse();
+            assertThat(metricSets.get(labels).getHistograms().get("histogram").getCount()).isZero();
+        });
+    }
+
     private void verifyTimer(MetricSet metricSet, int expectedCount, int expectedTotalDurationUs) {
         if (expectedCount > 0) {
             assertThat(metricSet.hasContent()).isTrue();
@@ -133,9 +152,119 @@ class MetricRegistryTest {
         IntStream.range(1, 505).forEach(i -> metricRegistry.updateTimer("timer" + i, Labels.Mutable.of("foo", Integer.toString(i)), 1));
         IntStream.range(1, 505).forEach(i -> metricRegistry.updateTimer("timer" + i, Labels.Mutable.of("bar", Integer.toString(i)), 1));
 
-        metricRegistry.flipPhaseAndReport(metricSets -> assertThat(metricSets).hasSize(1000));
+        // the timers beyond the limit are aggregated in the overflow metric set
+        metricRegistry.flipPhaseAndReport(metricSets -> {
+            assertThat(metricSets).hasSize(1001);
+            assertThat(metricSets.get(MetricRegistry.OVERFLOW_LABELS).getTimers()).hasSize(8);
+        });
         // the active and inactive metricSets are now switched, also check the size of the previously inactive metricSets
-        metricRegistry.flipPhaseAndReport(metricSets -> assertThat(metricSets).hasSize(1000));
+        metricRegistry.flipPhaseAndReport(metricSets -> assertThat(metricSets).hasSize(1001));
+    }
+
+    @Test
+    void testConfigurableLimit() {
+        metricRegistry = new MetricRegistry(config, 2);
+        metricRegistry.updateTimer("timer", Labels.Mutable.of("foo", "1"), 1);
+        metricRegistry.updateTimer("timer", Labels.Mutable.of("foo", "2"), 2);
+        metricRegistry.updateTimer("timer", Labels.Mutable.of("foo", "3"), 3);
+        metricRegistry.updateTimer("timer", Labels.Mutable.of("foo", "4"), 4);
+        metricRegistry.incrementCounter("counter", Labels.Mutable.of("foo", "5"));
+        // gauges of different labels can't be aggregated
+        metricRegistry.add("gauge", Labels.Mutable.of("foo", "6"), () -> 42);
+
+        metricRegistry.flipPhaseAndReport(metricSets -> {
+            assertThat(metricSets).hasSize(3);
+            MetricSet overflow = metricSets.get(MetricRegistry.OVERFLOW_LABELS);
+            assertThat(overflow.getTimers().get("timer").getCount()).isEqualTo(2);
+            assertThat(overflow.getTimers().get("timer").getTotalTimeUs()).isEqualTo(7);
+            assertThat(overflow.getCounters().get("counter").get()).isEqualTo(1);
+            assertThat(overflow.getGauges()).isEmpty();
+        });
+    }
+
+    @Test
+    void testOverflowKeepsLowCardinalityLabels() {
+        metricRegistry = new MetricRegistry(config, 1);
+        metricRegistry.updateTimer("timer", breakdownLabels("a", "db"), 1);
+        metricRegistry.updateTimer("timer", breakdownLabels("b", "db").add("foo", "bar"), 2);
+        metricRegistry.updateTimer("timer", breakdownLabels("c", "db"), 3);
+        metricRegistry.updateTimer("timer", breakdownLabels("d", "app"), 4);
+
+        metricRegistry.flipPhaseAndReport(metricSets -> {
+            assertThat(metricSets).hasSize(3);
+            assertThat(metricSets.get(MetricRegistry.OVERFLOW_LABELS)).isNull();
+            Timer dbTimer = metricSets.get(breakdownLabels(MetricRegistry.OVERFLOW_TRANSACTION_NAME, "db")).getTimers().get("timer");
+            assertThat(dbTimer.getCount()).isEqualTo(2);
+            assertThat(dbTimer.getTotalTimeUs()).isEqualTo(5);
+            Timer appTimer = metricSets.get(breakdownLabels(MetricRegistry.OVERFLOW_TRANSACTION_NAME, "app")).getTimers().get("timer");
+            assertThat(appTimer.getCount()).isEqualTo(1);
+            assertThat(appTimer.getTotalTimeUs()).isEqualTo(4);
+        });
+    }
+
+    @Test
+    void testLimitOverflowMetricSets() {
+        metricRegistry = new MetricRegistry(config, 1);
+        IntStream.range(0, MetricRegistry.MAX_OVERFLOW_METRIC_SETS + 3).forEach(i -> metricRegistry.updateTimer("timer", breakdownLabels("test", "type" + i), 1));
+
+        metricRegistry.flipPhaseAndReport(metricSets -> {
+            assertThat(metricSets).hasSize(MetricRegistry.MAX_OVERFLOW_METRIC_SETS + 2);
+            assertThat(metricSets.get(MetricRegistry.OVERFLOW_LABELS).getTimers().get("timer").getCount()).isEqualTo(2);
+        });
+    }
+
+    @Test
+    void testOverflowLookupsDontTakeTheLock() {
+        metricRegistry = new MetricRegistry(config, 1);
+        metricRegistry.updateTimer("timer", breakdownLabels("a", "db"), 1);
+        metricRegistry.updateTimer("timer", breakdownLabels("b", "db"), 1);
+        metricRegistry.add("gauge", Labels.Mutable.of("foo", "bar"), () -> 42);
+        int createMetricSetCalls = metricRegistry.createMetricSetCalls;
+
+        for (int i = 0; i < 1000; i++) {
+            Labels.Mutable labels = breakdownLabels("transaction_" + i, "db");
+            assertThat(metricRegistry.getMetricSetLabels(metricRegistry.getOrCreateMetricSetId(labels)))
+                .isEqualTo(breakdownLabels(MetricRegistry.OVERFLOW_TRANSACTION_NAME, "db"));
+            metricRegistry.add("gauge", Labels.Mutable.of("foo", Integer.toString(i)), () -> 42);
+        }
+        assertThat(metricRegistry.createMetricSetCalls).isEqualTo(createMetricSetCalls);
+
+        // once the overflow metric sets are exhausted, the lookups of the fully collapsed one don't take the lock either
+        IntStream.range(0, MetricRegistry.MAX_OVERFLOW_METRIC_SETS + 1).forEach(i -> metricRegistry.updateTimer("timer", breakdownLabels("test", "type" + i), 1));
+        createMetricSetCalls = metricRegistry.createMetricSetCalls;
+        for (int i = 0; i < 1000; i++) {
+            assertThat(metricRegistry.getOrCreateMetricSetId(breakdownLabels("transaction_" + i, "other_type_" + i)))
+                .isEqualTo(metricRegistry.getOrCreateMetricSetId(MetricRegistry.OVERFLOW_LABELS));
+        }
+        assertThat(metricRegistry.createMetricSetCalls).isEqualTo(createMetricSetCalls);
+    }
+
+    private static Labels.Mutable breakdownLabels(String transactionName, String spanType) {
+        return Labels.Mutable.of()
+            .serviceName("service")
+            .serviceVersion("1.0")
+            .transactionName(transactionName)
+            .transactionType("request")
+            .spanType(spanType)
+            .spanSubType("subtype");
+    }
+
+    @Test
+    void testMetricSetIds() {
+        Labels.Mutable labels = Labels.Mutable.of("foo", "bar").transactionName(new StringBuilder("test"));
+        int metricSetId = metricRegistry.getOrCreateMetricSetId(labels);
+        assertThat(metricRegistry.getOrCreateMetricSetId(Labels.Mutable.of("foo", "bar").transactionName("test"))).isEqualTo(metricSetId);
+        assertThat(metricRegistry.getOrCreateMetricSetId(Labels.Mutable.of("foo", "baz"))).isNotEqualTo(metricSetId);
+        assertThat(metricRegistry.getMetricSetLabels(metricSetId)).isEqualTo(labels);
+
+        metricRegistry.updateTimer("timer", metricSetId, 1, 1);
+        metricRegistry.flipPhaseAndReport(metricSets -> {
+            assertThat(metricSets.get(labels).getId()).isEqualTo(metricSetId);
+            assertThat(metricSets.get(labels).getTimers().get("timer").getCount()).isEqualTo(1);
+        });
+        // the id refers to the active metric set after switching the phase
+        metricRegistry.updateTimer("timer", metricSetId, 2, 1);
+        metricRegistry.flipPhaseAndReport(metricSets -> assertThat(metricSets.get(labels).getTimers().get("timer").getTotalTimeUs()).isEqualTo(2));
     }
 
     @Test
@@ -41,8 +41,9 @@ public class TestObjectPoolFactory extends ObjectPoolFactory {
     private BookkeeperObjectPool<ErrorCapture> errorPool;
 
     @Override
-    protected <T extends Recyclable> ObjectPool<T> createRecyclableObjectPool(int maxCapacity, Allocator<T> allocator) {
-        ObjectPool<T> pool = super.createRecyclableObjectPool(maxCapacity, allocator);
+    protected <T extends Recyclable> ObjectPool<T> createRecyclableObjectPool(String poolName, int maxCapacity, Allocator<T> allocator,
+                                                                              ElasticApmTracer tracer) {
+        ObjectPool<T> pool = super.createRecyclableObjectPool(poolName, maxCapacity, allocator, tracer);
         BookkeeperObjectPool<T> wrappedPool = new BookkeeperObjectPool<>(pool);
         createdPools.add(wrappedPool);
         return wrappedPool;
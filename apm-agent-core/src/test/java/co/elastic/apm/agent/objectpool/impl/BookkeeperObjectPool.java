@@ -80,6 +80,16 @@ public class BookkeeperObjectPool<T> implements ObjectPool<T> {
         return pool.getGarbageCreated();
     }
 
+    @Override
+    public long getHits() {
+        return pool.getHits();
+    }
+
+    @Override
+    public long getMisses() {
+        return pool.getMisses();
+    }
+
     @Override
     public void clear() {
         pool.clear();
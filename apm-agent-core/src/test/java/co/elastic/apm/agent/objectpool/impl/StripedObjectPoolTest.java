@@ -0,0 +1,141 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.objectpool.impl;
+
+import co.elastic.apm.agent.objectpool.ObjectPoolTest;
+import co.elastic.apm.agent.objectpool.Resetter;
+import co.elastic.apm.agent.objectpool.TestRecyclable;
+import org.jctools.queues.atomic.MpmcAtomicArrayQueue;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StripedObjectPoolTest extends ObjectPoolTest<StripedObjectPool<TestRecyclable>> {
+
+    @Override
+    protected StripedObjectPool<TestRecyclable> createObjectPool(int maxSize) {
+        // a single stripe makes sure the magazine and the depot add up to the max size, regardless of the thread id
+        return createObjectPool(maxSize / 2, maxSize / 2, TimeUnit.DAYS.toNanos(1));
+    }
+
+    private static StripedObjectPool<TestRecyclable> createObjectPool(int depotSize, int magazineSize, long autotuneIntervalNanos) {
+        return new StripedObjectPool<>(new MpmcAtomicArrayQueue<TestRecyclable>(depotSize), 1, magazineSize, TestRecyclable::new,
+            Resetter.ForRecyclable.<TestRecyclable>get(), autotuneIntervalNanos);
+    }
+
+    @Test
+    void testHitsAndMisses() {
+        StripedObjectPool<TestRecyclable> pool = getObjectPool();
+        TestRecyclable instance = pool.createInstance();
+        pool.recycle(instance);
+        assertThat(pool.createInstance()).isSameAs(instance);
+
+        assertThat(pool.getMisses()).isEqualTo(1);
+        assertThat(pool.getHits()).isEqualTo(1);
+    }
+
+    @Test
+    void testRetainObjectsOfRecentPeak() {
+        StripedObjectPool<TestRecyclable> pool = createObjectPool(16, 2, TimeUnit.DAYS.toNanos(1));
+        createAndRecycle(pool, 16);
+        assertThat(pool.getPeakInUse()).isEqualTo(16);
+
+        createAndRecycle(pool, 4);
+
+        assertThat(pool.getGarbageCreated()).isEqualTo(0);
+        assertThat(pool.getObjectsInPool()).isEqualTo(16);
+    }
+
+    @Test
+    void testDiscardObjectsAfterPeak() throws Exception {
+        long autotuneIntervalNanos = TimeUnit.MILLISECONDS.toNanos(10);
+        StripedObjectPool<TestRecyclable> pool = createObjectPool(16, 2, autotuneIntervalNanos);
+        createAndRecycle(pool, 16);
+        assertThat(pool.getObjectsInPool()).isEqualTo(16);
+
+        Thread.sleep(TimeUnit.NANOSECONDS.toMillis(3 * autotuneIntervalNanos));
+        // two objects are returned to the magazine, the other two would exceed the recent peak
+        createAndRecycle(pool, 4);
+
+        assertThat(pool.getPeakInUse()).isEqualTo(2);
+        assertThat(pool.getGarbageCreated()).isEqualTo(2);
+        assertThat(pool.getObjectsInPool()).isEqualTo(14);
+        assertThat(pool.getMisses()).isEqualTo(16);
+    }
+
+    @Test
+    void testRecycleOnOtherThread() throws Exception {
+        StripedObjectPool<TestRecyclable> pool = createObjectPool(64, 2, TimeUnit.DAYS.toNanos(1));
+        for (int i = 0; i < 10; i++) {
+            List<TestRecyclable> instances = new ArrayList<>();
+            for (int j = 0; j < 32; j++) {
+                instances.add(pool.createInstance());
+            }
+            Thread recycler = new Thread(() -> {
+                for (TestRecyclable instance : instances) {
+                    pool.recycle(instance);
+                }
+            });
+            recycler.start();
+            recycler.join();
+        }
+
+        assertThat(pool.getMisses()).isEqualTo(32);
+        assertThat(pool.getGarbageCreated()).isEqualTo(0);
+        assertThat(pool.getObjectsInPool()).isEqualTo(32);
+        assertThat(pool.getPeakInUse()).isEqualTo(32);
+    }
+
+    @Test
+    void testConcurrentUse() throws Exception {
+        StripedObjectPool<TestRecyclable> pool = new StripedObjectPool<>(new MpmcAtomicArrayQueue<TestRecyclable>(64), 4, 4,
+            TestRecyclable::new, Resetter.ForRecyclable.<TestRecyclable>get(), TimeUnit.DAYS.toNanos(1));
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            threads.add(new Thread(() -> {
+                for (int j = 0; j < 1000; j++) {
+                    createAndRecycle(pool, 4);
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertThat(pool.getHits() + pool.getMisses()).isEqualTo(4 * 1000 * 4);
+        assertThat(pool.getMisses() - pool.getGarbageCreated()).isEqualTo(pool.getObjectsInPool());
+    }
+
+    private static void createAndRecycle(StripedObjectPool<TestRecyclable> pool, int count) {
+        List<TestRecyclable> instances = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            instances.add(pool.createInstance());
+        }
+        for (TestRecyclable instance : instances) {
+            pool.recycle(instance);
+        }
+    }
+}
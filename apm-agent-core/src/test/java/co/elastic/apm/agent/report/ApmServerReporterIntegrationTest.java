@@ -122,6 +122,16 @@ class ApmServerReporterIntegrationTest {
             .when(reporterConfiguration).getApiRequestTime();
 
         doReturn(Collections.singletonList(new URL("http://localhost:" + port))).when(reporterConfiguration).getServerUrls();
+        reporter = createReporter();
+        reporter.start();
+    }
+
+    private ApmServerReporter createReporter() {
+        return createReporter(null);
+    }
+
+    private ApmServerReporter createReporter(@Nullable SerializedSpanBuffer serializedSpanBuffer) {
+        ConfigurationRegistry config = tracer.getConfigurationRegistry();
         SystemInfo system = new SystemInfo("x64", "localhost", null, "platform");
         final Service service = new Service();
         final ProcessInfo title = new ProcessInfo("title");
@@ -137,8 +147,7 @@ class ApmServerReporterIntegrationTest {
                 MetaDataMock.create(title, service, system, null, Collections.emptyMap(), null)
             ),
             apmServerClient);
-        reporter = new ApmServerReporter(false, reporterConfiguration, v2handler);
-        reporter.start();
+        return new ApmServerReporter(false, reporterConfiguration, v2handler, serializedSpanBuffer);
     }
 
     @AfterEach
@@ -168,6 +177,66 @@ class ApmServerReporterIntegrationTest {
         assertThat(receivedIntakeApiCalls.get()).isEqualTo(1);
     }
 
+    @Test
+    void testReportSerializedSpans() {
+        reporter.close();
+        SerializedSpanBuffer serializedSpanBuffer = new SerializedSpanBuffer(4 * SerializedSpanBuffer.SLOT_SIZE, 1,
+            () -> new DslJsonSerializer(mock(StacktraceConfiguration.class), mock(ApmServerClient.class), MetaDataMock.create()));
+        reporter = createReporter(serializedSpanBuffer);
+        reporter.start();
+
+        // more spans than slots, the spans that don't get a slot are reported as objects
+        for (int i = 0; i < 8; i++) {
+            reporter.report(new Span(tracer));
+        }
+        assertThat(reporter.flush(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(reporter.getDropped()).isEqualTo(0);
+        assertThat(reporter.getReported()).isEqualTo(8);
+        // metadata + spans
+        assertThat(receivedEvents.get()).isEqualTo(9);
+        assertThat(serializedSpanBuffer.getFreeSlots()).isEqualTo(4);
+    }
+
+    @Test
+    void testReportSharded() throws Exception {
+        reporter.close();
+        doReturn(4).when(reporterConfiguration).getQueueShards();
+        doReturn(ReporterConfiguration.ReporterWaitStrategy.BLOCKING).when(reporterConfiguration).getReporterWaitStrategy();
+        reporter = createReporter();
+        reporter.start();
+
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 100; j++) {
+                    reporter.report(new Span(tracer));
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(reporter.flush(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(reporter.getDropped()).isEqualTo(0);
+        assertThat(reporter.getReported()).isEqualTo(800);
+    }
+
+    @Test
+    void testShardedReporterWakesUpOnEvent() {
+        reporter.close();
+        doReturn(4).when(reporterConfiguration).getQueueShards();
+        timeout.set(TimeDuration.of("1ms"));
+        reporter = createReporter();
+        reporter.start();
+
+        // no flush, the reporter thread has to be woken up by the event published to the shard
+        reporter.report(new Transaction(tracer));
+        await().untilAsserted(() -> assertThat(reporter.getReported()).isEqualTo(1));
+        reporter.report(new Transaction(tracer));
+        await().untilAsserted(() -> assertThat(reporter.getReported()).isEqualTo(2));
+    }
+
     @Test
     void testSecretToken() {
         token.set("token");
@@ -0,0 +1,119 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.configuration.SpyConfiguration;
+import co.elastic.apm.agent.configuration.converter.ByteValue;
+import co.elastic.apm.agent.configuration.converter.TimeDuration;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doReturn;
+
+class IntakeBatchingControllerTest {
+
+    private static final long KB = 1024;
+
+    private ReporterConfiguration reporterConfiguration;
+
+    @BeforeEach
+    void setUp() {
+        reporterConfiguration = SpyConfiguration.createSpyConfig().getConfig(ReporterConfiguration.class);
+        doReturn(768 * KB).when(reporterConfiguration).getApiRequestSize();
+        doReturn(TimeDuration.of("10s")).when(reporterConfiguration).getApiRequestTime();
+        doReturn(16 * KB).when(reporterConfiguration).getApiRequestSizeMin();
+        doReturn(TimeDuration.of("1s")).when(reporterConfiguration).getApiRequestTimeMin();
+        doReturn(TimeDuration.of("4s")).when(reporterConfiguration).getServerTimeout();
+    }
+
+    @Test
+    void testStatic() {
+        IntakeBatchingController controller = new IntakeBatchingController(reporterConfiguration);
+        controller.onRequestEnded(KB, TimeUnit.SECONDS.toNanos(10));
+        assertThat(controller.getRequestSize()).isEqualTo(768 * KB);
+        assertThat(controller.getRequestTimeMillis()).isEqualTo(10_000);
+
+        // follows changes of the dynamic options
+        doReturn(ByteValue.of("1mb").getBytes()).when(reporterConfiguration).getApiRequestSize();
+        assertThat(controller.getRequestSize()).isEqualTo(1024 * KB);
+    }
+
+    @Test
+    void testLowThroughputEndsRequestsSooner() {
+        IntakeBatchingController controller = createAdaptiveController();
+        for (int i = 0; i < 20; i++) {
+            controller.onRequestEnded(KB, TimeUnit.MILLISECONDS.toNanos(controller.getRequestTimeMillis()));
+            controller.onResponse(TimeUnit.MILLISECONDS.toNanos(10), true);
+        }
+        assertThat(controller.getRequestTimeMillis()).isEqualTo(1000);
+        assertThat(controller.getRequestSize()).isEqualTo(16 * KB);
+    }
+
+    @Test
+    void testHighThroughputGrowsRequests() {
+        IntakeBatchingController controller = createAdaptiveController();
+        // first, let the time and size shrink
+        for (int i = 0; i < 20; i++) {
+            controller.onRequestEnded(KB, TimeUnit.MILLISECONDS.toNanos(controller.getRequestTimeMillis()));
+        }
+        long requestTime = controller.getRequestTimeMillis();
+        long requestSize = controller.getRequestSize();
+        controller.onRequestEnded(requestSize, TimeUnit.MILLISECONDS.toNanos(100));
+        assertThat(controller.getRequestSize()).isEqualTo(requestSize * 3 / 2);
+        assertThat(controller.getRequestTimeMillis()).isEqualTo(requestTime);
+
+        for (int i = 0; i < 20; i++) {
+            controller.onRequestEnded(controller.getRequestSize(), TimeUnit.MILLISECONDS.toNanos(100));
+        }
+        assertThat(controller.getRequestSize()).isEqualTo(768 * KB);
+    }
+
+    @Test
+    void testBackOffWhenServerIsUnhealthy() {
+        IntakeBatchingController controller = createAdaptiveController();
+        for (int i = 0; i < 20; i++) {
+            controller.onRequestEnded(KB, TimeUnit.MILLISECONDS.toNanos(controller.getRequestTimeMillis()));
+        }
+        assertThat(controller.getRequestTimeMillis()).isEqualTo(1000);
+
+        controller.onResponse(TimeUnit.MILLISECONDS.toNanos(10), false);
+        controller.onRequestEnded(KB, TimeUnit.MILLISECONDS.toNanos(controller.getRequestTimeMillis()));
+        assertThat(controller.getRequestTimeMillis()).isEqualTo(2000);
+        assertThat(controller.getRequestSize()).isEqualTo(32 * KB);
+
+        // slow responses
+        for (int i = 0; i < 20; i++) {
+            controller.onResponse(TimeUnit.SECONDS.toNanos(3), true);
+            controller.onRequestEnded(KB, TimeUnit.MILLISECONDS.toNanos(controller.getRequestTimeMillis()));
+        }
+        assertThat(controller.getRequestTimeMillis()).isEqualTo(10_000);
+        assertThat(controller.getRequestSize()).isEqualTo(768 * KB);
+    }
+
+    private IntakeBatchingController createAdaptiveController() {
+        doReturn(true).when(reporterConfiguration).isAdaptiveBatching();
+        IntakeBatchingController controller = new IntakeBatchingController(reporterConfiguration);
+        assertThat(controller.getRequestSize()).isEqualTo(768 * KB);
+        assertThat(controller.getRequestTimeMillis()).isEqualTo(10_000);
+        return controller;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+class IntakeRequestPipelineTest {
+
+    @TempDir
+    Path tempDir;
+
+    private AbstractIntakeApiHandler handler;
+    private IntakeRequestPipeline pipeline;
+    private final List<Long> sentEvents = new CopyOnWriteArrayList<>();
+    /**
+     * Stubbing the mock while the sender threads invoke it is not thread-safe, that's why the health is switched via this flag
+     */
+    private final AtomicBoolean healthy = new AtomicBoolean(true);
+
+    @BeforeEach
+    void setUp() {
+        handler = mock(AbstractIntakeApiHandler.class);
+        doAnswer(invocation -> {
+            sentEvents.add(invocation.<IntakeRequestPipeline.RequestBuffer>getArgument(0).getEvents());
+            return null;
+        }).when(handler).sendBufferedRequest(any());
+        doAnswer(invocation -> healthy.get()).when(handler).isHealthy();
+        SpillQueue spillQueue = new SpillQueue(tempDir.toFile(), 1024 * 1024);
+        assertThat(spillQueue.open()).isTrue();
+        pipeline = new IntakeRequestPipeline(handler, "/intake/v2/events", 1, spillQueue);
+    }
+
+    @AfterEach
+    void tearDown() {
+        pipeline.close(1000);
+    }
+
+    @Test
+    void testSpilledRequestsAreSentBeforeNewRequests() {
+        healthy.set(false);
+        assertThat(pipeline.submit(buffer(1))).isTrue();
+        assertThat(pipeline.submit(buffer(2))).isTrue();
+        assertThat(sentEvents).isEmpty();
+
+        healthy.set(true);
+        assertThat(pipeline.submit(buffer(3))).isTrue();
+
+        await().untilAsserted(() -> assertThat(sentEvents).containsExactly(1L, 2L, 3L));
+        assertThat(pipeline.awaitIdle(1000)).isTrue();
+
+        // once the backlog has been drained, requests are no longer spilled
+        assertThat(pipeline.submit(buffer(4))).isTrue();
+        await().untilAsserted(() -> assertThat(sentEvents).containsExactly(1L, 2L, 3L, 4L));
+    }
+
+    private IntakeRequestPipeline.RequestBuffer buffer(long events) {
+        IntakeRequestPipeline.RequestBuffer buffer = pipeline.createRequestBuffer(null);
+        buffer.write(new byte[]{'{', '}'}, 0, 2);
+        buffer.setEvents(events);
+        return buffer;
+    }
+}
@@ -42,6 +42,7 @@ import org.junit.Rule;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.stagemonitor.configuration.ConfigurationRegistry;
 
 import javax.annotation.Nonnull;
@@ -51,18 +52,22 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.file.Path;
 import java.util.Collections;
 import java.util.List;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import static co.elastic.apm.agent.report.IntakeV2ReportingEventHandler.INTAKE_V2_URL;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
 import static com.github.tomakehurst.wiremock.client.WireMock.ok;
 import static com.github.tomakehurst.wiremock.client.WireMock.post;
 import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.serviceUnavailable;
 import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 
 class IntakeV2ReportingEventHandlerTest {
@@ -77,6 +82,7 @@ class IntakeV2ReportingEventHandlerTest {
     private IntakeV2ReportingEventHandler reportingEventHandler;
     private IntakeV2ReportingEventHandler nonConnectedReportingEventHandler;
     private ApmServerClient apmServerClient;
+    private ReporterConfiguration reporterConfiguration;
 
     @Nonnull
     private static JsonNode getReadTree(String s) {
@@ -93,7 +99,7 @@ class IntakeV2ReportingEventHandlerTest {
         mockApmServer1.stubFor(post(INTAKE_V2_URL).willReturn(ok()));
         mockApmServer2.stubFor(post(APM_SERVER_PATH + INTAKE_V2_URL).willReturn(ok()));
         final ConfigurationRegistry configurationRegistry = SpyConfiguration.createSpyConfig();
-        final ReporterConfiguration reporterConfiguration = configurationRegistry.getConfig(ReporterConfiguration.class);
+        reporterConfiguration = configurationRegistry.getConfig(ReporterConfiguration.class);
         final CoreConfiguration coreConfiguration = configurationRegistry.getConfig(CoreConfiguration.class);
         SystemInfo system = new SystemInfo("x64", "localhost", null, "platform");
         final ProcessInfo title = new ProcessInfo("title");
@@ -165,6 +171,86 @@ class IntakeV2ReportingEventHandlerTest {
         assertThat(ndJsonNodes.get(4).get("foo").textValue()).isEqualTo("bar");
     }
 
+    @Test
+    void testReportPipelined() throws Exception {
+        doReturn(2).when(reporterConfiguration).getApiRequestConcurrency();
+        IntakeV2ReportingEventHandler pipelinedReportingEventHandler = new IntakeV2ReportingEventHandler(
+            reporterConfiguration,
+            mock(ProcessorEventHandler.class),
+            new DslJsonSerializer(
+                mock(StacktraceConfiguration.class),
+                apmServerClient,
+                MetaDataMock.create(new ProcessInfo("title"), new Service(), new SystemInfo("x64", "localhost", null, "platform"), null, Collections.emptyMap(), null)
+            ),
+            apmServerClient);
+        try {
+            reportTransaction(pipelinedReportingEventHandler);
+            assertThat(pipelinedReportingEventHandler.isRequestInProgress()).isTrue();
+            sendEndRequestEvent(pipelinedReportingEventHandler);
+            assertThat(pipelinedReportingEventHandler.isRequestInProgress()).isFalse();
+
+            final List<JsonNode> ndJsonNodes = getNdJsonNodes();
+            assertThat(ndJsonNodes).hasSize(2);
+            assertThat(ndJsonNodes.get(0).get("metadata")).isNotNull();
+            assertThat(ndJsonNodes.get(1).get("transaction")).isNotNull();
+            assertThat(pipelinedReportingEventHandler.getReported()).isEqualTo(1);
+            assertThat(pipelinedReportingEventHandler.getDropped()).isEqualTo(0);
+        } finally {
+            pipelinedReportingEventHandler.close();
+        }
+    }
+
+    @Test
+    void testReportGzipCompressed() {
+        doReturn(ReporterConfiguration.ApiRequestCompression.GZIP).when(reporterConfiguration).getApiRequestCompression();
+        IntakeV2ReportingEventHandler gzipReportingEventHandler = new IntakeV2ReportingEventHandler(
+            reporterConfiguration,
+            mock(ProcessorEventHandler.class),
+            new DslJsonSerializer(
+                mock(StacktraceConfiguration.class),
+                apmServerClient,
+                MetaDataMock.create(new ProcessInfo("title"), new Service(), new SystemInfo("x64", "localhost", null, "platform"), null, Collections.emptyMap(), null)
+            ),
+            apmServerClient);
+        reportTransaction(gzipReportingEventHandler);
+        gzipReportingEventHandler.endRequest();
+
+        // in contrast to auto, an explicitly configured codec is also used for localhost
+        mockApmServer1.verify(postRequestedFor(urlEqualTo(INTAKE_V2_URL)).withHeader("Content-Encoding", equalTo("gzip")));
+        final List<JsonNode> ndJsonNodes = getNdJsonNodes();
+        assertThat(ndJsonNodes).hasSize(2);
+        assertThat(ndJsonNodes.get(0).get("metadata")).isNotNull();
+        assertThat(ndJsonNodes.get(1).get("transaction")).isNotNull();
+        assertThat(gzipReportingEventHandler.getReported()).isEqualTo(1);
+    }
+
+    @Test
+    void testSpillOnServerError(@TempDir Path spillQueueDir) throws Exception {
+        mockApmServer1.stubFor(post(INTAKE_V2_URL).willReturn(serviceUnavailable()));
+        doReturn(1).when(reporterConfiguration).getApiRequestConcurrency();
+        doReturn(spillQueueDir.toString()).when(reporterConfiguration).getSpillQueueDir();
+        IntakeV2ReportingEventHandler pipelinedReportingEventHandler = new IntakeV2ReportingEventHandler(
+            reporterConfiguration,
+            mock(ProcessorEventHandler.class),
+            new DslJsonSerializer(
+                mock(StacktraceConfiguration.class),
+                apmServerClient,
+                MetaDataMock.create(new ProcessInfo("title"), new Service(), new SystemInfo("x64", "localhost", null, "platform"), null, Collections.emptyMap(), null)
+            ),
+            apmServerClient);
+        try {
+            reportTransaction(pipelinedReportingEventHandler);
+            sendEndRequestEvent(pipelinedReportingEventHandler);
+
+            // the failed request is spilled to disk and re-sent to the second server once the handler is healthy again
+            await().untilAsserted(() -> mockApmServer2.verify(postRequestedFor(urlEqualTo(APM_SERVER_PATH + INTAKE_V2_URL))));
+            await().untilAsserted(() -> assertThat(pipelinedReportingEventHandler.getReported()).isEqualTo(1));
+            assertThat(pipelinedReportingEventHandler.getDropped()).isEqualTo(0);
+        } finally {
+            pipelinedReportingEventHandler.close();
+        }
+    }
+
     @Test
     void testNoopWhenNotConnected() {
         reportTransaction(nonConnectedReportingEventHandler);
@@ -251,6 +337,12 @@ class IntakeV2ReportingEventHandlerTest {
         reportingEventHandler.onEvent(reportingEvent, -1, true);
     }
 
+    private void sendEndRequestEvent(IntakeV2ReportingEventHandler reportingEventHandler) {
+        final ReportingEvent reportingEvent = new ReportingEvent();
+        reportingEvent.setEndRequestEvent();
+        reportingEventHandler.onEvent(reportingEvent, -1, true);
+    }
+
     private void sendShutdownEvent() {
         final ReportingEvent reportingEvent = new ReportingEvent();
         reportingEvent.shutdownEvent();
@@ -0,0 +1,145 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.metrics.MetricRegistry;
+import com.lmax.disruptor.EventTranslatorOneArg;
+import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.YieldingWaitStrategy;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+class ReportingEventShardsTest {
+
+    private static final EventTranslatorOneArg<ReportingEvent, Span> SPAN_TRANSLATOR = new EventTranslatorOneArg<ReportingEvent, Span>() {
+        @Override
+        public void translateTo(ReportingEvent event, long sequence, Span span) {
+            event.setSpan(span);
+        }
+    };
+
+    @Test
+    void testFlushAfterConcurrentReports() throws Exception {
+        RecordingHandler handler = new RecordingHandler();
+        RingBuffer<ReportingEvent> mainRingBuffer = RingBuffer.createMultiProducer(new ApmServerReporter.TransactionEventFactory(), 1024, new YieldingWaitStrategy());
+        final ReportingEventShards shards = new ReportingEventShards(4, 256, handler, mainRingBuffer);
+        final Span span = mock(Span.class);
+        final int numThreads = 4;
+        final int spansBeforeFlush = 1000;
+        final CountDownLatch reportedBeforeFlush = new CountDownLatch(numThreads);
+        final AtomicBoolean stop = new AtomicBoolean();
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < numThreads; i++) {
+            Thread thread = new Thread(() -> {
+                for (int j = 0; j < spansBeforeFlush; j++) {
+                    shards.publishEvent(SPAN_TRANSLATOR, span);
+                }
+                reportedBeforeFlush.countDown();
+                // keeps reporting while the flush is handled
+                while (!stop.get()) {
+                    shards.tryPublishEvent(SPAN_TRANSLATOR, span);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        // the reporter thread drains the shards while the application threads report
+        long sequence = 0;
+        while (!reportedBeforeFlush.await(1, TimeUnit.MILLISECONDS)) {
+            shards.onEvent(wakeupEvent(), sequence++, true);
+        }
+        // makes the main ring buffer look like it already contains events which have been published after the flush
+        mainRingBuffer.publishEvent(ApmServerReporter.WAKEUP_EVENT_TRANSLATOR);
+        mainRingBuffer.publishEvent(ApmServerReporter.WAKEUP_EVENT_TRANSLATOR);
+
+        ReportingEvent flushEvent = new ReportingEvent();
+        flushEvent.setEndRequestEvent();
+        shards.onEvent(flushEvent, sequence, false);
+
+        stop.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(handler.spansBeforeEndRequest).isGreaterThanOrEqualTo(numThreads * spansBeforeFlush);
+    }
+
+    private static ReportingEvent wakeupEvent() {
+        ReportingEvent event = new ReportingEvent();
+        event.setWakeupEvent();
+        return event;
+    }
+
+    private static class RecordingHandler implements ReportingEventHandler {
+
+        private long spans;
+        private long spansBeforeEndRequest = -1;
+
+        @Override
+        public void onEvent(ReportingEvent event, long sequence, boolean endOfBatch) {
+            if (event.getType() == ReportingEvent.ReportingEventType.SPAN) {
+                spans++;
+            } else if (event.getType() == ReportingEvent.ReportingEventType.END_REQUEST) {
+                spansBeforeEndRequest = spans;
+            }
+            event.resetState();
+        }
+
+        @Override
+        public void init(ApmServerReporter reporter) {
+        }
+
+        @Override
+        public long getReported() {
+            return spans;
+        }
+
+        @Override
+        public long getDropped() {
+            return 0;
+        }
+
+        @Override
+        public boolean isProcessed(long sequence) {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean isHealthy() {
+            return true;
+        }
+
+        @Override
+        public void bindTo(MetricRegistry metricRegistry) {
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.MockTracer;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.metadata.MetaDataMock;
+import co.elastic.apm.agent.impl.stacktrace.StacktraceConfiguration;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+
+class SerializedSpanBufferTest {
+
+    private final ElasticApmTracer tracer = MockTracer.create();
+    private SerializedSpanBuffer buffer;
+    private DslJsonSerializer reporterSerializer;
+
+    @BeforeEach
+    void setUp() {
+        buffer = new SerializedSpanBuffer(2 * SerializedSpanBuffer.SLOT_SIZE, 2, this::createSerializer);
+        reporterSerializer = createSerializer();
+    }
+
+    private DslJsonSerializer createSerializer() {
+        return new DslJsonSerializer(mock(StacktraceConfiguration.class), mock(ApmServerClient.class), MetaDataMock.create());
+    }
+
+    @Test
+    void testSerializedSpanIsEqualToSpanSerializedByReporter() {
+        Span span = createSpan("SELECT * FROM foo");
+
+        SerializedSpanBuffer.Slot slot = buffer.serialize(span);
+        assertThat(slot).isNotNull();
+        slot.writeTo(reporterSerializer);
+        String serializedInSlot = reporterSerializer.toString();
+
+        reporterSerializer.getJsonWriter().reset();
+        reporterSerializer.serializeSpanNdJson(span);
+        assertThat(serializedInSlot).isEqualTo(reporterSerializer.toString());
+        assertThat(serializedInSlot).contains("SELECT * FROM foo").endsWith("\n");
+    }
+
+    @Test
+    void testReleaseSlot() {
+        SerializedSpanBuffer.Slot slot1 = buffer.serialize(createSpan("1"));
+        SerializedSpanBuffer.Slot slot2 = buffer.serialize(createSpan("2"));
+        assertThat(slot1).isNotNull();
+        assertThat(slot2).isNotNull().isNotSameAs(slot1);
+        assertThat(buffer.getFreeSlots()).isZero();
+
+        assertThat(buffer.serialize(createSpan("3"))).isNull();
+
+        slot1.release();
+        assertThat(buffer.getFreeSlots()).isOne();
+        assertThat(buffer.serialize(createSpan("3"))).isSameAs(slot1);
+    }
+
+    @Test
+    void testSpanExceedingSlotSize() {
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < SerializedSpanBuffer.SLOT_SIZE; i++) {
+            name.append('x');
+        }
+        Span span = new Span(tracer);
+        span.getContext().getDb().withStatement(name.toString());
+
+        assertThat(buffer.serialize(span)).isNull();
+        assertThat(buffer.getFreeSlots()).isEqualTo(2);
+    }
+
+    @Test
+    void testReuseSlot() {
+        SerializedSpanBuffer.Slot slot = buffer.serialize(createSpan("a longer span name"));
+        assertThat(slot).isNotNull();
+        slot.release();
+        slot = buffer.serialize(createSpan("short"));
+        assertThat(slot).isNotNull();
+
+        slot.writeTo(reporterSerializer);
+        assertThat(reporterSerializer.toString()).contains("\"short\"").doesNotContain("longer").endsWith("\n");
+    }
+
+    @Test
+    void testSizeTooSmall() {
+        assertThatThrownBy(() -> new SerializedSpanBuffer(SerializedSpanBuffer.SLOT_SIZE - 1, 1, this::createSerializer))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private Span createSpan(String name) {
+        Span span = new Span(tracer);
+        span.withName(name).withType("db");
+        return span;
+    }
+}
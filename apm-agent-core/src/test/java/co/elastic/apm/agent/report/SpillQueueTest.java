@@ -0,0 +1,152 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Objects;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SpillQueueTest {
+
+    @TempDir
+    Path tempDir;
+
+    private SpillQueue spillQueue;
+
+    @AfterEach
+    void tearDown() {
+        if (spillQueue != null) {
+            spillQueue.close();
+        }
+    }
+
+    @Test
+    void testPollInOrder() {
+        spillQueue = open(1024 * 1024);
+        assertThat(spillQueue.isEmpty()).isTrue();
+        assertThat(spillQueue.offer(buffer("foo", 1, "deflate"))).isTrue();
+        assertThat(spillQueue.offer(buffer("bar", 2, "gzip"))).isTrue();
+        assertThat(spillQueue.isEmpty()).isFalse();
+
+        IntakeRequestPipeline.RequestBuffer buffer = new IntakeRequestPipeline.RequestBuffer();
+        assertThat(spillQueue.poll(buffer)).isTrue();
+        assertThat(content(buffer)).isEqualTo("foo");
+        assertThat(buffer.getEvents()).isEqualTo(1);
+        assertThat(buffer.getContentEncoding()).isEqualTo("deflate");
+
+        assertThat(spillQueue.poll(buffer)).isTrue();
+        assertThat(content(buffer)).isEqualTo("bar");
+        assertThat(buffer.getEvents()).isEqualTo(2);
+        assertThat(buffer.getContentEncoding()).isEqualTo("gzip");
+
+        assertThat(spillQueue.poll(buffer)).isFalse();
+        assertThat(spillQueue.isEmpty()).isTrue();
+    }
+
+    @Test
+    void testRecoverAfterRestart() {
+        spillQueue = open(1024 * 1024);
+        spillQueue.offer(buffer("foo", 1, null));
+        spillQueue.offer(buffer("bar", 1, null));
+        IntakeRequestPipeline.RequestBuffer buffer = new IntakeRequestPipeline.RequestBuffer();
+        assertThat(spillQueue.poll(buffer)).isTrue();
+        spillQueue.close();
+
+        spillQueue = open(1024 * 1024);
+        assertThat(spillQueue.poll(buffer)).isTrue();
+        assertThat(content(buffer)).isEqualTo("bar");
+        assertThat(spillQueue.poll(buffer)).isFalse();
+    }
+
+    @Test
+    void testPartiallyWrittenRecordIsDiscarded() throws Exception {
+        spillQueue = open(1024 * 1024);
+        spillQueue.offer(buffer("foo", 1, null));
+        spillQueue.offer(buffer("bar", 1, null));
+        spillQueue.close();
+
+        File segment = Objects.requireNonNull(tempDir.toFile().listFiles((dir, name) -> name.endsWith(".spill")))[0];
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            // corrupting the payload of the second record
+            file.seek(8 + 13 + 3 + 13);
+            file.write('x');
+        }
+
+        spillQueue = open(1024 * 1024);
+        IntakeRequestPipeline.RequestBuffer buffer = new IntakeRequestPipeline.RequestBuffer();
+        assertThat(spillQueue.poll(buffer)).isTrue();
+        assertThat(content(buffer)).isEqualTo("foo");
+        assertThat(spillQueue.poll(buffer)).isFalse();
+    }
+
+    @Test
+    void testEvictOldestSegment() {
+        // each segment can hold a single record
+        spillQueue = open(8 * 64);
+        for (int i = 0; i < 10; i++) {
+            assertThat(spillQueue.offer(buffer(String.format("%-40s", "event-" + i), 1, null))).isTrue();
+        }
+        assertThat(spillQueue.getSizeOnDisk()).isEqualTo(8 * 64);
+        assertThat(spillQueue.getEvictedEvents()).isEqualTo(2);
+
+        IntakeRequestPipeline.RequestBuffer buffer = new IntakeRequestPipeline.RequestBuffer();
+        assertThat(spillQueue.poll(buffer)).isTrue();
+        assertThat(content(buffer).trim()).isEqualTo("event-2");
+    }
+
+    @Test
+    void testRecordTooLarge() {
+        spillQueue = open(8 * 64);
+        assertThat(spillQueue.offer(buffer(new String(new char[64]), 1, null))).isFalse();
+    }
+
+    @Test
+    void testDirectoryIsLocked() {
+        spillQueue = open(1024 * 1024);
+        assertThat(new SpillQueue(tempDir.toFile(), 1024 * 1024).open()).isFalse();
+    }
+
+    private SpillQueue open(long maxSize) {
+        SpillQueue spillQueue = new SpillQueue(tempDir.toFile(), maxSize);
+        assertThat(spillQueue.open()).isTrue();
+        return spillQueue;
+    }
+
+    private static IntakeRequestPipeline.RequestBuffer buffer(String content, int events, @Nullable String contentEncoding) {
+        IntakeRequestPipeline.RequestBuffer buffer = new IntakeRequestPipeline.RequestBuffer();
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        buffer.write(bytes, 0, bytes.length);
+        buffer.setEvents(events);
+        buffer.setContentEncoding(contentEncoding);
+        return buffer;
+    }
+
+    private static String content(IntakeRequestPipeline.RequestBuffer buffer) {
+        return new String(buffer.getBuffer(), 0, buffer.size(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.compression;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class CompressionCodecTest {
+
+    @Test
+    void testDeflate() throws Exception {
+        DeflateCodec codec = new DeflateCodec(1);
+        byte[] payload = createPayload(100_000);
+        assertThat(inflate(compress(codec, payload, new ByteArrayOutputStream()))).isEqualTo(payload);
+        assertThat(inflate(compress(codec, payload, new DirectByteArrayOutputStream(16)))).isEqualTo(payload);
+    }
+
+    @Test
+    void testGzip() throws Exception {
+        GzipCodec codec = new GzipCodec(9);
+        byte[] payload = createPayload(100_000);
+        assertThat(gunzip(compress(codec, payload, new ByteArrayOutputStream()))).isEqualTo(payload);
+        assertThat(gunzip(compress(codec, payload, new DirectByteArrayOutputStream(16)))).isEqualTo(payload);
+    }
+
+    @Test
+    void testCodecIsReusable() throws Exception {
+        GzipCodec codec = new GzipCodec(1);
+        for (int i = 1; i < 5; i++) {
+            byte[] payload = createPayload(i * 10_000);
+            assertThat(gunzip(compress(codec, payload, new DirectByteArrayOutputStream(1024)))).isEqualTo(payload);
+        }
+    }
+
+    @Test
+    void testFlushMakesWrittenDataAvailable() throws Exception {
+        DeflateCodec codec = new DeflateCodec(1);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStream os = codec.compress(out);
+        byte[] payload = "{\"foo\":\"bar\"}\n".getBytes(StandardCharsets.UTF_8);
+        os.write(payload);
+        os.flush();
+
+        InputStream inflater = new InflaterInputStream(new ByteArrayInputStream(out.toByteArray()));
+        byte[] read = new byte[payload.length];
+        assertThat(inflater.read(read)).isEqualTo(payload.length);
+        assertThat(read).isEqualTo(payload);
+        os.close();
+    }
+
+    @Test
+    void testWriteAfterClose() throws Exception {
+        OutputStream os = new DeflateCodec(1).compress(new ByteArrayOutputStream());
+        os.close();
+        // closing multiple times is fine
+        os.close();
+        assertThatThrownBy(() -> os.write(1)).isInstanceOf(IOException.class);
+    }
+
+    @Test
+    void testIdentity() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertThat(IdentityCodec.INSTANCE.compress(out)).isSameAs(out);
+        assertThat(IdentityCodec.INSTANCE.getContentEncoding()).isNull();
+    }
+
+    private static byte[] compress(CompressionCodec codec, byte[] payload, ByteArrayOutputStream out) throws IOException {
+        OutputStream os = codec.compress(out);
+        // simulating the serializer, which writes in chunks
+        for (int i = 0; i < payload.length; i += 1000) {
+            os.write(payload, i, Math.min(1000, payload.length - i));
+        }
+        os.flush();
+        os.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] createPayload(int size) {
+        Random random = new Random(size);
+        StringBuilder sb = new StringBuilder(size);
+        while (sb.length() < size) {
+            sb.append("{\"span\":{\"id\":\"").append(Long.toHexString(random.nextLong())).append("\",\"name\":\"SELECT FROM foo\"}}\n");
+        }
+        return sb.substring(0, size).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] inflate(byte[] compressed) throws IOException {
+        return readAll(new InflaterInputStream(new ByteArrayInputStream(compressed)));
+    }
+
+    private static byte[] gunzip(byte[] compressed) throws IOException {
+        return readAll(new GZIPInputStream(new ByteArrayInputStream(compressed)));
+    }
+
+    private static byte[] readAll(InputStream is) throws IOException {
+        try (is) {
+            return is.readAllBytes();
+        }
+    }
+}
@@ -44,13 +44,18 @@ import co.elastic.apm.agent.impl.metadata.Service;
 import co.elastic.apm.agent.impl.metadata.SystemInfo;
 import co.elastic.apm.agent.impl.sampling.ConstantSampler;
 import co.elastic.apm.agent.impl.sampling.Sampler;
+import co.elastic.apm.agent.impl.stacktrace.CapturedStackTrace;
 import co.elastic.apm.agent.impl.stacktrace.StacktraceConfiguration;
 import co.elastic.apm.agent.impl.transaction.Id;
+import co.elastic.apm.agent.impl.transaction.Outcome;
 import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.impl.transaction.StackFrame;
 import co.elastic.apm.agent.impl.transaction.TraceContext;
 import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.metrics.Labels;
+import co.elastic.apm.agent.metrics.MetricRegistry;
 import co.elastic.apm.agent.report.ApmServerClient;
+import co.elastic.apm.agent.report.ReporterConfiguration;
 import co.elastic.apm.agent.util.IOUtils;
 import com.dslplatform.json.JsonWriter;
 import com.fasterxml.jackson.core.JsonProcessingException;
@@ -66,6 +71,7 @@ import org.junit.jupiter.params.provider.ValueSource;
 import org.stagemonitor.configuration.ConfigurationRegistry;
 
 import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.CharBuffer;
 import java.nio.charset.StandardCharsets;
@@ -73,6 +79,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.Future;
@@ -335,6 +342,45 @@ class DslJsonSerializerTest {
         assertThat(jsonNode.get("context").get("request").get("headers").get("bar").isNull()).isTrue();
     }
 
+    @Test
+    void testSerializationMetrics() throws Exception {
+        MetricRegistry metricRegistry = new MetricRegistry(mock(ReporterConfiguration.class));
+        serializer.bindTo(metricRegistry);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        serializer.setOutputStream(os);
+        Span span = new Span(MockTracer.create());
+        span.getTraceContext().asRootSpan(ConstantSampler.of(true));
+
+        serializer.serializeSpanNdJson(span);
+        serializer.serializeSpanNdJson(span);
+        serializer.fullFlush();
+
+        assertThat(metricRegistry.getGaugeValue("agent.serializer.events", Labels.EMPTY)).isEqualTo(2);
+        assertThat(metricRegistry.getGaugeValue("agent.serializer.bytes_per_event", Labels.EMPTY)).isEqualTo(os.size() / 2.0);
+        assertThat(metricRegistry.getGaugeValue("agent.serializer.time_per_event.ns", Labels.EMPTY)).isPositive();
+        // the metrics only cover the events serialized since the last read
+        assertThat(metricRegistry.getGaugeValue("agent.serializer.events", Labels.EMPTY)).isEqualTo(0);
+        assertThat(metricRegistry.getGaugeValue("agent.serializer.bytes_per_event", Labels.EMPTY)).isNaN();
+    }
+
+    @Test
+    void testSerializationMetricsSharedBetweenSerializers() throws Exception {
+        SerializerMetrics serializerMetrics = new SerializerMetrics();
+        DslJsonSerializer reporterSerializer = new DslJsonSerializer(mock(StacktraceConfiguration.class), apmServerClient, metaData, serializerMetrics);
+        DslJsonSerializer spanSerializer = new DslJsonSerializer(mock(StacktraceConfiguration.class), apmServerClient, metaData, serializerMetrics);
+        MetricRegistry metricRegistry = new MetricRegistry(mock(ReporterConfiguration.class));
+        reporterSerializer.bindTo(metricRegistry);
+        Span span = new Span(MockTracer.create());
+        span.getTraceContext().asRootSpan(ConstantSampler.of(true));
+
+        reporterSerializer.serializeSpanNdJson(span);
+        spanSerializer.serializeSpanNdJson(span);
+        spanSerializer.serializeSpanNdJson(span);
+
+        assertThat(metricRegistry.getGaugeValue("agent.serializer.events", Labels.EMPTY)).isEqualTo(3);
+        assertThat(metricRegistry.getGaugeValue("agent.serializer.bytes_per_event", Labels.EMPTY)).isPositive();
+    }
+
     @Test
     void testMessageHeaders() {
         Span span = new Span(MockTracer.create());
@@ -933,6 +979,23 @@ class DslJsonSerializerTest {
         assertThat((Object) request.getBodyBuffer()).isNull();
     }
 
+    @Test
+    void testDroppedSpanStatsSerialization() {
+        Transaction transaction = createRootTransaction();
+        Span span = new Span(MockTracer.create()).asExit().withOutcome(Outcome.SUCCESS);
+        span.getContext().getDestination().getService().withResource("mysql");
+        transaction.getDroppedSpanStats().captureDroppedSpan(span);
+        transaction.getDroppedSpanStats().captureDroppedSpan(span);
+
+        JsonNode droppedSpansStats = readJsonString(serializer.toJsonString(transaction)).get("dropped_spans_stats");
+        assertThat(droppedSpansStats).hasSize(1);
+        JsonNode stats = droppedSpansStats.get(0);
+        assertThat(stats.get("destination_service_resource").textValue()).isEqualTo("mysql");
+        assertThat(stats.get("outcome").textValue()).isEqualTo("success");
+        assertThat(stats.get("duration").get("count").intValue()).isEqualTo(2);
+        assertThat(stats.get("duration").get("sum").get("us").longValue()).isEqualTo(0);
+    }
+
     /**
      * Tests that body not properly finished (not properly flipped) is ignored from serialization
      *
@@ -1251,6 +1314,123 @@ class DslJsonSerializerTest {
         assertThat(jsonStackTrace.get(1).get("module")).isNull();
     }
 
+    @Test
+    void testCapturedStackTraceSerialization() throws Exception {
+        StacktraceConfiguration stacktraceConfiguration = mock(StacktraceConfiguration.class);
+        when(stacktraceConfiguration.getApplicationPackages()).thenReturn(List.of("foo"));
+        serializer = new DslJsonSerializer(stacktraceConfiguration, apmServerClient, metaData);
+        serializer.blockUntilReady();
+        CapturedStackTrace stackTrace = new CapturedStackTrace(
+            new String[]{"foo.Bar", "java.lang.Thread"},
+            new String[]{"baz", "run"},
+            new String[]{"Bar.java", "Thread.java"},
+            new int[]{42, 833},
+            2);
+        Span span = new Span(MockTracer.create());
+        span.withStackTrace(stackTrace);
+
+        String json = serializer.toJsonString(span);
+        assertThat(stackTrace.getSerialized(stacktraceConfiguration.getApplicationPackages())).isNotNull();
+        // the second serialization copies the cached frames
+        assertThat(serializer.toJsonString(span)).isEqualTo(json);
+
+        JsonNode jsonStackTrace = readJsonString(json).get("stacktrace");
+        assertThat(jsonStackTrace).hasSize(2);
+        assertThat(jsonStackTrace.get(0).get("filename").textValue()).isEqualTo("Bar.java");
+        assertThat(jsonStackTrace.get(0).get("classname").textValue()).isEqualTo("foo.Bar");
+        assertThat(jsonStackTrace.get(0).get("function").textValue()).isEqualTo("baz");
+        assertThat(jsonStackTrace.get(0).get("library_frame").booleanValue()).isFalse();
+        assertThat(jsonStackTrace.get(0).get("lineno").intValue()).isEqualTo(42);
+        assertThat(jsonStackTrace.get(1).get("function").textValue()).isEqualTo("run");
+        assertThat(jsonStackTrace.get(1).get("library_frame").booleanValue()).isTrue();
+
+        // the cached frames are not used when the application packages change
+        when(stacktraceConfiguration.getApplicationPackages()).thenReturn(List.of("bar"));
+        JsonNode reserialized = readJsonString(serializer.toJsonString(span)).get("stacktrace");
+        assertThat(reserialized.get(0).get("library_frame").booleanValue()).isTrue();
+    }
+
+    @Test
+    void testCachedFragments() {
+        String name = "GET /f\u00fc\u00fc \"bar\"\n";
+        String longName = RandomStringUtils.randomAlphanumeric(DslJsonSerializer.MAX_VALUE_LENGTH + 1);
+        for (String transactionName : List.of(name, longName)) {
+            Transaction transaction = createRootTransaction();
+            transaction.withName(transactionName).withType("request\tb\u00e4r").withResult("HTTP 2xx");
+            transaction.getTraceContext().setServiceName("service \"\u00f6\"");
+            transaction.getTraceContext().setServiceVersion("1.0");
+
+            // the second serialization copies the cached fragments
+            String json = serializer.toJsonString(transaction);
+            assertThat(serializer.toJsonString(transaction)).isEqualTo(json);
+
+            JsonNode transactionJson = readJsonString(json);
+            if (transactionName.length() > DslJsonSerializer.MAX_VALUE_LENGTH) {
+                assertThat(transactionJson.get("name").textValue()).isEqualTo(transactionName.substring(0, DslJsonSerializer.MAX_VALUE_LENGTH - 1) + "\u2026");
+            } else {
+                assertThat(transactionJson.get("name").textValue()).isEqualTo(transactionName);
+            }
+            assertThat(transactionJson.get("type").textValue()).isEqualTo("request\tb\u00e4r");
+            assertThat(transactionJson.get("result").textValue()).isEqualTo("HTTP 2xx");
+            assertThat(transactionJson.get("context").get("service").get("name").textValue()).isEqualTo("service \"\u00f6\"");
+            assertThat(transactionJson.get("context").get("service").get("version").textValue()).isEqualTo("1.0");
+        }
+    }
+
+    @Test
+    void testAdaptBufferSize() throws Exception {
+        Transaction bigTransaction = createRootTransaction();
+        String labelValue = RandomStringUtils.randomAlphanumeric(DslJsonSerializer.MAX_VALUE_LENGTH);
+        for (int i = 0; i < 40; i++) {
+            bigTransaction.getContext().addLabel("label" + i, labelValue);
+        }
+        Transaction smallTransaction = createRootTransaction();
+        assertThat(serializer.getBufferCapacity()).isEqualTo(DslJsonSerializer.BUFFER_SIZE);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serializer.setOutputStream(out);
+        serializer.serializeTransactionNdJson(bigTransaction);
+        serializer.fullFlush();
+        // a single event of about 45kb is more than 1% of the recent events
+        assertThat(serializer.getBufferCapacity()).isEqualTo(64 * 1024);
+        assertThat(readJsonString(out.toString(StandardCharsets.UTF_8)).get("transaction").get("context").get("tags")).hasSize(40);
+
+        out.reset();
+        serializer.setOutputStream(out);
+        serializer.serializeTransactionNdJson(bigTransaction);
+        // the event fits into the buffer, so it's written in one go
+        assertThat(serializer.jw.flushed()).isZero();
+        assertThat(serializer.getBufferSize()).isGreaterThan(DslJsonSerializer.BUFFER_SIZE);
+        serializer.fullFlush();
+        assertThat(serializer.getBufferCapacity()).isEqualTo(64 * 1024);
+        assertThat(readJsonString(out.toString(StandardCharsets.UTF_8)).get("transaction").get("context").get("tags")).hasSize(40);
+
+        serializer.setOutputStream(out);
+        for (int i = 0; i < 1000; i++) {
+            serializer.serializeTransactionNdJson(smallTransaction);
+        }
+        serializer.fullFlush();
+        assertThat(serializer.getBufferCapacity()).isEqualTo(DslJsonSerializer.BUFFER_SIZE);
+    }
+
+    @Test
+    void testNamesAreNotCached() {
+        String transactionName = "GET /users/" + RandomStringUtils.randomAlphanumeric(16);
+        String spanName = "SELECT FROM users WHERE id = " + RandomStringUtils.randomAlphanumeric(16);
+        Transaction transaction = createRootTransaction();
+        transaction.withName(transactionName).withType("request");
+        Span span = new Span(MockTracer.create());
+        span.getTraceContext().asRootSpan(ConstantSampler.of(true));
+        span.withName(spanName).withType("db").withSubtype("mysql");
+
+        serializer.toJsonString(transaction);
+        serializer.toJsonString(span);
+
+        assertThat(DslJsonSerializer.fragmentCache.get(new JsonFragmentCache.Key().set(transactionName))).isNull();
+        assertThat(DslJsonSerializer.fragmentCache.get(new JsonFragmentCache.Key().set(spanName))).isNull();
+        assertThat(DslJsonSerializer.fragmentCache.get(new JsonFragmentCache.Key().set("request"))).isNotNull();
+    }
+
     @Test
     void testSampledRootTransaction() {
         // take sampler rate when sampled
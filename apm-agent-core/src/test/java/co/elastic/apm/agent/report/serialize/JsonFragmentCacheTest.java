@@ -0,0 +1,74 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.serialize;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class JsonFragmentCacheTest {
+
+    @Test
+    void testLookupByContent() {
+        JsonFragmentCache cache = new JsonFragmentCache(10);
+        byte[] fragment = "\"foo\"".getBytes(StandardCharsets.UTF_8);
+        cache.put(new StringBuilder("foo"), fragment);
+
+        assertThat(cache.get(new JsonFragmentCache.Key().set("foo"))).isSameAs(fragment);
+        assertThat(cache.get(new JsonFragmentCache.Key().set(new StringBuilder("foo")))).isSameAs(fragment);
+        assertThat(cache.get(new JsonFragmentCache.Key().set("fo"))).isNull();
+        assertThat(cache.get(new JsonFragmentCache.Key().set("bar"))).isNull();
+    }
+
+    @Test
+    void testStoredKeyIsNotAffectedByMutations() {
+        JsonFragmentCache cache = new JsonFragmentCache(10);
+        StringBuilder value = new StringBuilder("foo");
+        cache.put(value, new byte[0]);
+        value.setLength(0);
+        value.append("bar");
+
+        assertThat(cache.get(new JsonFragmentCache.Key().set("foo"))).isNotNull();
+        assertThat(cache.get(new JsonFragmentCache.Key().set("bar"))).isNull();
+    }
+
+    @Test
+    void testBounded() {
+        JsonFragmentCache cache = new JsonFragmentCache(2);
+        cache.put("foo", new byte[0]);
+        cache.put("bar", new byte[0]);
+        assertThat(cache.hasRemainingCapacity()).isFalse();
+        cache.put("baz", new byte[0]);
+
+        assertThat(cache.size()).isEqualTo(2);
+        assertThat(cache.get(new JsonFragmentCache.Key().set("foo"))).isNotNull();
+        assertThat(cache.get(new JsonFragmentCache.Key().set("baz"))).isNull();
+    }
+
+    @Test
+    void testLongValuesAreNotCached() {
+        JsonFragmentCache cache = new JsonFragmentCache(10);
+        String value = "a".repeat(JsonFragmentCache.MAX_CACHEABLE_LENGTH + 1);
+        cache.put(value, new byte[0]);
+
+        assertThat(cache.size()).isZero();
+    }
+}
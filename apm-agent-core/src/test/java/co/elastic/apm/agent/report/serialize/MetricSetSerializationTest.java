@@ -68,6 +68,26 @@ class MetricSetSerializationTest {
         assertThat(samples.get("bar.baz.count").get("value").doubleValue()).isEqualTo(2);
     }
 
+    @Test
+    void testSerializeHistograms() throws Exception {
+        final Labels.Mutable labels = Labels.Mutable.of("foo.bar", "baz");
+        registry.updateTimer("foo.bar", labels, 42);
+        registry.updateHistogram("foo.histogram", labels, 10_000, 2);
+        registry.updateHistogram("foo.histogram", labels, 1);
+
+        final JsonNode jsonNode = reportAsJson();
+        assertThat(jsonNode).isNotNull();
+        final JsonNode samples = jsonNode.get("metricset").get("samples");
+        assertThat(samples.get("foo.bar.count").get("value").doubleValue()).isEqualTo(1);
+        final JsonNode histogram = samples.get("foo.histogram");
+        assertThat(histogram.get("type").textValue()).isEqualTo("histogram");
+        assertThat(histogram.get("values")).hasSize(2);
+        assertThat(histogram.get("values").get(0).doubleValue()).isEqualTo(1);
+        assertThat(histogram.get("values").get(1).doubleValue()).isBetween(10_000 * 0.94, 10_000 * 1.06);
+        assertThat(histogram.get("counts").get(0).longValue()).isEqualTo(1);
+        assertThat(histogram.get("counts").get(1).longValue()).isEqualTo(2);
+    }
+
     @Test
     void testSerializeTimersWithTopLevelLabels() throws Exception {
         final Labels.Mutable labels = Labels.Mutable.of("foo", "bar")
@@ -0,0 +1,72 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.report.serialize;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SerializedSizeHistogramTest {
+
+    private final SerializedSizeHistogram histogram = new SerializedSizeHistogram(64 * 1024);
+
+    @Test
+    void testEmpty() {
+        assertThat(histogram.getPercentile(0.99)).isZero();
+    }
+
+    @Test
+    void testPercentiles() {
+        for (int i = 0; i < 98; i++) {
+            histogram.record(100);
+        }
+        histogram.record(3000);
+        histogram.record(40_000);
+
+        assertThat(histogram.getPercentile(0.5)).isEqualTo(1024);
+        assertThat(histogram.getPercentile(0.98)).isEqualTo(1024);
+        assertThat(histogram.getPercentile(0.99)).isEqualTo(4096);
+        assertThat(histogram.getPercentile(1)).isEqualTo(64 * 1024);
+    }
+
+    @Test
+    void testBucketUpperBoundIsInclusive() {
+        histogram.record(2048);
+        assertThat(histogram.getPercentile(1)).isEqualTo(2048);
+
+        histogram.record(2049);
+        assertThat(histogram.getPercentile(1)).isEqualTo(4096);
+    }
+
+    @Test
+    void testSizesAboveMaxAreCountedInLastBucket() {
+        histogram.record(10 * 1024 * 1024);
+        assertThat(histogram.getPercentile(1)).isEqualTo(64 * 1024);
+    }
+
+    @Test
+    void testDecay() {
+        histogram.record(40_000);
+        for (int i = 0; i < SerializedSizeHistogram.DECAY_INTERVAL - 1; i++) {
+            histogram.record(100);
+        }
+        // the count of the single big event has been halved to zero
+        assertThat(histogram.getPercentile(1)).isEqualTo(1024);
+    }
+}
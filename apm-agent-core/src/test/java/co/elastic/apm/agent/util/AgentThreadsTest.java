@@ -0,0 +1,76 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assumptions.assumeThat;
+
+class AgentThreadsTest {
+
+    @Test
+    void testCpuTimeOfTerminatedThreadsIsRetained() throws Exception {
+        assumeThat(ManagementFactory.getThreadMXBean().isThreadCpuTimeEnabled()).isTrue();
+        BusyLoop busyLoop = new BusyLoop();
+        Thread thread = AgentThreads.track(new Thread(busyLoop));
+        long cpuTimeBefore = AgentThreads.getCpuTimeNanos();
+        thread.start();
+        busyLoop.awaitStarted();
+
+        long cpuTimeWhileRunning = AgentThreads.getCpuTimeNanos();
+        assertThat(cpuTimeWhileRunning).isGreaterThan(cpuTimeBefore);
+
+        busyLoop.stop();
+        thread.join();
+        long cpuTimeAfterTermination = AgentThreads.getCpuTimeNanos();
+        assertThat(cpuTimeAfterTermination).isGreaterThanOrEqualTo(cpuTimeWhileRunning);
+        // the terminated thread is no longer tracked but its CPU time is still accounted for
+        assertThat(AgentThreads.getCpuTimeNanos()).isGreaterThanOrEqualTo(cpuTimeAfterTermination);
+    }
+
+    private static class BusyLoop implements Runnable {
+        private final CountDownLatch started = new CountDownLatch(1);
+        private volatile boolean running = true;
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            // burn some CPU before signalling that the thread is running
+            while (System.nanoTime() - start < 20_000_000) {
+                Thread.onSpinWait();
+            }
+            started.countDown();
+            while (running) {
+                Thread.onSpinWait();
+            }
+        }
+
+        void awaitStarted() throws InterruptedException {
+            started.await();
+        }
+
+        void stop() {
+            running = false;
+        }
+    }
+}
@@ -106,6 +106,17 @@ class StacktraceSerializationTest {
         });
     }
 
+    @Test
+    void testStackWalkerStackTrace() throws Exception {
+        when(stacktraceConfiguration.isSpanStackTraceWalkerEnabled()).thenReturn(true);
+        List<JsonNode> walkedStacktrace = getStackTrace();
+        assertThat(walkedStacktrace.get(0).get("function").textValue()).isEqualTo("getStackTrace");
+        assertThat(walkedStacktrace.get(0).get("module").textValue()).isEqualTo(getClass().getPackageName());
+        assertThat(walkedStacktrace.stream().filter(st -> st.get("filename").textValue() == null)).isEmpty();
+        assertThat(walkedStacktrace.stream().filter(st -> st.get("module").textValue().startsWith("java.lang.reflect"))).isEmpty();
+        assertThat(walkedStacktrace.get(1).get("function").textValue()).isEqualTo("testStackWalkerStackTrace");
+    }
+
     @Test
     void testStackTraceElementSerialization() throws IOException {
         when(stacktraceConfiguration.getApplicationPackages()).thenReturn(Collections.singletonList("co.elastic.apm"));
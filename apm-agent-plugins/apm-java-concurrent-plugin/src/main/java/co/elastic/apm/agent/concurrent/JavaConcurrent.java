@@ -59,7 +59,11 @@ public class JavaConcurrent {
     }
 
     private static void removeContext(Object o) {
-        contextMap.remove(o);
+        if (o instanceof ContextCarryingTask) {
+            ((ContextCarryingTask) o).releaseContext();
+        } else {
+            contextMap.remove(o);
+        }
     }
 
     private static boolean shouldAvoidContextPropagation(@Nullable Object executable) {
@@ -79,6 +83,9 @@ public class JavaConcurrent {
      */
     @Nullable
     public static AbstractSpan<?> restoreContext(Object o, Tracer tracer) {
+        if (o instanceof ContextCarryingTask) {
+            return ((ContextCarryingTask) o).restoreContext();
+        }
         // When an Executor executes directly on the current thread we need to enable this thread for context propagation again
         needsContext.set(Boolean.TRUE);
 
@@ -113,7 +120,9 @@ public class JavaConcurrent {
             return runnable;
         }
         if (isLambda(runnable)) {
-            runnable = new RunnableLambdaWrapper(runnable);
+            RunnableLambdaWrapper wrapper = new RunnableLambdaWrapper(runnable, tracer);
+            wrapper.captureContext(active);
+            return wrapper;
         }
         captureContext(runnable, active);
         return runnable;
@@ -140,7 +149,9 @@ public class JavaConcurrent {
             return callable;
         }
         if (isLambda(callable)) {
-            callable = new CallableLambdaWrapper<>(callable);
+            CallableLambdaWrapper<T> wrapper = new CallableLambdaWrapper<>(callable, tracer);
+            wrapper.captureContext(active);
+            return wrapper;
         }
         captureContext(callable, active);
         return callable;
@@ -160,6 +171,64 @@ public class JavaConcurrent {
         return task;
     }
 
+    /**
+     * Maps the active context to a virtual thread that is about to be started,
+     * so that it can be activated when the thread runs its task, without having to wrap or instrument the task.
+     * <p>
+     * Virtual threads that are started by an executor, like the one of {@code Executors#newVirtualThreadPerTaskExecutor()},
+     * are skipped, as the context is already propagated via the task.
+     * </p>
+     *
+     * @param thread the virtual thread
+     * @param tracer the tracer
+     */
+    public static void captureContext(Thread thread, Tracer tracer) {
+        if (needsContext.get() == Boolean.FALSE) {
+            return;
+        }
+        AbstractSpan<?> active = tracer.getActive();
+        if (active == null) {
+            return;
+        }
+        contextMap.put(thread, active);
+        // Do no discard branches leading to async operations so not to break span references
+        active.setNonDiscardable();
+    }
+
+    /**
+     * Removes the context that has been mapped to a virtual thread which could not be started.
+     *
+     * @param thread the virtual thread
+     */
+    public static void removeContext(Thread thread) {
+        contextMap.remove(thread);
+    }
+
+    /**
+     * Activates the context that has been mapped to the current thread when it has been started,
+     * see {@link #captureContext(Thread, Tracer)}.
+     * <p>
+     * As opposed to {@link #restoreContext(Object, Tracer)}, this doesn't touch any thread local state when there's nothing to activate,
+     * so that virtual threads that run without a context don't retain any agent state.
+     * </p>
+     *
+     * @param thread the current thread
+     * @param tracer the tracer
+     * @return the activated context, or {@code null} if there's no context mapped to the thread
+     */
+    @Nullable
+    public static AbstractSpan<?> restoreContext(Thread thread, Tracer tracer) {
+        AbstractSpan<?> context = contextMap.get(thread);
+        if (context == null) {
+            return null;
+        }
+        try {
+            return context.activate();
+        } finally {
+            contextMap.remove(thread);
+        }
+    }
+
     public static void doFinally(@Nullable Throwable thrown, @Nullable Object contextObject) {
         needsContext.set(Boolean.TRUE);
         if (thrown != null && contextObject != null) {
@@ -216,6 +285,30 @@ public class JavaConcurrent {
         return false;
     }
 
+    /**
+     * Disables context propagation on the current thread until {@link #restoreContextPropagation(Boolean)} is called.
+     * <p>
+     * As opposed to {@link #avoidPropagationOnCurrentThread()}, the previous state is restored afterwards,
+     * so that no thread local state is retained by threads that didn't have any before, like virtual threads.
+     * </p>
+     *
+     * @return the previous state, which has to be passed to {@link #restoreContextPropagation(Boolean)}
+     */
+    @Nullable
+    public static Boolean suspendContextPropagation() {
+        Boolean previous = needsContext.get();
+        needsContext.set(Boolean.FALSE);
+        return previous;
+    }
+
+    public static void restoreContextPropagation(@Nullable Boolean previous) {
+        if (previous == null) {
+            needsContext.remove();
+        } else {
+            needsContext.set(previous);
+        }
+    }
+
     public static void avoidPropagationOnCurrentThread() {
         needsContext.set(Boolean.FALSE);
     }
@@ -224,30 +317,106 @@ public class JavaConcurrent {
         needsContext.set(Boolean.TRUE);
     }
 
-    public static class RunnableLambdaWrapper implements Runnable {
+    /**
+     * A task created by the agent which carries the context it has been submitted with in a field.
+     * <p>
+     * Tasks of arbitrary classes have to be mapped to their context via the {@link #contextMap},
+     * as fields can't be added to classes which are already loaded.
+     * The wrappers of lambdas are under the control of the agent, which makes it possible to avoid the map lookups,
+     * the instrumentation of the wrapper classes, and the expunging of stale entries.
+     * </p>
+     */
+    abstract static class ContextCarryingTask {
+
+        private final Tracer tracer;
+        @Nullable
+        private AbstractSpan<?> context;
+
+        ContextCarryingTask(Tracer tracer) {
+            this.tracer = tracer;
+        }
+
+        void captureContext(AbstractSpan<?> active) {
+            // the reference is released when the task runs, the same way the contextMap does when removing the task
+            active.incrementReferences();
+            context = active;
+            // Do no discard branches leading to async operations so not to break span references
+            active.setNonDiscardable();
+        }
+
+        /**
+         * Activates the carried context on the current thread, see {@link JavaConcurrent#restoreContext(Object, Tracer)}.
+         *
+         * @return the activated context which has to be deactivated after the task has run,
+         * or {@code null} if there's no context to activate
+         */
+        @Nullable
+        AbstractSpan<?> restoreContext() {
+            needsContext.set(Boolean.TRUE);
+            AbstractSpan<?> context = this.context;
+            if (context == null) {
+                return null;
+            }
+            try {
+                if (tracer.getActive() != context) {
+                    return context.activate();
+                } else {
+                    return null;
+                }
+            } finally {
+                releaseContext();
+            }
+        }
+
+        void releaseContext() {
+            AbstractSpan<?> context = this.context;
+            if (context != null) {
+                this.context = null;
+                context.decrementReferences();
+            }
+        }
+    }
+
+    public static class RunnableLambdaWrapper extends ContextCarryingTask implements Runnable {
 
         private final Runnable delegate;
 
-        public RunnableLambdaWrapper(Runnable delegate) {
+        public RunnableLambdaWrapper(Runnable delegate, Tracer tracer) {
+            super(tracer);
             this.delegate = delegate;
         }
 
         @Override
         public void run() {
-            delegate.run();
+            AbstractSpan<?> context = restoreContext();
+            try {
+                delegate.run();
+            } finally {
+                if (context != null) {
+                    context.deactivate();
+                }
+            }
         }
     }
 
-    public static class CallableLambdaWrapper<V> implements Callable<V> {
+    public static class CallableLambdaWrapper<V> extends ContextCarryingTask implements Callable<V> {
         private final Callable<V> delegate;
 
-        public CallableLambdaWrapper(Callable<V> delegate) {
+        public CallableLambdaWrapper(Callable<V> delegate, Tracer tracer) {
+            super(tracer);
             this.delegate = delegate;
         }
 
         @Override
         public V call() throws Exception {
-            return delegate.call();
+            AbstractSpan<?> context = restoreContext();
+            try {
+                return delegate.call();
+            } finally {
+                if (context != null) {
+                    context.deactivate();
+                }
+            }
         }
     }
 }
@@ -0,0 +1,158 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.concurrent;
+
+import co.elastic.apm.agent.bci.TracerAwareInstrumentation;
+import co.elastic.apm.agent.impl.transaction.AbstractSpan;
+import net.bytebuddy.asm.Advice;
+import net.bytebuddy.description.NamedElement;
+import net.bytebuddy.description.method.MethodDescription;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.matcher.ElementMatcher;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.Collection;
+
+import static net.bytebuddy.matcher.ElementMatchers.nameStartsWith;
+import static net.bytebuddy.matcher.ElementMatchers.named;
+import static net.bytebuddy.matcher.ElementMatchers.takesArgument;
+import static net.bytebuddy.matcher.ElementMatchers.takesArguments;
+
+/**
+ * Propagates the context to virtual threads, which are available as of Java 21.
+ * <p>
+ * The context is mapped to the virtual thread when it is started and activated once the thread is mounted and runs its task.
+ * That way, the context also flows to virtual threads that are started via {@code Thread.ofVirtual().start(Runnable)},
+ * without having to wrap or instrument the task.
+ * </p>
+ */
+public abstract class VirtualThreadInstrumentation extends TracerAwareInstrumentation {
+
+    @Override
+    public ElementMatcher<? super NamedElement> getTypeMatcherPreFilter() {
+        return nameStartsWith("java.lang.");
+    }
+
+    @Override
+    public Collection<String> getInstrumentationGroupNames() {
+        return Arrays.asList("concurrent", "virtual-thread");
+    }
+
+    /**
+     * Instruments {@code java.lang.VirtualThread#start(ThreadContainer)},
+     * which is invoked on the thread that starts the virtual thread.
+     */
+    public static class VirtualThreadStartInstrumentation extends VirtualThreadInstrumentation {
+
+        @Override
+        public ElementMatcher<? super TypeDescription> getTypeMatcher() {
+            return named("java.lang.VirtualThread");
+        }
+
+        @Override
+        public ElementMatcher<? super MethodDescription> getMethodMatcher() {
+            return named("start").and(takesArguments(1));
+        }
+
+        public static class AdviceClass {
+            @Advice.OnMethodEnter(suppress = Throwable.class, inline = false)
+            public static void onStart(@Advice.This Thread thiz) {
+                JavaConcurrent.captureContext(thiz, tracer);
+            }
+
+            @Advice.OnMethodExit(suppress = Throwable.class, onThrowable = Throwable.class, inline = false)
+            public static void onExit(@Nullable @Advice.Thrown Throwable thrown,
+                                      @Advice.This Thread thiz) {
+                if (thrown != null) {
+                    JavaConcurrent.removeContext(thiz);
+                }
+            }
+        }
+    }
+
+    /**
+     * Instruments {@code java.lang.VirtualThread#submitRunContinuation()},
+     * which submits the continuation of a virtual thread to the scheduler whenever the virtual thread is started or unparked.
+     * <p>
+     * The scheduler is a {@link java.util.concurrent.ForkJoinPool}, which is instrumented as any other executor.
+     * The context must not be propagated to the continuation,
+     * as that would only activate it on the carrier thread, which doesn't share the thread locals of the virtual thread.
+     * </p>
+     */
+    public static class VirtualThreadSubmitContinuationInstrumentation extends VirtualThreadInstrumentation {
+
+        @Override
+        public ElementMatcher<? super TypeDescription> getTypeMatcher() {
+            return named("java.lang.VirtualThread");
+        }
+
+        @Override
+        public ElementMatcher<? super MethodDescription> getMethodMatcher() {
+            return named("submitRunContinuation").and(takesArguments(0));
+        }
+
+        public static class AdviceClass {
+            @Nullable
+            @Advice.OnMethodEnter(suppress = Throwable.class, inline = false)
+            public static Boolean onEnter() {
+                return JavaConcurrent.suspendContextPropagation();
+            }
+
+            @Advice.OnMethodExit(suppress = Throwable.class, onThrowable = Throwable.class, inline = false)
+            public static void onExit(@Nullable @Advice.Enter Boolean previous) {
+                JavaConcurrent.restoreContextPropagation(previous);
+            }
+        }
+    }
+
+    /**
+     * Instruments {@code java.lang.Thread#runWith(Object, Runnable)},
+     * which runs the task of a virtual thread once the virtual thread is mounted on its carrier thread.
+     */
+    public static class ThreadRunWithInstrumentation extends VirtualThreadInstrumentation {
+
+        @Override
+        public ElementMatcher<? super TypeDescription> getTypeMatcher() {
+            return named("java.lang.Thread");
+        }
+
+        @Override
+        public ElementMatcher<? super MethodDescription> getMethodMatcher() {
+            return named("runWith")
+                .and(takesArguments(2))
+                .and(takesArgument(1, Runnable.class));
+        }
+
+        public static class AdviceClass {
+            @Nullable
+            @Advice.OnMethodEnter(suppress = Throwable.class, inline = false)
+            public static Object onEnter(@Advice.This Thread thiz) {
+                return JavaConcurrent.restoreContext(thiz, tracer);
+            }
+
+            @Advice.OnMethodExit(suppress = Throwable.class, onThrowable = Throwable.class, inline = false)
+            public static void onExit(@Nullable @Advice.Enter Object context) {
+                if (context instanceof AbstractSpan) {
+                    ((AbstractSpan<?>) context).deactivate();
+                }
+            }
+        }
+    }
+}
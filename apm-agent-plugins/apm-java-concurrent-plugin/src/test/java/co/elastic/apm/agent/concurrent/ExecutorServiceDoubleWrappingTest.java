@@ -29,8 +29,10 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 public class ExecutorServiceDoubleWrappingTest extends AbstractInstrumentationTest {
     private static final Object TEST_OBJECT = new Object();
@@ -83,6 +85,22 @@ public class ExecutorServiceDoubleWrappingTest extends AbstractInstrumentationTe
         assertThat(span.getTraceContext().getParentId()).isEqualTo(transaction.getTraceContext().getId());
     }
 
+    @Test
+    public void testLambdaWrapperReleasesContextAfterRun() throws InterruptedException, ExecutionException {
+        int references = transaction.getReferenceCount();
+        // creating a span would retain a reference to its parent until it's reported
+        assertThat(executor.submit(() -> tracer.getActive()).get()).isSameAs(transaction);
+        assertThat(transaction.getReferenceCount()).isEqualTo(references);
+    }
+
+    @Test
+    public void testLambdaWrapperReleasesContextOnRejection() {
+        int references = transaction.getReferenceCount();
+        executor.shutdown();
+        assertThatThrownBy(() -> executor.execute(this::createAsyncSpan)).isInstanceOf(RejectedExecutionException.class);
+        assertThat(transaction.getReferenceCount()).isEqualTo(references);
+    }
+
     private void createAsyncSpan() {
         int numWrappers = 0;
         StackTraceElement[] stackTrace = Thread.currentThread().getStackTrace();
@@ -0,0 +1,106 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.concurrent;
+
+import co.elastic.apm.agent.AbstractInstrumentationTest;
+import co.elastic.apm.agent.impl.transaction.AbstractSpan;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.util.VirtualThreads;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * The tests are only executed on Java 21+, virtual threads are created via reflection as the tests are compiled for Java 11.
+ */
+class VirtualThreadTest extends AbstractInstrumentationTest {
+
+    private Transaction transaction;
+
+    @BeforeEach
+    void setUp() {
+        assumeTrue(VirtualThreads.isAvailable());
+        transaction = tracer.startRootTransaction(null).withName("transaction").activate();
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (transaction != null) {
+            assertThat(tracer.getActive()).isEqualTo(transaction);
+            transaction.deactivate().end();
+        }
+    }
+
+    @Test
+    void testStartVirtualThread() throws Exception {
+        int references = transaction.getReferenceCount();
+        AtomicReference<AbstractSpan<?>> active = new AtomicReference<>();
+        AtomicReference<Boolean> virtual = new AtomicReference<>();
+        startVirtualThread(() -> {
+            virtual.set(VirtualThreads.isVirtual(Thread.currentThread()));
+            active.set(tracer.getActive());
+        }).join();
+        assertThat(virtual.get()).isTrue();
+        assertThat(active.get()).isEqualTo(transaction);
+        assertThat(transaction.getReferenceCount()).isEqualTo(references);
+    }
+
+    @Test
+    void testStartVirtualThreadWithoutActiveContext() throws Exception {
+        transaction.deactivate();
+        try {
+            AtomicReference<AbstractSpan<?>> active = new AtomicReference<>(transaction);
+            startVirtualThread(() -> active.set(tracer.getActive())).join();
+            assertThat(active.get()).isNull();
+        } finally {
+            transaction.activate();
+        }
+    }
+
+    @Test
+    void testVirtualThreadPerTaskExecutor() throws Exception {
+        ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        try {
+            assertThat(executor.submit(() -> {
+                AbstractSpan<?> active = tracer.getActive();
+                // the context is propagated via the task, it must not be activated a second time when the thread starts
+                active.deactivate();
+                try {
+                    assertThat(tracer.getActive()).isNull();
+                } finally {
+                    active.activate();
+                }
+                return active;
+            }).get()).isEqualTo(transaction);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static Thread startVirtualThread(Runnable task) throws Exception {
+        return (Thread) Thread.class.getMethod("startVirtualThread", Runnable.class).invoke(null, task);
+    }
+}
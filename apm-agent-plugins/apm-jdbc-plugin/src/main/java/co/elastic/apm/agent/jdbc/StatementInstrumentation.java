@@ -214,10 +214,7 @@ public abstract class StatementInstrumentation extends JdbcInstrumentation {
             @Advice.OnMethodEnter(suppress = Throwable.class, inline = false)
             @SuppressWarnings("DuplicatedCode")
             public static Object onBeforeExecute(@Advice.This Statement statement) {
-                JdbcHelper helper = JdbcHelper.get();
-                String sql = helper.retrieveSqlForStatement(statement);
-                return helper.createJdbcSpan(sql, statement, tracer.getActive(), true);
-
+                return JdbcHelper.get().createJdbcSpanForMappedStatement(statement, tracer.getActive());
             }
 
             @Advice.OnMethodExit(suppress = Throwable.class, onThrowable = Throwable.class, inline = false)
@@ -278,10 +275,7 @@ public abstract class StatementInstrumentation extends JdbcInstrumentation {
             @Advice.OnMethodEnter(suppress = Throwable.class, inline = false)
             @SuppressWarnings("DuplicatedCode")
             public static Object onBeforeExecute(@Advice.This Statement statement) {
-
-                JdbcHelper helper = JdbcHelper.get();
-                String sql = helper.retrieveSqlForStatement(statement);
-                return helper.createJdbcSpan(sql, statement, tracer.getActive(), true);
+                return JdbcHelper.get().createJdbcSpanForMappedStatement(statement, tracer.getActive());
             }
 
             @Advice.OnMethodExit(suppress = Throwable.class, onThrowable = Throwable.class, inline = false)
@@ -326,9 +320,7 @@ public abstract class StatementInstrumentation extends JdbcInstrumentation {
             @Advice.OnMethodEnter(suppress = Throwable.class, inline = false)
             @SuppressWarnings("DuplicatedCode")
             public static Object onBeforeExecute(@Advice.This Statement statement) {
-                JdbcHelper helper = JdbcHelper.get();
-                @Nullable String sql = helper.retrieveSqlForStatement(statement);
-                return helper.createJdbcSpan(sql, statement, tracer.getActive(), true);
+                return JdbcHelper.get().createJdbcSpanForMappedStatement(statement, tracer.getActive());
             }
 
             @Advice.OnMethodExit(suppress = Throwable.class, onThrowable = Throwable.class, inline = false)
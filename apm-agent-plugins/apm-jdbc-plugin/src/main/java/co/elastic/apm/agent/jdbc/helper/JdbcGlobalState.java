@@ -27,7 +27,7 @@ import java.sql.Connection;
 @GlobalState
 public class JdbcGlobalState {
 
-    public static final WeakMap<Object, String> statementSqlMap = WeakConcurrent.buildMap();
+    public static final WeakMap<Object, JdbcSpanTemplate> statementTemplateMap = WeakConcurrent.buildMap();
     public static final WeakMap<Connection, ConnectionMetaData> metaDataMap = WeakConcurrent.buildMap();
     public static final WeakMap<Class<?>, Boolean> metadataSupported = WeakConcurrent.buildMap();
     public static final WeakMap<Class<?>, Boolean> catalogSupported = WeakConcurrent.buildMap();
@@ -36,7 +36,7 @@ import java.sql.Statement;
 import java.util.concurrent.Callable;
 
 import static co.elastic.apm.agent.jdbc.helper.JdbcGlobalState.metaDataMap;
-import static co.elastic.apm.agent.jdbc.helper.JdbcGlobalState.statementSqlMap;
+import static co.elastic.apm.agent.jdbc.helper.JdbcGlobalState.statementTemplateMap;
 
 public class JdbcHelper {
 
@@ -64,7 +64,9 @@ public class JdbcHelper {
      * @param sql       query string
      */
     public void mapStatementToSql(Object statement, String sql) {
-        statementSqlMap.putIfAbsent(statement, sql);
+        if (statementTemplateMap.get(statement) == null) {
+            statementTemplateMap.putIfAbsent(statement, JdbcSpanTemplate.forSql(sql));
+        }
     }
 
     /**
@@ -77,9 +79,63 @@ public class JdbcHelper {
      */
     @Nullable
     public String retrieveSqlForStatement(Object statement) {
-        return statementSqlMap.get(statement);
+        JdbcSpanTemplate template = statementTemplateMap.get(statement);
+        return template != null ? template.getSql() : null;
     }
 
+    /**
+     * Creates a span for a statement whose SQL has been {@linkplain #mapStatementToSql mapped} before,
+     * such as a {@link java.sql.PreparedStatement} or a batch.
+     * <p>
+     * The signature and connection meta data are only computed on the first execution of the statement
+     * and are then reused from its {@link JdbcSpanTemplate}.
+     * </p>
+     */
+    @Nullable
+    public Span createJdbcSpanForMappedStatement(Object statement, @Nullable AbstractSpan<?> parent) {
+        if (!(statement instanceof Statement) || isAlreadyMonitored(parent) || parent == null) {
+            return null;
+        }
+        JdbcSpanTemplate template = statementTemplateMap.get(statement);
+        if (template == null) {
+            return null;
+        }
+
+        Span span = parent.createSpan().activate();
+        // the type has to be set before resolving the template, see createJdbcSpan
+        span.withType(DB_SPAN_TYPE);
+        if (!template.isResolved()) {
+            template = resolveTemplate(template, (Statement) statement);
+            // the statement might be closed concurrently, but then the weak map entry will be cleaned up eventually
+            statementTemplateMap.put(statement, template);
+        }
+
+        String sql = template.getSql();
+        if (sql.isEmpty()) {
+            span.withName("empty query");
+        } else if (span.isSampled()) {
+            StringBuilder spanName = span.getAndOverrideName(AbstractSpan.PRIO_DEFAULT);
+            if (spanName != null && template.getSignature() != null) {
+                spanName.append(template.getSignature());
+            }
+        }
+        span.getContext().getDb()
+            .withStatement(sql.isEmpty() ? "(empty query)" : sql)
+            .withType("sql");
+        applyConnectionMetaData(span, template.getConnectionMetaData());
+        return span;
+    }
+
+    private JdbcSpanTemplate resolveTemplate(JdbcSpanTemplate template, Statement statement) {
+        String signature = null;
+        String sql = template.getSql();
+        if (!sql.isEmpty()) {
+            StringBuilder signatureBuilder = new StringBuilder();
+            signatureParser.querySignature(sql, signatureBuilder, true);
+            signature = signatureBuilder.toString();
+        }
+        return template.resolve(signature, getConnectionMetaData(safeGetConnection(statement)));
+    }
 
     @Nullable
     public Span createJdbcSpan(@Nullable String sql, Object statement, @Nullable AbstractSpan<?> parent, boolean preparedStatement) {
@@ -108,8 +164,11 @@ public class JdbcHelper {
             .withType("sql");
 
         Connection connection = safeGetConnection((Statement) statement);
-        ConnectionMetaData connectionMetaData = getConnectionMetaData(connection);
+        applyConnectionMetaData(span, getConnectionMetaData(connection));
+        return span;
+    }
 
+    private void applyConnectionMetaData(Span span, @Nullable ConnectionMetaData connectionMetaData) {
         String vendor = "unknown";
         if (connectionMetaData != null) {
             vendor = connectionMetaData.getDbVendor();
@@ -125,8 +184,6 @@ public class JdbcHelper {
                 .withType(DB_SPAN_TYPE);
         }
         span.withSubtype(vendor).withAction(DB_SPAN_ACTION);
-
-        return span;
     }
 
     /*
@@ -233,7 +290,7 @@ public class JdbcHelper {
     }
 
     public void removeSqlForStatement(Statement statement) {
-        statementSqlMap.remove(statement);
+        statementTemplateMap.remove(statement);
     }
 
     /**
@@ -0,0 +1,79 @@
+/*
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package co.elastic.apm.agent.jdbc.helper;
+
+import javax.annotation.Nullable;
+
+/**
+ * The immutable part of the spans of a {@link java.sql.Statement}.
+ * <p>
+ * When a statement is prepared, the template only contains the SQL.
+ * On the first execution, it is replaced by a {@link #isResolved() resolved} template which also contains the signature
+ * and the {@link ConnectionMetaData}, as neither of them can change for the lifetime of a statement.
+ * Subsequent executions just copy the values from the template to the span.
+ * </p>
+ */
+public class JdbcSpanTemplate {
+
+    private final String sql;
+    @Nullable
+    private final String signature;
+    @Nullable
+    private final ConnectionMetaData connectionMetaData;
+    private final boolean resolved;
+
+    private JdbcSpanTemplate(String sql, @Nullable String signature, @Nullable ConnectionMetaData connectionMetaData, boolean resolved) {
+        this.sql = sql;
+        this.signature = signature;
+        this.connectionMetaData = connectionMetaData;
+        this.resolved = resolved;
+    }
+
+    static JdbcSpanTemplate forSql(String sql) {
+        return new JdbcSpanTemplate(sql, null, null, false);
+    }
+
+    JdbcSpanTemplate resolve(@Nullable String signature, @Nullable ConnectionMetaData connectionMetaData) {
+        return new JdbcSpanTemplate(sql, signature, connectionMetaData, true);
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    /**
+     * @return the signature of the SQL, {@code null} if the SQL is empty or if this template is not resolved yet
+     */
+    @Nullable
+    public String getSignature() {
+        return signature;
+    }
+
+    /**
+     * @return the meta data of the statement's connection, {@code null} if it's not available or if this template is not resolved yet
+     */
+    @Nullable
+    public ConnectionMetaData getConnectionMetaData() {
+        return connectionMetaData;
+    }
+
+    public boolean isResolved() {
+        return resolved;
+    }
+}
@@ -331,9 +331,9 @@ public abstract class AbstractJdbcInstrumentationTest extends AbstractInstrument
         reporter.reset();
         // unique key violation
         assertThatThrownBy(() -> statementConsumer.withStatement(statement)).isInstanceOf(SQLException.class);
-        int mappedStatements = JdbcGlobalState.statementSqlMap.approximateSize();
+        int mappedStatements = JdbcGlobalState.statementTemplateMap.approximateSize();
         statement.close();
-        assertThat(JdbcGlobalState.statementSqlMap.approximateSize()).isLessThan(mappedStatements);
+        assertThat(JdbcGlobalState.statementTemplateMap.approximateSize()).isLessThan(mappedStatements);
         Span span = assertSpanRecorded(insert, false, -1);
         assertThat(span.getOutcome()).isEqualTo(Outcome.FAILURE);
     }
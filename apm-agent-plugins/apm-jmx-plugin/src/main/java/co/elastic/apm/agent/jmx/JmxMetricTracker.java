@@ -29,6 +29,8 @@ import co.elastic.apm.agent.sdk.logging.LoggerFactory;
 import org.stagemonitor.configuration.ConfigurationOption;
 
 import javax.annotation.Nullable;
+import javax.management.Attribute;
+import javax.management.AttributeList;
 import javax.management.AttributeNotFoundException;
 import javax.management.InstanceNotFoundException;
 import javax.management.JMException;
@@ -45,11 +47,15 @@ import javax.management.openmbean.CompositeData;
 import javax.management.relation.MBeanServerNotificationFilter;
 import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 
 public class JmxMetricTracker extends AbstractLifecycleListener {
@@ -64,6 +70,10 @@ public class JmxMetricTracker extends AbstractLifecycleListener {
     private final MetricRegistry metricRegistry;
     @Nullable
     private volatile NotificationListener listener;
+    /**
+     * Groups the metric registrations by MBean
+     */
+    private final ConcurrentMap<ObjectName, MBeanSnapshot> mBeanSnapshots = new ConcurrentHashMap<>();
 
     public JmxMetricTracker(ElasticApmTracer tracer) {
         jmxConfiguration = tracer.getConfig(JmxConfiguration.class);
@@ -174,10 +184,10 @@ public class JmxMetricTracker extends AbstractLifecycleListener {
                 List<JmxMetricRegistration> newRegistrations = compileJmxMetricRegistrations(newValue, platformMBeanServer);
 
                 for (JmxMetricRegistration addedRegistration : removeAll(oldRegistrations, newRegistrations)) {
-                    addedRegistration.register(platformMBeanServer, metricRegistry);
+                    addedRegistration.register(platformMBeanServer, metricRegistry, mBeanSnapshots);
                 }
                 for (JmxMetricRegistration deletedRegistration : removeAll(newRegistrations, oldRegistrations)) {
-                    deletedRegistration.unregister(metricRegistry);
+                    deletedRegistration.unregister(metricRegistry, mBeanSnapshots);
                 }
 
             }
@@ -189,12 +199,18 @@ public class JmxMetricTracker extends AbstractLifecycleListener {
         MBeanServerNotificationFilter filter = new MBeanServerNotificationFilter();
         filter.enableAllObjectNames();
         filter.enableType(MBeanServerNotification.REGISTRATION_NOTIFICATION);
+        filter.enableType(MBeanServerNotification.UNREGISTRATION_NOTIFICATION);
         listener = new NotificationListener() {
             @Override
             public void handleNotification(Notification notification, Object handback) {
                 try {
                     if (notification instanceof MBeanServerNotification) {
-                        onMBeanAdded(((MBeanServerNotification) notification).getMBeanName());
+                        ObjectName mBeanName = ((MBeanServerNotification) notification).getMBeanName();
+                        if (MBeanServerNotification.UNREGISTRATION_NOTIFICATION.equals(notification.getType())) {
+                            onMBeanRemoved(mBeanName);
+                        } else {
+                            onMBeanAdded(mBeanName);
+                        }
                     }
                 } catch (Exception e) {
                     logger.error(e.getMessage(), e);
@@ -205,9 +221,13 @@ public class JmxMetricTracker extends AbstractLifecycleListener {
                 logger.trace("Receiving MBean registration notification for {}", mBeanName);
                 for (JmxMetric jmxMetric : jmxConfiguration.getCaptureJmxMetrics().get()) {
                     ObjectName metricName = jmxMetric.getObjectName();
-                    if (metricName.apply(mBeanName) || matchesJbossStatisticsPool(mBeanName, metricName, server)) {
+                    if (metricName.apply(mBeanName)) {
+                        logger.debug("MBean added at runtime: {}", mBeanName);
+                        // only resolving the added MBean instead of re-querying all MBeans matching the object name pattern
+                        registerMBean(jmxMetric, mBeanName, server);
+                    } else if (matchesJbossStatisticsPool(mBeanName, metricName, server)) {
                         logger.debug("MBean added at runtime: {}", jmxMetric.getObjectName());
-                        register(Collections.singletonList(jmxMetric), server);
+                        registerMBean(jmxMetric, metricName, server);
                     }
                 }
             }
@@ -265,6 +285,18 @@ public class JmxMetricTracker extends AbstractLifecycleListener {
         }
     }
 
+    private void registerMBean(JmxMetric jmxMetric, ObjectName objectName, MBeanServer server) {
+        List<JmxMetricRegistration> registrations = new ArrayList<>();
+        try {
+            addJmxMetricRegistration(jmxMetric, objectName, registrations, server);
+        } catch (Exception e) {
+            logger.error("Failed to register JMX metric {}", jmxMetric.toString(), e);
+        }
+        for (JmxMetricRegistration registration : registrations) {
+            registration.register(server, metricRegistry, mBeanSnapshots);
+        }
+    }
+
     private static <T> List<T> removeAll(List<T> removeFromThis, List<T> toRemove) {
         List<T> result = new ArrayList<T>(toRemove);
         result.removeAll(removeFromThis);
@@ -273,7 +305,7 @@ public class JmxMetricTracker extends AbstractLifecycleListener {
 
     private void register(List<JmxMetric> jmxMetrics, MBeanServer server) {
         for (JmxMetricRegistration registration : compileJmxMetricRegistrations(jmxMetrics, server)) {
-            registration.register(server, metricRegistry);
+            registration.register(server, metricRegistry, mBeanSnapshots);
         }
     }
 
@@ -284,7 +316,7 @@ public class JmxMetricTracker extends AbstractLifecycleListener {
         List<JmxMetricRegistration> registrations = new ArrayList<>();
         for (JmxMetric jmxMetric : jmxMetrics) {
             try {
-                addJmxMetricRegistration(jmxMetric, registrations, server);
+                addJmxMetricRegistration(jmxMetric, jmxMetric.getObjectName(), registrations, server);
             } catch (Exception e) {
                 logger.error("Failed to register JMX metric {}", jmxMetric.toString(), e);
             }
@@ -292,36 +324,52 @@ public class JmxMetricTracker extends AbstractLifecycleListener {
         return registrations;
     }
 
-    private void addJmxMetricRegistration(final JmxMetric jmxMetric, List<JmxMetricRegistration> registrations, MBeanServer server) throws JMException {
-        Set<ObjectInstance> mbeans = server.queryMBeans(jmxMetric.getObjectName(), null);
+    /**
+     * @param objectName the object name to query, which is either the object name of the {@link JmxMetric}
+     *                   or the name of a single MBean matching it
+     */
+    private void addJmxMetricRegistration(final JmxMetric jmxMetric, ObjectName objectName, List<JmxMetricRegistration> registrations, MBeanServer server) throws JMException {
+        Set<ObjectInstance> mbeans = server.queryMBeans(objectName, null);
         if (!mbeans.isEmpty()) {
-            logger.debug("Found mbeans for object name {}", jmxMetric.getObjectName());
+            logger.debug("Found mbeans for object name {}", objectName);
         } else {
-            logger.debug("Found no mbeans for object name {}. Listening for mbeans added later.", jmxMetric.getObjectName());
+            logger.debug("Found no mbeans for object name {}. Listening for mbeans added later.", objectName);
+        }
+        List<JmxMetric.Attribute> attributes = jmxMetric.getAttributes();
+        String[] attributeNames = new String[attributes.size()];
+        for (int i = 0; i < attributes.size(); i++) {
+            attributeNames[i] = attributes.get(i).getJmxAttributeName();
         }
         for (ObjectInstance mbean : mbeans) {
-            for (JmxMetric.Attribute attribute : jmxMetric.getAttributes()) {
-                final ObjectName objectName = mbean.getObjectName();
+            final ObjectName mbeanName = mbean.getObjectName();
+            // reads all attributes at once, attributes that can't be read are not contained in the result
+            Map<String, Object> values = toMap(server.getAttributes(mbeanName, attributeNames));
+            for (JmxMetric.Attribute attribute : attributes) {
                 final Object value;
                 try {
-                    value = server.getAttribute(objectName, attribute.getJmxAttributeName());
+                    if (values.containsKey(attribute.getJmxAttributeName())) {
+                        value = values.get(attribute.getJmxAttributeName());
+                    } else {
+                        // provides the reason why the attribute could not be read
+                        value = server.getAttribute(mbeanName, attribute.getJmxAttributeName());
+                    }
                     if (value instanceof Number) {
                         logger.debug("Found number attribute {}={}", attribute.getJmxAttributeName(), value);
                         registrations.add(new JmxMetricRegistration(JMX_PREFIX + attribute.getMetricName(),
-                            Labels.Mutable.of(objectName.getKeyPropertyList()),
+                            Labels.Mutable.of(mbeanName.getKeyPropertyList()),
                             attribute.getJmxAttributeName(),
                             null,
-                            objectName));
+                            mbeanName));
                     } else if (value instanceof CompositeData) {
                         final CompositeData compositeValue = (CompositeData) value;
                         for (final String key : compositeValue.getCompositeType().keySet()) {
                             if (compositeValue.get(key) instanceof Number) {
                                 logger.debug("Found composite number attribute {}.{}={}", attribute.getJmxAttributeName(), key, value);
                                 registrations.add(new JmxMetricRegistration(JMX_PREFIX + attribute.getMetricName() + "." + key,
-                                    Labels.Mutable.of(objectName.getKeyPropertyList()),
+                                    Labels.Mutable.of(mbeanName.getKeyPropertyList()),
                                     attribute.getJmxAttributeName(),
                                     key,
-                                    objectName));
+                                    mbeanName));
                             } else {
                                 logger.warn("Can't create metric '{}' because composite value '{}' is not a number: '{}'", jmxMetric, key, value);
                             }
@@ -336,6 +384,97 @@ public class JmxMetricTracker extends AbstractLifecycleListener {
         }
     }
 
+    private static Map<String, Object> toMap(AttributeList attributeList) {
+        Map<String, Object> values = new HashMap<>();
+        for (Attribute attribute : attributeList.asList()) {
+            values.put(attribute.getName(), attribute.getValue());
+        }
+        return values;
+    }
+
+    private void onMBeanRemoved(ObjectName mBeanName) {
+        MBeanSnapshot snapshot = mBeanSnapshots.get(mBeanName);
+        if (snapshot != null) {
+            logger.debug("MBean removed at runtime: {}", mBeanName);
+            for (JmxMetricRegistration registration : snapshot.getRegistrations()) {
+                registration.unregister(metricRegistry, mBeanSnapshots);
+            }
+        }
+    }
+
+    /**
+     * Holds the values of all attributes of a single MBean which are tracked as metrics.
+     * <p>
+     * The values are read with a single {@link MBeanServer#getAttributes} call
+     * and are shared by all gauges of the MBean within a metrics reporting cycle,
+     * instead of reading the attribute (or the whole {@link CompositeData}) for each gauge.
+     * </p>
+     */
+    static class MBeanSnapshot {
+        /**
+         * Shorter than the minimum {@link co.elastic.apm.agent.report.ReporterConfiguration#metricsInterval metrics_interval},
+         * so that each reporting cycle gets fresh values.
+         */
+        private static final long MAX_SNAPSHOT_AGE_NS = TimeUnit.MILLISECONDS.toNanos(500);
+
+        private final ObjectName objectName;
+        private final Set<JmxMetricRegistration> registrations = new HashSet<>();
+        private String[] attributeNames = new String[0];
+        @Nullable
+        private Map<String, Object> values;
+        private long snapshotTimestamp;
+
+        MBeanSnapshot(ObjectName objectName) {
+            this.objectName = objectName;
+        }
+
+        synchronized boolean addRegistration(JmxMetricRegistration registration) {
+            boolean added = registrations.add(registration);
+            if (added) {
+                updateAttributeNames();
+            }
+            return added;
+        }
+
+        synchronized boolean removeRegistration(JmxMetricRegistration registration) {
+            boolean removed = registrations.remove(registration);
+            if (removed) {
+                updateAttributeNames();
+            }
+            return removed;
+        }
+
+        synchronized boolean isEmpty() {
+            return registrations.isEmpty();
+        }
+
+        synchronized List<JmxMetricRegistration> getRegistrations() {
+            return new ArrayList<>(registrations);
+        }
+
+        private void updateAttributeNames() {
+            Set<String> names = new HashSet<>();
+            for (JmxMetricRegistration registration : registrations) {
+                names.add(registration.jmxAttribute);
+            }
+            attributeNames = names.toArray(new String[0]);
+            values = null;
+        }
+
+        synchronized Object getAttribute(MBeanServer server, String attribute) throws JMException {
+            long now = System.nanoTime();
+            if (values == null || now - snapshotTimestamp > MAX_SNAPSHOT_AGE_NS) {
+                values = toMap(server.getAttributes(objectName, attributeNames));
+                snapshotTimestamp = now;
+            }
+            if (values.containsKey(attribute)) {
+                return values.get(attribute);
+            }
+            // throws the exception which caused the attribute to be missing from the snapshot
+            return server.getAttribute(objectName, attribute);
+        }
+    }
+
     static class JmxMetricRegistration {
         private static final Logger logger = LoggerFactory.getLogger(JmxMetricRegistration.class);
         private final String metricName;
@@ -354,19 +493,32 @@ public class JmxMetricTracker extends AbstractLifecycleListener {
         }
 
 
-        void register(final MBeanServer server, final MetricRegistry metricRegistry) {
+        void register(final MBeanServer server, final MetricRegistry metricRegistry, final ConcurrentMap<ObjectName, MBeanSnapshot> mBeanSnapshots) {
+            final MBeanSnapshot snapshot;
+            synchronized (mBeanSnapshots) {
+                MBeanSnapshot existing = mBeanSnapshots.get(objectName);
+                if (existing == null) {
+                    existing = new MBeanSnapshot(objectName);
+                    mBeanSnapshots.put(objectName, existing);
+                }
+                snapshot = existing;
+                if (!snapshot.addRegistration(this)) {
+                    // already registered
+                    return;
+                }
+            }
             logger.debug("Registering JMX metric {} {}.{} as metric_name: {} labels: {}", objectName, jmxAttribute, compositeDataKey, metricName, labels);
             metricRegistry.add(metricName, labels, new DoubleSupplier() {
                 @Override
                 public double get() {
                     try {
                         if (compositeDataKey == null) {
-                            return ((Number) server.getAttribute(objectName, jmxAttribute)).doubleValue();
+                            return ((Number) snapshot.getAttribute(server, jmxAttribute)).doubleValue();
                         } else {
-                            return ((Number) ((CompositeData) server.getAttribute(objectName, jmxAttribute)).get(compositeDataKey)).doubleValue();
+                            return ((Number) ((CompositeData) snapshot.getAttribute(server, jmxAttribute)).get(compositeDataKey)).doubleValue();
                         }
                     } catch (InstanceNotFoundException | AttributeNotFoundException e) {
-                        unregister(metricRegistry);
+                        unregister(metricRegistry, mBeanSnapshots);
                         return Double.NaN;
                     } catch (Exception e) {
                         return Double.NaN;
@@ -375,9 +527,15 @@ public class JmxMetricTracker extends AbstractLifecycleListener {
             });
         }
 
-        void unregister(MetricRegistry metricRegistry) {
+        void unregister(MetricRegistry metricRegistry, ConcurrentMap<ObjectName, MBeanSnapshot> mBeanSnapshots) {
             logger.debug("Unregistering JMX metric {} {}.{} metric_name: {} labels: {}", objectName, jmxAttribute, compositeDataKey, metricName, labels);
             metricRegistry.removeGauge(metricName, labels);
+            synchronized (mBeanSnapshots) {
+                MBeanSnapshot snapshot = mBeanSnapshots.get(objectName);
+                if (snapshot != null && snapshot.removeRegistration(this) && snapshot.isEmpty()) {
+                    mBeanSnapshots.remove(objectName);
+                }
+            }
         }
 
         @Override
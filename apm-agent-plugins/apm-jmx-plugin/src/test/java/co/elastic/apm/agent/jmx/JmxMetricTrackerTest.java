@@ -28,10 +28,17 @@ import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
 import javax.management.ObjectName;
 import java.lang.management.GarbageCollectorMXBean;
 import java.lang.management.ManagementFactory;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static java.util.Collections.emptyList;
 import static org.assertj.core.api.Assertions.assertThat;
@@ -147,6 +154,101 @@ class JmxMetricTrackerTest {
         assertThat(metricRegistry.getGauge("jvm.jmx.Baz", Labels.Mutable.of("name", "testMBeanUnregister").add("type", "Foo"))).isNull();
     }
 
+    @Test
+    void testAttributesOfSameMBeanAreReadTogether() throws Exception {
+        ObjectName objectName = new ObjectName("foo:type=Counting");
+        CountingMBean mBean = new CountingMBean();
+        ManagementFactory.getPlatformMBeanServer().registerMBean(mBean, objectName);
+        try {
+            setConfig(JmxMetric.valueOf("object_name[foo:type=Counting] attribute[Foo] attribute[Bar]"));
+            mBean.getAttributesCount.set(0);
+            mBean.getAttributeCount.set(0);
+            metricRegistry.flipPhaseAndReport(metricSets -> {
+                assertThat(metricSets.get(Labels.Mutable.of("type", "Counting")).getGauges().get("jvm.jmx.Foo").get()).isEqualTo(1);
+                assertThat(metricSets.get(Labels.Mutable.of("type", "Counting")).getGauges().get("jvm.jmx.Bar").get()).isEqualTo(2);
+            });
+            assertThat(mBean.getAttributesCount.get()).isEqualTo(1);
+            assertThat(mBean.getAttributeCount.get()).isEqualTo(0);
+        } finally {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        }
+    }
+
+    @Test
+    void testMBeanUnregisterNotification() throws Exception {
+        ObjectName objectName = new ObjectName("foo:type=Foo,name=testMBeanUnregisterNotification");
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new TestMetric(), objectName);
+        setConfig(JmxMetric.valueOf("object_name[foo:type=Foo,name=*] attribute[Baz]"));
+        Labels labels = Labels.Mutable.of("name", "testMBeanUnregisterNotification").add("type", "Foo");
+        assertThat(metricRegistry.getGauge("jvm.jmx.Baz", labels)).isNotNull();
+
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+
+        // the gauge is removed as soon as the MBean is unregistered, without having to read it first
+        assertThat(metricRegistry.getGauge("jvm.jmx.Baz", labels)).isNull();
+    }
+
+    /**
+     * A dynamic MBean with the attributes {@code Foo=1} and {@code Bar=2} which counts how often its attributes are read
+     */
+    public static class CountingMBean implements DynamicMBean {
+        private final AtomicInteger getAttributeCount = new AtomicInteger();
+        private final AtomicInteger getAttributesCount = new AtomicInteger();
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            getAttributeCount.incrementAndGet();
+            return getValue(attribute);
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            getAttributesCount.incrementAndGet();
+            AttributeList attributeList = new AttributeList();
+            for (String attribute : attributes) {
+                try {
+                    attributeList.add(new Attribute(attribute, getValue(attribute)));
+                } catch (AttributeNotFoundException ignore) {
+                }
+            }
+            return attributeList;
+        }
+
+        private Object getValue(String attribute) throws AttributeNotFoundException {
+            switch (attribute) {
+                case "Foo":
+                    return 1;
+                case "Bar":
+                    return 2;
+                default:
+                    throw new AttributeNotFoundException(attribute);
+            }
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            return new MBeanInfo(CountingMBean.class.getName(), null, new MBeanAttributeInfo[]{
+                new MBeanAttributeInfo("Foo", "int", null, true, false, false),
+                new MBeanAttributeInfo("Bar", "int", null, true, false, false)
+            }, null, null, null);
+        }
+    }
+
     public interface TestMetricMBean {
         int getBaz();
     }